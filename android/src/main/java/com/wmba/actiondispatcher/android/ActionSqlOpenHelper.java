@@ -1,14 +1,19 @@
 package com.wmba.actiondispatcher.android;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Stores serialized Actions in SQLite. The database runs in write-ahead logging mode, so reads don't
+ * wait for writes. Writes go through statements that are compiled once and reused, one write at a
+ * time, and the batch methods write all of their rows in a single transaction.
+ */
 public class ActionSqlOpenHelper extends SQLiteOpenHelper {
 
   /*package*/ static final String TABLE_ACTIONS = "actions";
@@ -17,58 +22,184 @@ public class ActionSqlOpenHelper extends SQLiteOpenHelper {
   /*package*/ static final String COLUMN_SERIALIZED_ACTION = "serialized_action";
 
   private static final String DB_NAME = "ActionDispatcherPersistentQueue.sqlite";
-  private static final int DB_VERSION = 2;
+  // 3: The serialized Action is stored in a BLOB column, instead of BYTE.
+  private static final int DB_VERSION = 3;
+
+  private static final String SELECT_ALL = "SELECT " + COLUMN_ID + ", " + COLUMN_SERIALIZED_ACTION
+      + " FROM " + TABLE_ACTIONS + " ORDER BY " + COLUMN_ID + " ASC;";
+  private static final String SELECT_PAGE = "SELECT " + COLUMN_ID + ", " + COLUMN_SERIALIZED_ACTION
+      + " FROM " + TABLE_ACTIONS + " WHERE " + COLUMN_ID + " > ? ORDER BY " + COLUMN_ID + " ASC LIMIT ?;";
 
   private final SQLiteDatabase mDB;
 
+  // Compiled once, and only used while holding mWriteLock, as SQLite only runs one write at a time.
+  // Transactions are exclusive, which costs nothing as writes are already serialized by the lock,
+  // and with write-ahead logging they don't block reads.
+  private final Object mWriteLock = new Object();
+  private final SQLiteStatement mInsert;
+  private final SQLiteStatement mUpdate;
+  private final SQLiteStatement mDelete;
+
   public ActionSqlOpenHelper(Context context) {
     super(context, DB_NAME, null, DB_VERSION);
+    setWriteAheadLoggingEnabled(true);
     mDB = getWritableDatabase();
+
+    mInsert = mDB.compileStatement("INSERT INTO " + TABLE_ACTIONS
+        + " (" + COLUMN_SERIALIZED_ACTION + ") VALUES (?);");
+    mUpdate = mDB.compileStatement("UPDATE " + TABLE_ACTIONS
+        + " SET " + COLUMN_SERIALIZED_ACTION + " = ? WHERE " + COLUMN_ID + " = ?;");
+    mDelete = mDB.compileStatement("DELETE FROM " + TABLE_ACTIONS + " WHERE " + COLUMN_ID + " = ?;");
   }
 
   @Override public void onCreate(SQLiteDatabase db) {
-    String sql = "CREATE TABLE " + TABLE_ACTIONS + " "
+    db.execSQL(createTableSql(TABLE_ACTIONS));
+  }
+
+  /**
+   * Keeps the persisted Actions, so they still run after the app is updated.
+   */
+  @Override public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    if (oldVersion < 3) {
+      // SQLite can't change the type of a column, so the rows are copied to a new table. Runs in the
+      // transaction of the upgrade, and keeps the ids, so AUTOINCREMENT carries on after them.
+      String newTable = TABLE_ACTIONS + "_new";
+      db.execSQL(createTableSql(newTable));
+      db.execSQL("INSERT INTO " + newTable + " (" + COLUMN_ID + ", " + COLUMN_SERIALIZED_ACTION + ") "
+          + "SELECT " + COLUMN_ID + ", " + COLUMN_SERIALIZED_ACTION + " FROM " + TABLE_ACTIONS + ";");
+      db.execSQL("DROP TABLE " + TABLE_ACTIONS + ";");
+      db.execSQL("ALTER TABLE " + newTable + " RENAME TO " + TABLE_ACTIONS + ";");
+    }
+  }
+
+  private static String createTableSql(String table) {
+    return "CREATE TABLE " + table + " "
         + "("
         + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
-        + "`" + COLUMN_SERIALIZED_ACTION + "` BYTE NOT NULL" +
+        + "`" + COLUMN_SERIALIZED_ACTION + "` BLOB NOT NULL" +
         ");";
-    db.execSQL(sql);
   }
 
-  @Override public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-    db.execSQL("DROP TABLE IF EXISTS " + TABLE_ACTIONS);
-    onCreate(db);
+  public long insert(byte[] serializedAction) {
+    synchronized (mWriteLock) {
+      return insertLocked(serializedAction);
+    }
+  }
+
+  /**
+   * Inserts every Action in one transaction.
+   *
+   * @return the ids of the Actions, in the same order.
+   */
+  public long[] insertAll(List<byte[]> serializedActions) {
+    long[] ids = new long[serializedActions.size()];
+    synchronized (mWriteLock) {
+      mDB.beginTransaction();
+      try {
+        for (int i = 0; i < ids.length; i++) {
+          ids[i] = insertLocked(serializedActions.get(i));
+        }
+        mDB.setTransactionSuccessful();
+      } finally {
+        mDB.endTransaction();
+      }
+    }
+    return ids;
+  }
+
+  public void update(long id, byte[] serializedAction) {
+    synchronized (mWriteLock) {
+      updateLocked(id, serializedAction);
+    }
+  }
+
+  /**
+   * Updates every Action in one transaction.
+   */
+  public void updateAll(long[] ids, List<byte[]> serializedActions) {
+    synchronized (mWriteLock) {
+      mDB.beginTransaction();
+      try {
+        for (int i = 0; i < ids.length; i++) {
+          updateLocked(ids[i], serializedActions.get(i));
+        }
+        mDB.setTransactionSuccessful();
+      } finally {
+        mDB.endTransaction();
+      }
+    }
+  }
+
+  public void delete(long id) {
+    synchronized (mWriteLock) {
+      deleteLocked(id);
+    }
   }
 
-  public synchronized long insert(byte[] serializedAction) {
-    ContentValues values = new ContentValues();
-    values.put(COLUMN_SERIALIZED_ACTION, serializedAction);
+  /**
+   * Deletes every Action in one transaction.
+   */
+  public void deleteAll(long[] ids) {
+    synchronized (mWriteLock) {
+      mDB.beginTransaction();
+      try {
+        for (long id : ids) {
+          deleteLocked(id);
+        }
+        mDB.setTransactionSuccessful();
+      } finally {
+        mDB.endTransaction();
+      }
+    }
+  }
 
-    return mDB.insert(TABLE_ACTIONS, null, values);
+  private long insertLocked(byte[] serializedAction) {
+    mInsert.bindBlob(1, serializedAction);
+    try {
+      return mInsert.executeInsert();
+    } finally {
+      mInsert.clearBindings();
+    }
   }
 
-  public synchronized void update(long id, byte[] serializedAction) {
-    ContentValues values = new ContentValues();
-    values.put(COLUMN_SERIALIZED_ACTION, serializedAction);
+  private void updateLocked(long id, byte[] serializedAction) {
+    mUpdate.bindBlob(1, serializedAction);
+    mUpdate.bindLong(2, id);
+    try {
+      mUpdate.executeUpdateDelete();
+    } finally {
+      mUpdate.clearBindings();
+    }
+  }
 
-    String where = COLUMN_ID + " = " + id;
-    mDB.update(TABLE_ACTIONS, values, where, null);
+  private void deleteLocked(long id) {
+    mDelete.bindLong(1, id);
+    try {
+      mDelete.executeUpdateDelete();
+    } finally {
+      mDelete.clearBindings();
+    }
   }
 
-  public synchronized void delete(long id) {
-    String where = COLUMN_ID + " = " + id;
-    mDB.delete(TABLE_ACTIONS, where, null);
+  public List<SerializedActionHolder> getAllActions() {
+    return queryActions(SELECT_ALL, null);
   }
 
-  public synchronized List<SerializedActionHolder> getAllActions() {
-    String sql = "SELECT " + COLUMN_ID + ", " + COLUMN_SERIALIZED_ACTION + " "
-        + "FROM " + TABLE_ACTIONS + " ORDER BY " + COLUMN_ID + " ASC;";
+  /**
+   * @param afterId only Actions with a greater id are returned.
+   * @param limit the max number of Actions to return.
+   * @return a page of the Actions in ascending order of id.
+   */
+  public List<SerializedActionHolder> getActions(long afterId, int limit) {
+    return queryActions(SELECT_PAGE, new String[] { Long.toString(afterId), Integer.toString(limit) });
+  }
 
+  private List<SerializedActionHolder> queryActions(String sql, String[] args) {
     List<SerializedActionHolder> serializedActions = new ArrayList<SerializedActionHolder>();
 
     Cursor c = null;
     try {
-      c = mDB.rawQuery(sql, null);
+      c = mDB.rawQuery(sql, args);
 
       int idIndex = c.getColumnIndex(COLUMN_ID);
       int actionIndex = c.getColumnIndex(COLUMN_SERIALIZED_ACTION);
@@ -92,9 +223,14 @@ public class ActionSqlOpenHelper extends SQLiteOpenHelper {
     return serializedActions;
   }
 
+  /**
+   * Deletes every Action. The freed pages are reused by later inserts instead of being given back
+   * with a VACUUM, which would rewrite the whole file while blocking every other write.
+   */
   public void deleteAllActions() {
-    mDB.delete(TABLE_ACTIONS, null, null);
-    mDB.execSQL("VACUUM");
+    synchronized (mWriteLock) {
+      mDB.delete(TABLE_ACTIONS, null, null);
+    }
   }
 
   static class SerializedActionHolder {
@@ -114,4 +250,4 @@ public class ActionSqlOpenHelper extends SQLiteOpenHelper {
       return mSerializedAction;
     }
   }
-}
\ No newline at end of file
+}
@@ -3,27 +3,38 @@ package com.wmba.actiondispatcher.android;
 import android.content.Context;
 
 import com.wmba.actiondispatcher.Action;
-import com.wmba.actiondispatcher.ActionPersister;
+import com.wmba.actiondispatcher.BatchActionPersister;
+import com.wmba.actiondispatcher.PagedActionPersister;
+import com.wmba.actiondispatcher.persist.ActionSerializer;
 import com.wmba.actiondispatcher.persist.JavaActionSerializer;
 import com.wmba.actiondispatcher.persist.PersistedActionHolder;
 
 import java.util.ArrayList;
 import java.util.List;
 
-public class AndroidActionPersister implements ActionPersister {
+public class AndroidActionPersister implements PagedActionPersister, BatchActionPersister {
   private final ActionSqlOpenHelper mOpenHelper;
-  private final JavaActionSerializer mSerializer = new JavaActionSerializer();
+  private final ActionSerializer mSerializer;
 
   public AndroidActionPersister(Context context) {
+    this(context, new JavaActionSerializer());
+  }
+
+  /**
+   * @param serializer used to convert Actions to and from the bytes stored in the database. Actions
+   *                   persisted with one serializer can't be read by another.
+   */
+  public AndroidActionPersister(Context context, ActionSerializer serializer) {
     mOpenHelper = new ActionSqlOpenHelper(context);
+    mSerializer = serializer;
   }
 
-  @Override public long persist(Action action) {
+  @Override public long persist(Action<?> action) {
     byte[] serializedAction = mSerializer.serialize(action);
     return mOpenHelper.insert(serializedAction);
   }
 
-  @Override public void update(long id, Action action) {
+  @Override public void update(long id, Action<?> action) {
     byte[] serializedAction = mSerializer.serialize(action);
     mOpenHelper.update(id, serializedAction);
   }
@@ -32,13 +43,40 @@ public class AndroidActionPersister implements ActionPersister {
     mOpenHelper.delete(id);
   }
 
+  @Override public long[] persistAll(List<? extends Action<?>> actions) {
+    return mOpenHelper.insertAll(serialize(actions));
+  }
+
+  @Override public void updateAll(long[] ids, List<? extends Action<?>> actions) {
+    mOpenHelper.updateAll(ids, serialize(actions));
+  }
+
+  @Override public void deleteAll(long[] ids) {
+    mOpenHelper.deleteAll(ids);
+  }
+
+  // Serialized before the database is written to, so the write lock isn't held while it runs.
+  private List<byte[]> serialize(List<? extends Action<?>> actions) {
+    List<byte[]> serializedActions = new ArrayList<byte[]>(actions.size());
+    for (Action<?> action : actions) {
+      serializedActions.add(mSerializer.serialize(action));
+    }
+    return serializedActions;
+  }
+
   @Override public List<PersistedActionHolder> getPersistedActions() {
-    List<ActionSqlOpenHelper.SerializedActionHolder> serializedActions = mOpenHelper.getAllActions();
+    return deserialize(mOpenHelper.getAllActions());
+  }
+
+  @Override public List<PersistedActionHolder> getPersistedActions(long afterId, int limit) {
+    return deserialize(mOpenHelper.getActions(afterId, limit));
+  }
 
+  private List<PersistedActionHolder> deserialize(List<ActionSqlOpenHelper.SerializedActionHolder> serializedActions) {
     List<PersistedActionHolder> deserializedActions =
         new ArrayList<PersistedActionHolder>(serializedActions.size());
     for (ActionSqlOpenHelper.SerializedActionHolder holder : serializedActions) {
-      Action action = mSerializer.deserialize(holder.getSerializedAction());
+      Action<?> action = mSerializer.deserialize(holder.getSerializedAction());
       deserializedActions.add(new PersistedActionHolder(holder.getId(), action));
     }
 
@@ -13,6 +13,7 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
@@ -83,6 +84,32 @@ public class AndroidPersistTest {
     assertTrue(persistedActions.get(1).getAction() instanceof TestAction2);
   }
 
+  @Test public void batchTest() {
+    AndroidActionPersister persister = buildPersister();
+    resetDatabase(persister);
+
+    TestAction action1 = new TestAction();
+    action1.testInt = 1;
+    TestAction action2 = new TestAction();
+    action2.testInt = 2;
+    long[] ids = persister.persistAll(Arrays.asList(action1, action2));
+    assertEquals(ids.length, 2);
+    assertTrue(ids[0] < ids[1]);
+
+    action1.testInt = 3;
+    action2.testInt = 4;
+    persister.updateAll(ids, Arrays.asList(action1, action2));
+
+    List<PersistedActionHolder> persistedActions = persister.getPersistedActions();
+    assertEquals(persistedActions.size(), 2);
+    assertEquals(persistedActions.get(0).getActionId(), ids[0]);
+    assertEquals(((TestAction) persistedActions.get(0).getAction()).testInt, 3);
+    assertEquals(((TestAction) persistedActions.get(1).getAction()).testInt, 4);
+
+    persister.deleteAll(ids);
+    assertEquals(persister.getPersistedActions().size(), 0);
+  }
+
   private AndroidActionPersister buildPersister() {
     Context context = Robolectric.getShadowApplication().getApplicationContext();
     return new AndroidActionPersister(context);
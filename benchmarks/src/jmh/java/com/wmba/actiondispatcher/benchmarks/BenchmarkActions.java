@@ -0,0 +1,93 @@
+package com.wmba.actiondispatcher.benchmarks;
+
+import com.wmba.actiondispatcher.Action;
+import com.wmba.actiondispatcher.ActionCallback;
+import com.wmba.actiondispatcher.ActionDispatcher;
+
+import java.io.Serializable;
+import java.util.concurrent.CountDownLatch;
+
+import rx.Single;
+import rx.SingleSubscriber;
+
+/**
+ * Actions and helpers shared by the benchmarks.
+ */
+/* package */ final class BenchmarkActions {
+  private BenchmarkActions() {}
+
+  /**
+   * Subscribes to the Single and blocks until it emits, so a benchmark invocation measures one full
+   * dispatch round-trip.
+   */
+  static <T> T await(Single<T> single) throws Throwable {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final Object[] value = new Object[1];
+    final Throwable[] error = new Throwable[1];
+
+    single.subscribe(new SingleSubscriber<T>() {
+      @Override public void onSuccess(T t) {
+        value[0] = t;
+        latch.countDown();
+      }
+
+      @Override public void onError(Throwable t) {
+        error[0] = t;
+        latch.countDown();
+      }
+    });
+
+    latch.await();
+    if (error[0] != null) throw error[0];
+    //noinspection unchecked
+    return (T) value[0];
+  }
+
+  /**
+   * Submits the Action and blocks until its callback is called.
+   */
+  static <T> T await(ActionDispatcher dispatcher, Action<T> action, String key) throws Throwable {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final Object[] value = new Object[1];
+    final Throwable[] error = new Throwable[1];
+
+    dispatcher.submit(action, key, new ActionCallback<T>() {
+      @Override public void onSuccess(T t) {
+        value[0] = t;
+        latch.countDown();
+      }
+
+      @Override public void onError(Throwable t) {
+        error[0] = t;
+        latch.countDown();
+      }
+    });
+
+    latch.await();
+    if (error[0] != null) throw error[0];
+    //noinspection unchecked
+    return (T) value[0];
+  }
+
+  static class NoOpAction extends Action<Boolean> {
+    @Override public Boolean execute() throws Throwable {
+      return true;
+    }
+  }
+
+  static class PersistentNoOpAction extends Action<Boolean> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private int mInt = 42;
+    private long mLong = 500000000000L;
+    private String mString = "benchmark";
+
+    @Override public Boolean execute() throws Throwable {
+      return true;
+    }
+
+    @Override public boolean isPersistent() {
+      return true;
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package com.wmba.actiondispatcher.benchmarks;
+
+import com.wmba.actiondispatcher.ActionDispatcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round-trips a no-op Action through {@link ActionDispatcher#toSingle},
+ * {@link ActionDispatcher#toObservable}, {@link ActionDispatcher#toFuture} and
+ * {@link ActionDispatcher#submit}, either on a single key or spread over many keys.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DispatchBenchmark {
+  @Param({"1", "64", "1024"})
+  public int keyCount;
+
+  private ActionDispatcher mDispatcher;
+  private String[] mKeys;
+
+  @Setup public void setUp() {
+    mDispatcher = new ActionDispatcher.Builder().build();
+    mKeys = new String[keyCount];
+    for (int i = 0; i < keyCount; i++) {
+      mKeys[i] = "key-" + i;
+    }
+  }
+
+  @TearDown(Level.Trial) public void tearDown() throws InterruptedException {
+    mDispatcher.shutdown(10, TimeUnit.SECONDS);
+  }
+
+  @State(Scope.Thread)
+  public static class KeyCursor {
+    private int mIndex = 0;
+
+    String next(String[] keys) {
+      String key = keys[mIndex];
+      mIndex = (mIndex + 1 == keys.length) ? 0 : mIndex + 1;
+      return key;
+    }
+  }
+
+  @Benchmark public Boolean toSingle(KeyCursor cursor) throws Throwable {
+    return BenchmarkActions.await(
+        mDispatcher.toSingle(new BenchmarkActions.NoOpAction(), cursor.next(mKeys)));
+  }
+
+  @Benchmark public Boolean submit(KeyCursor cursor) throws Throwable {
+    return BenchmarkActions.await(mDispatcher, new BenchmarkActions.NoOpAction(), cursor.next(mKeys));
+  }
+
+  @Benchmark public Boolean toFuture(KeyCursor cursor) throws Exception {
+    return mDispatcher.toFuture(new BenchmarkActions.NoOpAction(), cursor.next(mKeys)).get();
+  }
+
+  @Benchmark public Boolean toObservable(KeyCursor cursor) {
+    return mDispatcher.toObservable(new BenchmarkActions.NoOpAction(), cursor.next(mKeys))
+        .toBlocking()
+        .single();
+  }
+}
@@ -0,0 +1,60 @@
+package com.wmba.actiondispatcher.benchmarks;
+
+import com.wmba.actiondispatcher.ActionDispatcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import rx.SingleSubscriber;
+
+/**
+ * Fans a batch of Actions out through {@link ActionDispatcher#toSingleAsync} and waits for all of
+ * them to complete.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FanOutBenchmark {
+  @Param({"16", "256"})
+  public int fanOut;
+
+  private ActionDispatcher mDispatcher;
+
+  @Setup public void setUp() {
+    mDispatcher = new ActionDispatcher.Builder().build();
+  }
+
+  @TearDown(Level.Trial) public void tearDown() throws InterruptedException {
+    mDispatcher.shutdown(10, TimeUnit.SECONDS);
+  }
+
+  @Benchmark public void toSingleAsync() throws InterruptedException {
+    final CountDownLatch latch = new CountDownLatch(fanOut);
+    SingleSubscriber<Boolean> subscriber = new SingleSubscriber<Boolean>() {
+      @Override public void onSuccess(Boolean value) {
+        latch.countDown();
+      }
+
+      @Override public void onError(Throwable error) {
+        latch.countDown();
+      }
+    };
+
+    for (int i = 0; i < fanOut; i++) {
+      mDispatcher.toSingleAsync(new BenchmarkActions.NoOpAction()).subscribe(subscriber);
+    }
+
+    latch.await();
+  }
+}
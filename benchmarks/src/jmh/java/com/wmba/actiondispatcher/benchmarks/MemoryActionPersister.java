@@ -0,0 +1,45 @@
+package com.wmba.actiondispatcher.benchmarks;
+
+import com.wmba.actiondispatcher.Action;
+import com.wmba.actiondispatcher.ActionPersister;
+import com.wmba.actiondispatcher.persist.PersistedActionHolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps persisted Actions in memory, so only the dispatcher's own persistence overhead is measured.
+ */
+public class MemoryActionPersister implements ActionPersister {
+  private final AtomicLong mIdGenerator = new AtomicLong(0);
+  private final Map<Long, Action<?>> mActions = new ConcurrentHashMap<Long, Action<?>>();
+
+  @Override public long persist(Action<?> action) {
+    long id = mIdGenerator.getAndIncrement();
+    mActions.put(id, action);
+    return id;
+  }
+
+  @Override public void update(long id, Action<?> action) {
+    mActions.put(id, action);
+  }
+
+  @Override public void delete(long id) {
+    mActions.remove(id);
+  }
+
+  @Override public List<PersistedActionHolder> getPersistedActions() {
+    List<PersistedActionHolder> persistedActions = new ArrayList<PersistedActionHolder>(mActions.size());
+    for (Map.Entry<Long, Action<?>> entry : mActions.entrySet()) {
+      persistedActions.add(new PersistedActionHolder(entry.getKey(), entry.getValue()));
+    }
+    return persistedActions;
+  }
+
+  @Override public void deleteAll() {
+    mActions.clear();
+  }
+}
@@ -0,0 +1,68 @@
+package com.wmba.actiondispatcher.benchmarks;
+
+import com.wmba.actiondispatcher.ActionDispatcher;
+import com.wmba.actiondispatcher.ActionPersister;
+import com.wmba.actiondispatcher.persist.JournalActionPersister;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round-trips a persistent Action, which goes through the persist and delete calls of the
+ * {@link ActionPersister} on every run.
+ *
+ * "memory" stores Actions in a map, "slow" additionally sleeps on every call to simulate storage
+ * latency, and "journal" writes them to a {@link JournalActionPersister} in a temporary directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PersistBenchmark {
+  @Param({"memory", "slow", "journal"})
+  public String persister;
+
+  private ActionDispatcher mDispatcher;
+  private JournalActionPersister mJournal;
+
+  @Setup public void setUp() throws IOException {
+    ActionPersister actionPersister;
+    if ("slow".equals(persister)) {
+      actionPersister = new SlowActionPersister(1L);
+    } else if ("journal".equals(persister)) {
+      File directory = File.createTempFile("journal", "");
+      if (!directory.delete() || !directory.mkdir()) throw new IOException("Unable to create " + directory);
+      mJournal = new JournalActionPersister.Builder(directory).build();
+      actionPersister = mJournal;
+    } else {
+      actionPersister = new MemoryActionPersister();
+    }
+
+    mDispatcher = new ActionDispatcher.Builder()
+        .withActionPersister(actionPersister)
+        .build();
+  }
+
+  @TearDown(Level.Trial) public void tearDown() throws IOException, InterruptedException {
+    mDispatcher.shutdown(10, TimeUnit.SECONDS);
+    if (mJournal != null) {
+      mJournal.deleteAll();
+      mJournal.close();
+    }
+  }
+
+  @Benchmark public Boolean persistentToSingle() throws Throwable {
+    return BenchmarkActions.await(mDispatcher.toSingle(new BenchmarkActions.PersistentNoOpAction()));
+  }
+}
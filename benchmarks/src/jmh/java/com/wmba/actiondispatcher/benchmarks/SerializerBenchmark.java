@@ -0,0 +1,55 @@
+package com.wmba.actiondispatcher.benchmarks;
+
+import com.wmba.actiondispatcher.Action;
+import com.wmba.actiondispatcher.persist.ActionSerializer;
+import com.wmba.actiondispatcher.persist.BinaryActionSerializer;
+import com.wmba.actiondispatcher.persist.JavaActionSerializer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the serialization step that every persisted Action goes through on persist, update and
+ * recovery.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SerializerBenchmark {
+  @Param({"java", "binary"})
+  public String serializer;
+
+  private ActionSerializer mSerializer;
+  private Action<Boolean> mAction;
+  private byte[] mSerializedAction;
+
+  @Setup public void setUp() {
+    mSerializer = "binary".equals(serializer)
+        ? new BinaryActionSerializer.Builder()
+            .register(1, BenchmarkActions.PersistentNoOpAction.class)
+            .build()
+        : new JavaActionSerializer();
+    mAction = new BenchmarkActions.PersistentNoOpAction();
+    mSerializedAction = mSerializer.serialize(mAction);
+  }
+
+  @Benchmark public byte[] serialize() {
+    return mSerializer.serialize(mAction);
+  }
+
+  @Benchmark public Action<Boolean> deserialize() {
+    return mSerializer.deserialize(mSerializedAction);
+  }
+
+  @Benchmark public Action<Boolean> roundTrip() {
+    return mSerializer.deserialize(mSerializer.serialize(mAction));
+  }
+}
@@ -0,0 +1,46 @@
+package com.wmba.actiondispatcher.benchmarks;
+
+import com.wmba.actiondispatcher.Action;
+import com.wmba.actiondispatcher.persist.PersistedActionHolder;
+
+import java.util.List;
+
+/**
+ * Simulates a storage round-trip by sleeping on every call, like a disk or database backed
+ * persister would.
+ */
+public class SlowActionPersister extends MemoryActionPersister {
+  private final long mDelay;
+
+  public SlowActionPersister(long delay) {
+    mDelay = delay;
+  }
+
+  @Override public long persist(Action<?> action) {
+    sleep();
+    return super.persist(action);
+  }
+
+  @Override public void update(long id, Action<?> action) {
+    sleep();
+    super.update(id, action);
+  }
+
+  @Override public void delete(long id) {
+    sleep();
+    super.delete(id);
+  }
+
+  @Override public List<PersistedActionHolder> getPersistedActions() {
+    sleep();
+    return super.getPersistedActions();
+  }
+
+  private void sleep() {
+    try {
+      Thread.sleep(mDelay);
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
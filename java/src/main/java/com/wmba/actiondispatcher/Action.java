@@ -1,10 +1,13 @@
 package com.wmba.actiondispatcher;
 
+import java.util.Set;
+
 import rx.Scheduler;
 
 public abstract class Action<T> {
   private transient SubscriptionContext mSubscriptionContext = null;
   private int mRetryCount = -1;
+  private transient boolean mPersistentStateChanged = false;
 
   /**
    * Called once before the action is run, allowing some setup / preparation to be done on the
@@ -36,8 +39,28 @@ public abstract class Action<T> {
   }
 
   /**
-   * @return true if this Action should continue to be run / retried if it's Observable has been
-   * unsubscribed from.
+   * @return how long to wait before each retry, or null to retry immediately. While an Action
+   * waits to retry, it doesn't hold on to the thread of its key.
+   */
+  public RetryBackoff getRetryBackoff() {
+    return null;
+  }
+
+  /**
+   * @return how long this Action has to complete once it is started, including the time it waits on
+   * its key and between retries, or 0 for no limit. An Action that runs out of time fails with a
+   * {@link java.util.concurrent.TimeoutException} and isn't retried again. If it is running,
+   * its thread is interrupted, {@link #isTimedOut()} starts returning true, and its key moves on to
+   * the next Action without waiting for it to return.
+   */
+  public long getTimeoutMillis() {
+    return 0;
+  }
+
+  /**
+   * @return true if this action should continue to be run / retried if it's Observable has been
+   * unsubscribed from. Otherwise unsubscribing takes a waiting Action off its key, and cancels a
+   * running one like a timeout would, see {@link #isCancelled()}.
    */
   public boolean runIfUnsubscribed() {
     return true;
@@ -51,6 +74,41 @@ public abstract class Action<T> {
     return KeySelector.DEFAULT_KEY;
   }
 
+  /**
+   * @return the keys this Action must hold all of to run, such as the keys of two entities it
+   * changes together, or null to run on a single key. When set, they are used instead of the key the
+   * Action is dispatched on. The Action waits for each key in turn, in the same order for every
+   * Action, without holding a thread, and runs once it holds them all. Nothing else runs on any of
+   * its keys meanwhile. It counts against the capacity of the first of its keys, and isn't batched.
+   */
+  public Set<String> getKeys() {
+    return null;
+  }
+
+  /**
+   * @return the priority of this Action on a key that is
+   * {@link KeySelector#isPrioritized(String) prioritized}. Higher priorities run first. Defaults
+   * to 0. Persisted Actions are restored with the same priority as long as it only depends on the
+   * persisted fields of the Action.
+   */
+  public int getPriority() {
+    return 0;
+  }
+
+  /**
+   * @return a key shared by Actions that are equivalent, so only one of them runs when several are
+   * waiting on the same key at once, or null if the Action shouldn't be coalesced. Which one runs
+   * is decided by {@link #getCoalescingPolicy()} of the Action started last. Actions with the same
+   * coalescing key must have the same result type.
+   */
+  public String getCoalescingKey() {
+    return null;
+  }
+
+  public CoalescingPolicy getCoalescingPolicy() {
+    return CoalescingPolicy.MERGE;
+  }
+
   /**
    * @return the default Scheduler the result of this Action should return on.
    */
@@ -70,6 +128,24 @@ public abstract class Action<T> {
     return mSubscriptionContext != null && mSubscriptionContext.isUnsubscribed();
   }
 
+  /**
+   * @return true if this Action, or the Action running it through {@link #subscribeBlocking(Action)},
+   * has run out of time. A long running Action should check it and stop early, as its result is no
+   * longer used.
+   */
+  protected final boolean isTimedOut() {
+    return mSubscriptionContext != null && mSubscriptionContext.isTimedOut();
+  }
+
+  /**
+   * @return true if this Action has timed out, or was unsubscribed from and doesn't
+   * {@link #runIfUnsubscribed() run when unsubscribed}. Its thread is interrupted when this happens,
+   * but an Action that doesn't block should poll this to stop early.
+   */
+  protected final boolean isCancelled() {
+    return mSubscriptionContext != null && mSubscriptionContext.isCancelled();
+  }
+
   /**
    * Runs an action inside of the lifecycle of another Action synchronously. Whether or not an
    * action is persistent is ignored for this call.
@@ -92,6 +168,32 @@ public abstract class Action<T> {
     return false;
   }
 
+  /**
+   * Marks this Action as changed, so the whole Action is persisted again before it is retried. Only
+   * persistent Actions that change their own fields while running need to call this. The retry
+   * count is persisted without it.
+   */
+  protected final void markPersistentStateChanged() {
+    mPersistentStateChanged = true;
+  }
+
+  /**
+   * @return true if {@link #markPersistentStateChanged()} was called since the last call.
+   */
+  /* package */ final boolean takePersistentStateChanged() {
+    boolean changed = mPersistentStateChanged;
+    mPersistentStateChanged = false;
+    return changed;
+  }
+
+  /* package */ final int getRetryState() {
+    return mRetryCount;
+  }
+
+  /* package */ final void setRetryState(int retryState) {
+    mRetryCount = retryState;
+  }
+
   /* package */ final SubscriptionContext getSubscriptionContext() {
     return mSubscriptionContext;
   }
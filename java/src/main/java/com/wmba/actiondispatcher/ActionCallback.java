@@ -0,0 +1,12 @@
+package com.wmba.actiondispatcher;
+
+/**
+ * Receives the result of an Action started with
+ * {@link ActionDispatcher#submit(Action, String, ActionCallback)}. Both methods are called on the
+ * thread that ran the Action.
+ */
+public interface ActionCallback<T> {
+  void onSuccess(T value);
+
+  void onError(Throwable t);
+}
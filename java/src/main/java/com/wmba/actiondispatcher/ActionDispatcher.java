@@ -3,49 +3,187 @@ package com.wmba.actiondispatcher;
 import com.wmba.actiondispatcher.persist.PersistedActionHolder;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import rx.Observable;
 import rx.Scheduler;
 import rx.Single;
-import rx.SingleSubscriber;
 
 public class ActionDispatcher {
+  /**
+   * The default number of threads shared by all keys, other than the async key.
+   */
+  public static final int DEFAULT_KEY_THREAD_POOL_SIZE =
+      Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+  /**
+   * The default time a key can go without running an Action before its executor is removed.
+   */
+  public static final long DEFAULT_IDLE_KEY_TIMEOUT_MILLIS = 60000L;
+
+  /**
+   * The default time an Action waits on a prioritized key to gain a priority level.
+   */
+  public static final long DEFAULT_PRIORITY_AGING_MILLIS = 100L;
+
+  /**
+   * The default time the thread starting an Action waits for room on a full key, with
+   * {@link OverflowPolicy#BLOCK}.
+   */
+  public static final long DEFAULT_OVERFLOW_BLOCK_TIMEOUT_MILLIS = 5000L;
+
+  /**
+   * The number of persisted Actions loaded at a time from a {@link PagedActionPersister}.
+   */
+  private static final int PERSISTED_ACTION_PAGE_SIZE = 256;
+
+  /**
+   * Resumes a key held for an Action with several keys, once the Action is done with it.
+   */
+  private static final Runnable NO_OP = new Runnable() {
+    @Override public void run() {}
+  };
+
+  //noinspection unchecked
+  private static final AtomicIntegerFieldUpdater<ExecutionContext> FINISHED =
+      AtomicIntegerFieldUpdater.newUpdater(ExecutionContext.class, "mFinished");
+
   private final Object mPersistentLock = new Object();
 
-  private final ExecutorCache mExecutorCache = new ExecutorCache();
+  private final ExecutorCache mExecutorCache;
 
   private final KeySelector mKeySelector;
   private final ActionPreparer mActionPreparer;
   private final ActionLogger mActionLogger;
+  private final FilteredActionLogger mFilteredActionLogger;
   private final ActionPersister mActionPersister;
+  private final PersistCommitter mPersistCommitter;
+  private final DispatchListener mDispatchListener;
+
+  /**
+   * Bounds the Actions on every key. Null if no key has a capacity.
+   */
+  private final KeyBacklogs mKeyBacklogs;
 
   /**
-   * Is null until the persisted Actions have been loaded. If no Actions are loaded, it is replaced
-   * with an empty list.
+   * The persisted Actions that have been loaded, but haven't been run yet. Guarded by
+   * mPersistentLock.
    */
-  private List<PersistedActionHolder> mPersistedActions = null;
-  private boolean mPendingRunPersistentActions = false;
+  private List<PersistedActionHolder> mPersistedActions = new ArrayList<PersistedActionHolder>(0);
+  private volatile boolean mPersistedActionsLoaded = false;
 
   /**
-   * Used for queueing actions before the persisted Actions have loaded when the dispatcher is
-   * first starting. Both of these lists are kept in sync, and always modified under the
+   * True once persisted Actions should be run as soon as they are loaded. Guarded by
    * mPersistentLock.
    */
-  private List<Executor> mQueuedActionExecutors = null;
-  private List<Runnable> mQueuedActionRunnables = null;
+  private boolean mRunPersistentActions;
+
+  /**
+   * Actions that were started before the persisted Actions have loaded, when the dispatcher is
+   * first starting. Any thread can add to it, but it is only drained by one thread at a time, while
+   * mDrainingQueuedActions is set, so the Actions are handed to their executors in order.
+   */
+  private final Queue<ExecutionContext<?>> mQueuedActions = new ConcurrentLinkedQueue<ExecutionContext<?>>();
+  private final AtomicBoolean mDrainingQueuedActions = new AtomicBoolean(false);
+
+  /**
+   * The Actions with a coalescing key that are waiting to start, by their key and coalescing key.
+   * Guarded by itself.
+   */
+  private final Map<String, ExecutionContext<?>> mCoalescableActions = new HashMap<String, ExecutionContext<?>>();
+
+  /**
+   * True if only persistent Actions wait for the persisted Actions to load.
+   */
+  private final boolean mGateOnlyPersistentActions;
+
+  private final ShutdownPolicy mShutdownPolicy;
+
+  /**
+   * Set once shutdown starts, after which no Action is accepted.
+   */
+  private volatile boolean mShutdown = false;
+
+  /**
+   * Set once the waiting Actions must be shelved instead of run.
+   */
+  private volatile boolean mShelvingQueued = false;
+
+  /**
+   * The number of accepted Actions that haven't completed yet.
+   */
+  private final AtomicInteger mPendingCount = new AtomicInteger();
+  private final CountDownLatch mTerminated = new CountDownLatch(1);
+
+  /**
+   * The accepted persistent Actions that haven't completed yet, so they can be shelved at shutdown.
+   */
+  private final Set<ExecutionContext<?>> mPersistentContexts =
+      Collections.newSetFromMap(new ConcurrentHashMap<ExecutionContext<?>, Boolean>());
 
   public ActionDispatcher(KeySelector keySelector, ActionPreparer actionPreparer,
       ActionLogger actionLogger, ActionPersister actionPersister,
       Map<String, Executor> executorMap, final boolean delayPersistentActionLoading) {
-    mKeySelector = keySelector;
-    mActionPreparer = actionPreparer;
-    mActionLogger = actionLogger;
-    mActionPersister = actionPersister;
+    this(new Builder()
+        .withKeySelector(keySelector)
+        .withActionPreparer(actionPreparer)
+        .withActionLogger(actionLogger)
+        .withActionPersister(actionPersister)
+        .withExecutors(executorMap)
+        .withDelayPersistentActionLoading(delayPersistentActionLoading));
+  }
+
+  private ActionDispatcher(Builder builder) {
+    ThreadFactory taskThreadFactory = null;
+    if (builder.mUseVirtualThreads) {
+      taskThreadFactory = VirtualThreads.newThreadFactory("ActionDispatcherThread-virtual-");
+      if (taskThreadFactory == null) {
+        throw new IllegalStateException("Virtual threads are not supported by this JVM. They need Java 21 or later.");
+      }
+    }
+
+    mKeySelector = (builder.mKeySelector != null) ? builder.mKeySelector : new KeySelector();
+    mExecutorCache = new ExecutorCache(builder.mKeyThreadPoolSize, builder.mIdleKeyTimeoutNanos,
+        taskThreadFactory, mKeySelector, builder.mPriorityAgingNanos);
+    mActionPreparer = builder.mActionPreparer;
+    mActionLogger = builder.mActionLogger;
+    mFilteredActionLogger = (mActionLogger instanceof FilteredActionLogger)
+        ? (FilteredActionLogger) mActionLogger
+        : null;
+    mActionPersister = builder.mActionPersister;
+    mGateOnlyPersistentActions = builder.mGateOnlyPersistentActions;
+    mShutdownPolicy = builder.mShutdownPolicy;
+    mDispatchListener = builder.mDispatchListener;
+    mKeyBacklogs = (builder.mKeyCapacity > 0 || builder.mAsyncCapacity > 0)
+        ? new KeyBacklogs(builder.mKeyCapacity, builder.mKeyOverflowPolicy, builder.mAsyncCapacity,
+            builder.mAsyncOverflowPolicy, builder.mOverflowBlockTimeoutNanos)
+        : null;
+    mPersistCommitter = (mActionPersister != null)
+        ? new PersistCommitter(mActionPersister, mActionLogger, builder.mPersistBatchWindowNanos,
+            builder.mRetryStateDurability)
+        : null;
+
+    Map<String, Executor> executorMap = builder.mExecutorMap;
+    final boolean delayPersistentActionLoading = builder.mDelayPersistentActionLoading;
 
     if (executorMap != null) {
       for (Map.Entry<String, Executor> entry : executorMap.entrySet()) {
@@ -53,26 +191,25 @@ public class ActionDispatcher {
       }
     }
 
+    mRunPersistentActions = !delayPersistentActionLoading;
+
     if (mActionPersister != null) {
       Executor executor = mExecutorCache.getExecutorForKey(KeySelector.ASYNC_KEY);
       executor.execute(new Runnable() {
         @Override public void run() {
           try {
-            List<PersistedActionHolder> persistedActions = mActionPersister.getPersistedActions();
-            if (persistedActions == null) {
-              persistedActions = new ArrayList<PersistedActionHolder>(0);
-            }
-
-            if (mActionLogger != null)
-              mActionLogger.logDebug("Loaded " + persistedActions.size() + " persistent Actions");
-
-            synchronized (mPersistentLock) {
-              mPersistedActions = persistedActions;
-              if (mPendingRunPersistentActions || !delayPersistentActionLoading) {
-                startPersistentActions();
+            if (mActionPersister instanceof PagedActionPersister) {
+              loadPersistedActionPages((PagedActionPersister) mActionPersister);
+            } else {
+              List<PersistedActionHolder> persistedActions = mActionPersister.getPersistedActions();
+              if (persistedActions == null) {
+                persistedActions = new ArrayList<PersistedActionHolder>(0);
               }
 
-              dispatchQueuedActions();
+              if (isDebugEnabled())
+                mActionLogger.logDebug("Loaded " + persistedActions.size() + " persistent Actions");
+
+              onPersistedActionsLoaded(persistedActions, true);
             }
           } catch (Throwable t) {
             logOrPrintError(t, "Error running persisted Actions");
@@ -84,31 +221,79 @@ public class ActionDispatcher {
             }
 
             synchronized (mPersistentLock) {
-              if (mPersistedActions == null) {
-                dispatchQueuedActions();
-                mPersistedActions = new ArrayList<PersistedActionHolder>(0);
-              }
+              mPersistedActions.clear();
+              mPersistedActionsLoaded = true;
             }
+            drainQueuedActions();
           }
         }
       });
     } else {
-      synchronized (mPersistentLock) {
-        mPersistedActions = new ArrayList<PersistedActionHolder>(0);
-      }
+      mPersistedActionsLoaded = true;
     }
   }
 
-  private void dispatchQueuedActions() {
-    if (mQueuedActionExecutors != null) {
-      for (int i = 0, size = mQueuedActionExecutors.size(); i < size; i++) {
-        Executor executor = mQueuedActionExecutors.get(i);
-        Runnable runnable = mQueuedActionRunnables.get(i);
-        executor.execute(runnable);
+  /**
+   * Loads the persisted Actions a page at a time, so the Actions of the first pages can already run
+   * while the later ones are loading.
+   */
+  private void loadPersistedActionPages(PagedActionPersister persister) {
+    long afterId = Long.MIN_VALUE;
+    int count = 0;
+    boolean lastPage;
+
+    do {
+      List<PersistedActionHolder> page = persister.getPersistedActions(afterId, PERSISTED_ACTION_PAGE_SIZE);
+      if (page == null) page = new ArrayList<PersistedActionHolder>(0);
+
+      lastPage = page.size() < PERSISTED_ACTION_PAGE_SIZE;
+      if (!page.isEmpty()) afterId = page.get(page.size() - 1).getActionId();
+      count += page.size();
+
+      if (lastPage && isDebugEnabled())
+        mActionLogger.logDebug("Loaded " + count + " persistent Actions");
+
+      onPersistedActionsLoaded(page, lastPage);
+    } while (!lastPage);
+  }
+
+  /**
+   * @param lastPage true if there are no more persisted Actions to load after these.
+   */
+  private void onPersistedActionsLoaded(List<PersistedActionHolder> persistedActions, boolean lastPage) {
+    synchronized (mPersistentLock) {
+      mPersistedActions.addAll(persistedActions);
+      if (mRunPersistentActions) {
+        runPersistedActions();
+      }
+
+      if (lastPage) {
+        mPersistedActionsLoaded = true;
+        if (mRunPersistentActions && isDebugEnabled()) mActionLogger.logDebug("Persistent Actions started");
       }
-      mQueuedActionExecutors = null;
-      mQueuedActionRunnables = null;
     }
+
+    // The queued Actions run after every persisted Action that was already started on their key.
+    if (lastPage) drainQueuedActions();
+  }
+
+  /**
+   * Hands the queued Actions to their executors, unless another thread is already doing so.
+   */
+  private void drainQueuedActions() {
+    do {
+      if (!mDrainingQueuedActions.compareAndSet(false, true)) return;
+
+      try {
+        ExecutionContext<?> queuedAction;
+        while ((queuedAction = mQueuedActions.poll()) != null) {
+          queuedAction.mExecutor.execute(queuedAction);
+        }
+      } finally {
+        mDrainingQueuedActions.set(false);
+      }
+      // Something may have been queued after the last poll, but before the flag was cleared.
+    } while (!mQueuedActions.isEmpty());
   }
 
   public <T> Single<T> toSingle(Action<T> action) {
@@ -133,8 +318,7 @@ public class ActionDispatcher {
 
   public <T> Single<T> toSingle(Action<T> action, String key, Scheduler observeOn) {
     String checkedKey = (key == null) ? KeySelector.DEFAULT_KEY : key;
-    //noinspection unchecked
-    Single<T> single = Single.create(new ExecutionContext(checkedKey, action, action.isPersistent()));
+    Single<T> single = ActionOnSubscribe.toSingle(this, action, checkedKey);
     if (observeOn == null) {
       Scheduler actionObserveOn = action.observeOn();
       return (actionObserveOn == null) ? single : single.observeOn(actionObserveOn);
@@ -168,58 +352,266 @@ public class ActionDispatcher {
     return toSingle(action, key, observeOn).toObservable();
   }
 
+  public <T> ActionFuture<T> toFuture(Action<T> action) {
+    return toFuture(action, mKeySelector.getKey(action));
+  }
+
+  public <T> ActionFuture<T> toFutureAsync(Action<T> action) {
+    return toFuture(action, KeySelector.ASYNC_KEY);
+  }
+
+  /**
+   * Runs the Action on the key without going through RxJava. Unlike with
+   * {@link #submit(Action, String, ActionCallback)}, the Action is unsubscribed from when the future
+   * is cancelled. {@link Action#observeOn()} is not used.
+   */
+  public <T> ActionFuture<T> toFuture(Action<T> action, String key) {
+    ActionFuture<T> future = new ActionFuture<T>();
+    future.mCancellable = dispatch(action, key, future);
+    return future;
+  }
+
+  /**
+   * Runs the graph, dispatching each of its nodes on its own key once the nodes it depends on have
+   * completed. The result holds the result of every node by name. Cancelling the future cancels the
+   * nodes that are still running, unless they {@link Action#runIfUnsubscribed() run when
+   * unsubscribed}, and keeps the others from being dispatched.
+   *
+   * @throws IllegalStateException if the graph was already run.
+   */
+  public ActionFuture<Map<String, Object>> toFuture(ActionGraph graph) {
+    ActionFuture<Map<String, Object>> future = new ActionFuture<Map<String, Object>>();
+    graph.setFuture(future);
+    submit(graph, KeySelector.ASYNC_KEY, graph.newStartCallback());
+    return future;
+  }
+
+  /**
+   * Dispatches an Action for an adapter, such as a Single or an {@link ActionFuture}, that can
+   * unsubscribe from it.
+   *
+   * @return the Action to cancel once the callback is unsubscribed, or null if it
+   * {@link Action#runIfUnsubscribed() runs when unsubscribed}.
+   */
+  /* package */ <T> Cancellable dispatch(Action<T> action, String key, SubscribedCallback<? super T> callback) {
+    return dispatch(action, key, callback, action.isPersistent());
+  }
+
+  /**
+   * @param shouldPersist false for an Action persisted as part of another one, like the node of a
+   *                      persisted {@link ActionGraph}.
+   */
+  /* package */ <T> Cancellable dispatch(Action<T> action, String key, SubscribedCallback<? super T> callback,
+      boolean shouldPersist) {
+    String checkedKey = (key == null) ? KeySelector.DEFAULT_KEY : key;
+    ExecutionContext<T> executionContext = new ExecutionContext<T>(checkedKey, action, shouldPersist);
+    executionContext.mCallback = callback;
+    executionContext.mSubscribedCallback = callback;
+    executionContext.dispatch();
+    return executionContext.mRunIfUnsubscribed ? null : executionContext;
+  }
+
+  public <T> void submit(Action<T> action, ActionCallback<? super T> callback) {
+    submit(action, mKeySelector.getKey(action), callback);
+  }
+
+  /**
+   * Runs the Action on the key without going through RxJava, for callers that start many Actions
+   * and don't need a {@link Single}. The callback is called on the thread that ran the Action, and
+   * {@link Action#observeOn()} is not used. An Action started this way is never unsubscribed.
+   *
+   * @param callback may be null if the result isn't needed.
+   */
+  public <T> void submit(Action<T> action, String key, ActionCallback<? super T> callback) {
+    String checkedKey = (key == null) ? KeySelector.DEFAULT_KEY : key;
+    ExecutionContext<T> executionContext = new ExecutionContext<T>(checkedKey, action, action.isPersistent());
+    executionContext.mCallback = callback;
+    executionContext.dispatch();
+  }
+
+  public <T> boolean trySubmit(Action<T> action, ActionCallback<? super T> callback) {
+    return trySubmit(action, mKeySelector.getKey(action), callback);
+  }
+
+  /**
+   * Like {@link #submit(Action, String, ActionCallback)}, but never waits for room on a full key,
+   * or drops other Actions to make room, whatever its {@link OverflowPolicy}.
+   *
+   * @return false if the key was full, in which case the Action doesn't run and the callback isn't
+   * called.
+   */
+  public <T> boolean trySubmit(Action<T> action, String key, ActionCallback<? super T> callback) {
+    String checkedKey = (key == null) ? KeySelector.DEFAULT_KEY : key;
+    ExecutionContext<T> executionContext = new ExecutionContext<T>(checkedKey, action, action.isPersistent());
+    executionContext.mCallback = callback;
+    return executionContext.dispatch(true);
+  }
+
+  /**
+   * Stops accepting Actions, and waits for the accepted ones to complete, up to the timeout. The
+   * Actions waiting on their keys run or not depending on the {@link ShutdownPolicy}. Those that
+   * haven't started by the timeout don't run: a persistent one is persisted to run on the next
+   * start, and the others fail with a {@link RejectedExecutionException}. Actions started after
+   * this also fail with one. Running Actions are left to finish, even after the timeout. Pending
+   * writes of the ActionPersister are flushed before this returns, and a
+   * {@link CheckpointActionPersister} is checkpointed. Once every Action completed, the threads of
+   * the dispatcher are stopped.
+   *
+   * @return true if every accepted Action completed, false if some were still running at the
+   * timeout.
+   */
+  public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    mShutdown = true;
+    // Checked after setting the flag, as Actions are counted before checking it.
+    if (mPendingCount.get() == 0) mTerminated.countDown();
+
+    if (mShutdownPolicy == ShutdownPolicy.CANCEL_QUEUED) shelveQueued();
+    if (!mTerminated.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) shelveQueued();
+
+    if (mPersistCommitter != null) {
+      try {
+        mPersistCommitter.flush();
+      } catch (Throwable t) {
+        logOrPrintError(t, "Error flushing persisted Actions at shutdown");
+      }
+    }
+
+    if (mActionPersister instanceof CheckpointActionPersister) {
+      try {
+        ((CheckpointActionPersister) mActionPersister).checkpoint();
+      } catch (Throwable t) {
+        logOrPrintError(t, "Error checkpointing persisted Actions at shutdown");
+      }
+    }
+
+    boolean terminated = isTerminated();
+    // Actions still running after the timeout keep the threads they need.
+    if (terminated) {
+      mExecutorCache.shutdown();
+      if (mPersistCommitter != null) mPersistCommitter.shutdown();
+    }
+    if (isDebugEnabled()) mActionLogger.logDebug("ActionDispatcher shut down"
+        + (terminated ? "" : ", with Actions still running") + ".");
+    return terminated;
+  }
+
+  /**
+   * Stops running the Actions waiting on their keys, and shelves them right away. The others are
+   * taken off their keys too, so they are rejected even if their key is held by an Action that
+   * doesn't return.
+   */
+  private void shelveQueued() {
+    mShelvingQueued = true;
+    for (ExecutionContext<?> context : mPersistentContexts) {
+      context.shelve();
+    }
+
+    // Only an Action that was taken off its queue here is shelved, as one that was taken by its
+    // key could be starting already.
+    for (ExecutionContext<?> context : mQueuedActions) {
+      if (context.isDroppable() && mQueuedActions.remove(context)) context.shelve();
+    }
+    for (SerialExecutor executor : mExecutorCache.getSerialExecutors()) {
+      for (Runnable runnable : executor.getQueued()) {
+        if (runnable instanceof ExecutionContext) {
+          ExecutionContext<?> context = (ExecutionContext<?>) runnable;
+          if (context.isDroppable() && executor.remove(context)) context.shelve();
+        } else if (runnable instanceof ExecutionContext<?>.KeyAcquisition) {
+          ExecutionContext<?> context = ((ExecutionContext<?>.KeyAcquisition) runnable).getContext();
+          if (context.isDroppable() && executor.remove(runnable)) {
+            context.shelve();
+            context.releaseKeys();
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Waits for the Actions accepted before {@link #shutdown(long, TimeUnit)} to complete.
+   *
+   * @return false if the timeout is over first, or shutdown hasn't started.
+   */
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    return mTerminated.await(timeout, unit);
+  }
+
+  public boolean isShutdown() {
+    return mShutdown;
+  }
+
+  /**
+   * @return true once shutdown started and every accepted Action completed.
+   */
+  public boolean isTerminated() {
+    return mTerminated.getCount() == 0;
+  }
+
   /**
    * This does nothing unless {@link Builder#delayPersistentActionLoading()} is called at
    * {@link ActionDispatcher} creation.
    *
-   * Loads the persistent Actions and queues them
+   * Runs the persisted Actions that have been loaded, and those that are still to be loaded as soon
+   * as they are.
    */
   public void startPersistentActions() {
     synchronized (mPersistentLock) {
+      if (mRunPersistentActions) return;
 
-      if (arePersistentActionsLoaded()) {
-
-        for (PersistedActionHolder holder : mPersistedActions) {
-
-          try {
-            long persistedId = holder.getActionId();
-            Action<?> action = holder.getAction();
-            String key = mKeySelector.getKey(action);
-            if (action != null) {
-              //noinspection unchecked
-              Single.create(new ExecutionContext(key, action, persistedId))
-                  .subscribe(new SingleSubscriber() {
-                    @Override public void onSuccess(Object value) {}
-                    @Override public void onError(Throwable error) {}
-                  });
-            }
-          } catch (Throwable t) {
-            logOrPrintError(t, "Error running persisted Actions");
+      mRunPersistentActions = true;
+      runPersistedActions();
+      if (mPersistedActionsLoaded && isDebugEnabled()) mActionLogger.logDebug("Persistent Actions started");
+    }
+  }
 
-            try {
-              mActionPersister.deleteAll();
-            } catch (Throwable t2) {
-              logOrPrintError(t2, "Error deleting all persisted actions.");
-            }
-          }
+  /**
+   * Queues the loaded persisted Actions on their keys. Must be called under mPersistentLock.
+   */
+  private void runPersistedActions() {
+    for (PersistedActionHolder holder : mPersistedActions) {
 
+      try {
+        long persistedId = holder.getActionId();
+        Action<?> action = holder.getAction();
+        String key = mKeySelector.getKey(action);
+        if (action != null) {
+          if (holder.hasRetryState()) action.setRetryState(holder.getRetryState());
+
+          //noinspection unchecked
+          new ExecutionContext(key, action, persistedId).dispatch();
         }
+      } catch (Throwable t) {
+        logOrPrintError(t, "Error running persisted Actions");
 
-        if (mActionLogger != null) mActionLogger.logDebug("Persistent Actions started");
-
-        mPersistedActions = new ArrayList<PersistedActionHolder>(0);
-        mPendingRunPersistentActions = false;
-      } else {
-        mPendingRunPersistentActions = true;
+        try {
+          mActionPersister.deleteAll();
+        } catch (Throwable t2) {
+          logOrPrintError(t2, "Error deleting all persisted actions.");
+        }
       }
 
     }
+
+    mPersistedActions.clear();
+  }
+
+  /**
+   * @return true if this JVM has virtual threads, so {@link Builder#withVirtualThreads()} can be
+   * used.
+   */
+  public static boolean areVirtualThreadsSupported() {
+    return VirtualThreads.isSupported();
   }
 
   public boolean arePersistentActionsLoaded() {
-    return mPersistedActions != null;
+    return mPersistedActionsLoaded;
   }
 
+  /**
+   * @return a snapshot of the keys that currently have an executor. Keys that have been idle for
+   * longer than the idle key timeout are not included.
+   */
   public Set<String> getActiveKeys() {
     return mExecutorCache.getActiveKeys();
   }
@@ -232,11 +624,52 @@ public class ActionDispatcher {
     return mExecutorCache.getExecutorForKey(KeySelector.ASYNC_KEY);
   }
 
+  /* package */ String getKey(Action<?> action) {
+    return mKeySelector.getKey(action);
+  }
+
+  /**
+   * Writes the whole Action again, for an Action that keeps its own persisted copy up to date, like
+   * an {@link ActionGraph}.
+   */
+  /* package */ void updatePersistedAction(long id, Action<?> action) {
+    try {
+      mPersistCommitter.update(id, action, true, false);
+    } catch (Throwable t) {
+      logOrPrintError(t, "Error while persisting update for Action " + action.getClass().getName());
+    }
+  }
+
+  /* package */ void deletePersistedAction(long id, Action<?> action) {
+    try {
+      long start = (mDispatchListener != null) ? System.nanoTime() : 0;
+      mPersistCommitter.delete(id);
+      if (mDispatchListener != null) mDispatchListener.onDeleted(action, System.nanoTime() - start);
+    } catch (Throwable t) {
+      logOrPrintError(t, "Error deleting Action " + action.getClass().getName());
+    }
+  }
+
   /* package */ <T> T subscribeBlocking(SubscriptionContext subscriptionContext, Action<T> action) throws Throwable {
     ExecutionContext<T> executionContext = new ExecutionContext<T>(null, action, false);
     return executionContext.runAction(subscriptionContext);
   }
 
+  private boolean isDebugEnabled() {
+    return mActionLogger != null && (mFilteredActionLogger == null || mFilteredActionLogger.isDebugEnabled());
+  }
+
+  /**
+   * @return the keys in the order every Action acquires them in, or null if there are none.
+   */
+  private static List<String> canonicalKeys(Set<String> keys) {
+    if (keys == null || keys.isEmpty()) return null;
+
+    List<String> sorted = new ArrayList<String>(keys);
+    Collections.sort(sorted);
+    return sorted;
+  }
+
   private void logOrPrintError(Throwable t, String message) {
     if (mActionLogger == null) {
       System.out.println("Action Dispatcher Error: " + message);
@@ -246,8 +679,17 @@ public class ActionDispatcher {
     }
   }
 
-  private class ExecutionContext<T> implements Single.OnSubscribe<T> {
+  /**
+   * Everything needed to run one Action: the Runnable handed to the executor of its key, the
+   * SubscriptionContext of the Action and the handle that cancels it, so that dispatching an Action
+   * allocates as little as possible.
+   */
+  private class ExecutionContext<T> extends SubscriptionContext
+      implements Runnable, Prioritized, KeyBacklogs.Entry, Cancellable {
     final String mKey;
+    // Only set for an Action that holds several keys, in the order they are acquired. The first one
+    // is mKey, which the Action waits and runs on.
+    final List<String> mKeys;
     final Action<T> mAction;
     final boolean mShouldPersist;
 
@@ -255,138 +697,1148 @@ public class ActionDispatcher {
     // only called once.
     final boolean mRunIfUnsubscribed;
 
+    // Null for Actions run inside of another Action, which aren't reported.
+    final DispatchListener mListener;
+
     // Optional member variables that are only used in certain circumstances.
     Long mPersistedId = null;
+    int mPersistedRetryState;
+
+    // Progress of the Action, kept between runs when it waits before retrying.
+    int mRunCount = 0;
+    T mResponse = null;
+
+    // Only tracked when there is a listener.
+    long mEnqueuedNanos;
+    long mExecuteNanos = 0;
+
+    // Set when the Action is dispatched. The subscribed callback is the callback, when it can
+    // unsubscribe.
+    Executor mExecutor;
+    int mPriority;
+    ActionCallback<? super T> mCallback = null;
+    SubscribedCallback<?> mSubscribedCallback = null;
+    boolean mStarted = false;
+
+    // The room the Action takes up on its key, if the key has a capacity.
+    KeyBacklogs.Ticket mTicket = null;
+
+    // Set once the Action is counted as pending, until it completes.
+    boolean mTracked = false;
+
+    // Only used by Actions that can be aborted, as they have a timeout, are cancelled when
+    // unsubscribed from or are persistent. The rest is guarded by this.
+    boolean mAbortable = false;
+    ScheduledFuture<?> mTimeout = null;
+    long mTimeoutMillis;
+    long mDeadlineNanos;
+    volatile int mFinished = 0;
+    volatile boolean mTimedOut = false;
+    volatile boolean mCancelled = false;
+    boolean mShelved = false;
+    Thread mExecutingThread = null;
+    SerialExecutor mExecutingExecutor = null;
+    boolean mDetached = false;
+
+    // Only used by Actions with a coalescing key. Guarded by mCoalescableActions until started.
+    String mCoalescingId = null;
+    boolean mSuperseded = false;
+    List<ExecutionContext<?>> mCoalescedContexts = null;
+
+    // Only used by a BatchableAction that leads a batch, while it waits for more Actions to join, or
+    // while the batch waits to be retried.
+    List<ExecutionContext<?>> mBatch = null;
+    RunningBatch mRunningBatch = null;
+
+    // Only used by an Action with several keys. The executors of the keys held for it, which are
+    // only accessed by the thread that holds them at the time, or by an abort while the Action runs.
+    SerialExecutor[] mHeldExecutors = null;
+    int mHeldCount = 0;
+    volatile boolean mKeysAcquired = false;
 
     ExecutionContext(String key, Action<T> action, boolean shouldPersist) {
-      mKey = key;
+      List<String> keys = (key != null) ? canonicalKeys(mKeySelector.getKeys(action)) : null;
+      mKey = (keys != null) ? keys.get(0) : key;
+      mKeys = (keys != null && keys.size() > 1) ? keys : null;
       mAction = action;
       mShouldPersist = shouldPersist;
       mRunIfUnsubscribed = action.runIfUnsubscribed();
+      mListener = (key != null) ? mDispatchListener : null;
     }
 
     ExecutionContext(String key, Action<T> action, long persistedId) {
       this(key, action, false);
       mPersistedId = persistedId;
+      mPersistedRetryState = action.getRetryState();
     }
 
-    @Override public void call(final SingleSubscriber<? super T> subscriber) {
-      Executor executor = mExecutorCache.getExecutorForKey(mKey);
-      Runnable runnable = new Runnable() {
-        @Override public void run() {
-          try {
-            T response = runAction(new SubscriptionContext(ActionDispatcher.this, subscriber));
-            subscriber.onSuccess(response);
-          } catch (Throwable t) {
-            subscriber.onError(t);
-          }
-        }
-      };
-
-      if (!arePersistentActionsLoaded()) {
-        // Persistent Actions haven't loaded
-        synchronized (mPersistentLock) {
-          if (!arePersistentActionsLoaded()) {
-            if (mQueuedActionExecutors == null) {
-              mQueuedActionExecutors = new ArrayList<Executor>();
-              mQueuedActionRunnables = new ArrayList<Runnable>();
-            }
-
-            mQueuedActionExecutors.add(executor);
-            mQueuedActionRunnables.add(runnable);
-          } else {
-            executor.execute(runnable);
-          }
-        }
-      } else {
-        executor.execute(runnable);
-      }
+    void dispatch() {
+      dispatch(false);
     }
 
-    public T runAction(SubscriptionContext subscriptionContext) throws Throwable {
-      mAction.setSubscriptionContext(subscriptionContext);
+    /**
+     * @param tryOnly true to reject the Action if its key is full, without notifying its subscriber.
+     * @return false if the Action was rejected.
+     */
+    boolean dispatch(boolean tryOnly) {
+      mExecutor = mExecutorCache.getExecutorForKey(mKey);
+      mPriority = mKeySelector.getPriority(mAction);
 
-      if (mShouldPersist) {
-        if (mActionPersister == null) {
-          throw new IllegalStateException("Running Persistent Action " + mAction.getClass().getName()
-              + ", but no ActionPersister is set");
-        }
+      if (mListener != null) {
+        mEnqueuedNanos = System.nanoTime();
+        mListener.onEnqueued(mAction, mKey);
+      }
 
-        persistAction();
+      String coalescingKey = mAction.getCoalescingKey();
+      if (coalescingKey != null && coalesce(coalescingKey)) return true;
+
+      if (!track()) {
+        reject(new RejectedExecutionException("ActionDispatcher is shut down"), !tryOnly);
+        return false;
       }
 
-      try {
-        prepareAction();
-        return runActionBody();
-      } finally {
-        if (mPersistedId != null) {
-          persistActionDelete();
+      if (mKeyBacklogs != null) {
+        try {
+          // Persisted Actions were accepted before the restart, so they always get room.
+          mTicket = mKeyBacklogs.admit(mKey, this, mPersistedId != null, tryOnly);
+        } catch (RejectedExecutionException e) {
+          untrack();
+          reject(e, !tryOnly);
+          return false;
         }
       }
-    }
 
-    private void prepareAction() {
-      try {
-        if (mActionPreparer != null) mActionPreparer.prepare(mAction);
-      } catch (Throwable t) {
-        logOrPrintError(t, "Error while preparing Action " + mAction.getClass().getName());
+      if (mSubscribedCallback != null && !mRunIfUnsubscribed) mAbortable = true;
+      long timeoutMillis = mAction.getTimeoutMillis();
+      if (timeoutMillis > 0) startTimeout(timeoutMillis);
+
+      // Persisted Actions are run as they are loaded, so only the others wait for the loading.
+      boolean gated = mPersistedId == null && (mShouldPersist || !mGateOnlyPersistentActions);
+
+      // The queue is checked before the drain flag: an Action that was polled from the queue, but
+      // may not have been handed to its executor yet, is only ever polled while the flag is set.
+      if (!gated || (arePersistentActionsLoaded() && mQueuedActions.isEmpty()
+          && !mDrainingQueuedActions.get())) {
+        mExecutor.execute(this);
+      } else {
+        // Persistent Actions haven't loaded, or the Actions queued until then are still being
+        // handed off, and this one must not overtake them.
+        mQueuedActions.offer(this);
+        if (arePersistentActionsLoaded()) drainQueuedActions();
       }
-      mAction.prepare();
+      return true;
     }
 
-    private void persistAction() {
-      try {
-        mPersistedId = mActionPersister.persist(mAction);
-      } catch (Throwable t) {
-        logOrPrintError(t, "Error while persisting Action " + mAction.getClass().getName());
+    /**
+     * Counts the Action as pending until it completes, unless the dispatcher is shut down.
+     *
+     * @return false if the Action mustn't run, as the dispatcher is shut down.
+     */
+    private boolean track() {
+      mPendingCount.incrementAndGet();
+      mTracked = true;
+      if (mShouldPersist || mPersistedId != null) {
+        // Persistent Actions can be shelved by the shutdown, so they only start through the lock.
+        mAbortable = true;
+        mPersistentContexts.add(this);
       }
-    }
+
+      // Checked after counting the Action, as shutdown checks the count after setting the flag.
+      if (!mShutdown) return true;
+
+      untrack();
+      return false;
+    }
+
+    /**
+     * Called once the Action completed, or won't run.
+     */
+    private void untrack() {
+      if (!mTracked) return;
+
+      mTracked = false;
+      if (mAbortable) mPersistentContexts.remove(this);
+      if (mPendingCount.decrementAndGet() == 0 && mShutdown) mTerminated.countDown();
+    }
+
+    @Override public boolean isDroppable() {
+      return !mShouldPersist && mPersistedId == null;
+    }
+
+    @Override public void onDropped(RejectedExecutionException e) {
+      if (!finish()) return;
+
+      removeFromQueue();
+      reject(e, true);
+      untrack();
+    }
+
+    /**
+     * Leaves the waiting Action for the next start, as the dispatcher is shutting down. A persistent
+     * Action is persisted if it wasn't yet, while the others won't run at all. Either way the
+     * subscribers are told the Action was rejected.
+     *
+     * @return false if the Action already started or completed.
+     */
+    private boolean shelve() {
+      synchronized (this) {
+        if (mStarted) return false;
+        //noinspection unchecked
+        if (!FINISHED.compareAndSet(this, 0, 1)) return false;
+
+        mShelved = true;
+      }
+
+      if (mTimeout != null) mTimeout.cancel(false);
+      if (mShouldPersist && mPersistedId == null) persistAction();
+      if (mTicket != null) mTicket.release();
+      removeFromQueue();
+
+      reject(new RejectedExecutionException("ActionDispatcher was shut down before Action "
+          + mAction.getClass().getName() + " could run"), true);
+      untrack();
+      return true;
+    }
+
+    /**
+     * Takes the waiting Action off its key, freeing its memory right away rather than when its turn
+     * comes. An Action that is still found there later must skip itself.
+     */
+    private void removeFromQueue() {
+      if (mExecutor instanceof SerialExecutor && !((SerialExecutor) mExecutor).remove(this)) {
+        mQueuedActions.remove(this);
+      }
+    }
+
+    /**
+     * Fails the Action, which didn't get room on its key, along with the Actions coalesced with it.
+     *
+     * @param notify false to leave the subscriber of the Action itself alone.
+     */
+    private void reject(RejectedExecutionException e, boolean notify) {
+      // A superseded Action is completed by the Action that superseded it.
+      if (mCoalescingId != null && !stopCoalescing()) return;
+
+      if (isDebugEnabled()) mActionLogger.logDebug("Rejected Action " + mAction.getClass().getName() + ". " + e.getMessage());
+      if (mListener != null) mListener.onRejected(mAction, mKey);
+
+      if (notify) deliver(null, e);
+      deliverCoalesced(null, e);
+    }
+
+    /**
+     * Coalesces this Action with a waiting Action that has the same coalescing key, if there is one.
+     *
+     * @return true if this Action was merged into the waiting one, and mustn't run.
+     */
+    private boolean coalesce(String coalescingKey) {
+      mCoalescingId = mKey + '\u0000' + coalescingKey;
+
+      ExecutionContext<?> dropped;
+      synchronized (mCoalescableActions) {
+        ExecutionContext<?> waiting = mCoalescableActions.put(mCoalescingId, this);
+        if (waiting == null) return false;
+
+        if (mAction.getCoalescingPolicy() == CoalescingPolicy.MERGE) {
+          mCoalescableActions.put(mCoalescingId, waiting);
+          if (waiting.mCoalescedContexts == null) {
+            waiting.mCoalescedContexts = new ArrayList<ExecutionContext<?>>(2);
+          }
+          waiting.mCoalescedContexts.add(this);
+          dropped = this;
+        } else {
+          waiting.mSuperseded = true;
+          mCoalescedContexts = new ArrayList<ExecutionContext<?>>(2);
+          mCoalescedContexts.add(waiting);
+          if (waiting.mCoalescedContexts != null) mCoalescedContexts.addAll(waiting.mCoalescedContexts);
+          dropped = waiting;
+        }
+      }
+
+      dropped.onCoalesced();
+      return dropped == this;
+    }
+
+    /**
+     * Called once this Action won't run, because another Action runs for it.
+     */
+    private void onCoalesced() {
+      if (mTicket != null) mTicket.release();
+      // The Action that runs for this one completes it, within its own timeout.
+      if (mTimeout != null) mTimeout.cancel(false);
+
+      if (mPersistedId != null) {
+        try {
+          mPersistCommitter.delete(mPersistedId);
+        } catch (Throwable t) {
+          logOrPrintError(t, "Error deleting coalesced Action " + mAction.getClass().getName());
+        }
+      }
+
+      if (mListener != null) mListener.onCoalesced(mAction, mKey);
+      // A superseded Action is counted as pending in the Action that superseded it.
+      untrack();
+    }
+
+    /**
+     * Stops other Actions from coalescing with this one, as it is cancelled, unless some already
+     * have.
+     *
+     * @return false if other Actions were coalesced with this one, or it was superseded.
+     */
+    private boolean stopCoalescingUnlessShared() {
+      synchronized (mCoalescableActions) {
+        if (mSuperseded || mCoalescedContexts != null) return false;
+
+        if (mCoalescableActions.get(mCoalescingId) == this) mCoalescableActions.remove(mCoalescingId);
+        return true;
+      }
+    }
+
+    /**
+     * Stops other Actions from coalescing with this one, now that it is starting or won't run.
+     *
+     * @return false if this Action was superseded, and mustn't run.
+     */
+    private boolean stopCoalescing() {
+      synchronized (mCoalescableActions) {
+        if (mSuperseded) return false;
+
+        if (mCoalescableActions.get(mCoalescingId) == this) mCoalescableActions.remove(mCoalescingId);
+        return true;
+      }
+    }
+
+    private void startTimeout(long timeoutMillis) {
+      mAbortable = true;
+      mTimeoutMillis = timeoutMillis;
+      mDeadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      mTimeout = mExecutorCache.getTimer().schedule(new Runnable() {
+        @Override public void run() {
+          // The timer must never block, so the subscribers are told on the async executor.
+          mExecutorCache.getExecutorForKey(KeySelector.ASYNC_KEY).execute(new Runnable() {
+            @Override public void run() {
+              timeOut();
+            }
+          });
+        }
+      }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Fails the Action once its timeout is over. A running Action is interrupted, and the key is
+     * handed to another thread, leaving the Action to return on its own.
+     */
+    private void timeOut() {
+      //noinspection unchecked
+      if (!FINISHED.compareAndSet(this, 0, 1)) return;
+
+      boolean started = abort(true);
+      // A superseded Action is completed by the Action that superseded it.
+      if (!started && mCoalescingId != null && !stopCoalescing()) return;
+
+      if (isDebugEnabled()) mActionLogger.logDebug("Action timed out " + mAction.getClass().getName() + ".");
+      if (mTicket != null) mTicket.release();
+      if (mListener != null) mListener.onTimedOut(mAction, mKey, started);
+
+      TimeoutException e = timeoutError();
+      deliver(null, e);
+      deliverCoalesced(null, e);
+      untrack();
+    }
+
+    /**
+     * Cancels the Action, which doesn't run once unsubscribed from, as its subscriber unsubscribed.
+     * A waiting Action is taken off its key, and a running one is interrupted like on a timeout.
+     */
+    @Override public boolean cancel() {
+      if (!mAbortable) return false;
+      // Actions coalesced with this one still want its result.
+      if (mCoalescingId != null && !stopCoalescingUnlessShared()) return false;
+
+      //noinspection unchecked
+      if (!FINISHED.compareAndSet(this, 0, 1)) return false;
+      if (mTimeout != null) mTimeout.cancel(false);
+
+      boolean started = abort(false);
+      // A persistent Action is left on its key, to delete its persisted copy once its turn comes.
+      if (!started && isDroppable()) removeFromQueue();
+
+      if (isDebugEnabled()) mActionLogger.logDebug("Action cancelled " + mAction.getClass().getName() + ".");
+      if (mTicket != null) mTicket.release();
+      if (mListener != null) mListener.onCancelled(mAction, mKey, started);
+      untrack();
+      return true;
+    }
+
+    /**
+     * Flags the Action as timed out or cancelled, interrupting it if it is running.
+     *
+     * @return true if the Action had started.
+     */
+    private synchronized boolean abort(boolean timedOut) {
+      if (timedOut) {
+        mTimedOut = true;
+      } else {
+        mCancelled = true;
+      }
+
+      if (mExecutingThread != null) {
+        mExecutingThread.interrupt();
+        if (mExecutingExecutor != null) {
+          mExecutingExecutor.detach();
+          mDetached = true;
+        }
+        // The other keys of an Action with several keys go on without it as well.
+        if (mKeysAcquired) releaseKeys();
+      }
+      return mStarted;
+    }
+
+    /**
+     * Claims the completion of the Action, stopping its timeout.
+     *
+     * @return false if the Action was aborted, and its subscribers were told already.
+     */
+    private boolean finish() {
+      //noinspection unchecked
+      if (!FINISHED.compareAndSet(this, 0, 1)) return false;
+      if (mTimeout != null) mTimeout.cancel(false);
+      return true;
+    }
+
+    /**
+     * @return false if the Action was aborted before it could start, and mustn't run.
+     */
+    private synchronized boolean startUnlessAborted() {
+      if (mTimedOut || mCancelled || mShelved) return false;
+
+      mStarted = true;
+      return true;
+    }
+
+    /**
+     * Drops an Action that was aborted before it started.
+     */
+    private void discardAborted() {
+      // A shelved Action is kept to run on the next start.
+      if (mPersistedId == null || mShelved) return;
+
+      try {
+        persistActionDelete();
+      } catch (Throwable t) {
+        logOrPrintError(t, "Error deleting aborted Action " + mAction.getClass().getName());
+      }
+    }
+
+    private void enterExecute() {
+      SerialExecutor executor = SerialExecutor.current();
+      synchronized (this) {
+        mExecutingThread = Thread.currentThread();
+        // Only a key run by a SerialExecutor can be handed to another thread.
+        if (executor != null && mKey.equals(executor.getKey())) mExecutingExecutor = executor;
+      }
+    }
+
+    private void exitExecute() {
+      synchronized (this) {
+        mExecutingThread = null;
+        mExecutingExecutor = null;
+      }
+      // The interrupt was meant for this Action, not whatever the thread runs next.
+      if (mTimedOut || mCancelled) Thread.interrupted();
+    }
+
+    private CancellationException cancelledError() {
+      return new CancellationException("Action " + mAction.getClass().getName() + " was unsubscribed from");
+    }
+
+    private TimeoutException timeoutError() {
+      return new TimeoutException("Action " + mAction.getClass().getName() + " timed out"
+          + ((mTimeoutMillis > 0) ? " after " + mTimeoutMillis + "ms" : ""));
+    }
+
+    public T runAction(SubscriptionContext subscriptionContext) throws Throwable {
+      startAction(subscriptionContext);
+
+      try {
+        prepareAction();
+
+        long retryDelayNanos;
+        while ((retryDelayNanos = runActionBody()) > 0) {
+          TimeUnit.NANOSECONDS.sleep(retryDelayNanos);
+        }
+        return mResponse;
+      } finally {
+        if (mPersistedId != null) {
+          persistActionDelete();
+        }
+      }
+    }
+
+    private void startAction(SubscriptionContext subscriptionContext) {
+      mAction.setSubscriptionContext(subscriptionContext);
+
+      if (mShouldPersist) {
+        if (mActionPersister == null) {
+          throw new IllegalStateException("Running Persistent Action " + mAction.getClass().getName()
+              + ", but no ActionPersister is set");
+        }
+
+        persistAction();
+      }
+    }
+
+    private void prepareAction() {
+      try {
+        if (mActionPreparer != null) mActionPreparer.prepare(mAction);
+      } catch (Throwable t) {
+        logOrPrintError(t, "Error while preparing Action " + mAction.getClass().getName());
+      }
+      mAction.prepare();
+    }
+
+    private void persistAction() {
+      try {
+        mPersistedRetryState = mAction.getRetryState();
+        long start = (mListener != null) ? System.nanoTime() : 0;
+        mPersistedId = mPersistCommitter.persist(mAction);
+        if (mListener != null) mListener.onPersisted(mAction, System.nanoTime() - start);
+      } catch (Throwable t) {
+        logOrPrintError(t, "Error while persisting Action " + mAction.getClass().getName());
+      }
+    }
 
     private void persistActionUpdate() {
+      boolean actionChanged = mAction.takePersistentStateChanged();
+      int retryState = mAction.getRetryState();
+      boolean retryStateChanged = retryState != mPersistedRetryState;
+      if (!actionChanged && !retryStateChanged) return;
+
       try {
-        mActionPersister.update(mPersistedId, mAction);
+        mPersistCommitter.update(mPersistedId, mAction, actionChanged, retryStateChanged);
+        mPersistedRetryState = retryState;
       } catch (Throwable t) {
         logOrPrintError(t, "Error while persisting update for Action " + mAction.getClass().getName());
       }
     }
 
     private void persistActionDelete() {
-      mActionPersister.delete(mPersistedId);
+      long start = (mListener != null) ? System.nanoTime() : 0;
+      mPersistCommitter.delete(mPersistedId);
+      if (mListener != null) mListener.onDeleted(mAction, System.nanoTime() - start);
     }
 
-    private T runActionBody() throws Throwable {
-      T response = null;
-      boolean completed = false;
-      int count = 0;
-      if (mActionLogger != null) mActionLogger.logDebug("Running Action " + mAction.getClass().getName() + ".");
+    /**
+     * Runs the Action until it completes, or has to wait before it can be retried. The response is
+     * left in mResponse.
+     *
+     * @return how long to wait before calling again to retry, or 0 if the Action has completed.
+     */
+    private long runActionBody() throws Throwable {
+      if (mRunCount == 0 && isDebugEnabled()) mActionLogger.logDebug("Running Action " + mAction.getClass().getName() + ".");
 
       do {
-        if (mRunIfUnsubscribed || mAction.isUnsubscribed()) {
+        if (!mRunIfUnsubscribed && mAction.isUnsubscribed()) throw cancelledError();
+        if (mAction.isTimedOut()) throw timeoutError();
 
-          if (count > 0) mAction.preRetry();
+        if (mRunCount > 0) mAction.preRetry();
 
+        long start = (mListener != null) ? System.nanoTime() : 0;
+        try {
+          if (mAbortable) enterExecute();
           try {
-            response = mAction.execute();
-            if (mActionLogger != null) mActionLogger.logDebug("Action finished running " + mAction.getClass().getName() + ".");
-            completed = true;
-          } catch (Throwable t) {
-            boolean shouldRetry = mAction.shouldRetryForThrowable(t);
-            count++;
-            if (mActionLogger != null) mActionLogger.logDebug("Error running Action " + mAction.getClass().getName() + ". "
-                + (shouldRetry ? ("Retrying. #" + count) : "Not Retrying") + ".");
-
-            if (shouldRetry) {
-              if (mPersistedId != null) {
-                persistActionUpdate();
-              }
-            } else {
-              throw t;
+            mResponse = mAction.execute();
+          } finally {
+            if (mAbortable) exitExecute();
+          }
+          if (mListener != null) mExecuteNanos += System.nanoTime() - start;
+          if (isDebugEnabled()) mActionLogger.logDebug("Action finished running " + mAction.getClass().getName() + ".");
+          return 0;
+        } catch (Throwable t) {
+          if (mListener != null) mExecuteNanos += System.nanoTime() - start;
+          // Retries stop once the Action is cancelled or has timed out.
+          boolean shouldRetry = !mAction.isCancelled() && mAction.shouldRetryForThrowable(t);
+          mRunCount++;
+          if (isDebugEnabled()) mActionLogger.logDebug("Error running Action " + mAction.getClass().getName() + ". "
+              + (shouldRetry ? ("Retrying. #" + mRunCount) : "Not Retrying") + ".");
+
+          if (shouldRetry) {
+            RetryBackoff backoff = mAction.getRetryBackoff();
+            long retryDelayNanos = (backoff != null) ? backoff.getDelayNanos(mRunCount) : 0;
+            // A retry that would start after the timeout is given up on right away.
+            if (mTimeout != null && System.nanoTime() + retryDelayNanos - mDeadlineNanos >= 0) {
+              throw timeoutError();
+            }
+
+            if (mListener != null) mListener.onRetry(mAction, mKey, t, mRunCount);
+
+            if (mPersistedId != null) {
+              persistActionUpdate();
             }
+
+            if (retryDelayNanos > 0) return retryDelayNanos;
+          } else {
+            throw t;
+          }
+        }
+      } while (true);
+    }
+
+    @Override public int getPriority() {
+      return mPriority;
+    }
+
+    @Override public ActionDispatcher getDispatcher() {
+      return ActionDispatcher.this;
+    }
+
+    @Override public boolean isUnsubscribed() {
+      return mSubscribedCallback != null && mSubscribedCallback.isUnsubscribed();
+    }
+
+    @Override public boolean isTimedOut() {
+      return mTimedOut;
+    }
+
+    @Override public boolean isCancelled() {
+      return mCancelled || mTimedOut;
+    }
+
+    @Override Long takePersistedId(Action<?> action) {
+      if (action != mAction) return null;
+
+      Long persistedId = mPersistedId;
+      mPersistedId = null;
+      return persistedId;
+    }
+
+    /**
+     * Runs the Action on the executor of its key. When the Action has to wait before a retry, it
+     * gives up the thread of its key and is run again by the timer once the wait is over.
+     */
+    @Override public void run() {
+      if (mKeys == null) {
+        runOnKey();
+        return;
+      }
+
+      if (!mKeysAcquired) {
+        acquireKeys();
+        return;
+      }
+      runOnKey();
+      // Kept while the Action waits to be retried.
+      if (mFinished != 0) releaseKeys();
+    }
+
+    /**
+     * Holds the key this runs on, then moves on to the next key of the Action. Every Action takes its
+     * keys in the same order, so two Actions can never each hold a key the other one waits for. Once
+     * all of them are held, the Action runs on its first key, and the others are held until it
+     * completes.
+     */
+    private void acquireKeys() {
+      // Cancelled, timed out or shelved while waiting for one of its keys.
+      if (mFinished != 0) {
+        releaseKeys();
+        return;
+      }
+
+      String key = mKeys.get(mHeldCount);
+      SerialExecutor executor = SerialExecutor.current();
+      if (executor == null || !key.equals(executor.getKey())) {
+        releaseKeys();
+        complete(null, new IllegalStateException("Key " + key + " of Action " + mAction.getClass().getName()
+            + " isn't run by the dispatcher's own executors, and can't be held"));
+        return;
+      }
+
+      if (mHeldExecutors == null) mHeldExecutors = new SerialExecutor[mKeys.size()];
+      executor.suspend();
+      mHeldExecutors[mHeldCount++] = executor;
+      if (mHeldCount < mKeys.size()) {
+        mExecutorCache.getExecutorForKey(mKeys.get(mHeldCount)).execute(new KeyAcquisition());
+      } else {
+        mKeysAcquired = true;
+        SerialExecutor first = mHeldExecutors[0];
+        mHeldExecutors[0] = null;
+        first.resume(this);
+      }
+    }
+
+    /**
+     * Gives back the keys held for the Action. Called by the thread holding them, or by an abort while
+     * the Action runs, whichever comes first.
+     */
+    private synchronized void releaseKeys() {
+      for (int i = 0; i < mHeldCount; i++) {
+        if (mHeldExecutors[i] != null) mHeldExecutors[i].resume(NO_OP);
+        mHeldExecutors[i] = null;
+      }
+      mHeldCount = 0;
+    }
+
+    private void runOnKey() {
+      T response = null;
+      Throwable error = null;
+
+      try {
+        if (!mStarted) {
+          if (mShelvingQueued && shelve()) return;
+          if (mAbortable) {
+            // Cancelled here if the subscriber unsubscribed before the cancellation was set up.
+            if (!mRunIfUnsubscribed && isUnsubscribed() && cancel()) return;
+            if (!startUnlessAborted()) {
+              discardAborted();
+              return;
+            }
+          }
+          if (mTicket != null && !mTicket.start()) return;
+          if (mCoalescingId != null && !stopCoalescing()) return;
+
+          mStarted = true;
+          if (mListener != null) mListener.onStarted(mAction, mKey, System.nanoTime() - mEnqueuedNanos);
+          if (mAction instanceof BatchableAction && mKeys == null && startBatch()) return;
+
+          startAction(this);
+          prepareAction();
+        } else if (mBatch != null) {
+          if (continueBatch()) return;
+
+          startAction(this);
+          prepareAction();
+        } else if (mRunningBatch != null) {
+          resumeBatch();
+          return;
+        }
+
+        long retryDelayNanos;
+        while ((retryDelayNanos = runActionBody()) > 0) {
+          if (retryLater(retryDelayNanos)) return;
+
+          TimeUnit.NANOSECONDS.sleep(retryDelayNanos);
+        }
+        response = mResponse;
+      } catch (Throwable t) {
+        error = t;
+      }
+
+      if (mPersistedId != null) {
+        try {
+          persistActionDelete();
+        } catch (Throwable t) {
+          error = t;
+        }
+      }
+
+      complete(response, error);
+      // The key was handed to another thread while this Action hung, so this thread leaves it.
+      if (mDetached) SerialExecutor.leave();
+    }
+
+    private void complete(T response, Throwable error) {
+      if (!finish()) return;
+
+      if (mListener != null) mListener.onCompleted(mAction, mKey, mExecuteNanos, error);
+      // Makes room before the subscribers hear back, in case they start another Action on the key.
+      if (mTicket != null) mTicket.release();
+
+      deliver(response, error);
+      deliverCoalesced(response, error);
+      untrack();
+    }
+
+    private void deliverCoalesced(Object response, Throwable error) {
+      if (mCoalescedContexts != null) {
+        for (ExecutionContext<?> coalesced : mCoalescedContexts) {
+          //noinspection unchecked
+          ((ExecutionContext<Object>) coalesced).deliver(response, error);
+        }
+      }
+    }
+
+    /**
+     * Starts a batch led by this BatchableAction with the Actions waiting on the key that can join
+     * it, if the key is run by a SerialExecutor.
+     *
+     * @return false if there is nothing to batch this Action with, and it runs on its own.
+     */
+    private boolean startBatch() {
+      final SerialExecutor executor = SerialExecutor.current();
+      // An Executor that runs Actions directly could be running this one from the drain of another key.
+      if (executor == null || !mKey.equals(executor.getKey())) return false;
+
+      BatchableAction<?, ?> action = (BatchableAction<?, ?>) mAction;
+      mBatch = new ArrayList<ExecutionContext<?>>();
+      mBatch.add(this);
+      takeBatchMembers(executor);
+
+      long lingerMillis = action.getBatchLingerMillis();
+      if (lingerMillis > 0 && mBatch.size() < action.getMaxBatchSize()) {
+        // Holds the key, so the Actions that arrive meanwhile wait in its queue to join the batch.
+        executor.suspend();
+        mExecutorCache.getTimer().schedule(new Runnable() {
+          @Override public void run() {
+            executor.resume(ExecutionContext.this);
+          }
+        }, lingerMillis, TimeUnit.MILLISECONDS);
+        return true;
+      }
+
+      return continueBatch();
+    }
+
+    /**
+     * Runs the batch, with the Actions that arrived while it waited.
+     *
+     * @return false if there is nothing to batch this Action with, and it runs on its own.
+     */
+    private boolean continueBatch() {
+      takeBatchMembers(SerialExecutor.current());
+
+      List<ExecutionContext<?>> batch = mBatch;
+      mBatch = null;
+      if (batch.size() == 1) return false;
+
+      runBatch(batch);
+      return true;
+    }
+
+    private void takeBatchMembers(SerialExecutor executor) {
+      BatchableAction<?, ?> action = (BatchableAction<?, ?>) mAction;
+      int max = action.getMaxBatchSize() - mBatch.size();
+      if (executor == null || max <= 0) return;
+
+      final String batchKey = action.getBatchKey();
+      List<Runnable> taken = executor.removeQueued(new SerialExecutor.Matcher() {
+        @Override public boolean matches(Runnable runnable) {
+          if (!(runnable instanceof ExecutionContext)) return false;
+
+          ExecutionContext<?> context = (ExecutionContext<?>) runnable;
+          return !context.mStarted
+              && context.mKeys == null
+              && context.mAction instanceof BatchableAction
+              && batchKey.equals(((BatchableAction<?, ?>) context.mAction).getBatchKey());
+        }
+      }, max);
+
+      for (Runnable runnable : taken) {
+        ExecutionContext<?> member = (ExecutionContext<?>) runnable;
+        if (mShelvingQueued && member.shelve()) continue;
+        if (member.mAbortable && !member.startUnlessAborted()) {
+          member.discardAborted();
+          continue;
+        }
+        if (member.mTicket != null && !member.mTicket.start()) continue;
+        if (member.mCoalescingId != null && !member.stopCoalescing()) continue;
+
+        member.mStarted = true;
+        if (member.mListener != null) {
+          member.mListener.onStarted(member.mAction, member.mKey, System.nanoTime() - member.mEnqueuedNanos);
+        }
+        mBatch.add(member);
+      }
+    }
+
+    /**
+     * Runs the Actions of a batch through the lifecycle of an Action together, completing each of
+     * them with its own result.
+     */
+    private void runBatch(List<ExecutionContext<?>> batch) {
+      if (isDebugEnabled()) mActionLogger.logDebug("Running batch of " + batch.size() + " Actions "
+          + mAction.getClass().getName() + ".");
+
+      RunningBatch running = new RunningBatch(batch);
+      persistBatch(running.mRunning, running.mErrors);
+      for (Iterator<ExecutionContext<?>> iterator = running.mRunning.iterator(); iterator.hasNext(); ) {
+        ExecutionContext<?> member = iterator.next();
+        if (!running.mErrors.containsKey(member)) {
+          try {
+            member.prepareAction();
+            continue;
+          } catch (Throwable t) {
+            running.mErrors.put(member, t);
+          }
+        }
+        iterator.remove();
+        running.mFinished.add(member);
+      }
+
+      executeBatch(running);
+    }
+
+    /**
+     * Runs the batch until all of its Actions finished. When it has to wait before a retry, it gives
+     * up the thread of its key like a single Action, and is run again once the wait is over.
+     */
+    private void executeBatch(RunningBatch batch) {
+      while (!batch.mRunning.isEmpty()) {
+        long retryDelayNanos = executeBatchOnce(batch);
+        if (batch.mRunning.isEmpty()) break;
+
+        if (retryDelayNanos > 0) {
+          mRunningBatch = batch;
+          if (retryLater(retryDelayNanos)) return;
+
+          mRunningBatch = null;
+          try {
+            TimeUnit.NANOSECONDS.sleep(retryDelayNanos);
+          } catch (Throwable t) {
+            batch.failRunning(t);
+            break;
+          }
+        }
+        preRetryBatch(batch);
+      }
+
+      deleteBatch(batch.mFinished, batch.mErrors);
+      for (ExecutionContext<?> member : batch.mFinished) {
+        member.completeBatchMember(batch.mErrors.get(member));
+      }
+    }
+
+    /**
+     * Retries the batch once its wait is over.
+     */
+    private void resumeBatch() {
+      RunningBatch batch = mRunningBatch;
+      mRunningBatch = null;
+
+      preRetryBatch(batch);
+      executeBatch(batch);
+    }
+
+    private void preRetryBatch(RunningBatch batch) {
+      try {
+        for (ExecutionContext<?> member : batch.mRunning) {
+          member.mAction.preRetry();
+        }
+      } catch (Throwable t) {
+        batch.failRunning(t);
+      }
+    }
+
+    /**
+     * Runs the Actions of the batch that are still running once, moving those that finished.
+     *
+     * @return how long to wait before the Actions that failed are retried.
+     */
+    private long executeBatchOnce(RunningBatch batch) {
+      List<BatchableAction<?, ?>> actions = new ArrayList<BatchableAction<?, ?>>(batch.mRunning.size());
+      for (ExecutionContext<?> member : batch.mRunning) {
+        BatchableAction<?, ?> action = (BatchableAction<?, ?>) member.mAction;
+        action.clearBatchResult();
+        actions.add(action);
+      }
+
+      long start = System.nanoTime();
+      Throwable batchError = null;
+      try {
+        actions.get(0).executeBatchOf(actions);
+      } catch (Throwable t) {
+        batchError = t;
+      }
+      long executeNanos = System.nanoTime() - start;
+
+      List<ExecutionContext<?>> retrying = new ArrayList<ExecutionContext<?>>();
+      long retryDelayNanos = 0;
+      for (ExecutionContext<?> member : batch.mRunning) {
+        member.mExecuteNanos += executeNanos;
+
+        try {
+          if (batchError == null) {
+            member.takeBatchResult();
+          } else if (member.retryBatchMember(batchError)) {
+            RetryBackoff backoff = member.mAction.getRetryBackoff();
+            if (backoff != null) retryDelayNanos = Math.max(retryDelayNanos, backoff.getDelayNanos(member.mRunCount));
+            retrying.add(member);
+            continue;
+          } else {
+            batch.mErrors.put(member, batchError);
+          }
+        } catch (Throwable t) {
+          batch.mErrors.put(member, t);
+        }
+        batch.mFinished.add(member);
+      }
+
+      batch.mRunning = retrying;
+      return retryDelayNanos;
+    }
+
+    private void takeBatchResult() throws Throwable {
+      mResponse = ((BatchableAction<T, ?>) mAction).takeBatchResult();
+    }
+
+    private void completeBatchMember(Throwable error) {
+      complete((error == null) ? mResponse : null, error);
+    }
+
+    /**
+     * @return true if this Action of a failed batch should be retried with it.
+     */
+    private boolean retryBatchMember(Throwable batchError) throws Throwable {
+      boolean shouldRetry = !mAction.isCancelled() && mAction.shouldRetryForThrowable(batchError);
+      mRunCount++;
+      if (!shouldRetry) return false;
+
+      if (mListener != null) mListener.onRetry(mAction, mKey, batchError, mRunCount);
+      if (mPersistedId != null) persistActionUpdate();
+      return true;
+    }
+
+    /**
+     * Persists the persistent Actions of a batch together, failing those that can't be.
+     */
+    private void persistBatch(List<ExecutionContext<?>> batch, Map<ExecutionContext<?>, Throwable> errors) {
+      List<ExecutionContext<?>> persistent = new ArrayList<ExecutionContext<?>>();
+      List<Action<?>> actions = new ArrayList<Action<?>>();
+      for (ExecutionContext<?> member : batch) {
+        member.mAction.setSubscriptionContext(member);
+        if (!member.mShouldPersist) continue;
+
+        if (mActionPersister == null) {
+          errors.put(member, new IllegalStateException("Running Persistent Action "
+              + member.mAction.getClass().getName() + ", but no ActionPersister is set"));
+          continue;
+        }
+
+        member.mPersistedRetryState = member.mAction.getRetryState();
+        persistent.add(member);
+        actions.add(member.mAction);
+      }
+      if (actions.isEmpty()) return;
+
+      try {
+        long start = System.nanoTime();
+        long[] ids = mPersistCommitter.persistAll(actions);
+        long persistNanos = System.nanoTime() - start;
+
+        for (int i = 0; i < ids.length; i++) {
+          ExecutionContext<?> member = persistent.get(i);
+          member.mPersistedId = ids[i];
+          if (member.mListener != null) member.mListener.onPersisted(member.mAction, persistNanos);
+        }
+      } catch (Throwable t) {
+        logOrPrintError(t, "Error while persisting batch of Actions " + mAction.getClass().getName());
+      }
+    }
+
+    /**
+     * Deletes the persisted Actions of a finished batch together.
+     */
+    private void deleteBatch(List<ExecutionContext<?>> batch, Map<ExecutionContext<?>, Throwable> errors) {
+      List<ExecutionContext<?>> persisted = new ArrayList<ExecutionContext<?>>();
+      for (ExecutionContext<?> member : batch) {
+        if (member.mPersistedId != null) persisted.add(member);
+      }
+      if (persisted.isEmpty()) return;
+
+      long[] ids = new long[persisted.size()];
+      for (int i = 0; i < ids.length; i++) {
+        ids[i] = persisted.get(i).mPersistedId;
+      }
+
+      long start = System.nanoTime();
+      try {
+        mPersistCommitter.deleteAll(ids);
+      } catch (Throwable t) {
+        for (ExecutionContext<?> member : persisted) {
+          errors.put(member, t);
+        }
+        return;
+      }
+
+      long deleteNanos = System.nanoTime() - start;
+      for (ExecutionContext<?> member : persisted) {
+        if (member.mListener != null) member.mListener.onDeleted(member.mAction, deleteNanos);
+      }
+    }
+
+    private void deliver(T response, Throwable error) {
+      if (mCallback != null) {
+        if (error == null) {
+          try {
+            mCallback.onSuccess(response);
+          } catch (Throwable t) {
+            mCallback.onError(t);
           }
+        } else {
+          mCallback.onError(error);
         }
-      } while (!completed);
+      }
+    }
+
+    /**
+     * @return false if the retry can't be handed back to the key later, and has to wait on the
+     * current thread instead.
+     */
+    private boolean retryLater(long delayNanos) {
+      if (KeySelector.ASYNC_KEY.equals(mKey) || mKeySelector.isRetryOvertakingAllowed(mKey)) {
+        mExecutorCache.getTimer().schedule(new Runnable() {
+          @Override public void run() {
+            mExecutorCache.getExecutorForKey(mKey).execute(ExecutionContext.this);
+          }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+        return true;
+      }
+
+      // Only a key run by a SerialExecutor can be held for the Action without holding a thread. An
+      // Executor that runs Actions directly could be running this one from the drain of another key.
+      final SerialExecutor executor = SerialExecutor.current();
+      if (executor == null || !mKey.equals(executor.getKey())) return false;
+
+      executor.suspend();
+      mExecutorCache.getTimer().schedule(new Runnable() {
+        @Override public void run() {
+          executor.resume(ExecutionContext.this);
+        }
+      }, delayNanos, TimeUnit.NANOSECONDS);
+      return true;
+    }
+
+    /**
+     * Waits on the next key of an Action with several keys, to hold it for the Action.
+     */
+    private class KeyAcquisition implements Runnable, Prioritized {
+      @Override public void run() {
+        acquireKeys();
+      }
+
+      ExecutionContext<T> getContext() {
+        return ExecutionContext.this;
+      }
+
+      @Override public int getPriority() {
+        return mPriority;
+      }
+    }
+  }
 
-      return response;
+  /**
+   * The Actions of a batch that is running, kept while the batch waits to be retried.
+   */
+  private static class RunningBatch {
+    List<ExecutionContext<?>> mRunning;
+    final List<ExecutionContext<?>> mFinished;
+    final Map<ExecutionContext<?>, Throwable> mErrors;
+
+    RunningBatch(List<ExecutionContext<?>> batch) {
+      mRunning = new ArrayList<ExecutionContext<?>>(batch);
+      mFinished = new ArrayList<ExecutionContext<?>>(batch.size());
+      mErrors = new HashMap<ExecutionContext<?>, Throwable>();
+    }
+
+    /**
+     * Fails the Actions that are still running with the error.
+     */
+    void failRunning(Throwable error) {
+      for (ExecutionContext<?> member : mRunning) {
+        mErrors.put(member, error);
+        mFinished.add(member);
+      }
+      mRunning = new ArrayList<ExecutionContext<?>>();
     }
   }
 
@@ -397,16 +1849,23 @@ public class ActionDispatcher {
     private ActionPersister mActionPersister = null;
     private Map<String, Executor> mExecutorMap = null;
     private boolean mDelayPersistentActionLoading = false;
+    private boolean mGateOnlyPersistentActions = false;
+    private int mKeyThreadPoolSize = DEFAULT_KEY_THREAD_POOL_SIZE;
+    private long mIdleKeyTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IDLE_KEY_TIMEOUT_MILLIS);
+    private long mPersistBatchWindowNanos = 0;
+    private RetryStateDurability mRetryStateDurability = RetryStateDurability.SYNC;
+    private DispatchListener mDispatchListener = null;
+    private boolean mUseVirtualThreads = false;
+    private long mPriorityAgingNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_PRIORITY_AGING_MILLIS);
+    private int mKeyCapacity = 0;
+    private OverflowPolicy mKeyOverflowPolicy = OverflowPolicy.REJECT;
+    private int mAsyncCapacity = 0;
+    private OverflowPolicy mAsyncOverflowPolicy = OverflowPolicy.REJECT;
+    private long mOverflowBlockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_OVERFLOW_BLOCK_TIMEOUT_MILLIS);
+    private ShutdownPolicy mShutdownPolicy = ShutdownPolicy.DRAIN;
 
     public ActionDispatcher build() {
-      return new ActionDispatcher(
-          mKeySelector != null ? mKeySelector : new KeySelector(),
-          mActionPreparer,
-          mActionLogger,
-          mActionPersister,
-          mExecutorMap,
-          mDelayPersistentActionLoading
-      );
+      return new ActionDispatcher(this);
     }
 
     public ActionDispatcher.Builder withKeySelector(KeySelector keySelector) {
@@ -429,6 +1888,16 @@ public class ActionDispatcher {
       return this;
     }
 
+    /**
+     * Sets a listener that is told when Actions are enqueued, started, persisted, retried, deleted
+     * and completed. {@link com.wmba.actiondispatcher.metrics.DispatchMetrics} records these events
+     * as latency histograms and counters.
+     */
+    public ActionDispatcher.Builder withDispatchListener(DispatchListener dispatchListener) {
+      mDispatchListener = dispatchListener;
+      return this;
+    }
+
     public ActionDispatcher.Builder withExecutor(String key, Executor executor) {
       if (mExecutorMap == null) {
         mExecutorMap = new HashMap<String, Executor>(5);
@@ -439,12 +1908,195 @@ public class ActionDispatcher {
       return this;
     }
 
+    private ActionDispatcher.Builder withExecutors(Map<String, Executor> executorMap) {
+      if (executorMap != null) {
+        for (Map.Entry<String, Executor> entry : executorMap.entrySet()) {
+          withExecutor(entry.getKey(), entry.getValue());
+        }
+      }
+
+      return this;
+    }
+
+    /**
+     * Sets the number of threads that are shared by all keys. Actions on the same key still run one
+     * at a time, in order, but no more than this many keys run at once. Keys with an Executor
+     * provided through {@link #withExecutor(String, Executor)}, and the async key, don't use these
+     * threads.
+     *
+     * Defaults to {@link #DEFAULT_KEY_THREAD_POOL_SIZE}.
+     */
+    public ActionDispatcher.Builder withKeyThreadPoolSize(int keyThreadPoolSize) {
+      if (keyThreadPoolSize < 1) {
+        throw new IllegalArgumentException("keyThreadPoolSize must be at least 1");
+      }
+
+      mKeyThreadPoolSize = keyThreadPoolSize;
+      return this;
+    }
+
+    /**
+     * Runs Actions on virtual threads instead of pools of platform threads. Async Actions each get a
+     * virtual thread of their own, and the Actions of a key still run one at a time, in order, but
+     * on a virtual thread that is only held while the key has Actions to run. Actions that block
+     * then only hold a virtual thread, so many thousands of them can block at once. The key thread
+     * pool size is ignored.
+     *
+     * Needs Java 21 or later, see {@link ActionDispatcher#areVirtualThreadsSupported()}.
+     * {@link #build()} throws an IllegalStateException otherwise.
+     */
+    public ActionDispatcher.Builder withVirtualThreads() {
+      mUseVirtualThreads = true;
+      return this;
+    }
+
+    /**
+     * Sets how long a key can go without running an Action before its executor is removed, freeing
+     * its memory. The key gets a new executor the next time an Action is run on it. Keys with an
+     * Executor provided through {@link #withExecutor(String, Executor)} are never removed.
+     *
+     * Defaults to {@link #DEFAULT_IDLE_KEY_TIMEOUT_MILLIS}. A timeout of 0 keeps keys forever.
+     */
+    public ActionDispatcher.Builder withIdleKeyTimeout(long timeout, TimeUnit unit) {
+      if (timeout < 0) {
+        throw new IllegalArgumentException("timeout must not be negative");
+      }
+
+      mIdleKeyTimeoutNanos = unit.toNanos(timeout);
+      return this;
+    }
+
+    /**
+     * Sets how long an Action waits on a {@link KeySelector#isPrioritized(String) prioritized} key
+     * to gain a priority level, so that a steady stream of higher priority Actions can't hold back
+     * the others forever. An Action of priority 0 that has waited 10 intervals runs before an
+     * Action of priority 10 that was just started.
+     *
+     * Defaults to {@link #DEFAULT_PRIORITY_AGING_MILLIS}. An interval of 0 turns aging off, always
+     * running the highest priority first.
+     */
+    public ActionDispatcher.Builder withPriorityAging(long interval, TimeUnit unit) {
+      if (interval < 0) {
+        throw new IllegalArgumentException("interval must not be negative");
+      }
+
+      mPriorityAgingNanos = unit.toNanos(interval);
+      return this;
+    }
+
+    /**
+     * Bounds the number of Actions that can be waiting or running on every key, other than the async
+     * key, so that a slow key can't build up an unbounded backlog. The policy decides what happens
+     * to an Action started on a full key. Persisted Actions restored at startup always get room.
+     *
+     * Defaults to 0, where keys have no capacity.
+     */
+    public ActionDispatcher.Builder withKeyCapacity(int capacity, OverflowPolicy policy) {
+      if (capacity < 0) throw new IllegalArgumentException("capacity must not be negative");
+      if (policy == null) throw new IllegalArgumentException("policy == null");
+
+      mKeyCapacity = capacity;
+      mKeyOverflowPolicy = policy;
+      return this;
+    }
+
+    /**
+     * Bounds the number of Actions that can be waiting or running on the async key, which otherwise
+     * starts a thread for every Action running at once. See
+     * {@link #withKeyCapacity(int, OverflowPolicy)}.
+     *
+     * Defaults to 0, where the async key has no capacity.
+     */
+    public ActionDispatcher.Builder withAsyncCapacity(int capacity, OverflowPolicy policy) {
+      if (capacity < 0) throw new IllegalArgumentException("capacity must not be negative");
+      if (policy == null) throw new IllegalArgumentException("policy == null");
+
+      mAsyncCapacity = capacity;
+      mAsyncOverflowPolicy = policy;
+      return this;
+    }
+
+    /**
+     * Sets how long the thread starting an Action waits for room on a full key with
+     * {@link OverflowPolicy#BLOCK}, before the Action fails.
+     *
+     * Defaults to {@link #DEFAULT_OVERFLOW_BLOCK_TIMEOUT_MILLIS}.
+     */
+    public ActionDispatcher.Builder withOverflowBlockTimeout(long timeout, TimeUnit unit) {
+      if (timeout < 0) {
+        throw new IllegalArgumentException("timeout must not be negative");
+      }
+
+      mOverflowBlockTimeoutNanos = unit.toNanos(timeout);
+      return this;
+    }
+
+    /**
+     * Sets whether the Actions waiting on their keys still run once
+     * {@link ActionDispatcher#shutdown(long, TimeUnit)} is called. Defaults to
+     * {@link ShutdownPolicy#DRAIN}.
+     */
+    public ActionDispatcher.Builder withShutdownPolicy(ShutdownPolicy policy) {
+      if (policy == null) throw new IllegalArgumentException("policy == null");
+
+      mShutdownPolicy = policy;
+      return this;
+    }
+
+    /**
+     * Sets how long persists and deletes of persistent Actions wait for others to arrive, so they
+     * can be committed to the {@link ActionPersister} together. Actions on different keys that are
+     * persisted within the window of each other share a single write, which is most effective with
+     * a {@link BatchActionPersister}. Each Action waits up to the window before it runs, and again
+     * before it completes.
+     *
+     * Defaults to 0, where every persist and delete is written directly on the Action's key.
+     */
+    public ActionDispatcher.Builder withPersistBatchWindow(long window, TimeUnit unit) {
+      if (window < 0) {
+        throw new IllegalArgumentException("window must not be negative");
+      }
+
+      mPersistBatchWindowNanos = unit.toNanos(window);
+      return this;
+    }
+
+    /**
+     * Sets when the retry state of a persistent Action is written after it fails, so a restored
+     * Action doesn't start over with all of its retries. Only the retry state that changed is
+     * written, and only the retry state itself when the {@link ActionPersister} is a
+     * {@link RetryStateActionPersister}.
+     *
+     * Defaults to {@link RetryStateDurability#SYNC}.
+     */
+    public ActionDispatcher.Builder withRetryStateDurability(RetryStateDurability durability) {
+      if (durability == null) throw new IllegalArgumentException("durability == null");
+
+      mRetryStateDurability = durability;
+      return this;
+    }
+
     /**
      * Call to delay the running of persisted Actions, until
      * {@link ActionDispatcher#startPersistentActions()} is called.
      */
     public ActionDispatcher.Builder delayPersistentActionLoading() {
-      mDelayPersistentActionLoading = true;
+      return withDelayPersistentActionLoading(true);
+    }
+
+    /**
+     * By default, every Action that is started before the persisted Actions have loaded waits for
+     * them, so the persisted Actions run first. Call to only have persistent Actions wait, letting
+     * others run right away however large the persisted backlog is. Such an Action may run before a
+     * persisted Action on the same key.
+     */
+    public ActionDispatcher.Builder gateOnlyPersistentActions() {
+      mGateOnlyPersistentActions = true;
+      return this;
+    }
+
+    private ActionDispatcher.Builder withDelayPersistentActionLoading(boolean delay) {
+      mDelayPersistentActionLoading = delay;
       return this;
     }
   }
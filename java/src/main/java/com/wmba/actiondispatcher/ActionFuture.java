@@ -0,0 +1,152 @@
+package com.wmba.actiondispatcher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of an Action started with {@link ActionDispatcher#toFuture(Action, String)}, which
+ * doesn't go through RxJava. Cancelling the future unsubscribes from the Action, which is cancelled
+ * unless it {@link Action#runIfUnsubscribed() runs when unsubscribed}.
+ */
+public class ActionFuture<T> implements Future<T>, SubscribedCallback<T> {
+  private volatile boolean mCancelled = false;
+
+  // Guarded by this.
+  private boolean mDone = false;
+  private T mValue = null;
+  private Throwable mError = null;
+  private List<ActionCallback<? super T>> mCallbacks = null;
+
+  /**
+   * The Action, once dispatched, if it is cancelled along with this future.
+   */
+  volatile Cancellable mCancellable = null;
+
+  /* package */ ActionFuture() {
+  }
+
+  /**
+   * Calls the callback once the Action completes, on the thread that ran it, or right away on this
+   * thread if it already has. A cancelled future calls {@link ActionCallback#onError(Throwable)}
+   * with a {@link CancellationException}.
+   */
+  public void addCallback(ActionCallback<? super T> callback) {
+    synchronized (this) {
+      if (!mDone) {
+        if (mCallbacks == null) mCallbacks = new ArrayList<ActionCallback<? super T>>(1);
+        mCallbacks.add(callback);
+        return;
+      }
+    }
+    notifyCallback(callback);
+  }
+
+  /**
+   * @param mayInterruptIfRunning ignored, as a running Action is interrupted when cancelled anyway.
+   */
+  @Override public boolean cancel(boolean mayInterruptIfRunning) {
+    if (!complete(null, new CancellationException("ActionFuture was cancelled"), true)) return false;
+
+    Cancellable cancellable = mCancellable;
+    if (cancellable != null) cancellable.cancel();
+    return true;
+  }
+
+  @Override public boolean isCancelled() {
+    return mCancelled;
+  }
+
+  @Override public synchronized boolean isDone() {
+    return mDone;
+  }
+
+  @Override public synchronized T get() throws InterruptedException, ExecutionException {
+    while (!mDone) {
+      wait();
+    }
+    return report();
+  }
+
+  @Override public synchronized T get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (!mDone) {
+      long remainingNanos = deadline - System.nanoTime();
+      if (remainingNanos <= 0) throw new TimeoutException();
+
+      TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+    }
+    return report();
+  }
+
+  @Override public boolean isUnsubscribed() {
+    return mCancelled;
+  }
+
+  @Override public void onSuccess(T value) {
+    complete(value, null, false);
+  }
+
+  @Override public void onError(Throwable t) {
+    complete(null, t, false);
+  }
+
+  /**
+   * @return false if the future was already done.
+   */
+  private boolean complete(T value, Throwable error, boolean cancelled) {
+    List<ActionCallback<? super T>> callbacks;
+    synchronized (this) {
+      if (mDone) return false;
+
+      mDone = true;
+      mCancelled = cancelled;
+      mValue = value;
+      mError = error;
+      callbacks = mCallbacks;
+      mCallbacks = null;
+      notifyAll();
+    }
+
+    if (callbacks != null) {
+      for (ActionCallback<? super T> callback : callbacks) {
+        notifyCallback(callback);
+      }
+    }
+    return true;
+  }
+
+  private void notifyCallback(ActionCallback<? super T> callback) {
+    // Only read once done, after which they never change.
+    Throwable error;
+    T value;
+    synchronized (this) {
+      error = mError;
+      value = mValue;
+    }
+
+    if (error == null) {
+      try {
+        callback.onSuccess(value);
+      } catch (Throwable t) {
+        callback.onError(t);
+      }
+    } else {
+      callback.onError(error);
+    }
+  }
+
+  /**
+   * Must be called while holding the lock, once done.
+   */
+  private T report() throws ExecutionException {
+    if (mCancelled) throw new CancellationException("ActionFuture was cancelled");
+    if (mError != null) throw new ExecutionException(mError);
+    return mValue;
+  }
+}
@@ -0,0 +1,353 @@
+package com.wmba.actiondispatcher;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Actions that depend on other Actions, which may run on other keys. Every node of the graph is
+ * dispatched on its own key as soon as the nodes it depends on complete, so independent branches run
+ * in parallel, and a node that is a {@link DependentAction} can read their results. The graph fails
+ * with the error of the first node that fails, after its retries, and the nodes that haven't been
+ * dispatched yet never run.
+ * <p>
+ * Run a graph with {@link ActionDispatcher#toFuture(ActionGraph)}, whose result holds the result of
+ * every node by name. Dispatching it like any other Action starts it without waiting for its nodes.
+ * A graph can only be run once.
+ * <p>
+ * A graph with a persistent node is persisted as a whole, instead of its nodes on their own, and is
+ * written again with the result of every node that completes. After a restart, it resumes with the
+ * nodes that hadn't completed. Its nodes and their results must then be supported by the
+ * ActionSerializer, as must this class.
+ */
+public final class ActionGraph extends Action<Void> implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  // Persisted. The nodes are in the order they were added, so every node comes after its inputs.
+  private List<String> mNames;
+  private List<Action<?>> mActions;
+  private List<String> mKeys;
+  private List<List<Integer>> mInputs;
+  private List<Boolean> mCompleted;
+  private List<Object> mResults;
+
+  // Guarded by this.
+  private transient boolean mStarted = false;
+  private transient boolean mFinished = false;
+  private transient ActionDispatcher mDispatcher = null;
+  private transient ActionFuture<Map<String, Object>> mFuture = null;
+  private transient Long mPersistedId = null;
+  private transient int mRemainingCount;
+  private transient int[] mMissingInputCounts;
+  private transient List<List<Integer>> mDependents;
+  private transient List<Cancellable> mCancellables;
+
+  private ActionGraph() {
+  }
+
+  private ActionGraph(Builder builder) {
+    mNames = builder.mNames;
+    mActions = builder.mActions;
+    mKeys = builder.mKeys;
+    mInputs = builder.mInputs;
+    mCompleted = new ArrayList<Boolean>(mNames.size());
+    mResults = new ArrayList<Object>(mNames.size());
+    for (int i = 0; i < mNames.size(); i++) {
+      mCompleted.add(false);
+      mResults.add(null);
+    }
+  }
+
+  /**
+   * Dispatches the nodes that are ready to run, and takes over the persisted copy of the graph, if
+   * any, from the context running this.
+   */
+  @Override public Void execute() throws Throwable {
+    SubscriptionContext subscriptionContext = getSubscriptionContext();
+
+    List<Integer> ready = new ArrayList<Integer>();
+    synchronized (this) {
+      if (mStarted && mDispatcher != null) throw new IllegalStateException("ActionGraph was already run");
+
+      mStarted = true;
+      mDispatcher = subscriptionContext.getDispatcher();
+      mPersistedId = subscriptionContext.takePersistedId(this);
+      if (mFinished) {
+        // Cancelled before it got to run.
+        deletePersisted();
+        return null;
+      }
+
+      int size = mNames.size();
+      mMissingInputCounts = new int[size];
+      mDependents = new ArrayList<List<Integer>>(size);
+      mCancellables = new ArrayList<Cancellable>();
+      for (int i = 0; i < size; i++) {
+        mDependents.add(new ArrayList<Integer>(1));
+        if (!mCompleted.get(i)) mRemainingCount++;
+      }
+      for (int i = 0; i < size; i++) {
+        for (int input : mInputs.get(i)) {
+          mDependents.get(input).add(i);
+          if (!mCompleted.get(input)) mMissingInputCounts[i]++;
+        }
+        if (!mCompleted.get(i) && mMissingInputCounts[i] == 0) ready.add(i);
+      }
+    }
+
+    if (ready.isEmpty()) {
+      // Every node completed before a restart, but the graph wasn't deleted yet.
+      succeed();
+    } else {
+      dispatchNodes(ready);
+    }
+    return null;
+  }
+
+  /**
+   * @return true if any of the nodes is persistent.
+   */
+  @Override public boolean isPersistent() {
+    for (Action<?> action : mActions) {
+      if (action.isPersistent()) return true;
+    }
+    return false;
+  }
+
+  @Override public String getKey() {
+    return KeySelector.ASYNC_KEY;
+  }
+
+  /**
+   * @return the names of the nodes, in the order they were added.
+   */
+  public List<String> getNodeNames() {
+    return new ArrayList<String>(mNames);
+  }
+
+  /**
+   * Sets the future that gets the results of the graph, before it is dispatched.
+   */
+  /* package */ synchronized void setFuture(ActionFuture<Map<String, Object>> future) {
+    if (mStarted) throw new IllegalStateException("ActionGraph was already run");
+
+    mStarted = true;
+    mFuture = future;
+    future.mCancellable = new Cancellable() {
+      @Override public boolean cancel() {
+        return fail(null);
+      }
+    };
+  }
+
+  /**
+   * The ActionCallback of the graph itself, which only hears back once its first nodes were
+   * dispatched, unless it couldn't run at all.
+   */
+  /* package */ ActionCallback<Void> newStartCallback() {
+    return new ActionCallback<Void>() {
+      @Override public void onSuccess(Void value) {}
+
+      @Override public void onError(Throwable t) {
+        fail(t);
+      }
+    };
+  }
+
+  private void dispatchNodes(List<Integer> nodes) {
+    for (int node : nodes) {
+      Action<?> action = mActions.get(node);
+      boolean persistNode;
+      synchronized (this) {
+        if (mFinished) return;
+
+        if (action instanceof DependentAction) {
+          List<Integer> inputs = mInputs.get(node);
+          Map<String, Object> values = new HashMap<String, Object>(inputs.size() * 2);
+          for (int input : inputs) {
+            values.put(mNames.get(input), mResults.get(input));
+          }
+          ((DependentAction<?>) action).setInputs(values);
+        }
+        // Persistent nodes are only persisted on their own if the graph couldn't be.
+        persistNode = mPersistedId == null && action.isPersistent();
+      }
+
+      String key = mKeys.get(node);
+      if (key == null) key = mDispatcher.getKey(action);
+      //noinspection unchecked
+      Cancellable cancellable = mDispatcher.dispatch((Action<Object>) action, key, new NodeCallback(node),
+          persistNode);
+      if (cancellable == null) continue;
+
+      boolean finished;
+      synchronized (this) {
+        finished = mFinished;
+        if (!finished) mCancellables.add(cancellable);
+      }
+      // The graph failed while the node was being dispatched.
+      if (finished) cancellable.cancel();
+    }
+  }
+
+  private void onNodeCompleted(int node, Object result) {
+    List<Integer> ready = new ArrayList<Integer>();
+    boolean done;
+    synchronized (this) {
+      if (mFinished) return;
+
+      mCompleted.set(node, true);
+      mResults.set(node, result);
+      mRemainingCount--;
+      for (int dependent : mDependents.get(node)) {
+        if (--mMissingInputCounts[dependent] == 0) ready.add(dependent);
+      }
+      done = mRemainingCount == 0;
+      // Written before the dependents start, so the node isn't run again after a restart.
+      if (!done && mPersistedId != null) mDispatcher.updatePersistedAction(mPersistedId, this);
+    }
+
+    if (done) {
+      succeed();
+    } else {
+      dispatchNodes(ready);
+    }
+  }
+
+  private void succeed() {
+    Map<String, Object> results;
+    ActionFuture<Map<String, Object>> future;
+    synchronized (this) {
+      if (mFinished) return;
+
+      mFinished = true;
+      deletePersisted();
+      results = new LinkedHashMap<String, Object>();
+      for (int i = 0; i < mNames.size(); i++) {
+        results.put(mNames.get(i), mResults.get(i));
+      }
+      future = mFuture;
+    }
+
+    if (future != null) future.onSuccess(results);
+  }
+
+  /**
+   * Stops the graph, cancelling the nodes that are still running unless they
+   * {@link Action#runIfUnsubscribed() run when unsubscribed}.
+   *
+   * @param error what failed the graph, or null if it was cancelled.
+   * @return false if the graph already finished.
+   */
+  private boolean fail(Throwable error) {
+    List<Cancellable> cancellables;
+    ActionFuture<Map<String, Object>> future;
+    synchronized (this) {
+      if (mFinished) return false;
+
+      mFinished = true;
+      // Nodes rejected by a shutdown are kept to run on the next start.
+      boolean shelved = error instanceof RejectedExecutionException && mDispatcher != null
+          && mDispatcher.isShutdown();
+      if (!shelved) deletePersisted();
+      cancellables = mCancellables;
+      mCancellables = null;
+      future = mFuture;
+    }
+
+    if (cancellables != null) {
+      for (Cancellable cancellable : cancellables) {
+        cancellable.cancel();
+      }
+    }
+    if (future != null && error != null) future.onError(error);
+    return true;
+  }
+
+  /**
+   * Must be called while holding the lock.
+   */
+  private void deletePersisted() {
+    if (mPersistedId == null) return;
+
+    mDispatcher.deletePersistedAction(mPersistedId, this);
+    mPersistedId = null;
+  }
+
+  private synchronized boolean isFinished() {
+    return mFinished;
+  }
+
+  private class NodeCallback implements SubscribedCallback<Object> {
+    private final int mNode;
+
+    NodeCallback(int node) {
+      mNode = node;
+    }
+
+    @Override public void onSuccess(Object value) {
+      onNodeCompleted(mNode, value);
+    }
+
+    @Override public void onError(Throwable t) {
+      fail(t);
+    }
+
+    @Override public boolean isUnsubscribed() {
+      return isFinished();
+    }
+  }
+
+  public static class Builder {
+    private final List<String> mNames = new ArrayList<String>();
+    private final List<Action<?>> mActions = new ArrayList<Action<?>>();
+    private final List<String> mKeys = new ArrayList<String>();
+    private final List<List<Integer>> mInputs = new ArrayList<List<Integer>>();
+
+    public ActionGraph build() {
+      if (mNames.isEmpty()) throw new IllegalStateException("ActionGraph has no nodes");
+
+      return new ActionGraph(this);
+    }
+
+    /**
+     * Adds a node that runs on the key picked by the dispatcher's KeySelector.
+     *
+     * @param inputs the names of the nodes that must complete before this one is dispatched. They
+     *               must have been added already, which keeps the graph free of cycles.
+     */
+    public ActionGraph.Builder add(String name, Action<?> action, String... inputs) {
+      return addOnKey(name, action, null, inputs);
+    }
+
+    /**
+     * Adds a node that runs on the key.
+     *
+     * @param inputs the names of the nodes that must complete before this one is dispatched. They
+     *               must have been added already, which keeps the graph free of cycles.
+     */
+    public ActionGraph.Builder addOnKey(String name, Action<?> action, String key, String... inputs) {
+      if (name == null) throw new IllegalArgumentException("name == null");
+      if (action == null) throw new IllegalArgumentException("action == null");
+      if (action instanceof ActionGraph) throw new IllegalArgumentException("ActionGraphs can't be nested");
+      if (mNames.contains(name)) throw new IllegalArgumentException("A node is already named " + name);
+
+      List<Integer> inputIndexes = new ArrayList<Integer>(inputs.length);
+      for (String input : inputs) {
+        int index = mNames.indexOf(input);
+        if (index < 0) throw new IllegalArgumentException("Input " + input + " of " + name + " wasn't added yet");
+        if (!inputIndexes.contains(index)) inputIndexes.add(index);
+      }
+
+      mNames.add(name);
+      mActions.add(action);
+      mKeys.add(key);
+      mInputs.add(inputIndexes);
+      return this;
+    }
+  }
+}
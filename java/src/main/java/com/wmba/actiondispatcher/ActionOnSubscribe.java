@@ -0,0 +1,71 @@
+package com.wmba.actiondispatcher;
+
+import rx.Single;
+import rx.SingleSubscriber;
+import rx.functions.Action0;
+import rx.subscriptions.Subscriptions;
+
+/**
+ * Adapts the dispatcher to RxJava 1, by dispatching the Action every time the Single is subscribed
+ * to. The dispatcher only depends on RxJava through this class and the methods that return a
+ * Single or an Observable.
+ */
+/* package */ class ActionOnSubscribe<T> implements Single.OnSubscribe<T> {
+  private final ActionDispatcher mDispatcher;
+  private final Action<T> mAction;
+  private final String mKey;
+
+  /**
+   * Creates the Single here rather than in the dispatcher, so loading the dispatcher doesn't load
+   * RxJava.
+   */
+  static <T> Single<T> toSingle(ActionDispatcher dispatcher, Action<T> action, String key) {
+    return Single.create(new ActionOnSubscribe<T>(dispatcher, action, key));
+  }
+
+  private ActionOnSubscribe(ActionDispatcher dispatcher, Action<T> action, String key) {
+    mDispatcher = dispatcher;
+    mAction = action;
+    mKey = key;
+  }
+
+  @Override public void call(SingleSubscriber<? super T> subscriber) {
+    SubscriberCallback<T> callback = new SubscriberCallback<T>(subscriber);
+    Cancellable cancellable = mDispatcher.dispatch(mAction, mKey, callback);
+
+    // Called right away if the subscriber has already unsubscribed.
+    if (cancellable != null) subscriber.add(Subscriptions.create(new CancelAction(cancellable)));
+  }
+
+  private static class SubscriberCallback<T> implements SubscribedCallback<T> {
+    private final SingleSubscriber<? super T> mSubscriber;
+
+    SubscriberCallback(SingleSubscriber<? super T> subscriber) {
+      mSubscriber = subscriber;
+    }
+
+    @Override public void onSuccess(T value) {
+      mSubscriber.onSuccess(value);
+    }
+
+    @Override public void onError(Throwable t) {
+      mSubscriber.onError(t);
+    }
+
+    @Override public boolean isUnsubscribed() {
+      return mSubscriber.isUnsubscribed();
+    }
+  }
+
+  private static class CancelAction implements Action0 {
+    private final Cancellable mCancellable;
+
+    CancelAction(Cancellable cancellable) {
+      mCancellable = cancellable;
+    }
+
+    @Override public void call() {
+      mCancellable.cancel();
+    }
+  }
+}
@@ -0,0 +1,26 @@
+package com.wmba.actiondispatcher;
+
+import java.util.List;
+
+/**
+ * An {@link ActionPersister} that can write several records at once, for example in a single
+ * transaction. The dispatcher uses these methods to group commit persists and deletes that are
+ * requested at around the same time on different keys. See
+ * {@link ActionDispatcher.Builder#withPersistBatchWindow(long, java.util.concurrent.TimeUnit)}.
+ *
+ * ActionPersisters that don't implement this interface are still supported, and are given each
+ * record of a batch through the single record methods instead.
+ */
+public interface BatchActionPersister extends ActionPersister {
+  /**
+   * @return the ids of the persisted actions, in the same order as the provided actions.
+   */
+  long[] persistAll(List<? extends Action<?>> actions);
+
+  /**
+   * @param ids the ids of the actions to update, in the same order as the provided actions.
+   */
+  void updateAll(long[] ids, List<? extends Action<?>> actions);
+
+  void deleteAll(long[] ids);
+}
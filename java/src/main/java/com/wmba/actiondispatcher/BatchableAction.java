@@ -0,0 +1,126 @@
+package com.wmba.actiondispatcher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An Action that can be run together with other Actions of the same kind, as a single call to
+ * {@link #executeBatch(List)}. When a BatchableAction starts on a key, the Actions with the same
+ * {@link #getBatchKey() batch key} that are waiting on the key are taken out of its queue and run
+ * in the same batch, up to {@link #getMaxBatchSize()} of them. If the batch isn't full, the key
+ * waits up to {@link #getBatchLingerMillis()} for more to arrive, without holding on to a thread.
+ *
+ * Every Action of the batch is prepared and persisted as if it ran on its own, and its subscribers
+ * get its own result or error. The persisted Actions of a batch are written and deleted together.
+ * A batch that fails and is retried waits out the longest {@link #getRetryBackoff() backoff} of its
+ * Actions while holding the key, but not a thread, like a single Action does. Only keys run by the dispatcher's own executors batch Actions.
+ * Elsewhere, and for the async key, every Action runs as a batch of one.
+ *
+ * @param <T> the result of every Action of the batch.
+ * @param <B> the type of the Actions of the batch, usually the subclass itself.
+ */
+public abstract class BatchableAction<T, B extends BatchableAction<T, B>> extends Action<T> {
+  private transient T mBatchResult = null;
+  private transient Throwable mBatchError = null;
+  private transient boolean mBatchResultSet = false;
+
+  /**
+   * Runs every Action of the batch. Called on one of the Actions, with all of them, itself
+   * included, in the order they were started on the key. Each Action should be given its result
+   * with {@link #setBatchResult(Object)}, or its own error with {@link #setBatchError(Throwable)}.
+   * An Action that gets neither fails with an IllegalStateException.
+   *
+   * Throwing fails the whole batch. Every Action then decides on its own, through
+   * {@link #shouldRetryForThrowable(Throwable)}, whether it is retried, and those that are run as
+   * a batch again.
+   */
+  public abstract void executeBatch(List<B> batch) throws Throwable;
+
+  /**
+   * Runs this Action as a batch of one.
+   */
+  @Override public T execute() throws Throwable {
+    clearBatchResult();
+    executeBatch(Collections.singletonList(asBatchType(this)));
+    return takeBatchResult();
+  }
+
+  /**
+   * Runs the batch with this Action, which leads it, as the one {@link #executeBatch(List)} is
+   * called on.
+   */
+  /* package */ final void executeBatchOf(List<? extends BatchableAction<?, ?>> batch) throws Throwable {
+    List<B> typedBatch = new ArrayList<B>(batch.size());
+    for (BatchableAction<?, ?> action : batch) {
+      typedBatch.add(asBatchType(action));
+    }
+    executeBatch(typedBatch);
+  }
+
+  /**
+   * Actions are only batched with Actions with the same batch key, which are of type B.
+   */
+  @SuppressWarnings("unchecked")
+  private B asBatchType(BatchableAction<?, ?> action) {
+    return (B) action;
+  }
+
+  /**
+   * @return the key shared by the Actions that can be run in the same batch. Defaults to the name of
+   * the class.
+   */
+  public String getBatchKey() {
+    return getClass().getName();
+  }
+
+  /**
+   * @return the largest number of Actions run in one batch. Defaults to 100.
+   */
+  public int getMaxBatchSize() {
+    return 100;
+  }
+
+  /**
+   * @return how long a batch that isn't full waits for more Actions before it runs. Defaults to 0,
+   * running right away with the Actions that are already waiting.
+   */
+  public long getBatchLingerMillis() {
+    return 0;
+  }
+
+  protected final void setBatchResult(T result) {
+    mBatchResult = result;
+    mBatchError = null;
+    mBatchResultSet = true;
+  }
+
+  protected final void setBatchError(Throwable error) {
+    if (error == null) throw new IllegalArgumentException("error == null");
+
+    mBatchResult = null;
+    mBatchError = error;
+    mBatchResultSet = true;
+  }
+
+  /* package */ final void clearBatchResult() {
+    mBatchResult = null;
+    mBatchError = null;
+    mBatchResultSet = false;
+  }
+
+  /**
+   * @return the result set by the last batch, throwing the error set instead if there is one.
+   */
+  /* package */ final T takeBatchResult() throws Throwable {
+    try {
+      if (!mBatchResultSet) {
+        throw new IllegalStateException("executeBatch() set no result for " + getClass().getName());
+      }
+      if (mBatchError != null) throw mBatchError;
+      return mBatchResult;
+    } finally {
+      clearBatchResult();
+    }
+  }
+}
@@ -0,0 +1,13 @@
+package com.wmba.actiondispatcher;
+
+/**
+ * A dispatched Action that can be cancelled by whatever started it, such as an unsubscribing
+ * subscriber or a cancelled {@link ActionFuture}.
+ */
+/* package */ interface Cancellable {
+  /**
+   * @return false if the Action wasn't cancelled, as it already completed or other Actions still
+   * wait for its result.
+   */
+  boolean cancel();
+}
@@ -0,0 +1,18 @@
+package com.wmba.actiondispatcher;
+
+/**
+ * An {@link ActionPersister} that can write a compact checkpoint of the Actions it holds, so that
+ * the next start only has to read those Actions back, and none of the records of Actions that
+ * already completed. The dispatcher checkpoints it at the end of
+ * {@link ActionDispatcher#shutdown(long, java.util.concurrent.TimeUnit)}, once the waiting
+ * persistent Actions are persisted.
+ *
+ * ActionPersisters that don't implement this interface are recovered from as they are.
+ */
+public interface CheckpointActionPersister extends ActionPersister {
+  /**
+   * Rewrites the persisted Actions in the form that is quickest to recover. The persister must keep
+   * working afterwards, as Actions still running after the shutdown timeout may delete theirs.
+   */
+  void checkpoint();
+}
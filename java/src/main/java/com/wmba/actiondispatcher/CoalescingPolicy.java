@@ -0,0 +1,18 @@
+package com.wmba.actiondispatcher;
+
+/**
+ * What happens when an Action is started while another Action with the same
+ * {@link Action#getCoalescingKey() coalescing key} is still waiting to run on the same key.
+ */
+public enum CoalescingPolicy {
+  /**
+   * The new Action doesn't run. Its subscribers get the result of the waiting Action.
+   */
+  MERGE,
+
+  /**
+   * The waiting Action doesn't run. The new Action runs in its place, at the back of the key, and
+   * the subscribers of both get its result.
+   */
+  SUPERSEDE
+}
@@ -0,0 +1,36 @@
+package com.wmba.actiondispatcher;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * An Action of an {@link ActionGraph} that uses the results of the nodes it depends on. They are set
+ * before the Action is dispatched, and can be read from {@link #execute()}.
+ */
+public abstract class DependentAction<T> extends Action<T> {
+  private transient Map<String, Object> mInputs = Collections.emptyMap();
+
+  /**
+   * @param name the name of a node this Action depends on.
+   * @return the result of the node.
+   * @throws IllegalArgumentException if this Action doesn't depend on a node with the name.
+   */
+  protected final <R> R getInput(String name) {
+    if (!mInputs.containsKey(name)) {
+      throw new IllegalArgumentException(getClass().getName() + " has no input named " + name);
+    }
+    //noinspection unchecked
+    return (R) mInputs.get(name);
+  }
+
+  /**
+   * @return the results of the nodes this Action depends on, by name.
+   */
+  protected final Map<String, Object> getInputs() {
+    return mInputs;
+  }
+
+  /* package */ final void setInputs(Map<String, Object> inputs) {
+    mInputs = Collections.unmodifiableMap(inputs);
+  }
+}
@@ -0,0 +1,81 @@
+package com.wmba.actiondispatcher;
+
+/**
+ * Told about the lifecycle of every Action run by an {@link ActionDispatcher}, see
+ * {@link ActionDispatcher.Builder#withDispatchListener(DispatchListener)}. Override the events of
+ * interest, the others do nothing.
+ *
+ * Events are reported on the threads running the Actions, so they must be quick, thread safe and
+ * must not throw. Actions run inside of another Action through subscribeBlocking() aren't reported.
+ * {@link com.wmba.actiondispatcher.metrics.DispatchMetrics} records them as metrics.
+ */
+public abstract class DispatchListener {
+  /**
+   * The Action was handed to the executor of its key.
+   */
+  public void onEnqueued(Action<?> action, String key) {}
+
+  /**
+   * The enqueued Action won't run, because it was coalesced with another Action that runs for it.
+   * Its persisted copy, if any, was deleted.
+   */
+  public void onCoalesced(Action<?> action, String key) {}
+
+  /**
+   * The enqueued Action won't run, because there was no room for it on its key, or it was dropped
+   * to make room for another Action. See {@link OverflowPolicy}.
+   */
+  public void onRejected(Action<?> action, String key) {}
+
+  /**
+   * The Action started running on its key.
+   *
+   * @param queueWaitNanos how long the Action waited since it was enqueued.
+   */
+  public void onStarted(Action<?> action, String key, long queueWaitNanos) {}
+
+  /**
+   * The Action was persisted before it ran.
+   *
+   * @param persistNanos how long the persist took, including any batch window.
+   */
+  public void onPersisted(Action<?> action, long persistNanos) {}
+
+  /**
+   * The Action failed and is going to be retried.
+   *
+   * @param retry the number of the retry about to happen, starting at 1.
+   */
+  public void onRetry(Action<?> action, String key, Throwable t, int retry) {}
+
+  /**
+   * The Action ran out of time, see {@link Action#getTimeoutMillis()}. It is reported instead of
+   * {@link #onCompleted(Action, String, long, Throwable)}.
+   *
+   * @param started false if the Action timed out before it started running.
+   */
+  public void onTimedOut(Action<?> action, String key, boolean started) {}
+
+  /**
+   * The Action was unsubscribed from, and doesn't {@link Action#runIfUnsubscribed() run when
+   * unsubscribed}. It is reported instead of {@link #onCompleted(Action, String, long, Throwable)}.
+   *
+   * @param started false if the Action was cancelled before it started running.
+   */
+  public void onCancelled(Action<?> action, String key, boolean started) {}
+
+  /**
+   * The persisted Action was deleted after it finished.
+   *
+   * @param deleteNanos how long the delete took, including any batch window.
+   */
+  public void onDeleted(Action<?> action, long deleteNanos) {}
+
+  /**
+   * The Action finished running.
+   *
+   * @param executeNanos the time spent in {@link Action#execute()}, over all of its attempts.
+   * @param error what the Action failed with, or null if it succeeded.
+   */
+  public void onCompleted(Action<?> action, String key, long executeNanos, Throwable error) {}
+}
@@ -1,58 +1,268 @@
 package com.wmba.actiondispatcher;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 /* package */ class ExecutorCache {
-  private final Map<String, Executor> mCache = new HashMap<String, Executor>();
+  /**
+   * The max number of Runnables a key runs before yielding its pool thread to other keys.
+   */
+  private static final int KEY_BATCH_SIZE = 16;
+  private static final long KEY_THREAD_KEEP_ALIVE_SECONDS = 60L;
 
-  Executor getExecutorForKey(final String key) {
-    synchronized (mCache) {
-      Executor executor = mCache.get(key);
+  private final ConcurrentMap<String, Executor> mCache = new ConcurrentHashMap<String, Executor>();
 
-      if (executor == null) {
-        if (KeySelector.ASYNC_KEY.equals(key)) {
-          final AtomicLong threadCount = new AtomicLong(1);
-          executor = Executors.newCachedThreadPool(new ThreadFactory() {
+  /**
+   * Shared by all keys except the async key. Each key is serialized on top of it by a
+   * {@link SerialExecutor}.
+   */
+  private final Executor mKeyPool;
+
+  /**
+   * When set, the async key and the key pool start a new thread from it for every Runnable, instead
+   * of using pools of platform threads.
+   */
+  private final ThreadFactory mTaskThreadFactory;
+
+  /**
+   * Decides which keys are prioritized. Null if none are.
+   */
+  private final KeySelector mKeySelector;
+  private final long mPriorityAgingNanos;
+
+  /**
+   * Periodically evicts idle keys. Null if idle keys are never evicted.
+   */
+  private final ScheduledExecutorService mEvictionExecutor;
+
+  /**
+   * The pool of the async key, unless it was provided. Created when first needed.
+   */
+  private volatile ExecutorService mAsyncPool = null;
+
+  /**
+   * Hands delayed Runnables, such as retries, to their executors. Created when first needed.
+   */
+  private volatile ScheduledExecutorService mTimer = null;
+
+  /**
+   * @param idleKeyTimeoutNanos how long a key can go without running anything before its executor
+   *                            is removed, or 0 to never remove it.
+   */
+  ExecutorCache(int keyThreadPoolSize, final long idleKeyTimeoutNanos) {
+    this(keyThreadPoolSize, idleKeyTimeoutNanos, null);
+  }
+
+  /**
+   * @param taskThreadFactory if not null, every Runnable of the async key and the key pool runs on a
+   *                          new thread from it, and keyThreadPoolSize is ignored. Meant for
+   *                          virtual threads, which are cheap to start and to block.
+   */
+  ExecutorCache(int keyThreadPoolSize, final long idleKeyTimeoutNanos, ThreadFactory taskThreadFactory) {
+    this(keyThreadPoolSize, idleKeyTimeoutNanos, taskThreadFactory, null, 0);
+  }
+
+  /**
+   * @param keySelector decides which keys run their Runnables by priority, or null if none do.
+   * @param priorityAgingNanos how long a Runnable on a prioritized key waits to gain a priority
+   *                           level, or 0 for no aging.
+   */
+  ExecutorCache(int keyThreadPoolSize, final long idleKeyTimeoutNanos, ThreadFactory taskThreadFactory,
+      KeySelector keySelector, long priorityAgingNanos) {
+    mTaskThreadFactory = taskThreadFactory;
+    mKeySelector = keySelector;
+    mPriorityAgingNanos = priorityAgingNanos;
+
+    if (taskThreadFactory != null) {
+      mKeyPool = new ThreadPerTaskExecutor(taskThreadFactory);
+    } else {
+      final AtomicLong threadCount = new AtomicLong(1);
+      ThreadPoolExecutor keyPool = new ThreadPoolExecutor(keyThreadPoolSize, keyThreadPoolSize,
+          KEY_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+          new ThreadFactory() {
             @Override public Thread newThread(Runnable r) {
-              Thread t = new Thread(r, "ActionDispatcherThread-" + key + "-" + threadCount.getAndIncrement());
+              Thread t = new Thread(r, "ActionDispatcherThread-" + threadCount.getAndIncrement());
               t.setPriority(Thread.MIN_PRIORITY);
               t.setDaemon(true);
               return t;
             }
           });
-        } else {
-          executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      keyPool.allowCoreThreadTimeOut(true);
+      mKeyPool = keyPool;
+    }
+
+    if (idleKeyTimeoutNanos > 0) {
+      mEvictionExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "ActionDispatcherThread-eviction");
+          t.setPriority(Thread.MIN_PRIORITY);
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      mEvictionExecutor.scheduleWithFixedDelay(new Runnable() {
+        @Override public void run() {
+          evictIdleKeys(System.nanoTime() - idleKeyTimeoutNanos);
+        }
+      }, idleKeyTimeoutNanos, idleKeyTimeoutNanos, TimeUnit.NANOSECONDS);
+    } else {
+      mEvictionExecutor = null;
+    }
+  }
+
+  Executor getExecutorForKey(final String key) {
+    Executor executor = mCache.get(key);
+    if (executor != null && !isRetired(executor)) {
+      return executor;
+    }
+
+    while (true) {
+      Executor created = createExecutor(key);
+
+      if (executor == null) {
+        executor = mCache.putIfAbsent(key, created);
+        if (executor == null) return created;
+      } else if (mCache.replace(key, executor, created)) {
+        return created;
+      } else {
+        executor = mCache.get(key);
+      }
+
+      // Lost a race with another thread creating the same key.
+      if (executor != null && !isRetired(executor)) return executor;
+    }
+  }
+
+  private Executor createExecutor(final String key) {
+    if (KeySelector.ASYNC_KEY.equals(key)) {
+      if (mTaskThreadFactory != null) return mKeyPool;
+
+      final AtomicLong threadCount = new AtomicLong(1);
+      ExecutorService asyncPool = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "ActionDispatcherThread-" + key + "-" + threadCount.getAndIncrement());
+          t.setPriority(Thread.MIN_PRIORITY);
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      mAsyncPool = asyncPool;
+      return asyncPool;
+    } else if (mKeySelector != null && mKeySelector.isPrioritized(key)) {
+      return new SerialExecutor(this, key, mKeyPool, KEY_BATCH_SIZE,
+          new PriorityRunnableQueue(mPriorityAgingNanos));
+    } else {
+      return new SerialExecutor(this, key, mKeyPool, KEY_BATCH_SIZE);
+    }
+  }
+
+  private static boolean isRetired(Executor executor) {
+    return executor instanceof SerialExecutor && ((SerialExecutor) executor).isRetired();
+  }
+
+  void setExecutor(Executor executor, String key) {
+    mCache.put(key, executor);
+  }
+
+  /**
+   * Removes the executors of keys that haven't run anything since {@code cutoffNanos}. Only the
+   * executors created by this cache are removed, never ones that were provided.
+   */
+  void evictIdleKeys(long cutoffNanos) {
+    for (Map.Entry<String, Executor> entry : mCache.entrySet()) {
+      Executor executor = entry.getValue();
+      if (executor instanceof SerialExecutor
+          && ((SerialExecutor) executor).retireIfIdleSince(cutoffNanos)) {
+        mCache.remove(entry.getKey(), executor);
+      }
+    }
+  }
+
+  /**
+   * @return a single thread that only hands Runnables off to other executors once they are due. The
+   * Runnables given to it must never block.
+   */
+  ScheduledExecutorService getTimer() {
+    ScheduledExecutorService timer = mTimer;
+    if (timer == null) {
+      synchronized (this) {
+        timer = mTimer;
+        if (timer == null) {
+          ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
             @Override public Thread newThread(Runnable r) {
-              Thread t = new Thread(r, "ActionDispatcherThread-" + key);
-              t.setPriority(Thread.MIN_PRIORITY);
+              Thread t = new Thread(r, "ActionDispatcherThread-timer");
               t.setDaemon(true);
               return t;
             }
           });
+          executor.setKeepAliveTime(KEY_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+          executor.allowCoreThreadTimeOut(true);
+          // Timeouts are mostly cancelled long before they are due.
+          executor.setRemoveOnCancelPolicy(true);
+          mTimer = timer = executor;
         }
-
-        mCache.put(key, executor);
       }
-
-      return executor;
     }
+    return timer;
   }
 
-  void setExecutor(Executor executor, String key) {
-    synchronized (mCache) {
-      mCache.put(key, executor);
+  /**
+   * Stops the threads of the cache once the dispatcher has shut down and nothing runs anymore.
+   * Provided executors are left alone.
+   */
+  void shutdown() {
+    if (mEvictionExecutor != null) mEvictionExecutor.shutdownNow();
+    ScheduledExecutorService timer = mTimer;
+    if (timer != null) timer.shutdownNow();
+    if (mKeyPool instanceof ExecutorService) ((ExecutorService) mKeyPool).shutdown();
+
+    ExecutorService asyncPool = mAsyncPool;
+    if (asyncPool != null) asyncPool.shutdown();
+  }
+
+  /**
+   * @return a snapshot of the executors of the keys that are run by a SerialExecutor.
+   */
+  List<SerialExecutor> getSerialExecutors() {
+    List<SerialExecutor> executors = new ArrayList<SerialExecutor>();
+    for (Executor executor : mCache.values()) {
+      if (executor instanceof SerialExecutor) executors.add((SerialExecutor) executor);
     }
+    return executors;
   }
 
+  /**
+   * @return a snapshot of the keys that currently have an executor.
+   */
   Set<String> getActiveKeys() {
-    synchronized (mCache) {
-      return mCache.keySet();
+    return Collections.unmodifiableSet(new HashSet<String>(mCache.keySet()));
+  }
+
+  private static class ThreadPerTaskExecutor implements Executor {
+    private final ThreadFactory mThreadFactory;
+
+    ThreadPerTaskExecutor(ThreadFactory threadFactory) {
+      mThreadFactory = threadFactory;
+    }
+
+    @Override public void execute(Runnable runnable) {
+      mThreadFactory.newThread(runnable).start();
     }
   }
 }
@@ -0,0 +1,9 @@
+package com.wmba.actiondispatcher;
+
+/**
+ * An {@link ActionLogger} that can tell when debug messages would be discarded, so the dispatcher
+ * doesn't build them.
+ */
+public interface FilteredActionLogger extends ActionLogger {
+  boolean isDebugEnabled();
+}
@@ -0,0 +1,247 @@
+package com.wmba.actiondispatcher;
+
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the number of Actions waiting or running on every key, applying an {@link OverflowPolicy}
+ * when a key is full. The backlog of a key is only kept while it has Actions.
+ */
+/* package */ class KeyBacklogs {
+  // The states of a Ticket.
+  private static final int WAITING = 0;
+  private static final int STARTED = 1;
+  private static final int RELEASED = 2;
+
+  private final ConcurrentMap<String, Backlog> mBacklogs = new ConcurrentHashMap<String, Backlog>();
+
+  private final int mKeyCapacity;
+  private final OverflowPolicy mKeyPolicy;
+  private final int mAsyncCapacity;
+  private final OverflowPolicy mAsyncPolicy;
+  private final long mBlockTimeoutNanos;
+
+  /**
+   * @param keyCapacity the capacity of every key other than the async key, or 0 for no limit.
+   * @param asyncCapacity the capacity of the async key, or 0 for no limit.
+   * @param blockTimeoutNanos how long {@link OverflowPolicy#BLOCK} waits for room.
+   */
+  KeyBacklogs(int keyCapacity, OverflowPolicy keyPolicy, int asyncCapacity, OverflowPolicy asyncPolicy,
+      long blockTimeoutNanos) {
+    mKeyCapacity = keyCapacity;
+    mKeyPolicy = keyPolicy;
+    mAsyncCapacity = asyncCapacity;
+    mAsyncPolicy = asyncPolicy;
+    mBlockTimeoutNanos = blockTimeoutNanos;
+  }
+
+  /**
+   * Makes room for the entry on its key.
+   *
+   * @param force true to admit the entry even if the key is full, without dropping anything.
+   * @param tryOnly true to reject the entry if the key is full, instead of dropping or blocking.
+   * @return the ticket that must be {@link Ticket#release() released} once the entry is done, or
+   * null if the key has no capacity.
+   * @throws RejectedExecutionException if the entry mustn't run.
+   */
+  Ticket admit(String key, Entry entry, boolean force, boolean tryOnly) {
+    boolean async = KeySelector.ASYNC_KEY.equals(key);
+    int capacity = async ? mAsyncCapacity : mKeyCapacity;
+    if (capacity <= 0) return null;
+
+    while (true) {
+      Backlog backlog = mBacklogs.get(key);
+      if (backlog == null) {
+        Backlog created = new Backlog(key, capacity, async ? mAsyncPolicy : mKeyPolicy);
+        backlog = mBacklogs.putIfAbsent(key, created);
+        if (backlog == null) backlog = created;
+      }
+
+      Ticket ticket = backlog.admit(entry, force, tryOnly);
+      if (ticket != null) return ticket;
+      // The backlog emptied and was removed meanwhile.
+    }
+  }
+
+  /**
+   * An Action that takes up room on its key.
+   */
+  interface Entry extends Prioritized {
+    /**
+     * @return true if the entry can be dropped to make room for another.
+     */
+    boolean isDroppable();
+
+    /**
+     * Called once the waiting entry has been dropped, outside of any lock.
+     */
+    void onDropped(RejectedExecutionException e);
+  }
+
+  /**
+   * The room an entry takes up on its key, from being admitted to being released.
+   */
+  /* package */ static class Ticket {
+    final Entry mEntry;
+    final int mPriority;
+    final boolean mDroppable;
+    private final Backlog mBacklog;
+
+    /**
+     * Guarded by the backlog.
+     */
+    private int mState = WAITING;
+
+    Ticket(Backlog backlog, Entry entry) {
+      mBacklog = backlog;
+      mEntry = entry;
+      mPriority = entry.getPriority();
+      mDroppable = entry.isDroppable();
+    }
+
+    /**
+     * Called when the entry starts running, after which it can no longer be dropped.
+     *
+     * @return false if the entry was dropped or released already, and mustn't run.
+     */
+    boolean start() {
+      return mBacklog.start(this);
+    }
+
+    /**
+     * Gives the room of the entry back. Does nothing if it was already released.
+     */
+    void release() {
+      mBacklog.release(this);
+    }
+  }
+
+  private class Backlog {
+    private final String mKey;
+    private final int mCapacity;
+    private final OverflowPolicy mPolicy;
+
+    // Guarded by this.
+    private int mSize = 0;
+    private int mBlockedCount = 0;
+    private boolean mRemoved = false;
+
+    /**
+     * The entries that haven't started yet, in the order they were admitted. Only kept by the
+     * policies that drop them. Guarded by this.
+     */
+    private final LinkedHashSet<Ticket> mWaiting;
+
+    Backlog(String key, int capacity, OverflowPolicy policy) {
+      mKey = key;
+      mCapacity = capacity;
+      mPolicy = policy;
+      mWaiting = (policy == OverflowPolicy.DROP_LOWEST_PRIORITY || policy == OverflowPolicy.DROP_OLDEST)
+          ? new LinkedHashSet<Ticket>()
+          : null;
+    }
+
+    /**
+     * @return null if this backlog was removed, and the entry must be admitted to its replacement.
+     */
+    Ticket admit(Entry entry, boolean force, boolean tryOnly) {
+      Ticket ticket = new Ticket(this, entry);
+      Ticket dropped = null;
+
+      synchronized (this) {
+        if (mRemoved) return null;
+
+        if (mSize >= mCapacity && !force) {
+          if (tryOnly) throw full();
+
+          if (mPolicy == OverflowPolicy.BLOCK) {
+            awaitRoom();
+          } else if (mPolicy != OverflowPolicy.REJECT) {
+            dropped = findDroppable(ticket);
+            if (dropped == null) throw full();
+
+            mWaiting.remove(dropped);
+            dropped.mState = RELEASED;
+            mSize--;
+          } else {
+            throw full();
+          }
+        }
+
+        mSize++;
+        if (mWaiting != null) mWaiting.add(ticket);
+      }
+
+      if (dropped != null) dropped.mEntry.onDropped(full());
+      return ticket;
+    }
+
+    /**
+     * Waits until there is room, or the block timeout is over. Must be called while holding the
+     * lock.
+     */
+    private void awaitRoom() {
+      long deadline = System.nanoTime() + mBlockTimeoutNanos;
+      mBlockedCount++;
+      try {
+        while (mSize >= mCapacity) {
+          long remainingNanos = deadline - System.nanoTime();
+          if (remainingNanos <= 0) throw full();
+
+          TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw full();
+      } finally {
+        mBlockedCount--;
+      }
+    }
+
+    /**
+     * @return the waiting ticket to drop for the new one, or null if the new one must be rejected.
+     */
+    private Ticket findDroppable(Ticket ticket) {
+      Ticket found = null;
+      for (Ticket waiting : mWaiting) {
+        if (!waiting.mDroppable) continue;
+
+        if (mPolicy == OverflowPolicy.DROP_OLDEST) return waiting;
+        if (found == null || waiting.mPriority <= found.mPriority) found = waiting;
+      }
+
+      return (found != null && found.mPriority < ticket.mPriority) ? found : null;
+    }
+
+    synchronized boolean start(Ticket ticket) {
+      if (ticket.mState != WAITING) return false;
+
+      ticket.mState = STARTED;
+      if (mWaiting != null) mWaiting.remove(ticket);
+      return true;
+    }
+
+    synchronized void release(Ticket ticket) {
+      if (ticket.mState == RELEASED) return;
+
+      if (ticket.mState == WAITING && mWaiting != null) mWaiting.remove(ticket);
+      ticket.mState = RELEASED;
+      mSize--;
+
+      if (mBlockedCount > 0) {
+        notifyAll();
+      } else if (mSize == 0) {
+        mRemoved = true;
+        mBacklogs.remove(mKey, this);
+      }
+    }
+
+    private RejectedExecutionException full() {
+      return new RejectedExecutionException("Key " + mKey + " is full, with a capacity of " + mCapacity
+          + " Actions");
+    }
+  }
+}
@@ -1,5 +1,7 @@
 package com.wmba.actiondispatcher;
 
+import java.util.Set;
+
 public class KeySelector {
   public static final String DEFAULT_KEY = "default";
   public static final String ASYNC_KEY = "async";
@@ -11,4 +13,44 @@ public class KeySelector {
   public String getKey(Action<?> action) {
     return action.getKey();
   }
+
+  /**
+   * @param action the action that is being run
+   * @return the keys the action must hold all of to run, or null to run on a single key. Defaults to
+   * {@link Action#getKeys()}.
+   */
+  public Set<String> getKeys(Action<?> action) {
+    return action.getKeys();
+  }
+
+  /**
+   * @param key a key Actions are run on.
+   * @return true if later Actions on the key may run while an Action on it waits out its
+   * {@link RetryBackoff}. Otherwise the key is held for the waiting Action, keeping Actions on it in
+   * order.
+   */
+  public boolean isRetryOvertakingAllowed(String key) {
+    return false;
+  }
+
+  /**
+   * @param action the action that is being run
+   * @return the priority the action runs with on a prioritized key. Defaults to
+   * {@link Action#getPriority()}.
+   */
+  public int getPriority(Action<?> action) {
+    return action.getPriority();
+  }
+
+  /**
+   * @param key a key Actions are run on.
+   * @return true if the Actions waiting on the key run by priority, highest first, instead of in
+   * the order they were started. An Action gains a priority level for every
+   * {@link ActionDispatcher.Builder#withPriorityAging(long, java.util.concurrent.TimeUnit) aging}
+   * interval it waits, so low priority Actions aren't starved. Keys with a provided Executor, and
+   * the async key, are never prioritized.
+   */
+  public boolean isPrioritized(String key) {
+    return false;
+  }
 }
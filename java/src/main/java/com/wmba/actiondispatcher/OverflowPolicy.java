@@ -0,0 +1,36 @@
+package com.wmba.actiondispatcher;
+
+/**
+ * What happens when an Action is started on a key that already has as many Actions waiting or
+ * running as its capacity, see
+ * {@link ActionDispatcher.Builder#withKeyCapacity(int, OverflowPolicy)}. An Action that doesn't run
+ * fails with a {@link java.util.concurrent.RejectedExecutionException}. Persistent Actions are
+ * never dropped to make room.
+ */
+public enum OverflowPolicy {
+  /**
+   * The new Action fails.
+   */
+  REJECT,
+
+  /**
+   * The waiting Action with the lowest priority fails, the most recently started one of those with
+   * the same priority, to make room for the new Action. The new Action fails instead if none of the
+   * waiting Actions has a lower priority than it.
+   */
+  DROP_LOWEST_PRIORITY,
+
+  /**
+   * The non-persistent Action that has waited the longest fails, to make room for the new Action.
+   * The new Action fails instead if every waiting Action is persistent.
+   */
+  DROP_OLDEST,
+
+  /**
+   * The thread starting the new Action waits for room, up to the
+   * {@link ActionDispatcher.Builder#withOverflowBlockTimeout(long, java.util.concurrent.TimeUnit)
+   * block timeout}, after which the new Action fails. An Action must not start another Action on its
+   * own key with this policy, as it would wait for itself.
+   */
+  BLOCK
+}
@@ -0,0 +1,21 @@
+package com.wmba.actiondispatcher;
+
+import com.wmba.actiondispatcher.persist.PersistedActionHolder;
+
+import java.util.List;
+
+/**
+ * An {@link ActionPersister} that can load its persisted Actions a page at a time. The dispatcher
+ * runs the Actions of each page as soon as it is loaded, instead of waiting for
+ * {@link #getPersistedActions()} to load the whole backlog.
+ */
+public interface PagedActionPersister extends ActionPersister {
+  /**
+   * @param afterId only Actions with a greater id are returned. {@link Long#MIN_VALUE} for the first
+   *                page.
+   * @param limit the max number of Actions to return.
+   * @return the persisted Actions in ascending order of id. Fewer than {@code limit} Actions are
+   * only returned for the last page.
+   */
+  List<PersistedActionHolder> getPersistedActions(long afterId, int limit);
+}
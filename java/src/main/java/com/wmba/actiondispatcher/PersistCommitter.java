@@ -0,0 +1,433 @@
+package com.wmba.actiondispatcher;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes persists and deletes to the {@link ActionPersister}. When a batch window is set, requests
+ * from different keys that arrive within the window of each other are committed together on a
+ * single background thread, while the requesting threads wait for the result. Without a window,
+ * requests are written directly on the requesting thread.
+ *
+ * Updates are written on the requesting thread, except for retry state updates with
+ * {@link RetryStateDurability#ASYNC}. Those are written on a background thread a short while later,
+ * so that only the latest update of an Action that fails several times in a row is written.
+ */
+/* package */ class PersistCommitter {
+  private static final int MAX_BATCH_SIZE = 512;
+
+  /**
+   * How long an asynchronous retry state update waits for newer ones before it is written.
+   */
+  private static final long RETRY_STATE_COALESCE_MILLIS = 50L;
+
+  private final ActionPersister mPersister;
+  private final ActionLogger mActionLogger;
+  private final long mWindowNanos;
+  private final BlockingQueue<Request> mRequests;
+  private final RetryStateDurability mRetryStateDurability;
+
+  /**
+   * The latest retry state of every id waiting to be written with {@link RetryStateDurability#ASYNC}.
+   * Guarded by itself.
+   */
+  private final Map<Long, Integer> mPendingRetryStates;
+
+  /**
+   * Held while pending retry states are written, so a delete can wait for the write of its id.
+   */
+  private final Object mRetryStateWriteLock = new Object();
+
+  private final Thread mCommitThread;
+  private final Thread mRetryStateThread;
+  private volatile boolean mShutdown = false;
+
+  /**
+   * @param actionLogger receives the errors of background writes, which have no caller to throw to.
+   *                     May be null, in which case they are printed.
+   */
+  PersistCommitter(ActionPersister persister, ActionLogger actionLogger, long windowNanos,
+      RetryStateDurability retryStateDurability) {
+    mPersister = persister;
+    mActionLogger = actionLogger;
+    mWindowNanos = windowNanos;
+    mRetryStateDurability = (persister instanceof RetryStateActionPersister
+        || retryStateDurability != RetryStateDurability.ASYNC)
+        ? retryStateDurability
+        : RetryStateDurability.SYNC;
+
+    if (mRetryStateDurability == RetryStateDurability.ASYNC) {
+      mPendingRetryStates = new LinkedHashMap<Long, Integer>();
+
+      mRetryStateThread = new Thread(new Runnable() {
+        @Override public void run() {
+          retryStateLoop();
+        }
+      }, "ActionDispatcherThread-retry-state");
+      mRetryStateThread.setDaemon(true);
+      mRetryStateThread.start();
+    } else {
+      mPendingRetryStates = null;
+      mRetryStateThread = null;
+    }
+
+    if (windowNanos > 0) {
+      mRequests = new LinkedBlockingQueue<Request>();
+
+      mCommitThread = new Thread(new Runnable() {
+        @Override public void run() {
+          commitLoop();
+        }
+      }, "ActionDispatcherThread-persist");
+      mCommitThread.setDaemon(true);
+      mCommitThread.start();
+    } else {
+      mRequests = null;
+      mCommitThread = null;
+    }
+  }
+
+  long persist(Action<?> action) {
+    if (mRequests == null || mShutdown) return mPersister.persist(action);
+
+    Request request = new Request(action, 0);
+    mRequests.add(request);
+    request.await();
+    return request.mId;
+  }
+
+  /**
+   * Writes what changed about a persisted Action before it is retried.
+   *
+   * @param actionChanged true if the Action marked its fields as changed.
+   * @param retryStateChanged true if the retry state differs from the last one written.
+   */
+  void update(long id, Action<?> action, boolean actionChanged, boolean retryStateChanged) {
+    if (!(mPersister instanceof RetryStateActionPersister)) {
+      // The retry state can only be written as part of the whole Action.
+      if (actionChanged || (retryStateChanged && mRetryStateDurability != RetryStateDurability.NONE)) {
+        mPersister.update(id, action);
+      }
+      return;
+    }
+
+    if (actionChanged) mPersister.update(id, action);
+    if (!retryStateChanged) return;
+
+    switch (mRetryStateDurability) {
+      case SYNC:
+        ((RetryStateActionPersister) mPersister).updateRetryState(id, action.getRetryState());
+        break;
+      case ASYNC:
+        synchronized (mPendingRetryStates) {
+          mPendingRetryStates.put(id, action.getRetryState());
+          mPendingRetryStates.notifyAll();
+        }
+        break;
+      case NONE:
+        break;
+    }
+  }
+
+  void delete(long id) {
+    if (mPendingRetryStates != null) {
+      synchronized (mPendingRetryStates) {
+        mPendingRetryStates.remove(id);
+      }
+      // A retry state of the id may be being written right now, and must not land after the delete.
+      //noinspection EmptySynchronizedStatement
+      synchronized (mRetryStateWriteLock) {}
+    }
+
+    if (mRequests == null || mShutdown) {
+      mPersister.delete(id);
+      return;
+    }
+
+    Request request = new Request(null, id);
+    mRequests.add(request);
+    request.await();
+  }
+
+  /**
+   * Persists the Actions of a batch together, in a single call when the persister is a
+   * {@link BatchActionPersister}.
+   *
+   * @return the ids of the Actions, in the same order.
+   */
+  long[] persistAll(List<Action<?>> actions) {
+    if (mPersister instanceof BatchActionPersister) {
+      return checkIds(((BatchActionPersister) mPersister).persistAll(actions), actions.size());
+    }
+
+    long[] ids = new long[actions.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = persist(actions.get(i));
+    }
+    return ids;
+  }
+
+  /**
+   * Deletes the Actions of a batch together, in a single call when the persister is a
+   * {@link BatchActionPersister}.
+   */
+  void deleteAll(long[] ids) {
+    if (!(mPersister instanceof BatchActionPersister)) {
+      for (long id : ids) {
+        delete(id);
+      }
+      return;
+    }
+
+    if (mPendingRetryStates != null) {
+      synchronized (mPendingRetryStates) {
+        for (long id : ids) {
+          mPendingRetryStates.remove(id);
+        }
+      }
+      //noinspection EmptySynchronizedStatement
+      synchronized (mRetryStateWriteLock) {}
+    }
+
+    ((BatchActionPersister) mPersister).deleteAll(ids);
+  }
+
+  private void commitLoop() {
+    List<Request> persists = new ArrayList<Request>();
+    List<Request> deletes = new ArrayList<Request>();
+
+    while (!mShutdown) {
+      try {
+        Request request = mRequests.take();
+        long deadline = System.nanoTime() + mWindowNanos;
+        int size = 0;
+
+        try {
+          while (request != null) {
+            (request.isDelete() ? deletes : persists).add(request);
+            if (++size == MAX_BATCH_SIZE) break;
+
+            request = mRequests.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+          }
+        } catch (InterruptedException ignored) {
+          // Shutting down. What was taken is still committed, as its requesters wait for it.
+        }
+
+        commitPersists(persists);
+        commitDeletes(deletes);
+      } catch (InterruptedException ignored) {
+        // Shutting down, which the loop checks.
+      } finally {
+        persists.clear();
+        deletes.clear();
+      }
+    }
+
+    // Requests added while shutting down, whose requesters wait for them.
+    List<Request> remaining = new ArrayList<Request>();
+    mRequests.drainTo(remaining);
+    for (Request request : remaining) {
+      (request.isDelete() ? deletes : persists).add(request);
+    }
+    commitPersists(persists);
+    commitDeletes(deletes);
+  }
+
+  private void retryStateLoop() {
+    while (!mShutdown) {
+      try {
+        synchronized (mPendingRetryStates) {
+          while (mPendingRetryStates.isEmpty()) {
+            mPendingRetryStates.wait();
+          }
+        }
+
+        // Let the updates of Actions that are quickly failing again replace each other.
+        Thread.sleep(RETRY_STATE_COALESCE_MILLIS);
+
+        writePendingRetryStates();
+      } catch (InterruptedException ignored) {
+        // Shutting down, which the loop checks. Pending retry states were flushed before.
+      }
+    }
+  }
+
+  /**
+   * Stops the background threads, once the dispatcher has no more running Actions and has been
+   * {@link #flush() flushed}. Returns when they have ended. Persists and deletes that still come in
+   * are written on the requesting thread.
+   */
+  void shutdown() throws InterruptedException {
+    mShutdown = true;
+    if (mCommitThread != null) {
+      mCommitThread.interrupt();
+      mCommitThread.join();
+    }
+    if (mRetryStateThread != null) {
+      mRetryStateThread.interrupt();
+      mRetryStateThread.join();
+    }
+  }
+
+  /**
+   * Writes everything that is still waiting to be written, before the dispatcher shuts down. Persists
+   * and deletes are always written by the time they return, so only asynchronous retry state
+   * updates can be pending.
+   */
+  void flush() {
+    if (mPendingRetryStates != null) writePendingRetryStates();
+  }
+
+  private void writePendingRetryStates() {
+    synchronized (mRetryStateWriteLock) {
+      Map<Long, Integer> retryStates;
+      synchronized (mPendingRetryStates) {
+        if (mPendingRetryStates.isEmpty()) return;
+
+        retryStates = new LinkedHashMap<Long, Integer>(mPendingRetryStates);
+        mPendingRetryStates.clear();
+      }
+
+      RetryStateActionPersister persister = (RetryStateActionPersister) mPersister;
+      for (Map.Entry<Long, Integer> entry : retryStates.entrySet()) {
+        try {
+          persister.updateRetryState(entry.getKey(), entry.getValue());
+        } catch (Throwable t) {
+          // The next update of the Action, or its restore from an older state, makes up for it.
+          logOrPrintError(t, "Error writing the retry state of persisted Action " + entry.getKey());
+        }
+      }
+    }
+  }
+
+  private void logOrPrintError(Throwable t, String message) {
+    if (mActionLogger == null) {
+      System.out.println("Action Dispatcher Error: " + message);
+      t.printStackTrace();
+    } else {
+      mActionLogger.logError(t, message);
+    }
+  }
+
+  private void commitPersists(List<Request> requests) {
+    if (requests.isEmpty()) return;
+
+    if (mPersister instanceof BatchActionPersister) {
+      List<Action<?>> actions = new ArrayList<Action<?>>(requests.size());
+      for (Request request : requests) {
+        actions.add(request.mAction);
+      }
+
+      try {
+        long[] ids = checkIds(((BatchActionPersister) mPersister).persistAll(actions), actions.size());
+        for (int i = 0, size = requests.size(); i < size; i++) {
+          requests.get(i).complete(ids[i], null);
+        }
+      } catch (Throwable t) {
+        for (Request request : requests) {
+          request.complete(0, t);
+        }
+      }
+    } else {
+      for (Request request : requests) {
+        try {
+          request.complete(mPersister.persist(request.mAction), null);
+        } catch (Throwable t) {
+          request.complete(0, t);
+        }
+      }
+    }
+  }
+
+  /**
+   * Fails the whole batch, before any of it is completed, if the persister didn't return an id for
+   * every Action.
+   */
+  private long[] checkIds(long[] ids, int count) {
+    if (ids == null || ids.length != count) {
+      throw new IllegalStateException(mPersister.getClass().getName() + " returned "
+          + ((ids == null) ? "no" : String.valueOf(ids.length)) + " ids for " + count + " persisted Actions");
+    }
+    return ids;
+  }
+
+  private void commitDeletes(List<Request> requests) {
+    if (requests.isEmpty()) return;
+
+    if (mPersister instanceof BatchActionPersister) {
+      long[] ids = new long[requests.size()];
+      for (int i = 0; i < ids.length; i++) {
+        ids[i] = requests.get(i).mId;
+      }
+
+      Throwable error = null;
+      try {
+        ((BatchActionPersister) mPersister).deleteAll(ids);
+      } catch (Throwable t) {
+        error = t;
+      }
+
+      for (Request request : requests) {
+        request.complete(request.mId, error);
+      }
+    } else {
+      for (Request request : requests) {
+        try {
+          mPersister.delete(request.mId);
+          request.complete(request.mId, null);
+        } catch (Throwable t) {
+          request.complete(request.mId, t);
+        }
+      }
+    }
+  }
+
+  /**
+   * A persist if it has an Action, otherwise a delete of the id.
+   */
+  private static class Request {
+    final Action<?> mAction;
+    long mId;
+    Throwable mError;
+    boolean mCompleted = false;
+
+    Request(Action<?> action, long id) {
+      mAction = action;
+      mId = id;
+    }
+
+    boolean isDelete() {
+      return mAction == null;
+    }
+
+    synchronized void complete(long id, Throwable error) {
+      mId = id;
+      mError = error;
+      mCompleted = true;
+      notifyAll();
+    }
+
+    synchronized void await() {
+      boolean interrupted = false;
+      while (!mCompleted) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          // The request has already been handed to the persister, so wait for it regardless.
+          interrupted = true;
+        }
+      }
+
+      if (interrupted) Thread.currentThread().interrupt();
+
+      if (mError instanceof RuntimeException) throw (RuntimeException) mError;
+      if (mError instanceof Error) throw (Error) mError;
+      if (mError != null) throw new RuntimeException(mError);
+    }
+  }
+}
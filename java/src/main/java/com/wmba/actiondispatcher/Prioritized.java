@@ -0,0 +1,9 @@
+package com.wmba.actiondispatcher;
+
+/**
+ * A Runnable with a priority, used by the queues of prioritized keys. Runnables without one have a
+ * priority of 0.
+ */
+/* package */ interface Prioritized {
+  int getPriority();
+}
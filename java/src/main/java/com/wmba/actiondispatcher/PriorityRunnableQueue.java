@@ -0,0 +1,113 @@
+package com.wmba.actiondispatcher;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The queue of a prioritized key. Runnables with a higher {@link Prioritized#getPriority()} are
+ * polled first, and Runnables of the same priority in the order they were offered.
+ *
+ * So that low priority Runnables can't be starved, a Runnable gains a priority level for every
+ * {@code agingNanos} it waits. As every queued Runnable ages at the same rate, this is the same as
+ * ordering them by the time they were offered, moved earlier by {@code agingNanos} per level of
+ * priority, which never changes while they are queued.
+ */
+/* package */ class PriorityRunnableQueue extends AbstractQueue<Runnable> {
+  private static final long MAX_BOOST_NANOS = Long.MAX_VALUE / 4;
+
+  private final long mAgingNanos;
+  private final PriorityQueue<Entry> mQueue = new PriorityQueue<Entry>();
+  private long mNextSequence = 0;
+
+  /**
+   * @param agingNanos how long a Runnable waits to gain a priority level, or 0 for no aging.
+   */
+  PriorityRunnableQueue(long agingNanos) {
+    mAgingNanos = agingNanos;
+  }
+
+  @Override public synchronized boolean offer(Runnable runnable) {
+    if (runnable == null) throw new NullPointerException("runnable == null");
+
+    int priority = (runnable instanceof Prioritized) ? ((Prioritized) runnable).getPriority() : 0;
+    mQueue.offer(new Entry(runnable, rankOf(priority), mNextSequence++));
+    return true;
+  }
+
+  @Override public synchronized Runnable poll() {
+    Entry entry = mQueue.poll();
+    return (entry != null) ? entry.mRunnable : null;
+  }
+
+  @Override public synchronized Runnable peek() {
+    Entry entry = mQueue.peek();
+    return (entry != null) ? entry.mRunnable : null;
+  }
+
+  @Override public synchronized int size() {
+    return mQueue.size();
+  }
+
+  @Override public synchronized boolean remove(Object runnable) {
+    for (Iterator<Entry> iterator = mQueue.iterator(); iterator.hasNext(); ) {
+      if (iterator.next().mRunnable == runnable) {
+        iterator.remove();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return an iterator over a snapshot of the queue, in the order the Runnables would be polled.
+   */
+  @Override public synchronized Iterator<Runnable> iterator() {
+    Entry[] entries = mQueue.toArray(new Entry[mQueue.size()]);
+    Arrays.sort(entries);
+
+    List<Runnable> runnables = new ArrayList<Runnable>(entries.length);
+    for (Entry entry : entries) {
+      runnables.add(entry.mRunnable);
+    }
+    return runnables.iterator();
+  }
+
+  /**
+   * @return the rank of a Runnable offered now with the priority. Lower ranks are polled first.
+   */
+  private long rankOf(int priority) {
+    if (mAgingNanos == 0) return -priority;
+
+    long boost;
+    if (priority > MAX_BOOST_NANOS / mAgingNanos) {
+      boost = MAX_BOOST_NANOS;
+    } else if (priority < -MAX_BOOST_NANOS / mAgingNanos) {
+      boost = -MAX_BOOST_NANOS;
+    } else {
+      boost = priority * mAgingNanos;
+    }
+    return System.nanoTime() - boost;
+  }
+
+  private static class Entry implements Comparable<Entry> {
+    final Runnable mRunnable;
+    final long mRank;
+    final long mSequence;
+
+    Entry(Runnable runnable, long rank, long sequence) {
+      mRunnable = runnable;
+      mRank = rank;
+      mSequence = sequence;
+    }
+
+    @Override public int compareTo(Entry other) {
+      long rankDifference = mRank - other.mRank;
+      if (rankDifference != 0) return (rankDifference < 0) ? -1 : 1;
+      return (mSequence < other.mSequence) ? -1 : ((mSequence == other.mSequence) ? 0 : 1);
+    }
+  }
+}
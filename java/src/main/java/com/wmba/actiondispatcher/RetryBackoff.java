@@ -0,0 +1,78 @@
+package com.wmba.actiondispatcher;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long an {@link Action} waits before each retry. While it waits, the thread of its key is free
+ * to do other work.
+ *
+ * Whether later Actions on the same key may run while an Action waits is decided by
+ * {@link KeySelector#isRetryOvertakingAllowed(String)}.
+ */
+public class RetryBackoff {
+  private final long mInitialDelayNanos;
+  private final long mMaxDelayNanos;
+  private final double mMultiplier;
+  private final double mJitter;
+
+  private RetryBackoff(long initialDelayNanos, long maxDelayNanos, double multiplier, double jitter) {
+    mInitialDelayNanos = initialDelayNanos;
+    mMaxDelayNanos = maxDelayNanos;
+    mMultiplier = multiplier;
+    mJitter = jitter;
+  }
+
+  /**
+   * Waits the same delay before every retry.
+   */
+  public static RetryBackoff fixed(long delay, TimeUnit unit) {
+    if (delay < 0) throw new IllegalArgumentException("delay must not be negative");
+
+    long delayNanos = unit.toNanos(delay);
+    return new RetryBackoff(delayNanos, delayNanos, 1, 0);
+  }
+
+  /**
+   * Waits {@code initialDelay} before the first retry, doubling the delay before every retry after
+   * it, up to {@code maxDelay}.
+   */
+  public static RetryBackoff exponential(long initialDelay, long maxDelay, TimeUnit unit) {
+    if (initialDelay < 0) throw new IllegalArgumentException("initialDelay must not be negative");
+    if (maxDelay < initialDelay) throw new IllegalArgumentException("maxDelay must be at least initialDelay");
+
+    return new RetryBackoff(unit.toNanos(initialDelay), unit.toNanos(maxDelay), 2, 0);
+  }
+
+  /**
+   * @param multiplier how much the delay grows by from one retry to the next. Must be at least 1.
+   */
+  public RetryBackoff withMultiplier(double multiplier) {
+    if (!(multiplier >= 1)) throw new IllegalArgumentException("multiplier must be at least 1");
+
+    return new RetryBackoff(mInitialDelayNanos, mMaxDelayNanos, multiplier, mJitter);
+  }
+
+  /**
+   * Randomly shortens every delay by up to the {@code jitter} fraction of it, so that Actions which
+   * failed together don't all retry at the same moment.
+   *
+   * @param jitter between 0, for no jitter, and 1, where any delay up to the full one may be used.
+   */
+  public RetryBackoff withJitter(double jitter) {
+    if (!(jitter >= 0 && jitter <= 1)) throw new IllegalArgumentException("jitter must be between 0 and 1");
+
+    return new RetryBackoff(mInitialDelayNanos, mMaxDelayNanos, mMultiplier, jitter);
+  }
+
+  /**
+   * @param retry the number of the retry about to happen, starting at 1.
+   * @return how long to wait before the retry, in nanoseconds.
+   */
+  public long getDelayNanos(int retry) {
+    double delay = mInitialDelayNanos * Math.pow(mMultiplier, Math.max(0, retry - 1));
+    delay = Math.min(delay, mMaxDelayNanos);
+    if (mJitter > 0) delay -= delay * mJitter * Math.random();
+
+    return (long) delay;
+  }
+}
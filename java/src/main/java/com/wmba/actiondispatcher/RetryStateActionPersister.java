@@ -0,0 +1,20 @@
+package com.wmba.actiondispatcher;
+
+/**
+ * An {@link ActionPersister} that can store the retry state of an Action on its own, without
+ * rewriting the whole Action. The stored state must be returned with the Action by
+ * {@link #getPersistedActions()}, through
+ * {@link com.wmba.actiondispatcher.persist.PersistedActionHolder#getRetryState()}.
+ *
+ * ActionPersisters that don't implement this interface are given the whole Action through
+ * {@link #update(long, Action)} instead, and only when its retry state has changed.
+ */
+public interface RetryStateActionPersister extends ActionPersister {
+  /**
+   * Called after the Action with the id has failed and is going to be retried. An id that isn't
+   * persisted anymore should be ignored.
+   *
+   * @param retryState an opaque value that is given back to the Action when it is restored.
+   */
+  void updateRetryState(long id, int retryState);
+}
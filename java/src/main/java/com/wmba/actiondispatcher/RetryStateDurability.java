@@ -0,0 +1,23 @@
+package com.wmba.actiondispatcher;
+
+/**
+ * When the retry state of a persistent Action is written, see
+ * {@link ActionDispatcher.Builder#withRetryStateDurability(RetryStateDurability)}.
+ */
+public enum RetryStateDurability {
+  /**
+   * Before the Action is retried. A restored Action never retries more than its limit.
+   */
+  SYNC,
+  /**
+   * In the background, shortly after the Action fails. The updates of an Action that fails several
+   * times in a row are coalesced into a single write, but the latest ones can be lost if the process
+   * exits, letting a restored Action retry a few more times than its limit. Only applies to a
+   * {@link RetryStateActionPersister}; others are written to as with {@link #SYNC}.
+   */
+  ASYNC,
+  /**
+   * Never. A restored Action starts over with no retries used.
+   */
+  NONE
+}
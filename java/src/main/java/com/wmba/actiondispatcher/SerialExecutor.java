@@ -0,0 +1,257 @@
+package com.wmba.actiondispatcher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the Runnables given to it one at a time, in the order they were provided, on a shared pool
+ * {@link Executor}. Each key has a SerialExecutor of its own. A prioritized key orders its
+ * Runnables with a {@link PriorityRunnableQueue} instead.
+ *
+ * The SerialExecutor itself is the Runnable that is submitted to the pool. It runs at most
+ * {@code batchSize} Runnables before giving up its pool thread and re-submitting itself, so that a
+ * busy key can't starve other keys sharing the pool.
+ *
+ * Once retired by the {@link ExecutorCache}, a SerialExecutor forwards anything it is given to the
+ * executor that replaced it for the same key.
+ *
+ * A running Runnable can {@link #suspend()} the executor, so that nothing else on the key runs
+ * until it is {@link #resume(Runnable) resumed}, without holding on to a pool thread meanwhile. A
+ * Runnable that hangs can be left behind with {@link #detach()}, letting the key go on without it.
+ */
+/* package */ class SerialExecutor implements Executor, Runnable {
+  private static final int IDLE = 0;
+  private static final int SCHEDULED = 1;
+  private static final int RETIRED = 2;
+  private static final int SUSPENDED = 3;
+
+  private static final ThreadLocal<SerialExecutor> CURRENT = new ThreadLocal<SerialExecutor>();
+
+  private final Queue<Runnable> mQueue;
+  private final ExecutorCache mCache;
+  private final String mKey;
+  private final Executor mPool;
+  private final int mBatchSize;
+
+  /**
+   * Either {@link #IDLE}, {@link #SCHEDULED}, {@link #RETIRED} or {@link #SUSPENDED}.
+   */
+  private final AtomicInteger mState = new AtomicInteger(IDLE);
+
+  private volatile long mLastActiveNanos = System.nanoTime();
+
+  /**
+   * The Runnable to run before anything in the queue, given by {@link #resume(Runnable)}.
+   */
+  private volatile Runnable mResumeRunnable = null;
+
+  /**
+   * Only accessed by the thread draining the executor.
+   */
+  private boolean mSuspendRequested = false;
+
+  SerialExecutor(ExecutorCache cache, String key, Executor pool, int batchSize) {
+    this(cache, key, pool, batchSize, new ConcurrentLinkedQueue<Runnable>());
+  }
+
+  /**
+   * @param queue holds the Runnables waiting to run. Must be thread safe. Runnables are run in the
+   *              order it returns them in.
+   */
+  SerialExecutor(ExecutorCache cache, String key, Executor pool, int batchSize, Queue<Runnable> queue) {
+    mQueue = queue;
+    mCache = cache;
+    mKey = key;
+    mPool = pool;
+    mBatchSize = batchSize;
+  }
+
+  @Override public void execute(Runnable runnable) {
+    if (runnable == null) throw new NullPointerException("runnable == null");
+    mQueue.offer(runnable);
+    if (!schedule()) forwardToReplacement();
+  }
+
+  /**
+   * @return false if this executor has been retired, true otherwise.
+   */
+  private boolean schedule() {
+    while (true) {
+      int state = mState.get();
+      if (state == RETIRED) return false;
+      if (state == SCHEDULED || state == SUSPENDED) return true;
+
+      if (mState.compareAndSet(IDLE, SCHEDULED)) {
+        try {
+          mPool.execute(this);
+        } catch (RejectedExecutionException e) {
+          mState.set(IDLE);
+          throw e;
+        }
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Drains one batch from the queue. Should only ever be called by the pool.
+   */
+  @Override public void run() {
+    CURRENT.set(this);
+    try {
+      for (int i = 0; i < mBatchSize; i++) {
+        Runnable runnable = mResumeRunnable;
+        if (runnable != null) {
+          mResumeRunnable = null;
+        } else {
+          runnable = mQueue.poll();
+          if (runnable == null) break;
+        }
+
+        runnable.run();
+        // The Runnable was left behind by detach(), and another drain has taken over the key.
+        if (CURRENT.get() != this) return;
+        if (mSuspendRequested) break;
+      }
+    } finally {
+      if (CURRENT.get() == this) finishDrain();
+    }
+  }
+
+  private void finishDrain() {
+    CURRENT.remove();
+    mLastActiveNanos = System.nanoTime();
+
+    if (mSuspendRequested) {
+      mSuspendRequested = false;
+      mState.set(SUSPENDED);
+      // resume() may have been called before the state was set, in which case it left the
+      // rescheduling to this drain.
+      if (mResumeRunnable != null && mState.compareAndSet(SUSPENDED, SCHEDULED)) mPool.execute(this);
+      return;
+    }
+
+    mState.set(IDLE);
+    // Anything offered after the last poll, but before the state was reset, would have seen
+    // SCHEDULED and relied on this drain to pick it up.
+    if (!mQueue.isEmpty() && !schedule()) forwardToReplacement();
+  }
+
+  /**
+   * Hands the key to a new drain while the current one is stuck running a Runnable, which must then
+   * call {@link #leave()} once it returns. Must only be called while that Runnable is running.
+   */
+  void detach() {
+    mPool.execute(this);
+  }
+
+  /**
+   * Called by a Runnable left behind by {@link #detach()}, so that its drain ends as soon as it
+   * returns without touching the executor.
+   */
+  static void leave() {
+    CURRENT.remove();
+  }
+
+  String getKey() {
+    return mKey;
+  }
+
+  /**
+   * @return the SerialExecutor that is running on the current thread, or null if there is none.
+   */
+  static SerialExecutor current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Stops this executor from running anything else once the current Runnable returns, until
+   * {@link #resume(Runnable)} is called. Must be called from a Runnable running on this executor.
+   */
+  void suspend() {
+    if (CURRENT.get() != this) {
+      throw new IllegalStateException("suspend() must be called from a Runnable on this executor");
+    }
+    mSuspendRequested = true;
+  }
+
+  /**
+   * Resumes this executor after {@link #suspend()}, running {@code runnable} before anything that
+   * was queued while it was suspended.
+   */
+  void resume(Runnable runnable) {
+    if (runnable == null) throw new NullPointerException("runnable == null");
+    mResumeRunnable = runnable;
+    if (mState.compareAndSet(SUSPENDED, SCHEDULED)) mPool.execute(this);
+  }
+
+  /**
+   * Takes up to {@code max} of the queued Runnables that the matcher accepts out of the queue, in
+   * the order they would have run. Must be called from a Runnable running on this executor.
+   */
+  List<Runnable> removeQueued(Matcher matcher, int max) {
+    if (CURRENT.get() != this) {
+      throw new IllegalStateException("removeQueued() must be called from a Runnable on this executor");
+    }
+
+    List<Runnable> removed = new ArrayList<Runnable>();
+    for (Runnable runnable : mQueue) {
+      if (removed.size() >= max) break;
+      if (matcher.matches(runnable) && mQueue.remove(runnable)) removed.add(runnable);
+    }
+    return removed;
+  }
+
+  /**
+   * @return a snapshot of the Runnables waiting to run, in the order they would run.
+   */
+  List<Runnable> getQueued() {
+    return new ArrayList<Runnable>(mQueue);
+  }
+
+  /**
+   * Removes a Runnable that is waiting to run.
+   *
+   * @return false if it wasn't waiting.
+   */
+  boolean remove(Runnable runnable) {
+    return mQueue.remove(runnable);
+  }
+
+  /**
+   * Retires this executor if it has had nothing to run since {@code cutoffNanos}. Once retired it
+   * must be removed from the {@link ExecutorCache}.
+   *
+   * @return true if the executor was retired.
+   */
+  boolean retireIfIdleSince(long cutoffNanos) {
+    return mState.get() == IDLE
+        && mQueue.isEmpty()
+        && mLastActiveNanos - cutoffNanos < 0
+        && mState.compareAndSet(IDLE, RETIRED);
+  }
+
+  boolean isRetired() {
+    return mState.get() == RETIRED;
+  }
+
+  interface Matcher {
+    boolean matches(Runnable runnable);
+  }
+
+  /**
+   * Runnables that raced with retirement are handed, in order, to the executor that replaces this
+   * one. The lock keeps two racing callers from reordering them.
+   */
+  private synchronized void forwardToReplacement() {
+    Runnable runnable;
+    while ((runnable = mQueue.poll()) != null) {
+      mCache.getExecutorForKey(mKey).execute(runnable);
+    }
+  }
+}
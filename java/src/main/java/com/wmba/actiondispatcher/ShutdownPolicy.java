@@ -0,0 +1,20 @@
+package com.wmba.actiondispatcher;
+
+/**
+ * What happens to the Actions waiting on their keys when the dispatcher is shut down, see
+ * {@link ActionDispatcher#shutdown(long, java.util.concurrent.TimeUnit)}. Running Actions are always
+ * left to finish. An Action that doesn't run fails with a
+ * {@link java.util.concurrent.RejectedExecutionException}, and a persistent one is persisted to run
+ * on the next start instead.
+ */
+public enum ShutdownPolicy {
+  /**
+   * The waiting Actions still run, until the shutdown timeout is over.
+   */
+  DRAIN,
+
+  /**
+   * The waiting Actions don't run.
+   */
+  CANCEL_QUEUED
+}
@@ -0,0 +1,206 @@
+package com.wmba.actiondispatcher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A KeySelector that spreads the logical keys starting with a configured prefix, such as "user:123"
+ * for the prefix "user:", over a fixed number of lanes, which are the keys the Actions actually run
+ * on. Every logical key always maps to the same lane, so its Actions keep their order, while the
+ * number of keys, and so of threads and queues, stays bounded. Keys are mapped by jump consistent
+ * hashing, so changing the number of lanes of a prefix only moves the keys it has to.
+ * <p>
+ * Lane keys are the prefix followed by "#" and the index of the lane, like "user:#3". The other
+ * methods of the KeySelector are asked about lane keys, and are forwarded to the delegate.
+ */
+public class StripedKeySelector extends KeySelector {
+  private static final String LANE_SEPARATOR = "#";
+
+  private final KeySelector mDelegate;
+
+  /**
+   * The striped prefixes, longest first so the most specific one matches.
+   */
+  private final List<Stripes> mStripes;
+
+  private StripedKeySelector(Builder builder) {
+    mDelegate = (builder.mDelegate != null) ? builder.mDelegate : new KeySelector();
+
+    List<Stripes> stripes = new ArrayList<Stripes>();
+    for (Map.Entry<String, Integer> entry : builder.mLaneCounts.entrySet()) {
+      stripes.add(new Stripes(entry.getKey(), entry.getValue()));
+    }
+    Collections.sort(stripes, new Comparator<Stripes>() {
+      @Override public int compare(Stripes lhs, Stripes rhs) {
+        return rhs.mPrefix.length() - lhs.mPrefix.length();
+      }
+    });
+    mStripes = stripes;
+  }
+
+  @Override public String getKey(Action<?> action) {
+    return route(mDelegate.getKey(action));
+  }
+
+  /**
+   * @return the lanes of the logical keys. Keys that share a lane only hold it once.
+   */
+  @Override public Set<String> getKeys(Action<?> action) {
+    Set<String> keys = mDelegate.getKeys(action);
+    if (keys == null) return null;
+
+    Set<String> laneKeys = new HashSet<String>(keys.size() * 2);
+    for (String key : keys) {
+      laneKeys.add(route(key));
+    }
+    return laneKeys;
+  }
+
+  /**
+   * @param key a logical key.
+   * @return the lane the logical key runs on, or the key itself if it doesn't start with a striped
+   * prefix. Meant for keys passed straight to the ActionDispatcher, which bypass the KeySelector.
+   * Looking up a key doesn't count towards {@link #getLaneLoads(String)}.
+   */
+  public String getLaneKey(String key) {
+    if (key == null || KeySelector.ASYNC_KEY.equals(key)) return key;
+
+    Stripes stripes = stripesOf(key);
+    if (stripes == null) return key;
+
+    return stripes.mLaneKeys[jumpConsistentHash(hash(key), stripes.mLaneCount)];
+  }
+
+  /**
+   * @return the number of Actions routed to each lane of the prefix so far, by lane key, or null
+   * if the prefix isn't striped. A lane with far more than the others holds a hot logical key.
+   */
+  public Map<String, Long> getLaneLoads(String prefix) {
+    for (Stripes stripes : mStripes) {
+      if (!stripes.mPrefix.equals(prefix)) continue;
+
+      Map<String, Long> loads = new LinkedHashMap<String, Long>();
+      for (int i = 0; i < stripes.mLaneCount; i++) {
+        loads.put(stripes.mLaneKeys[i], stripes.mRoutedCounts.get(i));
+      }
+      return loads;
+    }
+    return null;
+  }
+
+  @Override public boolean isRetryOvertakingAllowed(String key) {
+    return mDelegate.isRetryOvertakingAllowed(key);
+  }
+
+  @Override public int getPriority(Action<?> action) {
+    return mDelegate.getPriority(action);
+  }
+
+  @Override public boolean isPrioritized(String key) {
+    return mDelegate.isPrioritized(key);
+  }
+
+  /**
+   * Same as {@link #getLaneKey(String)}, but counts the Action routed to the lane.
+   */
+  private String route(String key) {
+    if (key == null || KeySelector.ASYNC_KEY.equals(key)) return key;
+
+    Stripes stripes = stripesOf(key);
+    if (stripes == null) return key;
+
+    int lane = jumpConsistentHash(hash(key), stripes.mLaneCount);
+    stripes.mRoutedCounts.incrementAndGet(lane);
+    return stripes.mLaneKeys[lane];
+  }
+
+  private Stripes stripesOf(String key) {
+    for (Stripes stripes : mStripes) {
+      if (key.startsWith(stripes.mPrefix)) return stripes;
+    }
+    return null;
+  }
+
+  /**
+   * Spreads the bits of the String's hash over a long, as jump consistent hashing expects its keys
+   * to be uniformly distributed.
+   */
+  private static long hash(String key) {
+    long h = key.hashCode() * 0x9E3779B97F4A7C15L;
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    return h ^ (h >>> 33);
+  }
+
+  /**
+   * Jump consistent hashing, by Lamping and Veach.
+   *
+   * @return the bucket of the key, from 0 to buckets - 1.
+   */
+  /* package */ static int jumpConsistentHash(long key, int buckets) {
+    long b = -1;
+    long j = 0;
+    while (j < buckets) {
+      b = j;
+      key = key * 2862933555777941757L + 1;
+      j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+    }
+    return (int) b;
+  }
+
+  private static class Stripes {
+    final String mPrefix;
+    final int mLaneCount;
+    final String[] mLaneKeys;
+    final AtomicLongArray mRoutedCounts;
+
+    Stripes(String prefix, int laneCount) {
+      mPrefix = prefix;
+      mLaneCount = laneCount;
+      mLaneKeys = new String[laneCount];
+      for (int i = 0; i < laneCount; i++) {
+        mLaneKeys[i] = prefix + LANE_SEPARATOR + i;
+      }
+      mRoutedCounts = new AtomicLongArray(laneCount);
+    }
+  }
+
+  public static class Builder {
+    private KeySelector mDelegate = null;
+    private final Map<String, Integer> mLaneCounts = new LinkedHashMap<String, Integer>();
+
+    public StripedKeySelector build() {
+      return new StripedKeySelector(this);
+    }
+
+    /**
+     * @param delegate picks the logical key of every Action, and answers for the lane keys. Defaults
+     *                 to a plain KeySelector.
+     */
+    public StripedKeySelector.Builder withDelegate(KeySelector delegate) {
+      mDelegate = delegate;
+      return this;
+    }
+
+    /**
+     * Spreads the logical keys starting with the prefix over laneCount lanes. When prefixes overlap,
+     * the longest one that matches is used.
+     */
+    public StripedKeySelector.Builder withStripes(String prefix, int laneCount) {
+      if (prefix == null) throw new IllegalArgumentException("prefix == null");
+      if (laneCount <= 0) throw new IllegalArgumentException("laneCount must be at least 1");
+
+      mLaneCounts.put(prefix, laneCount);
+      return this;
+    }
+  }
+}
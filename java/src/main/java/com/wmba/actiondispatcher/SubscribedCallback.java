@@ -0,0 +1,10 @@
+package com.wmba.actiondispatcher;
+
+/**
+ * An ActionCallback that can stop wanting the result, in which case the Action is unsubscribed from
+ * and is cancelled unless it {@link Action#runIfUnsubscribed() runs when unsubscribed}. Implemented
+ * by the adapters that start Actions, so the dispatcher itself doesn't depend on any of them.
+ */
+/* package */ interface SubscribedCallback<T> extends ActionCallback<T> {
+  boolean isUnsubscribed();
+}
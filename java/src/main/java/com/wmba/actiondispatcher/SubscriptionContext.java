@@ -1,25 +1,26 @@
 package com.wmba.actiondispatcher;
 
-import rx.SingleSubscriber;
+/**
+ * What a running Action knows about how it was started. Implemented by the dispatcher's context of
+ * the Action, so running an Action doesn't need an object of its own for it.
+ */
+/* package */ abstract class SubscriptionContext {
+  public abstract ActionDispatcher getDispatcher();
 
-/* package */ class SubscriptionContext {
-  private final ActionDispatcher mDispatcher;
-  private final SingleSubscriber<?> mSubscriber;
+  public abstract boolean isUnsubscribed();
 
-  public SubscriptionContext(ActionDispatcher dispatcher, SingleSubscriber<?> subscriber) {
-    mDispatcher = dispatcher;
-    mSubscriber = subscriber;
-  }
-
-  public ActionDispatcher getDispatcher() {
-    return mDispatcher;
-  }
+  public abstract boolean isTimedOut();
 
-  public SingleSubscriber<?> getSubscriber() {
-    return mSubscriber;
-  }
+  public abstract boolean isCancelled();
 
-  public boolean isUnsubscribed() {
-    return mSubscriber.isUnsubscribed();
+  /**
+   * Hands the persisted copy of the running Action over to the Action itself, which then deletes it
+   * once it is done with it.
+   *
+   * @return the id of the persisted copy, or null if the context isn't running the Action, or it
+   * wasn't persisted.
+   */
+  /* package */ Long takePersistedId(Action<?> action) {
+    return null;
   }
 }
@@ -0,0 +1,31 @@
+package com.wmba.actiondispatcher;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to the virtual threads of Java 21 and later. They are looked up reflectively, so the
+ * library still runs on Java 7 and Android, where they don't exist.
+ */
+/* package */ final class VirtualThreads {
+  private VirtualThreads() {}
+
+  static boolean isSupported() {
+    return newThreadFactory("ActionDispatcherThread-virtual-") != null;
+  }
+
+  /**
+   * @return a factory of virtual threads named with the prefix and a counter, or null if the JVM
+   * doesn't support them.
+   */
+  static ThreadFactory newThreadFactory(String namePrefix) {
+    try {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 1L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (Exception e) {
+      // Not Java 21, or a Java version where virtual threads are still a preview feature.
+      return null;
+    }
+  }
+}
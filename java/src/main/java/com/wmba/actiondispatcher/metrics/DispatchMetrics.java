@@ -0,0 +1,244 @@
+package com.wmba.actiondispatcher.metrics;
+
+import com.wmba.actiondispatcher.Action;
+import com.wmba.actiondispatcher.DispatchListener;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link DispatchListener} that records metrics about the Actions of a dispatcher, for finding hot
+ * keys, slow ActionPersisters and failing Actions in production:
+ *
+ * <ul>
+ *   <li>Latency histograms of the time Actions wait on their key, spend being persisted and
+ *   deleted, and spend executing.</li>
+ *   <li>The number of Actions waiting on every key.</li>
+ *   <li>Completion, failure, retry, coalescing, rejection and timeout counts for every Action
+ *   class.</li>
+ * </ul>
+ *
+ * Recording is lock-free. Counts are kept for every Action class that was ever seen, and queue
+ * depths only for the keys that have Actions waiting.
+ */
+public class DispatchMetrics extends DispatchListener {
+  private final LatencyHistogram mQueueWaitLatency = new LatencyHistogram();
+  private final LatencyHistogram mPersistLatency = new LatencyHistogram();
+  private final LatencyHistogram mDeleteLatency = new LatencyHistogram();
+  private final LatencyHistogram mExecuteLatency = new LatencyHistogram();
+
+  // Only keys with waiting Actions have an entry, so keys that are seen once don't pile up.
+  private final ConcurrentMap<String, Integer> mQueueDepths = new ConcurrentHashMap<String, Integer>();
+  private final ConcurrentMap<Class<?>, ActionClassStats> mActionClassStats =
+      new ConcurrentHashMap<Class<?>, ActionClassStats>();
+
+  @Override public void onEnqueued(Action<?> action, String key) {
+    incrementQueueDepth(key);
+  }
+
+  @Override public void onCoalesced(Action<?> action, String key) {
+    decrementQueueDepth(key);
+    statsOf(action).mCoalescedCount.incrementAndGet();
+  }
+
+  @Override public void onRejected(Action<?> action, String key) {
+    decrementQueueDepth(key);
+    statsOf(action).mRejectedCount.incrementAndGet();
+  }
+
+  @Override public void onStarted(Action<?> action, String key, long queueWaitNanos) {
+    decrementQueueDepth(key);
+    mQueueWaitLatency.record(queueWaitNanos);
+  }
+
+  @Override public void onPersisted(Action<?> action, long persistNanos) {
+    mPersistLatency.record(persistNanos);
+  }
+
+  @Override public void onRetry(Action<?> action, String key, Throwable t, int retry) {
+    statsOf(action).mRetryCount.incrementAndGet();
+  }
+
+  @Override public void onTimedOut(Action<?> action, String key, boolean started) {
+    if (!started) decrementQueueDepth(key);
+    statsOf(action).mTimedOutCount.incrementAndGet();
+  }
+
+  @Override public void onCancelled(Action<?> action, String key, boolean started) {
+    if (!started) decrementQueueDepth(key);
+    statsOf(action).mCancelledCount.incrementAndGet();
+  }
+
+  @Override public void onDeleted(Action<?> action, long deleteNanos) {
+    mDeleteLatency.record(deleteNanos);
+  }
+
+  @Override public void onCompleted(Action<?> action, String key, long executeNanos, Throwable error) {
+    mExecuteLatency.record(executeNanos);
+
+    ActionClassStats stats = statsOf(action);
+    if (error == null) {
+      stats.mCompletedCount.incrementAndGet();
+    } else {
+      stats.mFailedCount.incrementAndGet();
+    }
+  }
+
+  /**
+   * @return the time between an Action being enqueued on its key and it starting to run.
+   */
+  public LatencyHistogram getQueueWaitLatency() {
+    return mQueueWaitLatency;
+  }
+
+  /**
+   * @return the time taken to persist an Action before it runs.
+   */
+  public LatencyHistogram getPersistLatency() {
+    return mPersistLatency;
+  }
+
+  /**
+   * @return the time taken to delete a persisted Action after it finished.
+   */
+  public LatencyHistogram getDeleteLatency() {
+    return mDeleteLatency;
+  }
+
+  /**
+   * @return the time spent executing an Action, over all of its attempts.
+   */
+  public LatencyHistogram getExecuteLatency() {
+    return mExecuteLatency;
+  }
+
+  /**
+   * @return a snapshot of the number of Actions waiting to start on every key that has any.
+   */
+  public Map<String, Integer> getQueueDepths() {
+    return Collections.unmodifiableMap(new HashMap<String, Integer>(mQueueDepths));
+  }
+
+  /**
+   * @return the stats of every Action class that has been run.
+   */
+  public Map<Class<?>, ActionClassStats> getActionClassStats() {
+    return Collections.unmodifiableMap(mActionClassStats);
+  }
+
+  private void incrementQueueDepth(String key) {
+    while (true) {
+      Integer depth = mQueueDepths.get(key);
+      if (depth == null) {
+        if (mQueueDepths.putIfAbsent(key, 1) == null) return;
+      } else if (mQueueDepths.replace(key, depth, depth + 1)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Removes the key's entry once its last waiting Action is gone. The depth is swapped as a whole
+   * instead of kept in a counter, so an increment can't land on an entry that was just removed.
+   */
+  private void decrementQueueDepth(String key) {
+    while (true) {
+      Integer depth = mQueueDepths.get(key);
+      if (depth == null) return;
+      if (depth <= 1 ? mQueueDepths.remove(key, depth) : mQueueDepths.replace(key, depth, depth - 1)) {
+        return;
+      }
+    }
+  }
+
+  private ActionClassStats statsOf(Action<?> action) {
+    Class<?> actionClass = action.getClass();
+    ActionClassStats stats = mActionClassStats.get(actionClass);
+    if (stats == null) {
+      ActionClassStats created = new ActionClassStats();
+      stats = mActionClassStats.putIfAbsent(actionClass, created);
+      if (stats == null) stats = created;
+    }
+    return stats;
+  }
+
+  public static class ActionClassStats {
+    final AtomicLong mCompletedCount = new AtomicLong();
+    final AtomicLong mFailedCount = new AtomicLong();
+    final AtomicLong mRetryCount = new AtomicLong();
+    final AtomicLong mCoalescedCount = new AtomicLong();
+    final AtomicLong mRejectedCount = new AtomicLong();
+    final AtomicLong mTimedOutCount = new AtomicLong();
+    final AtomicLong mCancelledCount = new AtomicLong();
+
+    /**
+     * @return the number of Actions that succeeded.
+     */
+    public long getCompletedCount() {
+      return mCompletedCount.get();
+    }
+
+    /**
+     * @return the number of Actions that failed, after any retries.
+     */
+    public long getFailedCount() {
+      return mFailedCount.get();
+    }
+
+    public long getRetryCount() {
+      return mRetryCount.get();
+    }
+
+    /**
+     * @return the number of Actions that didn't run, because another Action ran for them.
+     */
+    public long getCoalescedCount() {
+      return mCoalescedCount.get();
+    }
+
+    /**
+     * @return the number of Actions that didn't run, because there was no room for them on their key.
+     */
+    public long getRejectedCount() {
+      return mRejectedCount.get();
+    }
+
+    /**
+     * @return the number of Actions that ran out of time. They aren't counted as failed.
+     */
+    public long getTimedOutCount() {
+      return mTimedOutCount.get();
+    }
+
+    /**
+     * @return the number of Actions that were cancelled, as they were unsubscribed from. They aren't
+     * counted as failed.
+     */
+    public long getCancelledCount() {
+      return mCancelledCount.get();
+    }
+
+    /**
+     * @return the fraction of finished Actions that failed, between 0 and 1.
+     */
+    public double getErrorRate() {
+      long failed = getFailedCount();
+      long finished = failed + getCompletedCount();
+      return (finished == 0) ? 0 : (double) failed / finished;
+    }
+
+    @Override public String toString() {
+      return "completed=" + getCompletedCount()
+          + " failed=" + getFailedCount()
+          + " retries=" + getRetryCount()
+          + " coalesced=" + getCoalescedCount()
+          + " rejected=" + getRejectedCount()
+          + " timedOut=" + getTimedOutCount()
+          + " cancelled=" + getCancelledCount();
+    }
+  }
+}
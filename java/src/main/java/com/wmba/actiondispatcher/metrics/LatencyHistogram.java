@@ -0,0 +1,104 @@
+package com.wmba.actiondispatcher.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies in nanoseconds. Values are counted in buckets that grow
+ * exponentially, with each power of two split into 8 linear sub-buckets, so any recorded value is
+ * reported with an error of at most 12.5%. Recording a value is a few atomic increments, with no
+ * allocation.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+  private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong mSum = new AtomicLong();
+  private final AtomicLong mMax = new AtomicLong();
+
+  public void record(long nanos) {
+    if (nanos < 0) nanos = 0;
+
+    mCounts.incrementAndGet(indexOf(nanos));
+    mSum.addAndGet(nanos);
+
+    long max;
+    while (nanos > (max = mMax.get())) {
+      if (mMax.compareAndSet(max, nanos)) break;
+    }
+  }
+
+  public long getCount() {
+    long count = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      count += mCounts.get(i);
+    }
+    return count;
+  }
+
+  public long getMaxNanos() {
+    return mMax.get();
+  }
+
+  public long getMeanNanos() {
+    long count = getCount();
+    return (count == 0) ? 0 : mSum.get() / count;
+  }
+
+  /**
+   * @param percentile between 0 and 100, for example 99 for the p99.
+   * @return the highest value that the percentile of recorded values is at or below, within the
+   * precision of the histogram. 0 if nothing was recorded.
+   */
+  public long getPercentileNanos(double percentile) {
+    if (percentile < 0 || percentile > 100) {
+      throw new IllegalArgumentException("percentile must be between 0 and 100");
+    }
+
+    long[] counts = new long[BUCKET_COUNT];
+    long count = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts[i] = mCounts.get(i);
+      count += counts[i];
+    }
+    if (count == 0) return 0;
+
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += counts[i];
+      if (seen >= rank) return Math.min(highestValueOf(i), getMaxNanos());
+    }
+    return getMaxNanos();
+  }
+
+  @Override public String toString() {
+    return "count=" + getCount()
+        + " mean=" + micros(getMeanNanos())
+        + " p50=" + micros(getPercentileNanos(50))
+        + " p99=" + micros(getPercentileNanos(99))
+        + " max=" + micros(getMaxNanos());
+  }
+
+  private static String micros(long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos) + "us";
+  }
+
+  /* package */ static int indexOf(long value) {
+    if (value < SUB_BUCKET_COUNT) return (int) value;
+
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKET_COUNT + (int) ((value >>> shift) & (SUB_BUCKET_COUNT - 1));
+  }
+
+  /* package */ static long highestValueOf(int index) {
+    if (index < SUB_BUCKET_COUNT) return index;
+
+    int shift = index / SUB_BUCKET_COUNT - 1;
+    long lowest = (long) (SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+}
@@ -0,0 +1,19 @@
+package com.wmba.actiondispatcher.persist;
+
+import com.wmba.actiondispatcher.Action;
+
+/**
+ * Converts Actions to and from bytes for an {@link com.wmba.actiondispatcher.ActionPersister}.
+ * Implementations must be thread safe.
+ */
+public interface ActionSerializer {
+  /**
+   * @throws RuntimeException if the action can't be serialized.
+   */
+  byte[] serialize(Action<?> action);
+
+  /**
+   * @return the deserialized action, or null if the bytes can't be deserialized.
+   */
+  <T extends Action<?>> T deserialize(byte[] bytes);
+}
@@ -0,0 +1,535 @@
+package com.wmba.actiondispatcher.persist;
+
+import com.wmba.actiondispatcher.Action;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact {@link ActionSerializer} that writes the fields of an Action in a binary format, instead
+ * of going through Java serialization.
+ *
+ * Every class that is written, the Actions themselves and any enums or objects held in their
+ * fields, must be registered with a unique, stable id through {@link Builder#register(int, Class)}.
+ * Only the id is written in place of the class, so ids must never be reused or changed once
+ * Actions have been persisted with them. Classes need a no-arg constructor, which may be private.
+ *
+ * The non-static, non-transient fields of a class and its superclasses are written in a fixed
+ * order. Supported field types are primitives and their boxed types, {@link String}, byte arrays,
+ * registered enums and classes, and {@link List}s of any of those. Lists are always read back as
+ * {@link ArrayList}s, so a field declared as another List class, like {@code LinkedList}, is
+ * rejected when its class is registered. Adding, removing or retyping a
+ * field changes the layout, so Actions persisted with an older layout should be given a new class
+ * id.
+ *
+ * Encoding is done into a per-thread buffer that is shared by every instance and reused between
+ * calls, so serializing an Action only allocates the returned array.
+ */
+public class BinaryActionSerializer implements ActionSerializer {
+  private static final int INITIAL_BUFFER_SIZE = 256;
+  // Larger buffers aren't kept by the thread once serialization is done.
+  private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+  private static final int TYPE_NULL = 0;
+  private static final int TYPE_BOOLEAN = 1;
+  private static final int TYPE_BYTE = 2;
+  private static final int TYPE_SHORT = 3;
+  private static final int TYPE_CHAR = 4;
+  private static final int TYPE_INT = 5;
+  private static final int TYPE_LONG = 6;
+  private static final int TYPE_FLOAT = 7;
+  private static final int TYPE_DOUBLE = 8;
+  private static final int TYPE_STRING = 9;
+  private static final int TYPE_BYTES = 10;
+  private static final int TYPE_ENUM = 11;
+  private static final int TYPE_LIST = 12;
+  private static final int TYPE_OBJECT = 13;
+  // Fields of a type that can't be known from the declared type, written with a leading type.
+  private static final int TYPE_REFERENCE = 14;
+
+  // Static, so a thread keeps one buffer of each however many serializers are created. A call is
+  // done with its buffer before it returns, so no two calls on a thread use it at once.
+  private static final ThreadLocal<Output> OUTPUTS = new ThreadLocal<Output>() {
+    @Override protected Output initialValue() {
+      return new Output();
+    }
+  };
+
+  private static final ThreadLocal<Input> INPUTS = new ThreadLocal<Input>() {
+    @Override protected Input initialValue() {
+      return new Input();
+    }
+  };
+
+  private final Map<Class<?>, ClassInfo> mClassInfos;
+  private final Map<Integer, ClassInfo> mClassInfosById;
+
+  private BinaryActionSerializer(Map<Class<?>, ClassInfo> classInfos) {
+    mClassInfos = classInfos;
+    mClassInfosById = new HashMap<Integer, ClassInfo>(classInfos.size());
+    for (ClassInfo info : classInfos.values()) {
+      mClassInfosById.put(info.mId, info);
+    }
+  }
+
+  @Override public byte[] serialize(Action<?> action) {
+    if (action == null) return null;
+
+    Output output = OUTPUTS.get();
+    try {
+      writeObject(output, action);
+      return output.toByteArray();
+    } catch (Throwable t) {
+      throw new RuntimeException("Error while serializing action " + action.getClass().getName()
+          + ". Make sure it, and every enum and object held in its fields, is registered with the "
+          + BinaryActionSerializer.class.getSimpleName() + ", or is transient.", t);
+    } finally {
+      output.reset();
+    }
+  }
+
+  @Override public <T extends Action<?>> T deserialize(byte[] bytes) {
+    if (bytes == null || bytes.length == 0) return null;
+
+    Input input = INPUTS.get();
+    try {
+      input.reset(bytes);
+      //noinspection unchecked
+      return (T) readObject(input);
+    } catch (Throwable t) {
+      t.printStackTrace();
+      return null;
+    } finally {
+      input.reset(null);
+    }
+  }
+
+  private void writeObject(Output output, Object value) throws IllegalAccessException {
+    ClassInfo info = mClassInfos.get(value.getClass());
+    if (info == null) {
+      throw new IllegalArgumentException(value.getClass().getName() + " isn't registered");
+    }
+
+    output.writeVarLong(info.mId);
+    output.writeVarLong(info.mFields.length);
+
+    for (FieldInfo fieldInfo : info.mFields) {
+      Field field = fieldInfo.mField;
+      switch (fieldInfo.mType) {
+        case TYPE_BOOLEAN: output.writeByte(field.getBoolean(value) ? 1 : 0); break;
+        case TYPE_BYTE: output.writeByte(field.getByte(value)); break;
+        case TYPE_SHORT: output.writeZigZag(field.getShort(value)); break;
+        case TYPE_CHAR: output.writeVarLong(field.getChar(value)); break;
+        case TYPE_INT: output.writeZigZag(field.getInt(value)); break;
+        case TYPE_LONG: output.writeZigZag(field.getLong(value)); break;
+        case TYPE_FLOAT: output.writeFixedInt(Float.floatToIntBits(field.getFloat(value))); break;
+        case TYPE_DOUBLE: output.writeFixedLong(Double.doubleToLongBits(field.getDouble(value))); break;
+        default: writeReference(output, field.get(value)); break;
+      }
+    }
+  }
+
+  private void writeReference(Output output, Object value) throws IllegalAccessException {
+    if (value == null) {
+      output.writeByte(TYPE_NULL);
+    } else if (value instanceof String) {
+      output.writeByte(TYPE_STRING);
+      output.writeString((String) value);
+    } else if (value instanceof Integer) {
+      output.writeByte(TYPE_INT);
+      output.writeZigZag((Integer) value);
+    } else if (value instanceof Long) {
+      output.writeByte(TYPE_LONG);
+      output.writeZigZag((Long) value);
+    } else if (value instanceof Boolean) {
+      output.writeByte(TYPE_BOOLEAN);
+      output.writeByte((Boolean) value ? 1 : 0);
+    } else if (value instanceof Double) {
+      output.writeByte(TYPE_DOUBLE);
+      output.writeFixedLong(Double.doubleToLongBits((Double) value));
+    } else if (value instanceof Float) {
+      output.writeByte(TYPE_FLOAT);
+      output.writeFixedInt(Float.floatToIntBits((Float) value));
+    } else if (value instanceof Byte) {
+      output.writeByte(TYPE_BYTE);
+      output.writeByte((Byte) value);
+    } else if (value instanceof Short) {
+      output.writeByte(TYPE_SHORT);
+      output.writeZigZag((Short) value);
+    } else if (value instanceof Character) {
+      output.writeByte(TYPE_CHAR);
+      output.writeVarLong((Character) value);
+    } else if (value instanceof byte[]) {
+      byte[] bytes = (byte[]) value;
+      output.writeByte(TYPE_BYTES);
+      output.writeVarLong(bytes.length);
+      output.writeBytes(bytes);
+    } else if (value instanceof Enum) {
+      Enum<?> enumValue = (Enum<?>) value;
+      ClassInfo info = mClassInfos.get(enumValue.getDeclaringClass());
+      if (info == null) {
+        throw new IllegalArgumentException(enumValue.getDeclaringClass().getName() + " isn't registered");
+      }
+
+      output.writeByte(TYPE_ENUM);
+      output.writeVarLong(info.mId);
+      output.writeVarLong(enumValue.ordinal());
+    } else if (value instanceof List) {
+      List<?> list = (List<?>) value;
+      output.writeByte(TYPE_LIST);
+      output.writeVarLong(list.size());
+      for (int i = 0, size = list.size(); i < size; i++) {
+        writeReference(output, list.get(i));
+      }
+    } else {
+      output.writeByte(TYPE_OBJECT);
+      writeObject(output, value);
+    }
+  }
+
+  private Object readObject(Input input) throws Exception {
+    int id = (int) input.readVarLong();
+    ClassInfo info = mClassInfosById.get(id);
+    if (info == null || info.mConstructor == null) {
+      throw new IllegalArgumentException("No class is registered with id " + id);
+    }
+
+    int fieldCount = (int) input.readVarLong();
+    if (fieldCount != info.mFields.length) {
+      throw new IllegalArgumentException(info.mClass.getName() + " was written with " + fieldCount
+          + " fields, but has " + info.mFields.length);
+    }
+
+    Object value = info.mConstructor.newInstance();
+    for (FieldInfo fieldInfo : info.mFields) {
+      Field field = fieldInfo.mField;
+      switch (fieldInfo.mType) {
+        case TYPE_BOOLEAN: field.setBoolean(value, input.readByte() != 0); break;
+        case TYPE_BYTE: field.setByte(value, (byte) input.readByte()); break;
+        case TYPE_SHORT: field.setShort(value, (short) input.readZigZag()); break;
+        case TYPE_CHAR: field.setChar(value, (char) input.readVarLong()); break;
+        case TYPE_INT: field.setInt(value, (int) input.readZigZag()); break;
+        case TYPE_LONG: field.setLong(value, input.readZigZag()); break;
+        case TYPE_FLOAT: field.setFloat(value, Float.intBitsToFloat(input.readFixedInt())); break;
+        case TYPE_DOUBLE: field.setDouble(value, Double.longBitsToDouble(input.readFixedLong())); break;
+        default: field.set(value, readReference(input)); break;
+      }
+    }
+
+    return value;
+  }
+
+  private Object readReference(Input input) throws Exception {
+    int type = input.readByte();
+    switch (type) {
+      case TYPE_NULL: return null;
+      case TYPE_STRING: return input.readString();
+      case TYPE_INT: return (int) input.readZigZag();
+      case TYPE_LONG: return input.readZigZag();
+      case TYPE_BOOLEAN: return input.readByte() != 0;
+      case TYPE_DOUBLE: return Double.longBitsToDouble(input.readFixedLong());
+      case TYPE_FLOAT: return Float.intBitsToFloat(input.readFixedInt());
+      case TYPE_BYTE: return (byte) input.readByte();
+      case TYPE_SHORT: return (short) input.readZigZag();
+      case TYPE_CHAR: return (char) input.readVarLong();
+      case TYPE_BYTES: return input.readBytes((int) input.readVarLong());
+      case TYPE_ENUM: {
+        int id = (int) input.readVarLong();
+        ClassInfo info = mClassInfosById.get(id);
+        if (info == null || info.mEnumConstants == null) {
+          throw new IllegalArgumentException("No enum is registered with id " + id);
+        }
+        return info.mEnumConstants[(int) input.readVarLong()];
+      }
+      case TYPE_LIST: {
+        int size = (int) input.readVarLong();
+        List<Object> list = new ArrayList<Object>(size);
+        for (int i = 0; i < size; i++) {
+          list.add(readReference(input));
+        }
+        return list;
+      }
+      case TYPE_OBJECT: return readObject(input);
+      default: throw new IllegalArgumentException("Unknown type " + type);
+    }
+  }
+
+  private static class ClassInfo {
+    final int mId;
+    final Class<?> mClass;
+    // Only one of these is set, depending on whether the class is an enum.
+    final Constructor<?> mConstructor;
+    final Object[] mEnumConstants;
+    final FieldInfo[] mFields;
+
+    ClassInfo(int id, Class<?> clazz) {
+      mId = id;
+      mClass = clazz;
+
+      if (clazz.isEnum()) {
+        mConstructor = null;
+        mEnumConstants = clazz.getEnumConstants();
+        mFields = new FieldInfo[0];
+      } else {
+        try {
+          mConstructor = clazz.getDeclaredConstructor();
+          mConstructor.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+          throw new IllegalArgumentException(clazz.getName() + " needs a no-arg constructor", e);
+        }
+        mEnumConstants = null;
+        mFields = fieldsOf(clazz);
+      }
+    }
+
+    /**
+     * @return the persistent fields of the class, from its topmost superclass down, in name order
+     * within each class.
+     */
+    private static FieldInfo[] fieldsOf(Class<?> clazz) {
+      List<Class<?>> hierarchy = new ArrayList<Class<?>>();
+      for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+        hierarchy.add(0, c);
+      }
+
+      List<FieldInfo> fields = new ArrayList<FieldInfo>();
+      for (Class<?> c : hierarchy) {
+        Field[] declaredFields = c.getDeclaredFields();
+        Arrays.sort(declaredFields, new Comparator<Field>() {
+          @Override public int compare(Field lhs, Field rhs) {
+            return lhs.getName().compareTo(rhs.getName());
+          }
+        });
+
+        for (Field field : declaredFields) {
+          int modifiers = field.getModifiers();
+          if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+            continue;
+          }
+
+          field.setAccessible(true);
+          fields.add(new FieldInfo(field));
+        }
+      }
+
+      return fields.toArray(new FieldInfo[fields.size()]);
+    }
+  }
+
+  private static class FieldInfo {
+    final Field mField;
+    final int mType;
+
+    FieldInfo(Field field) {
+      mField = field;
+
+      Class<?> type = field.getType();
+      if (type == boolean.class) mType = TYPE_BOOLEAN;
+      else if (type == byte.class) mType = TYPE_BYTE;
+      else if (type == short.class) mType = TYPE_SHORT;
+      else if (type == char.class) mType = TYPE_CHAR;
+      else if (type == int.class) mType = TYPE_INT;
+      else if (type == long.class) mType = TYPE_LONG;
+      else if (type == float.class) mType = TYPE_FLOAT;
+      else if (type == double.class) mType = TYPE_DOUBLE;
+      else mType = TYPE_REFERENCE;
+
+      if (List.class.isAssignableFrom(type) && !type.isAssignableFrom(ArrayList.class)) {
+        throw new IllegalArgumentException(field.getDeclaringClass().getName() + "." + field.getName()
+            + " is a " + type.getName() + ", but Lists are read back as ArrayLists. Declare it as a List.");
+      }
+    }
+  }
+
+  /**
+   * A growable byte buffer, reused by a single thread.
+   */
+  private static class Output {
+    private byte[] mBuffer = new byte[INITIAL_BUFFER_SIZE];
+    private int mPosition = 0;
+
+    void reset() {
+      mPosition = 0;
+      if (mBuffer.length > MAX_RETAINED_BUFFER_SIZE) mBuffer = new byte[INITIAL_BUFFER_SIZE];
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(mBuffer, mPosition);
+    }
+
+    private void ensureCapacity(int count) {
+      if (mPosition + count > mBuffer.length) {
+        mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mPosition + count));
+      }
+    }
+
+    void writeByte(int value) {
+      ensureCapacity(1);
+      mBuffer[mPosition++] = (byte) value;
+    }
+
+    void writeBytes(byte[] bytes) {
+      ensureCapacity(bytes.length);
+      System.arraycopy(bytes, 0, mBuffer, mPosition, bytes.length);
+      mPosition += bytes.length;
+    }
+
+    void writeVarLong(long value) {
+      ensureCapacity(10);
+      while ((value & ~0x7FL) != 0) {
+        mBuffer[mPosition++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      mBuffer[mPosition++] = (byte) value;
+    }
+
+    void writeZigZag(long value) {
+      writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    void writeFixedInt(int value) {
+      ensureCapacity(4);
+      mBuffer[mPosition++] = (byte) (value >>> 24);
+      mBuffer[mPosition++] = (byte) (value >>> 16);
+      mBuffer[mPosition++] = (byte) (value >>> 8);
+      mBuffer[mPosition++] = (byte) value;
+    }
+
+    void writeFixedLong(long value) {
+      writeFixedInt((int) (value >>> 32));
+      writeFixedInt((int) value);
+    }
+
+    /**
+     * Writes the char count, then each char as 1 to 3 bytes, like modified UTF-8.
+     */
+    void writeString(String value) {
+      int length = value.length();
+      writeVarLong(length);
+      ensureCapacity(length * 3);
+
+      for (int i = 0; i < length; i++) {
+        char c = value.charAt(i);
+        if (c > 0 && c < 0x80) {
+          mBuffer[mPosition++] = (byte) c;
+        } else if (c < 0x800) {
+          mBuffer[mPosition++] = (byte) (0xC0 | (c >> 6));
+          mBuffer[mPosition++] = (byte) (0x80 | (c & 0x3F));
+        } else {
+          mBuffer[mPosition++] = (byte) (0xE0 | (c >> 12));
+          mBuffer[mPosition++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+          mBuffer[mPosition++] = (byte) (0x80 | (c & 0x3F));
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads from a byte array, reused by a single thread.
+   */
+  private static class Input {
+    private byte[] mBuffer;
+    private int mPosition;
+    private char[] mChars = new char[INITIAL_BUFFER_SIZE];
+
+    void reset(byte[] buffer) {
+      mBuffer = buffer;
+      mPosition = 0;
+      if (mChars.length > MAX_RETAINED_BUFFER_SIZE) mChars = new char[INITIAL_BUFFER_SIZE];
+    }
+
+    int readByte() {
+      return mBuffer[mPosition++];
+    }
+
+    byte[] readBytes(int count) {
+      byte[] bytes = Arrays.copyOfRange(mBuffer, mPosition, mPosition + count);
+      mPosition += count;
+      return bytes;
+    }
+
+    long readVarLong() {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        byte b = mBuffer[mPosition++];
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) return value;
+      }
+      throw new IllegalArgumentException("Malformed varint");
+    }
+
+    long readZigZag() {
+      long value = readVarLong();
+      return (value >>> 1) ^ -(value & 1);
+    }
+
+    int readFixedInt() {
+      return ((mBuffer[mPosition++] & 0xFF) << 24)
+          | ((mBuffer[mPosition++] & 0xFF) << 16)
+          | ((mBuffer[mPosition++] & 0xFF) << 8)
+          | (mBuffer[mPosition++] & 0xFF);
+    }
+
+    long readFixedLong() {
+      return ((long) readFixedInt() << 32) | (readFixedInt() & 0xFFFFFFFFL);
+    }
+
+    String readString() {
+      int length = (int) readVarLong();
+      if (mChars.length < length) mChars = new char[length];
+
+      for (int i = 0; i < length; i++) {
+        int b = mBuffer[mPosition++] & 0xFF;
+        if (b < 0x80) {
+          mChars[i] = (char) b;
+        } else if (b < 0xE0) {
+          mChars[i] = (char) (((b & 0x1F) << 6) | (mBuffer[mPosition++] & 0x3F));
+        } else {
+          mChars[i] = (char) (((b & 0x0F) << 12)
+              | ((mBuffer[mPosition++] & 0x3F) << 6)
+              | (mBuffer[mPosition++] & 0x3F));
+        }
+      }
+
+      return new String(mChars, 0, length);
+    }
+  }
+
+  public static class Builder {
+    private final Map<Class<?>, ClassInfo> mClassInfos = new HashMap<Class<?>, ClassInfo>();
+    private final Map<Integer, Class<?>> mRegisteredIds = new HashMap<Integer, Class<?>>();
+
+    public BinaryActionSerializer build() {
+      return new BinaryActionSerializer(new HashMap<Class<?>, ClassInfo>(mClassInfos));
+    }
+
+    /**
+     * Registers a class that can be serialized, either an Action, or an enum or object held in the
+     * fields of an Action.
+     *
+     * @param id a positive id that is written in place of the class. It must stay the same for as
+     *           long as Actions persisted with it may be read.
+     */
+    public BinaryActionSerializer.Builder register(int id, Class<?> clazz) {
+      if (id <= 0) throw new IllegalArgumentException("id must be positive");
+      if (mRegisteredIds.containsKey(id)) {
+        throw new IllegalArgumentException("id " + id + " is already registered to "
+            + mRegisteredIds.get(id).getName());
+      }
+      if (mClassInfos.containsKey(clazz)) {
+        throw new IllegalArgumentException(clazz.getName() + " is already registered");
+      }
+
+      mClassInfos.put(clazz, new ClassInfo(id, clazz));
+      mRegisteredIds.put(id, clazz);
+      return this;
+    }
+  }
+}
@@ -10,8 +10,13 @@ import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
-public class JavaActionSerializer {
-  public byte[] serialize(Action<?> action) {
+/**
+ * Serializes Actions with Java serialization. Actions must implement {@link Serializable}. This is
+ * the default {@link ActionSerializer}, and the one to use to read Actions persisted by earlier
+ * versions.
+ */
+public class JavaActionSerializer implements ActionSerializer {
+  @Override public byte[] serialize(Action<?> action) {
     try {
       return unsafeSerialize(action);
     } catch (Throwable t) {
@@ -22,7 +27,7 @@ public class JavaActionSerializer {
     }
   }
 
-  public <T extends Action<?>> T deserialize(byte[] bytes) {
+  @Override public <T extends Action<?>> T deserialize(byte[] bytes) {
     try {
       return unsafeDeserialize(bytes);
     } catch (Throwable t) {
@@ -0,0 +1,947 @@
+package com.wmba.actiondispatcher.persist;
+
+import com.wmba.actiondispatcher.Action;
+import com.wmba.actiondispatcher.ActionLogger;
+import com.wmba.actiondispatcher.BatchActionPersister;
+import com.wmba.actiondispatcher.CheckpointActionPersister;
+import com.wmba.actiondispatcher.PagedActionPersister;
+import com.wmba.actiondispatcher.RetryStateActionPersister;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An {@link com.wmba.actiondispatcher.ActionPersister} for plain JVM deployments that keeps Actions
+ * in an append-only journal on disk.
+ *
+ * The journal is a directory of segment files. Every persist or update appends a record holding the
+ * Action's id and serialized form, and every delete appends a tombstone. Retry state updates
+ * append a small record of their own, without the Action. Only the active, last
+ * segment is written to. Once it grows past the max segment size a new one is started, and a
+ * background thread compacts the older segments by copying their live records forward and deleting
+ * them. Recovery is a single sequential scan over the memory mapped segments, where the last record
+ * for an id wins.
+ *
+ * Each record ends with a CRC32, so a record torn by a crash is detected and dropped on recovery.
+ * An Action that can't be deserialized is moved to the quarantine directory inside the journal's
+ * directory, as a file named after its id, so the other Actions still load.
+ */
+public class JournalActionPersister implements BatchActionPersister, RetryStateActionPersister,
+    PagedActionPersister, CheckpointActionPersister, Closeable {
+  /**
+   * When the journal is flushed to the storage device.
+   */
+  public enum FsyncPolicy {
+    /**
+     * After every write, before the write returns. The most durable, and the slowest.
+     */
+    ALWAYS,
+    /**
+     * Periodically on a background thread, see {@link Builder#withFsyncPolicy(FsyncPolicy, long)}.
+     * Writes since the last flush can be lost if the machine, but not just the process, crashes.
+     */
+    BATCHED,
+    /**
+     * Left to the operating system.
+     */
+    OS
+  }
+
+  public static final long DEFAULT_MAX_SEGMENT_BYTES = 4L * 1024 * 1024;
+  public static final long DEFAULT_FSYNC_INTERVAL_MILLIS = 100L;
+  public static final long DEFAULT_COMPACTION_INTERVAL_MILLIS = 30000L;
+
+  private static final String SEGMENT_PREFIX = "journal-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String QUARANTINE_DIRECTORY = "quarantine";
+
+  private static final int SEGMENT_MAGIC = 0x41444a31; // "ADJ1"
+  // Magic, then the next id at the time the segment was created.
+  private static final int SEGMENT_HEADER_SIZE = 4 + 8;
+
+  private static final byte TYPE_PUT = 1;
+  private static final byte TYPE_DELETE = 2;
+  private static final byte TYPE_RETRY_STATE = 3;
+  // Type, id, payload length and crc.
+  private static final int RECORD_OVERHEAD = 1 + 8 + 4 + 4;
+  // A retry state record has the retry state as its payload.
+  private static final int RETRY_STATE_RECORD_LENGTH = RECORD_OVERHEAD + 4;
+
+  // The most compaction copies, or index entries it looks at, while holding the lock at a time, so
+  // writes of the dispatcher don't wait for a whole compaction.
+  private static final int COMPACTION_CHUNK_BYTES = 256 * 1024;
+  private static final int COMPACTION_CHUNK_ENTRIES = 4096;
+
+  private final File mDirectory;
+  private final ActionSerializer mSerializer;
+  private final ActionLogger mActionLogger;
+  private final FsyncPolicy mFsyncPolicy;
+  private final long mMaxSegmentBytes;
+
+  /**
+   * The location of the latest record of every live id. Guarded by this.
+   */
+  private final TreeMap<Long, Location> mIndex = new TreeMap<Long, Location>();
+  /**
+   * The latest retry state of live ids that have one, and the segment it was written to. Guarded by
+   * this.
+   */
+  private final Map<Long, RetryState> mRetryStates = new HashMap<Long, RetryState>();
+  private final TreeMap<Long, Segment> mSegments = new TreeMap<Long, Segment>();
+  private final CRC32 mCrc = new CRC32();
+  private final ScheduledExecutorService mBackgroundExecutor;
+  /**
+   * Held for a whole compaction, so only one runs at a time. Taken before this, never after.
+   */
+  private final Object mCompactionLock = new Object();
+
+  private Segment mActiveSegment;
+  private FileChannel mActiveChannel;
+  private long mNextId = 1;
+  private boolean mUnsynced = false;
+  private boolean mClosed = false;
+
+  private JournalActionPersister(Builder builder) {
+    mDirectory = builder.mDirectory;
+    mSerializer = builder.mSerializer;
+    mActionLogger = builder.mActionLogger;
+    mFsyncPolicy = builder.mFsyncPolicy;
+    mMaxSegmentBytes = builder.mMaxSegmentBytes;
+
+    try {
+      open();
+    } catch (IOException e) {
+      throw new RuntimeException("Error opening the journal in " + mDirectory, e);
+    }
+
+    mBackgroundExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "ActionDispatcherThread-journal");
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.setDaemon(true);
+        return t;
+      }
+    });
+
+    if (mFsyncPolicy == FsyncPolicy.BATCHED) {
+      mBackgroundExecutor.scheduleWithFixedDelay(new Runnable() {
+        @Override public void run() {
+          syncIfNeeded();
+        }
+      }, builder.mFsyncIntervalMillis, builder.mFsyncIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    if (builder.mCompactionIntervalMillis > 0) {
+      mBackgroundExecutor.scheduleWithFixedDelay(new Runnable() {
+        @Override public void run() {
+          try {
+            compact();
+          } catch (Throwable t) {
+            // Compaction is retried on the next interval, and the journal stays correct without it.
+            logError(t, "Error compacting the journal in " + mDirectory);
+          }
+        }
+      }, builder.mCompactionIntervalMillis, builder.mCompactionIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @Override public synchronized long persist(Action<?> action) {
+    long id = mNextId++;
+    append(encodePut(id, action));
+    return id;
+  }
+
+  @Override public synchronized long[] persistAll(List<? extends Action<?>> actions) {
+    long[] ids = new long[actions.size()];
+    List<ByteBuffer> records = new ArrayList<ByteBuffer>(ids.length);
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = mNextId++;
+      records.add(encodePut(ids[i], actions.get(i)));
+    }
+
+    append(records);
+    return ids;
+  }
+
+  /**
+   * Does nothing if the Action was already deleted, so a late update doesn't bring it back.
+   */
+  @Override public synchronized void update(long id, Action<?> action) {
+    if (!mIndex.containsKey(id)) return;
+    append(encodePut(id, action));
+  }
+
+  @Override public synchronized void updateAll(long[] ids, List<? extends Action<?>> actions) {
+    List<ByteBuffer> records = new ArrayList<ByteBuffer>(ids.length);
+    for (int i = 0; i < ids.length; i++) {
+      if (mIndex.containsKey(ids[i])) records.add(encodePut(ids[i], actions.get(i)));
+    }
+
+    if (!records.isEmpty()) append(records);
+  }
+
+  @Override public synchronized void updateRetryState(long id, int retryState) {
+    if (!mIndex.containsKey(id)) return;
+    append(encodeRetryState(id, retryState));
+  }
+
+  @Override public synchronized void delete(long id) {
+    append(encodeDelete(id));
+  }
+
+  @Override public synchronized void deleteAll(long[] ids) {
+    List<ByteBuffer> records = new ArrayList<ByteBuffer>(ids.length);
+    for (long id : ids) {
+      records.add(encodeDelete(id));
+    }
+
+    append(records);
+  }
+
+  @Override public synchronized List<PersistedActionHolder> getPersistedActions() {
+    checkOpen();
+    return read(mIndex.entrySet(), mIndex.size());
+  }
+
+  @Override public synchronized List<PersistedActionHolder> getPersistedActions(long afterId, int limit) {
+    checkOpen();
+    return read(mIndex.tailMap(afterId, false).entrySet(), limit);
+  }
+
+  /**
+   * Reads and deserializes up to {@code limit} of the indexed Actions.
+   */
+  private List<PersistedActionHolder> read(Iterable<Map.Entry<Long, Location>> entries, int limit) {
+    List<PersistedActionHolder> persistedActions = new ArrayList<PersistedActionHolder>(Math.min(limit, mIndex.size()));
+    Map<Segment, MappedByteBuffer> mappedSegments = new HashMap<Segment, MappedByteBuffer>();
+    Map<Long, byte[]> unreadable = null;
+
+    try {
+      for (Map.Entry<Long, Location> entry : entries) {
+        if (persistedActions.size() == limit) break;
+
+        Location location = entry.getValue();
+
+        MappedByteBuffer buffer = mappedSegments.get(location.mSegment);
+        if (buffer == null) {
+          buffer = map(location.mSegment);
+          mappedSegments.put(location.mSegment, buffer);
+        }
+
+        byte[] serializedAction = readPayload(buffer, location.mOffset);
+        Action<?> action = deserialize(entry.getKey(), serializedAction);
+        if (action == null) {
+          if (unreadable == null) unreadable = new HashMap<Long, byte[]>();
+          unreadable.put(entry.getKey(), serializedAction);
+          continue;
+        }
+
+        RetryState retryState = mRetryStates.get(entry.getKey());
+        persistedActions.add((retryState != null)
+            ? new PersistedActionHolder(entry.getKey(), action, retryState.mValue)
+            : new PersistedActionHolder(entry.getKey(), action));
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Error reading the journal in " + mDirectory, e);
+    }
+
+    // After the loop, as it iterates over the index.
+    if (unreadable != null) quarantine(unreadable);
+    return persistedActions;
+  }
+
+  /**
+   * @return null if the Action can't be deserialized.
+   */
+  private Action<?> deserialize(long id, byte[] serializedAction) {
+    try {
+      Action<?> action = mSerializer.deserialize(serializedAction);
+      if (action == null) logError(new IOException("Deserialized to null"), "Error reading Action " + id);
+      return action;
+    } catch (Throwable t) {
+      logError(t, "Error reading Action " + id);
+      return null;
+    }
+  }
+
+  /**
+   * Moves Actions that can't be deserialized out of the journal, and into files of their own, so
+   * they aren't read again on every start, but aren't lost either.
+   */
+  private void quarantine(Map<Long, byte[]> serializedActions) {
+    File directory = new File(mDirectory, QUARANTINE_DIRECTORY);
+    List<ByteBuffer> records = new ArrayList<ByteBuffer>(serializedActions.size());
+    try {
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("Unable to create the quarantine directory " + directory);
+      }
+
+      for (Map.Entry<Long, byte[]> entry : serializedActions.entrySet()) {
+        File file = new File(directory, entry.getKey() + ".action");
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+          output.setLength(0);
+          output.write(entry.getValue());
+          output.getFD().sync();
+        } finally {
+          output.close();
+        }
+        records.add(encodeDelete(entry.getKey()));
+      }
+    } catch (IOException e) {
+      // Left in the journal, to be tried again on the next read.
+      logError(e, "Error quarantining Actions of the journal in " + mDirectory);
+    }
+
+    if (!records.isEmpty()) append(records);
+  }
+
+  @Override public synchronized void deleteAll() {
+    checkOpen();
+
+    try {
+      closeActiveChannel();
+      for (Segment segment : mSegments.values()) {
+        deleteFile(segment.mFile);
+      }
+
+      mSegments.clear();
+      mIndex.clear();
+      mRetryStates.clear();
+      startSegment();
+    } catch (IOException e) {
+      throw new RuntimeException("Error clearing the journal in " + mDirectory, e);
+    }
+  }
+
+  /**
+   * Copies the live records of every segment but the active one into new segments, and deletes
+   * those segments. Segments are only compacted once at most half of their bytes are live, so large
+   * live sets aren't copied over and over. The records are copied a chunk at a time, and other
+   * writes go on between chunks.
+   *
+   * This runs periodically in the background, but can be called directly, for example before a
+   * planned shutdown to speed up the next recovery.
+   */
+  public void compact() throws IOException {
+    compact(false);
+  }
+
+  /**
+   * Moves the live records of every segment into new ones, and deletes the others, so the next
+   * open only reads the Actions that are still persisted.
+   */
+  @Override public void checkpoint() {
+    try {
+      compact(true);
+    } catch (IOException e) {
+      throw new RuntimeException("Error checkpointing the journal in " + mDirectory, e);
+    }
+  }
+
+  /**
+   * @param force true to compact every segment, including the active one, however many of their
+   *              bytes are live.
+   */
+  private void compact(boolean force) throws IOException {
+    synchronized (mCompactionLock) {
+      Map<Segment, MappedByteBuffer> mappedSegments = startCompaction(force);
+      if (mappedSegments == null) return;
+
+      Set<Long> copiedIds = new HashSet<Long>();
+      Set<Segment> copySegments = new HashSet<Segment>();
+
+      long afterId = Long.MIN_VALUE;
+      while (afterId != Long.MAX_VALUE) {
+        synchronized (this) {
+          if (mClosed) return;
+          afterId = copyActions(mappedSegments, afterId, copiedIds, copySegments);
+        }
+      }
+
+      // Retry states are written again after the copies of their Actions, as a scan drops a retry
+      // state of an id it hasn't seen yet.
+      List<Long> retryStateIds;
+      synchronized (this) {
+        if (mClosed) return;
+        retryStateIds = new ArrayList<Long>();
+        for (Map.Entry<Long, RetryState> entry : mRetryStates.entrySet()) {
+          if (copiedIds.contains(entry.getKey()) || mappedSegments.containsKey(entry.getValue().mSegment)) {
+            retryStateIds.add(entry.getKey());
+          }
+        }
+      }
+
+      for (int i = 0, size = retryStateIds.size(); i < size; ) {
+        synchronized (this) {
+          if (mClosed) return;
+          int chunkEnd = Math.min(size, i + COMPACTION_CHUNK_BYTES / RETRY_STATE_RECORD_LENGTH);
+          for (; i < chunkEnd; i++) {
+            long id = retryStateIds.get(i);
+            RetryState retryState = mRetryStates.get(id);
+            if (retryState == null) continue;
+
+            writeCopy(encodeRetryState(id, retryState.mValue), copySegments);
+            mRetryStates.put(id, new RetryState(mActiveSegment, retryState.mValue));
+          }
+        }
+      }
+
+      synchronized (this) {
+        if (mClosed) return;
+        finishCompaction(mappedSegments.keySet(), copySegments);
+      }
+    }
+  }
+
+  /**
+   * Decides whether to compact, and if so starts a new segment for the copies.
+   *
+   * @return the segments to compact, mapped, or null to not compact.
+   */
+  private synchronized Map<Segment, MappedByteBuffer> startCompaction(boolean force) throws IOException {
+    if (mClosed) return null;
+    if (force && mActiveSegment.mSize > SEGMENT_HEADER_SIZE) rotate();
+    if (mSegments.size() < 2) return null;
+
+    List<Segment> sealedSegments = new ArrayList<Segment>(mSegments.headMap(mActiveSegment.mNumber).values());
+
+    if (!force) {
+      long sealedBytes = 0;
+      for (Segment segment : sealedSegments) {
+        sealedBytes += segment.mSize;
+      }
+
+      long liveBytes = 0;
+      for (Location location : mIndex.values()) {
+        if (location.mSegment != mActiveSegment) liveBytes += location.mLength;
+      }
+      for (RetryState retryState : mRetryStates.values()) {
+        if (retryState.mSegment != mActiveSegment) liveBytes += RETRY_STATE_RECORD_LENGTH;
+      }
+
+      if (liveBytes * 2 > sealedBytes) return null;
+
+      // The copies go to segments of their own, and never into the records of the active one.
+      if (mActiveSegment.mSize > SEGMENT_HEADER_SIZE) rotate();
+    }
+
+    Map<Segment, MappedByteBuffer> mappedSegments = new HashMap<Segment, MappedByteBuffer>();
+    for (Segment segment : sealedSegments) {
+      mappedSegments.put(segment, map(segment));
+    }
+    return mappedSegments;
+  }
+
+  /**
+   * Copies a chunk of the live Actions that are in the compacted segments, in order of id.
+   *
+   * @return the last id looked at, to continue after, or {@link Long#MAX_VALUE} once done.
+   */
+  private long copyActions(Map<Segment, MappedByteBuffer> mappedSegments, long afterId,
+      Set<Long> copiedIds, Set<Segment> copySegments) throws IOException {
+    int copiedBytes = 0;
+    int entryCount = 0;
+    for (Map.Entry<Long, Location> entry : mIndex.tailMap(afterId, false).entrySet()) {
+      if (copiedBytes >= COMPACTION_CHUNK_BYTES || entryCount++ == COMPACTION_CHUNK_ENTRIES) {
+        return afterId;
+      }
+      afterId = entry.getKey();
+
+      Location location = entry.getValue();
+      MappedByteBuffer buffer = mappedSegments.get(location.mSegment);
+      if (buffer == null) continue; // Already outside of the compacted segments.
+
+      ByteBuffer record = buffer.duplicate();
+      record.position((int) location.mOffset);
+      record.limit((int) (location.mOffset + location.mLength));
+
+      long offset = writeCopy(record, copySegments);
+      entry.setValue(new Location(mActiveSegment, offset, location.mLength));
+      copiedIds.add(entry.getKey());
+      copiedBytes += location.mLength;
+    }
+    return Long.MAX_VALUE;
+  }
+
+  /**
+   * Writes a copied record to the active segment, starting a new one if it is full.
+   *
+   * @return the offset of the record in the active segment.
+   */
+  private long writeCopy(ByteBuffer record, Set<Segment> copySegments) throws IOException {
+    int length = record.remaining();
+    if (mActiveSegment.mSize > SEGMENT_HEADER_SIZE && mActiveSegment.mSize + length > mMaxSegmentBytes) {
+      rotate();
+    }
+
+    long offset = mActiveSegment.mSize;
+    writeFully(mActiveChannel, record);
+    mActiveSegment.mSize += length;
+    mUnsynced = true;
+    copySegments.add(mActiveSegment);
+    return offset;
+  }
+
+  /**
+   * Makes the copies durable, whatever the policy, and only then deletes the compacted segments.
+   */
+  private void finishCompaction(Set<Segment> compactedSegments, Set<Segment> copySegments) throws IOException {
+    for (Segment segment : copySegments) {
+      if (segment == mActiveSegment) {
+        mActiveChannel.force(false);
+        mUnsynced = false;
+      } else if (mSegments.get(segment.mNumber) == segment) {
+        sync(segment);
+      }
+    }
+
+    for (Segment segment : compactedSegments) {
+      // The journal may have been cleared, and its segment numbers reused, since.
+      if (mSegments.get(segment.mNumber) != segment) continue;
+
+      mSegments.remove(segment.mNumber);
+      deleteFile(segment.mFile);
+    }
+  }
+
+  /**
+   * Flushes and closes the journal, and stops its background thread.
+   */
+  @Override public synchronized void close() throws IOException {
+    if (mClosed) return;
+
+    mClosed = true;
+    mBackgroundExecutor.shutdown();
+    if (mFsyncPolicy != FsyncPolicy.OS) mActiveChannel.force(false);
+    closeActiveChannel();
+  }
+
+  private void open() throws IOException {
+    if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+      throw new IOException("Unable to create the journal directory " + mDirectory);
+    }
+
+    File[] files = mDirectory.listFiles(new FilenameFilter() {
+      @Override public boolean accept(File dir, String name) {
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        long number = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+            name.length() - SEGMENT_SUFFIX.length()));
+        mSegments.put(number, new Segment(number, file));
+      }
+    }
+
+    for (Iterator<Segment> iterator = mSegments.values().iterator(); iterator.hasNext(); ) {
+      Segment segment = iterator.next();
+      if (!scan(segment)) {
+        // Not a segment, or a segment whose header was never fully written.
+        deleteFile(segment.mFile);
+        iterator.remove();
+      }
+    }
+
+    if (mSegments.isEmpty()) {
+      startSegment();
+    } else {
+      mActiveSegment = mSegments.lastEntry().getValue();
+      mActiveChannel = new RandomAccessFile(mActiveSegment.mFile, "rw").getChannel();
+      // Drop a record torn by a crash, so new records are appended after the last valid one.
+      mActiveChannel.truncate(mActiveSegment.mSize);
+      mActiveChannel.position(mActiveSegment.mSize);
+    }
+  }
+
+  /**
+   * Applies the records of the segment to the index.
+   *
+   * @return false if the segment doesn't have a valid header.
+   */
+  private boolean scan(Segment segment) throws IOException {
+    MappedByteBuffer buffer = map(segment);
+    if (buffer.limit() < SEGMENT_HEADER_SIZE || buffer.getInt(0) != SEGMENT_MAGIC) {
+      return false;
+    }
+
+    mNextId = Math.max(mNextId, buffer.getLong(4));
+
+    int offset = SEGMENT_HEADER_SIZE;
+    int length;
+    while ((length = validRecordLength(buffer, offset)) > 0) {
+      long id = buffer.getLong(offset + 1);
+      apply(buffer, offset, segment, offset, length);
+
+      mNextId = Math.max(mNextId, id + 1);
+      offset += length;
+    }
+
+    segment.mSize = offset;
+    return true;
+  }
+
+  /**
+   * @return the length of the record at the offset, or 0 if there isn't a complete and valid one.
+   */
+  private int validRecordLength(ByteBuffer buffer, int offset) {
+    int limit = buffer.limit();
+    if (limit - offset < RECORD_OVERHEAD) return 0;
+
+    byte type = buffer.get(offset);
+    if (type != TYPE_PUT && type != TYPE_DELETE && type != TYPE_RETRY_STATE) return 0;
+
+    int payloadLength = buffer.getInt(offset + 9);
+    if (payloadLength < 0 || payloadLength > limit - offset - RECORD_OVERHEAD) return 0;
+
+    int length = RECORD_OVERHEAD + payloadLength;
+    byte[] bytes = new byte[length - 4];
+    ByteBuffer record = buffer.duplicate();
+    record.position(offset);
+    record.get(bytes);
+
+    mCrc.reset();
+    mCrc.update(bytes, 0, bytes.length);
+    return ((int) mCrc.getValue() == record.getInt()) ? length : 0;
+  }
+
+  /**
+   * Applies a valid record to the index.
+   *
+   * @param position where the record starts in the buffer.
+   * @param offset where the record starts in the segment.
+   */
+  private void apply(ByteBuffer buffer, int position, Segment segment, long offset, int length) {
+    byte type = buffer.get(position);
+    long id = buffer.getLong(position + 1);
+
+    if (type == TYPE_PUT) {
+      mIndex.put(id, new Location(segment, offset, length));
+      // The Action in the record holds its own, newer, retry state.
+      mRetryStates.remove(id);
+    } else if (type == TYPE_DELETE) {
+      mIndex.remove(id);
+      mRetryStates.remove(id);
+    } else if (mIndex.containsKey(id)) {
+      // The retry state is the whole payload.
+      int value = buffer.getInt(position + RECORD_OVERHEAD - 4);
+      mRetryStates.put(id, new RetryState(segment, value));
+    }
+  }
+
+  private static byte[] readPayload(ByteBuffer buffer, long offset) {
+    int payloadLength = buffer.getInt((int) offset + 9);
+
+    byte[] payload = new byte[payloadLength];
+    ByteBuffer record = buffer.duplicate();
+    record.position((int) offset + 13);
+    record.get(payload);
+    return payload;
+  }
+
+  private ByteBuffer encodePut(long id, Action<?> action) {
+    return encode(TYPE_PUT, id, mSerializer.serialize(action));
+  }
+
+  private ByteBuffer encodeDelete(long id) {
+    return encode(TYPE_DELETE, id, new byte[0]);
+  }
+
+  private ByteBuffer encodeRetryState(long id, int retryState) {
+    byte[] payload = ByteBuffer.allocate(4).putInt(retryState).array();
+    return encode(TYPE_RETRY_STATE, id, payload);
+  }
+
+  private ByteBuffer encode(byte type, long id, byte[] payload) {
+    ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + payload.length);
+    record.put(type)
+        .putLong(id)
+        .putInt(payload.length)
+        .put(payload);
+
+    mCrc.reset();
+    mCrc.update(record.array(), 0, record.position());
+    record.putInt((int) mCrc.getValue());
+
+    record.flip();
+    return record;
+  }
+
+  private void append(ByteBuffer record) {
+    append(Collections.singletonList(record));
+  }
+
+  /**
+   * Writes the records to the active segment, in order, followed by a single fsync when the policy
+   * requires it.
+   */
+  private void append(List<ByteBuffer> records) {
+    checkOpen();
+
+    try {
+      long recordsLength = 0;
+      for (ByteBuffer record : records) {
+        recordsLength += record.remaining();
+      }
+      // Segments stay within the max size, so offsets in them fit in an int.
+      if (mActiveSegment.mSize > SEGMENT_HEADER_SIZE
+          && mActiveSegment.mSize + recordsLength > mMaxSegmentBytes) {
+        rotate();
+      }
+
+      long offset = mActiveSegment.mSize;
+      writeFully(mActiveChannel, records.toArray(new ByteBuffer[records.size()]));
+
+      for (ByteBuffer record : records) {
+        int length = record.limit();
+        apply(record, 0, mActiveSegment, offset, length);
+        offset += length;
+      }
+      mActiveSegment.mSize = offset;
+
+      if (mFsyncPolicy == FsyncPolicy.ALWAYS) {
+        mActiveChannel.force(false);
+      } else {
+        mUnsynced = true;
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Error writing to the journal in " + mDirectory, e);
+    }
+  }
+
+  private void rotate() throws IOException {
+    if (mFsyncPolicy != FsyncPolicy.OS) mActiveChannel.force(false);
+    mUnsynced = false;
+    closeActiveChannel();
+    startSegment();
+  }
+
+  private void startSegment() throws IOException {
+    long number = mSegments.isEmpty() ? 0 : mSegments.lastKey() + 1;
+    File file = new File(mDirectory, String.format("%s%020d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+
+    Segment segment = new Segment(number, file);
+    FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+    channel.truncate(0);
+
+    ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+    header.putInt(SEGMENT_MAGIC).putLong(mNextId).flip();
+    writeFully(channel, header);
+    segment.mSize = SEGMENT_HEADER_SIZE;
+
+    mSegments.put(number, segment);
+    mActiveSegment = segment;
+    mActiveChannel = channel;
+  }
+
+  private synchronized void syncIfNeeded() {
+    if (mClosed || !mUnsynced) return;
+
+    try {
+      mActiveChannel.force(false);
+      mUnsynced = false;
+    } catch (IOException e) {
+      // Retried on the next interval.
+      logError(e, "Error syncing the journal in " + mDirectory);
+    }
+  }
+
+  private void closeActiveChannel() throws IOException {
+    if (mActiveChannel != null) {
+      mActiveChannel.close();
+      mActiveChannel = null;
+    }
+  }
+
+  private void logError(Throwable t, String message) {
+    if (mActionLogger == null) {
+      System.out.println("Action Dispatcher Error: " + message);
+      t.printStackTrace();
+    } else {
+      mActionLogger.logError(t, message);
+    }
+  }
+
+  private void checkOpen() {
+    if (mClosed) throw new IllegalStateException("The journal in " + mDirectory + " is closed");
+  }
+
+  private static void sync(Segment segment) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(segment.mFile, "rw");
+    try {
+      file.getChannel().force(false);
+    } finally {
+      file.close();
+    }
+  }
+
+  private static MappedByteBuffer map(Segment segment) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(segment.mFile, "r");
+    try {
+      return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+    } finally {
+      // The mapping stays valid after the file is closed.
+      file.close();
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer... buffers) throws IOException {
+    long remaining = 0;
+    for (ByteBuffer buffer : buffers) {
+      remaining += buffer.remaining();
+    }
+
+    while (remaining > 0) {
+      remaining -= channel.write(buffers);
+    }
+  }
+
+  private static void deleteFile(File file) throws IOException {
+    if (file.exists() && !file.delete()) {
+      throw new IOException("Unable to delete " + file);
+    }
+  }
+
+  private static class Segment {
+    final long mNumber;
+    final File mFile;
+    long mSize = 0;
+
+    Segment(long number, File file) {
+      mNumber = number;
+      mFile = file;
+    }
+  }
+
+  private static class Location {
+    final Segment mSegment;
+    final long mOffset;
+    final int mLength;
+
+    Location(Segment segment, long offset, int length) {
+      mSegment = segment;
+      mOffset = offset;
+      mLength = length;
+    }
+  }
+
+  private static class RetryState {
+    final Segment mSegment;
+    final int mValue;
+
+    RetryState(Segment segment, int value) {
+      mSegment = segment;
+      mValue = value;
+    }
+  }
+
+  public static class Builder {
+    private final File mDirectory;
+    private ActionSerializer mSerializer = new JavaActionSerializer();
+    private ActionLogger mActionLogger = null;
+    private FsyncPolicy mFsyncPolicy = FsyncPolicy.ALWAYS;
+    private long mFsyncIntervalMillis = DEFAULT_FSYNC_INTERVAL_MILLIS;
+    private long mMaxSegmentBytes = DEFAULT_MAX_SEGMENT_BYTES;
+    private long mCompactionIntervalMillis = DEFAULT_COMPACTION_INTERVAL_MILLIS;
+
+    /**
+     * @param directory the directory the journal's segment files are kept in. It is created if it
+     *                  doesn't exist, and should not be shared with anything else.
+     */
+    public Builder(File directory) {
+      if (directory == null) throw new IllegalArgumentException("directory == null");
+      mDirectory = directory;
+    }
+
+    public JournalActionPersister build() {
+      return new JournalActionPersister(this);
+    }
+
+    /**
+     * Defaults to a {@link JavaActionSerializer}.
+     */
+    public JournalActionPersister.Builder withSerializer(ActionSerializer serializer) {
+      mSerializer = serializer;
+      return this;
+    }
+
+    /**
+     * Receives the errors of the background compaction and fsync, and of Actions that can't be read.
+     * Defaults to printing them.
+     */
+    public JournalActionPersister.Builder withActionLogger(ActionLogger actionLogger) {
+      mActionLogger = actionLogger;
+      return this;
+    }
+
+    /**
+     * Defaults to {@link FsyncPolicy#ALWAYS}.
+     */
+    public JournalActionPersister.Builder withFsyncPolicy(FsyncPolicy fsyncPolicy) {
+      mFsyncPolicy = fsyncPolicy;
+      return this;
+    }
+
+    /**
+     * @param intervalMillis how often the journal is flushed with {@link FsyncPolicy#BATCHED}.
+     */
+    public JournalActionPersister.Builder withFsyncPolicy(FsyncPolicy fsyncPolicy, long intervalMillis) {
+      if (intervalMillis <= 0) throw new IllegalArgumentException("intervalMillis must be positive");
+      mFsyncPolicy = fsyncPolicy;
+      mFsyncIntervalMillis = intervalMillis;
+      return this;
+    }
+
+    /**
+     * Sets the size a segment is kept within. A new segment is started for the records that don't
+     * fit, unless a single write is larger. Only segments other than the one being written to are
+     * compacted.
+     *
+     * @param maxSegmentBytes at most {@link Integer#MAX_VALUE}, as segments are memory mapped.
+     */
+    public JournalActionPersister.Builder withMaxSegmentBytes(long maxSegmentBytes) {
+      if (maxSegmentBytes <= SEGMENT_HEADER_SIZE) {
+        throw new IllegalArgumentException("maxSegmentBytes is too small");
+      }
+      if (maxSegmentBytes > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("maxSegmentBytes can't be larger than Integer.MAX_VALUE");
+      }
+
+      mMaxSegmentBytes = maxSegmentBytes;
+      return this;
+    }
+
+    /**
+     * Sets how often older segments are compacted in the background. 0 disables background
+     * compaction, leaving it to {@link JournalActionPersister#compact()}.
+     */
+    public JournalActionPersister.Builder withCompactionInterval(long intervalMillis) {
+      if (intervalMillis < 0) throw new IllegalArgumentException("intervalMillis must not be negative");
+      mCompactionIntervalMillis = intervalMillis;
+      return this;
+    }
+  }
+}
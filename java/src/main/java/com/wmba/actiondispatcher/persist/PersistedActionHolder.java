@@ -5,10 +5,25 @@ import com.wmba.actiondispatcher.Action;
 public class PersistedActionHolder {
   private final long mActionId;
   private final Action<?> mAction;
+  private final boolean mHasRetryState;
+  private final int mRetryState;
 
   public PersistedActionHolder(long actionId, Action<?> action) {
     mActionId = actionId;
     mAction = action;
+    mHasRetryState = false;
+    mRetryState = 0;
+  }
+
+  /**
+   * @param retryState the last retry state given to
+   * {@link com.wmba.actiondispatcher.RetryStateActionPersister#updateRetryState(long, int)}.
+   */
+  public PersistedActionHolder(long actionId, Action<?> action, int retryState) {
+    mActionId = actionId;
+    mAction = action;
+    mHasRetryState = true;
+    mRetryState = retryState;
   }
 
   public long getActionId() {
@@ -18,5 +33,15 @@ public class PersistedActionHolder {
   public Action<?> getAction() {
     return mAction;
   }
-}
 
+  /**
+   * @return true if the retry state was persisted separately from the Action.
+   */
+  public boolean hasRetryState() {
+    return mHasRetryState;
+  }
+
+  public int getRetryState() {
+    return mRetryState;
+  }
+}
@@ -0,0 +1,120 @@
+package com.wmba.actiondispatcher;
+
+import com.wmba.actiondispatcher.component.InstantActionPersister;
+import com.wmba.actiondispatcher.component.InstantBatchActionPersister;
+import com.wmba.actiondispatcher.component.SimplePersistentAction;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import rx.observers.TestSubscriber;
+
+import static org.junit.Assert.*;
+
+public class BatchPersistTests {
+  @Test public void persistsAreGroupCommittedTest() {
+    InstantBatchActionPersister persister = new InstantBatchActionPersister();
+    List<SimplePersistentAction> actions = runOnManyKeys(persister);
+
+    for (SimplePersistentAction action : actions) {
+      assertFalse(persister.isPersisted(action));
+    }
+
+    int persisted = 0;
+    int largestBatch = 0;
+    for (int size : persister.getPersistBatchSizes()) {
+      persisted += size;
+      largestBatch = Math.max(largestBatch, size);
+    }
+    assertEquals(actions.size(), persisted);
+    assertTrue(largestBatch > 1);
+
+    int deleted = 0;
+    for (int size : persister.getDeleteBatchSizes()) {
+      deleted += size;
+    }
+    assertEquals(actions.size(), deleted);
+  }
+
+  @Test public void nonBatchPersisterIsSupportedTest() {
+    InstantActionPersister persister = new InstantActionPersister();
+    List<SimplePersistentAction> actions = runOnManyKeys(persister);
+
+    for (SimplePersistentAction action : actions) {
+      assertFalse(persister.isPersisted(action));
+    }
+  }
+
+  @Test public void missingIdsFailWholeBatchTest() throws InterruptedException {
+    InstantBatchActionPersister persister = new InstantBatchActionPersister() {
+      @Override public synchronized long[] persistAll(List<? extends Action<?>> actions) {
+        long[] ids = super.persistAll(actions);
+        return Arrays.copyOf(ids, ids.length - 1);
+      }
+    };
+    final PersistCommitter committer = new PersistCommitter(persister, null, TimeUnit.MILLISECONDS.toNanos(50),
+        RetryStateDurability.SYNC);
+
+    try {
+      committer.persistAll(Arrays.<Action<?>>asList(new SimplePersistentAction(), new SimplePersistentAction()));
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+
+    // Every request of a group commit fails, none of them with an id.
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 5; i++) {
+      Thread thread = new Thread() {
+        @Override public void run() {
+          try {
+            committer.persist(new SimplePersistentAction());
+          } catch (Throwable t) {
+            errors.add(t);
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join(5000);
+    }
+
+    assertEquals(5, errors.size());
+    for (Throwable error : errors) {
+      assertTrue(error instanceof IllegalStateException);
+    }
+  }
+
+  private List<SimplePersistentAction> runOnManyKeys(ActionPersister persister) {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withActionPersister(persister)
+        .withPersistBatchWindow(50, TimeUnit.MILLISECONDS)
+        .build();
+    DispatcherUtil.waitForPersistentActionsToLoad(dispatcher);
+
+    List<SimplePersistentAction> actions = new ArrayList<SimplePersistentAction>();
+    List<TestSubscriber<Boolean>> subscribers = new ArrayList<TestSubscriber<Boolean>>();
+    for (int i = 0; i < 10; i++) {
+      SimplePersistentAction action = new SimplePersistentAction();
+      TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+      dispatcher.toSingle(action, "key" + i).subscribe(ts);
+      actions.add(action);
+      subscribers.add(ts);
+    }
+
+    for (TestSubscriber<Boolean> ts : subscribers) {
+      ts.awaitTerminalEvent();
+      ts.assertNoErrors();
+      ts.assertValue(true);
+    }
+
+    return actions;
+  }
+}
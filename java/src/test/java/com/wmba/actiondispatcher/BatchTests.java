@@ -0,0 +1,310 @@
+package com.wmba.actiondispatcher;
+
+import com.wmba.actiondispatcher.component.InstantBatchActionPersister;
+import com.wmba.actiondispatcher.component.TestException;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rx.observers.TestSubscriber;
+
+import static com.wmba.actiondispatcher.component.KeyBlocker.blockKey;
+import static org.junit.Assert.*;
+
+public class BatchTests {
+  @Test public void batchesQueuedActionsTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+    List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+    CountDownLatch release = blockKey(dispatcher, "key");
+    List<TestSubscriber<Integer>> subscribers = new ArrayList<TestSubscriber<Integer>>();
+    for (int i = 1; i <= 10; i++) {
+      subscribers.add(run(dispatcher, new DoubleAction(i, batchSizes), "key"));
+    }
+    release.countDown();
+
+    for (int i = 0; i < subscribers.size(); i++) {
+      subscribers.get(i).awaitTerminalEvent();
+      subscribers.get(i).assertValue((i + 1) * 2);
+    }
+    assertEquals(Collections.singletonList(10), batchSizes);
+  }
+
+  @Test public void maxBatchSizeTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+    List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+    CountDownLatch release = blockKey(dispatcher, "key");
+    List<TestSubscriber<Integer>> subscribers = new ArrayList<TestSubscriber<Integer>>();
+    for (int i = 1; i <= 10; i++) {
+      subscribers.add(run(dispatcher, new DoubleAction(i, batchSizes) {
+        @Override public int getMaxBatchSize() {
+          return 4;
+        }
+      }, "key"));
+    }
+    release.countDown();
+
+    for (int i = 0; i < subscribers.size(); i++) {
+      subscribers.get(i).awaitTerminalEvent();
+      subscribers.get(i).assertValue((i + 1) * 2);
+    }
+    assertEquals(Arrays.asList(4, 4, 2), batchSizes);
+  }
+
+  @Test public void singleActionTest() {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+    List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+    assertEquals(Integer.valueOf(6), dispatcher.toSingle(new DoubleAction(3, batchSizes)).toBlocking().value());
+    assertEquals(Integer.valueOf(8), dispatcher.toSingleAsync(new DoubleAction(4, batchSizes)).toBlocking().value());
+    assertEquals(Arrays.asList(1, 1), batchSizes);
+  }
+
+  @Test public void itemErrorTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+    List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+    CountDownLatch release = blockKey(dispatcher, "key");
+    TestSubscriber<Integer> ts1 = run(dispatcher, new DoubleAction(1, batchSizes), "key");
+    TestSubscriber<Integer> ts2 = run(dispatcher, new DoubleAction(-1, batchSizes), "key");
+    TestSubscriber<Integer> ts3 = run(dispatcher, new DoubleAction(3, batchSizes), "key");
+    release.countDown();
+
+    ts1.awaitTerminalEvent();
+    ts1.assertValue(2);
+    ts2.awaitTerminalEvent();
+    ts2.assertError(TestException.class);
+    ts3.awaitTerminalEvent();
+    ts3.assertValue(6);
+    assertEquals(Collections.singletonList(3), batchSizes);
+  }
+
+  @Test public void lingerTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+    List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+    List<TestSubscriber<Integer>> subscribers = new ArrayList<TestSubscriber<Integer>>();
+    subscribers.add(run(dispatcher, new LingeringAction(1, batchSizes), "key"));
+    Thread.sleep(50);
+    for (int i = 2; i <= 4; i++) {
+      subscribers.add(run(dispatcher, new LingeringAction(i, batchSizes), "key"));
+    }
+
+    for (int i = 0; i < subscribers.size(); i++) {
+      subscribers.get(i).awaitTerminalEvent();
+      subscribers.get(i).assertValue((i + 1) * 2);
+    }
+    assertEquals(Collections.singletonList(4), batchSizes);
+  }
+
+  @Test public void lingerDoesNotHoldOtherKeysTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withKeyThreadPoolSize(1)
+        .build();
+    List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+    TestSubscriber<Integer> lingering = run(dispatcher, new LingeringAction(1, batchSizes), "key1");
+    long start = System.nanoTime();
+    assertEquals(Integer.valueOf(4), dispatcher.toSingle(new DoubleAction(2, batchSizes), "key2").toBlocking().value());
+    assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(LingeringAction.LINGER_MILLIS));
+
+    lingering.awaitTerminalEvent();
+    lingering.assertValue(2);
+  }
+
+  @Test public void batchRetryTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+    List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+    final AtomicInteger failures = new AtomicInteger(1);
+
+    CountDownLatch release = blockKey(dispatcher, "key");
+    List<TestSubscriber<Integer>> subscribers = new ArrayList<TestSubscriber<Integer>>();
+    for (int i = 1; i <= 3; i++) {
+      subscribers.add(run(dispatcher, new DoubleAction(i, batchSizes) {
+        @Override public void executeBatch(List<DoubleAction> batch) throws Throwable {
+          if (failures.getAndDecrement() > 0) {
+            super.executeBatch(batch);
+            throw new TestException();
+          }
+          super.executeBatch(batch);
+        }
+
+        @Override public int getRetryLimit() {
+          return 1;
+        }
+      }, "key"));
+    }
+    release.countDown();
+
+    for (int i = 0; i < subscribers.size(); i++) {
+      subscribers.get(i).awaitTerminalEvent();
+      subscribers.get(i).assertValue((i + 1) * 2);
+    }
+    assertEquals(Arrays.asList(3, 3), batchSizes);
+  }
+
+  @Test public void batchBackoffDoesNotHoldThreadTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withKeyThreadPoolSize(1)
+        .build();
+    List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+    final AtomicInteger failures = new AtomicInteger(1);
+    final List<String> completions = Collections.synchronizedList(new ArrayList<String>());
+
+    CountDownLatch release = blockKey(dispatcher, "key1");
+    List<TestSubscriber<Integer>> subscribers = new ArrayList<TestSubscriber<Integer>>();
+    for (int i = 1; i <= 3; i++) {
+      subscribers.add(run(dispatcher, new DoubleAction(i, batchSizes) {
+        @Override public void executeBatch(List<DoubleAction> batch) throws Throwable {
+          if (failures.getAndDecrement() > 0) throw new TestException();
+          super.executeBatch(batch);
+          completions.add("batch");
+        }
+
+        @Override public int getRetryLimit() {
+          return 1;
+        }
+
+        @Override public RetryBackoff getRetryBackoff() {
+          return RetryBackoff.fixed(300, TimeUnit.MILLISECONDS);
+        }
+      }, "key1"));
+    }
+    TestSubscriber<Integer> sameKey = run(dispatcher, new DoubleAction(10, batchSizes) {
+      @Override public String getBatchKey() {
+        return "other";
+      }
+
+      @Override public void executeBatch(List<DoubleAction> batch) throws Throwable {
+        super.executeBatch(batch);
+        completions.add("sameKey");
+      }
+    }, "key1");
+    release.countDown();
+
+    // The only pool thread is free for another key while the batch waits to be retried.
+    Thread.sleep(50);
+    long start = System.nanoTime();
+    assertEquals(Integer.valueOf(4), dispatcher.toSingle(new DoubleAction(2, batchSizes), "key2").toBlocking().value());
+    assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(200));
+
+    for (int i = 0; i < subscribers.size(); i++) {
+      subscribers.get(i).awaitTerminalEvent();
+      subscribers.get(i).assertValue((i + 1) * 2);
+    }
+    sameKey.awaitTerminalEvent();
+    sameKey.assertValue(20);
+    // The key was still held for the batch.
+    assertEquals(Arrays.asList("batch", "sameKey"), completions);
+  }
+
+  @Test public void persistentBatchTest() throws InterruptedException {
+    InstantBatchActionPersister persister = new InstantBatchActionPersister();
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withActionPersister(persister)
+        .build();
+    List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+    CountDownLatch release = blockKey(dispatcher, "key");
+    List<TestSubscriber<Integer>> subscribers = new ArrayList<TestSubscriber<Integer>>();
+    List<DoubleAction> actions = new ArrayList<DoubleAction>();
+    for (int i = 1; i <= 5; i++) {
+      DoubleAction action = new DoubleAction(i, batchSizes) {
+        @Override public boolean isPersistent() {
+          return true;
+        }
+      };
+      actions.add(action);
+      subscribers.add(run(dispatcher, action, "key"));
+    }
+    release.countDown();
+
+    for (int i = 0; i < subscribers.size(); i++) {
+      subscribers.get(i).awaitTerminalEvent();
+      subscribers.get(i).assertValue((i + 1) * 2);
+    }
+    assertEquals(Collections.singletonList(5), batchSizes);
+    assertEquals(Collections.singletonList(5), persister.getPersistBatchSizes());
+    assertEquals(Collections.singletonList(5), persister.getDeleteBatchSizes());
+    for (DoubleAction action : actions) {
+      assertFalse(persister.isPersisted(action));
+    }
+  }
+
+  @Test public void otherActionsAreNotBatchedTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+    List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+    CountDownLatch release = blockKey(dispatcher, "key");
+    TestSubscriber<Integer> ts1 = run(dispatcher, new DoubleAction(1, batchSizes), "key");
+    TestSubscriber<Integer> ts2 = run(dispatcher, new DoubleAction(2, batchSizes) {
+      @Override public String getBatchKey() {
+        return "other";
+      }
+    }, "key");
+    TestSubscriber<Integer> ts3 = run(dispatcher, new DoubleAction(3, batchSizes), "key");
+    release.countDown();
+
+    ts1.awaitTerminalEvent();
+    ts1.assertValue(2);
+    ts2.awaitTerminalEvent();
+    ts2.assertValue(4);
+    ts3.awaitTerminalEvent();
+    ts3.assertValue(6);
+    assertEquals(Arrays.asList(2, 1), batchSizes);
+  }
+
+  private static TestSubscriber<Integer> run(ActionDispatcher dispatcher, Action<Integer> action, String key) {
+    TestSubscriber<Integer> ts = new TestSubscriber<Integer>();
+    dispatcher.toSingle(action, key).subscribe(ts);
+    return ts;
+  }
+
+  /**
+   * Doubles its value in a batch, failing for negative values.
+   */
+  private static class DoubleAction extends BatchableAction<Integer, DoubleAction> {
+    private final int mValue;
+    private final List<Integer> mBatchSizes;
+
+    DoubleAction(int value, List<Integer> batchSizes) {
+      mValue = value;
+      mBatchSizes = batchSizes;
+    }
+
+    @Override public void executeBatch(List<DoubleAction> batch) throws Throwable {
+      mBatchSizes.add(batch.size());
+      for (DoubleAction action : batch) {
+        if (action.mValue < 0) {
+          action.setBatchError(new TestException());
+        } else {
+          action.setBatchResult(action.mValue * 2);
+        }
+      }
+    }
+
+    @Override public String getBatchKey() {
+      return "double";
+    }
+  }
+
+  private static class LingeringAction extends DoubleAction {
+    static final long LINGER_MILLIS = 500;
+
+    LingeringAction(int value, List<Integer> batchSizes) {
+      super(value, batchSizes);
+    }
+
+    @Override public long getBatchLingerMillis() {
+      return LINGER_MILLIS;
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package com.wmba.actiondispatcher;
+
+import com.wmba.actiondispatcher.persist.BinaryActionSerializer;
+import com.wmba.actiondispatcher.persist.JavaActionSerializer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BinaryActionSerializeTests {
+  private BinaryActionSerializer mSerializer;
+
+  @Before public void beforeTest() {
+    mSerializer = new BinaryActionSerializer.Builder()
+        .register(1, TestAction.class)
+        .register(2, TestActionChild.class)
+        .register(3, SubObject.class)
+        .register(4, Color.class)
+        .build();
+  }
+
+  @Test public void serializeDeserializeTest() {
+    TestAction action = createAction();
+    TestAction serializedAction = mSerializer.deserialize(mSerializer.serialize(action));
+    testActionEquality(action, serializedAction);
+  }
+
+  @Test public void serializeChildTest() {
+    TestActionChild action = new TestActionChild();
+    ((TestAction) action).intTest = 15;
+    action.childStringTest = "child";
+    action.transientBooleanTest = true;
+
+    TestActionChild serializedAction = mSerializer.deserialize(mSerializer.serialize(action));
+    testActionEquality(action, serializedAction);
+    assertEquals("child", serializedAction.childStringTest);
+    assertFalse(serializedAction.transientBooleanTest);
+  }
+
+  @Test public void serializeReferencesTest() {
+    TestAction action = createAction();
+    action.subObjectTest = new SubObject();
+    action.subObjectTest.name = "sub";
+    action.colorTest = Color.BLUE;
+    action.listTest = new ArrayList<Object>(Arrays.asList("a", 1, 2L, null, Color.RED));
+    action.bytesTest = new byte[] { 1, 2, 3 };
+    action.boxedTest = 5;
+
+    TestAction serializedAction = mSerializer.deserialize(mSerializer.serialize(action));
+    testActionEquality(action, serializedAction);
+    assertEquals("sub", serializedAction.subObjectTest.name);
+    assertEquals(Color.BLUE, serializedAction.colorTest);
+    assertEquals(action.listTest, serializedAction.listTest);
+    assertArrayEquals(action.bytesTest, serializedAction.bytesTest);
+    assertEquals(Integer.valueOf(5), serializedAction.boxedTest);
+  }
+
+  @Test public void unregisteredClassTest() {
+    TestAction action = createAction();
+    action.listTest = new ArrayList<Object>();
+    action.listTest.add(new Unregistered());
+
+    boolean errorCaught = false;
+    try {
+      mSerializer.serialize(action);
+    } catch (Throwable t) {
+      errorCaught = true;
+    }
+    assertTrue(errorCaught);
+
+    // An unknown id can't be read.
+    BinaryActionSerializer otherSerializer = new BinaryActionSerializer.Builder()
+        .register(5, TestAction.class)
+        .build();
+    assertNull(otherSerializer.deserialize(mSerializer.serialize(createAction())));
+  }
+
+  @Test public void listClassOtherThanArrayListIsRejectedTest() {
+    try {
+      new BinaryActionSerializer.Builder().register(1, LinkedListAction.class);
+      fail("A LinkedList field can't be read back, so it must be rejected when registered");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().contains("linkedListTest"));
+    }
+
+    // Any List can still be written to a field declared as a List.
+    TestAction action = createAction();
+    action.listTest = new LinkedList<Object>(Arrays.asList("a", "b"));
+    TestAction serializedAction = mSerializer.deserialize(mSerializer.serialize(action));
+    assertEquals(action.listTest, serializedAction.listTest);
+  }
+
+  @Test public void smallerThanJavaSerializationTest() {
+    TestAction action = createAction();
+    int binarySize = mSerializer.serialize(action).length;
+    int javaSize = new JavaActionSerializer().serialize(action).length;
+    assertTrue(binarySize * 4 < javaSize);
+  }
+
+  private TestAction createAction() {
+    TestAction action = new TestAction();
+    action.booleanTest = true;
+    action.intTest = -30;
+    action.longTest = 500000000000L;
+    action.floatTest = 50000f;
+    action.doubleTest = -5000d;
+    action.charTest = '\u00e9';
+    action.stringTest = "test1 \u00e9\u4e2d\ud83d\ude00\u0000";
+    return action;
+  }
+
+  private void testActionEquality(TestAction action1, TestAction action2) {
+    assertEquals(action1.booleanTest, action2.booleanTest);
+    assertEquals(action1.intTest, action2.intTest);
+    assertEquals(action1.longTest, action2.longTest);
+    assertEquals(action1.floatTest, action2.floatTest, 0.001d);
+    assertEquals(action1.doubleTest, action2.doubleTest, 0.001f);
+    assertEquals(action1.charTest, action2.charTest);
+    assertEquals(action1.stringTest, action2.stringTest);
+  }
+
+  private enum Color { RED, BLUE }
+
+  private static class TestAction extends Action<Boolean> implements Serializable {
+    private boolean booleanTest;
+    private int intTest;
+    private long longTest;
+    private float floatTest;
+    private double doubleTest;
+    private char charTest;
+    private String stringTest;
+    private Integer boxedTest;
+    private byte[] bytesTest;
+    private Color colorTest;
+    private SubObject subObjectTest;
+    private List<Object> listTest;
+
+    @Override public Boolean execute() throws Throwable {
+      return true;
+    }
+  }
+
+  private static class TestActionChild extends TestAction {
+    private String childStringTest;
+    private transient boolean transientBooleanTest;
+  }
+
+  private static class SubObject implements Serializable {
+    private String name;
+  }
+
+  private static class Unregistered {}
+
+  private static class LinkedListAction extends Action<Boolean> {
+    private LinkedList<String> linkedListTest;
+
+    @Override public Boolean execute() throws Throwable {
+      return true;
+    }
+  }
+}
@@ -0,0 +1,145 @@
+package com.wmba.actiondispatcher;
+
+import com.wmba.actiondispatcher.metrics.DispatchMetrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import rx.observers.TestSubscriber;
+
+import static com.wmba.actiondispatcher.component.KeyBlocker.blockKey;
+import static org.junit.Assert.*;
+
+public class CancellationTests {
+  @Test public void waitingActionIsRemovedTest() throws InterruptedException {
+    DispatchMetrics metrics = new DispatchMetrics();
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withDispatchListener(metrics)
+        .withKeyCapacity(2, OverflowPolicy.REJECT)
+        .build();
+
+    CountDownLatch release = blockKey(dispatcher, "key");
+    final AtomicBoolean executed = new AtomicBoolean();
+    Action<Boolean> cancelled = new CancellableAction() {
+      @Override public Boolean execute() throws Throwable {
+        executed.set(true);
+        return true;
+      }
+    };
+    TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(cancelled, "key").subscribe(ts);
+    ts.unsubscribe();
+
+    // The room of the cancelled Action is given back right away.
+    TestSubscriber<Boolean> next = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new CancellableAction(), "key").subscribe(next);
+    next.assertNoErrors();
+    assertEquals(1, metrics.getActionClassStats().get(cancelled.getClass()).getCancelledCount());
+
+    release.countDown();
+    next.awaitTerminalEvent(5, TimeUnit.SECONDS);
+    next.assertValue(true);
+    assertFalse(executed.get());
+    ts.assertNoTerminalEvent();
+  }
+
+  @Test public void runningActionIsInterruptedTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch interrupted = new CountDownLatch(1);
+    final AtomicBoolean sawCancel = new AtomicBoolean();
+    TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new CancellableAction() {
+      @Override public Boolean execute() throws Throwable {
+        started.countDown();
+        try {
+          Thread.sleep(10000);
+        } catch (InterruptedException e) {
+          sawCancel.set(isCancelled());
+          interrupted.countDown();
+          throw e;
+        }
+        return true;
+      }
+    }, "key").subscribe(ts);
+
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    ts.unsubscribe();
+    assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+    assertTrue(sawCancel.get());
+
+    // The key isn't held up by the cancelled Action.
+    assertEquals(Boolean.TRUE, dispatcher.toSingle(new CancellableAction(), "key").toBlocking().value());
+  }
+
+  @Test public void runningActionPollsCancellationTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch stopped = new CountDownLatch(1);
+    TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new CancellableAction() {
+      @Override public Boolean execute() throws Throwable {
+        started.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!isCancelled() && System.nanoTime() < deadline) {
+          // Busy work, which doesn't notice interrupts.
+        }
+        stopped.countDown();
+        return true;
+      }
+    }, "key").subscribe(ts);
+
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    ts.unsubscribe();
+    assertTrue(stopped.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test public void runIfUnsubscribedActionStillRunsTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    CountDownLatch release = blockKey(dispatcher, "key");
+    final CountDownLatch executed = new CountDownLatch(1);
+    TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new Action<Boolean>() {
+      @Override public Boolean execute() throws Throwable {
+        executed.countDown();
+        return true;
+      }
+    }, "key").subscribe(ts);
+    ts.unsubscribe();
+
+    release.countDown();
+    assertTrue(executed.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test public void subscribedActionCompletesTest() {
+    DispatchMetrics metrics = new DispatchMetrics();
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withDispatchListener(metrics)
+        .build();
+
+    TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new CancellableAction(), "key").subscribe(ts);
+    ts.awaitTerminalEvent(5, TimeUnit.SECONDS);
+    ts.assertValue(true);
+
+    DispatchMetrics.ActionClassStats stats = metrics.getActionClassStats().get(CancellableAction.class);
+    assertEquals(1, stats.getCompletedCount());
+    assertEquals(0, stats.getCancelledCount());
+  }
+
+  private static class CancellableAction extends Action<Boolean> {
+    @Override public Boolean execute() throws Throwable {
+      return true;
+    }
+
+    @Override public boolean runIfUnsubscribed() {
+      return false;
+    }
+  }
+}
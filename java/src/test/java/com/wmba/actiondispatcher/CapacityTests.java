@@ -0,0 +1,231 @@
+package com.wmba.actiondispatcher;
+
+import com.wmba.actiondispatcher.component.InstantActionPersister;
+import com.wmba.actiondispatcher.metrics.DispatchMetrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import rx.observers.TestSubscriber;
+
+import static com.wmba.actiondispatcher.component.KeyBlocker.blockKey;
+import static org.junit.Assert.*;
+
+public class CapacityTests {
+  @Test public void rejectTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withKeyCapacity(2, OverflowPolicy.REJECT)
+        .build();
+
+    CountDownLatch release = blockKey(dispatcher, "key");
+    TestSubscriber<Integer> ts1 = run(dispatcher, new ValueAction(1), "key");
+    TestSubscriber<Integer> ts2 = run(dispatcher, new ValueAction(2), "key");
+    ts2.assertError(RejectedExecutionException.class);
+
+    // Other keys have room of their own.
+    assertEquals(Integer.valueOf(3), dispatcher.toSingle(new ValueAction(3), "other").toBlocking().value());
+
+    release.countDown();
+    ts1.awaitTerminalEvent();
+    ts1.assertValue(1);
+  }
+
+  @Test public void roomIsFreedTest() {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withKeyCapacity(1, OverflowPolicy.REJECT)
+        .build();
+
+    for (int i = 0; i < 100; i++) {
+      assertEquals(Integer.valueOf(i), dispatcher.toSingle(new ValueAction(i), "key").toBlocking().value());
+    }
+  }
+
+  @Test public void dropOldestTest() throws InterruptedException {
+    InstantActionPersister persister = new InstantActionPersister();
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withActionPersister(persister)
+        .withKeyCapacity(4, OverflowPolicy.DROP_OLDEST)
+        .build();
+
+    CountDownLatch release = blockKey(dispatcher, "key");
+    TestSubscriber<Integer> persistent = run(dispatcher, new ValueAction(1) {
+      @Override public boolean isPersistent() {
+        return true;
+      }
+    }, "key");
+    TestSubscriber<Integer> ts2 = run(dispatcher, new ValueAction(2), "key");
+    TestSubscriber<Integer> ts3 = run(dispatcher, new ValueAction(3), "key");
+    TestSubscriber<Integer> ts4 = run(dispatcher, new ValueAction(4), "key");
+    ts2.assertError(RejectedExecutionException.class);
+
+    TestSubscriber<Integer> ts5 = run(dispatcher, new ValueAction(5), "key");
+    ts3.assertError(RejectedExecutionException.class);
+    release.countDown();
+
+    persistent.awaitTerminalEvent();
+    persistent.assertValue(1);
+    ts4.awaitTerminalEvent();
+    ts4.assertValue(4);
+    ts5.awaitTerminalEvent();
+    ts5.assertValue(5);
+  }
+
+  @Test public void dropLowestPriorityTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withKeyCapacity(3, OverflowPolicy.DROP_LOWEST_PRIORITY)
+        .build();
+
+    CountDownLatch release = blockKey(dispatcher, "key");
+    TestSubscriber<Integer> low = run(dispatcher, new ValueAction(1, -5), "key");
+    TestSubscriber<Integer> high = run(dispatcher, new ValueAction(2, 5), "key");
+
+    TestSubscriber<Integer> normal = run(dispatcher, new ValueAction(3, 0), "key");
+    low.assertError(RejectedExecutionException.class);
+
+    // Nothing waiting has a lower priority.
+    TestSubscriber<Integer> lowest = run(dispatcher, new ValueAction(4, -10), "key");
+    lowest.assertError(RejectedExecutionException.class);
+    release.countDown();
+
+    high.awaitTerminalEvent();
+    high.assertValue(2);
+    normal.awaitTerminalEvent();
+    normal.assertValue(3);
+  }
+
+  @Test public void blockTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withKeyCapacity(1, OverflowPolicy.BLOCK)
+        .build();
+
+    final CountDownLatch release = blockKey(dispatcher, "key");
+    new Thread() {
+      @Override public void run() {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException ignored) {
+        }
+        release.countDown();
+      }
+    }.start();
+
+    // Waits for the blocking Action to finish.
+    assertEquals(Integer.valueOf(1), dispatcher.toSingle(new ValueAction(1), "key").toBlocking().value());
+    assertEquals(0, release.getCount());
+  }
+
+  @Test public void blockTimeoutTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withKeyCapacity(1, OverflowPolicy.BLOCK)
+        .withOverflowBlockTimeout(50, TimeUnit.MILLISECONDS)
+        .build();
+
+    CountDownLatch release = blockKey(dispatcher, "key");
+    long start = System.nanoTime();
+    TestSubscriber<Integer> ts = run(dispatcher, new ValueAction(1), "key");
+    ts.assertError(RejectedExecutionException.class);
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    release.countDown();
+  }
+
+  @Test public void trySubmitTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withKeyCapacity(1, OverflowPolicy.BLOCK)
+        .build();
+
+    CountDownLatch release = blockKey(dispatcher, "key");
+    final AtomicBoolean called = new AtomicBoolean();
+    long start = System.nanoTime();
+    assertFalse(dispatcher.trySubmit(new ValueAction(1), "key", new ActionCallback<Integer>() {
+      @Override public void onSuccess(Integer value) {
+        called.set(true);
+      }
+
+      @Override public void onError(Throwable t) {
+        called.set(true);
+      }
+    }));
+    assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(ActionDispatcher.DEFAULT_OVERFLOW_BLOCK_TIMEOUT_MILLIS));
+    release.countDown();
+
+    final CountDownLatch done = new CountDownLatch(1);
+    while (!dispatcher.trySubmit(new ValueAction(2), "key", new ActionCallback<Integer>() {
+      @Override public void onSuccess(Integer value) {
+        done.countDown();
+      }
+
+      @Override public void onError(Throwable t) {}
+    })) {
+      Thread.sleep(1);
+    }
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertFalse(called.get());
+  }
+
+  @Test public void asyncCapacityTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withAsyncCapacity(1, OverflowPolicy.REJECT)
+        .build();
+
+    CountDownLatch release = blockKey(dispatcher, KeySelector.ASYNC_KEY);
+    TestSubscriber<Integer> ts = new TestSubscriber<Integer>();
+    dispatcher.toSingleAsync(new ValueAction(1)).subscribe(ts);
+    ts.assertError(RejectedExecutionException.class);
+
+    // Keys are left unbounded.
+    assertEquals(Integer.valueOf(2), dispatcher.toSingle(new ValueAction(2), "key").toBlocking().value());
+    release.countDown();
+  }
+
+  @Test public void metricsTest() throws InterruptedException {
+    DispatchMetrics metrics = new DispatchMetrics();
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withDispatchListener(metrics)
+        .withKeyCapacity(2, OverflowPolicy.DROP_OLDEST)
+        .build();
+
+    CountDownLatch release = blockKey(dispatcher, "key");
+    run(dispatcher, new ValueAction(1), "key");
+    run(dispatcher, new ValueAction(2), "key");
+    TestSubscriber<Integer> ts = run(dispatcher, new ValueAction(3), "key");
+    assertEquals(Integer.valueOf(1), metrics.getQueueDepths().get("key"));
+    release.countDown();
+    ts.awaitTerminalEvent();
+
+    DispatchMetrics.ActionClassStats stats = metrics.getActionClassStats().get(ValueAction.class);
+    assertEquals(2, stats.getRejectedCount());
+    assertEquals(1, stats.getCompletedCount());
+  }
+
+  private static TestSubscriber<Integer> run(ActionDispatcher dispatcher, Action<Integer> action, String key) {
+    TestSubscriber<Integer> ts = new TestSubscriber<Integer>();
+    dispatcher.toSingle(action, key).subscribe(ts);
+    return ts;
+  }
+
+  private static class ValueAction extends Action<Integer> {
+    private final int mValue;
+    private final int mPriority;
+
+    ValueAction(int value) {
+      this(value, 0);
+    }
+
+    ValueAction(int value, int priority) {
+      mValue = value;
+      mPriority = priority;
+    }
+
+    @Override public Integer execute() throws Throwable {
+      return mValue;
+    }
+
+    @Override public int getPriority() {
+      return mPriority;
+    }
+  }
+}
@@ -0,0 +1,236 @@
+package com.wmba.actiondispatcher;
+
+import com.wmba.actiondispatcher.metrics.DispatchMetrics;
+import com.wmba.actiondispatcher.persist.JournalActionPersister;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rx.observers.TestSubscriber;
+
+import static com.wmba.actiondispatcher.component.KeyBlocker.blockKey;
+import static org.junit.Assert.*;
+
+public class CoalescingTests {
+  @Rule public TemporaryFolder mFolder = new TemporaryFolder();
+
+  @Test public void mergeTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+    AtomicInteger executeCount = new AtomicInteger();
+
+    CountDownLatch release = blockKey(dispatcher, "key");
+    List<TestSubscriber<Integer>> subscribers = new ArrayList<TestSubscriber<Integer>>();
+    for (int i = 1; i <= 5; i++) {
+      subscribers.add(run(dispatcher, new SyncAction(i, CoalescingPolicy.MERGE, executeCount), "key"));
+    }
+    release.countDown();
+
+    for (TestSubscriber<Integer> ts : subscribers) {
+      ts.awaitTerminalEvent();
+      ts.assertValue(1);
+    }
+    assertEquals(1, executeCount.get());
+  }
+
+  @Test public void supersedeTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+    AtomicInteger executeCount = new AtomicInteger();
+
+    CountDownLatch release = blockKey(dispatcher, "key");
+    List<TestSubscriber<Integer>> subscribers = new ArrayList<TestSubscriber<Integer>>();
+    for (int i = 1; i <= 5; i++) {
+      subscribers.add(run(dispatcher, new SyncAction(i, CoalescingPolicy.SUPERSEDE, executeCount), "key"));
+    }
+    release.countDown();
+
+    for (TestSubscriber<Integer> ts : subscribers) {
+      ts.awaitTerminalEvent();
+      ts.assertValue(5);
+    }
+    assertEquals(1, executeCount.get());
+  }
+
+  @Test public void mergeIntoSupersedingActionTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+    AtomicInteger executeCount = new AtomicInteger();
+
+    CountDownLatch release = blockKey(dispatcher, "key");
+    List<TestSubscriber<Integer>> subscribers = new ArrayList<TestSubscriber<Integer>>();
+    subscribers.add(run(dispatcher, new SyncAction(1, CoalescingPolicy.MERGE, executeCount), "key"));
+    subscribers.add(run(dispatcher, new SyncAction(2, CoalescingPolicy.MERGE, executeCount), "key"));
+    subscribers.add(run(dispatcher, new SyncAction(3, CoalescingPolicy.SUPERSEDE, executeCount), "key"));
+    subscribers.add(run(dispatcher, new SyncAction(4, CoalescingPolicy.MERGE, executeCount), "key"));
+    release.countDown();
+
+    for (TestSubscriber<Integer> ts : subscribers) {
+      ts.awaitTerminalEvent();
+      ts.assertValue(3);
+    }
+    assertEquals(1, executeCount.get());
+  }
+
+  @Test public void startedActionsAreNotCoalescedTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+    AtomicInteger executeCount = new AtomicInteger();
+
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    TestSubscriber<Integer> first = run(dispatcher, new SyncAction(1, CoalescingPolicy.MERGE, executeCount) {
+      @Override public Integer execute() throws Throwable {
+        started.countDown();
+        release.await();
+        return super.execute();
+      }
+    }, "key");
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+
+    TestSubscriber<Integer> second = run(dispatcher, new SyncAction(2, CoalescingPolicy.MERGE, executeCount), "key");
+    release.countDown();
+
+    first.awaitTerminalEvent();
+    first.assertValue(1);
+    second.awaitTerminalEvent();
+    second.assertValue(2);
+    assertEquals(2, executeCount.get());
+  }
+
+  @Test public void keysAreCoalescedSeparatelyTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+    AtomicInteger executeCount = new AtomicInteger();
+
+    CountDownLatch release1 = blockKey(dispatcher, "key1");
+    CountDownLatch release2 = blockKey(dispatcher, "key2");
+    TestSubscriber<Integer> ts1 = run(dispatcher, new SyncAction(1, CoalescingPolicy.MERGE, executeCount), "key1");
+    TestSubscriber<Integer> ts2 = run(dispatcher, new SyncAction(2, CoalescingPolicy.MERGE, executeCount), "key2");
+    release1.countDown();
+    release2.countDown();
+
+    ts1.awaitTerminalEvent();
+    ts1.assertValue(1);
+    ts2.awaitTerminalEvent();
+    ts2.assertValue(2);
+    assertEquals(2, executeCount.get());
+  }
+
+  @Test public void persistedCopiesAreDeletedTest() throws InterruptedException, IOException {
+    File directory = mFolder.newFolder();
+    JournalActionPersister persister = new JournalActionPersister.Builder(directory).build();
+    for (int i = 1; i <= 5; i++) {
+      persister.persist(new PersistentSyncAction(i));
+    }
+    persister.close();
+
+    PersistentSyncAction.sExecuteCount.set(0);
+    JournalActionPersister reopened = new JournalActionPersister.Builder(directory).build();
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withActionPersister(reopened)
+        .delayPersistentActionLoading()
+        .build();
+
+    while (!dispatcher.arePersistentActionsLoaded()) {
+      Thread.sleep(1);
+    }
+
+    // Holds the key until every persisted Action is waiting on it.
+    CountDownLatch release = blockKey(dispatcher, KeySelector.DEFAULT_KEY);
+    dispatcher.startPersistentActions();
+    release.countDown();
+
+    // Runs after the persisted Actions on the same key.
+    dispatcher.toSingle(new Action<Boolean>() {
+      @Override public Boolean execute() throws Throwable {
+        return true;
+      }
+    }).toBlocking().value();
+
+    assertEquals(1, PersistentSyncAction.sExecuteCount.get());
+    assertEquals(0, reopened.getPersistedActions().size());
+    reopened.close();
+  }
+
+  @Test public void metricsTest() throws InterruptedException {
+    DispatchMetrics metrics = new DispatchMetrics();
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withDispatchListener(metrics)
+        .build();
+    AtomicInteger executeCount = new AtomicInteger();
+
+    CountDownLatch release = blockKey(dispatcher, "key");
+    TestSubscriber<Integer> ts = null;
+    for (int i = 1; i <= 3; i++) {
+      ts = run(dispatcher, new SyncAction(i, CoalescingPolicy.MERGE, executeCount), "key");
+    }
+    assertEquals(Integer.valueOf(1), metrics.getQueueDepths().get("key"));
+    release.countDown();
+    ts.awaitTerminalEvent();
+
+    DispatchMetrics.ActionClassStats stats = metrics.getActionClassStats().get(SyncAction.class);
+    assertEquals(1, stats.getCompletedCount());
+    assertEquals(2, stats.getCoalescedCount());
+    assertNull(metrics.getQueueDepths().get("key"));
+  }
+
+  private static TestSubscriber<Integer> run(ActionDispatcher dispatcher, Action<Integer> action, String key) {
+    TestSubscriber<Integer> ts = new TestSubscriber<Integer>();
+    dispatcher.toSingle(action, key).subscribe(ts);
+    return ts;
+  }
+
+  private static class SyncAction extends Action<Integer> {
+    private final int mValue;
+    private final CoalescingPolicy mPolicy;
+    private final AtomicInteger mExecuteCount;
+
+    SyncAction(int value, CoalescingPolicy policy, AtomicInteger executeCount) {
+      mValue = value;
+      mPolicy = policy;
+      mExecuteCount = executeCount;
+    }
+
+    @Override public Integer execute() throws Throwable {
+      mExecuteCount.incrementAndGet();
+      return mValue;
+    }
+
+    @Override public String getCoalescingKey() {
+      return "sync";
+    }
+
+    @Override public CoalescingPolicy getCoalescingPolicy() {
+      return mPolicy;
+    }
+  }
+
+  private static class PersistentSyncAction extends Action<Integer> implements Serializable {
+    static final AtomicInteger sExecuteCount = new AtomicInteger();
+
+    private final int mValue;
+
+    PersistentSyncAction(int value) {
+      mValue = value;
+    }
+
+    @Override public Integer execute() throws Throwable {
+      sExecuteCount.incrementAndGet();
+      return mValue;
+    }
+
+    @Override public String getCoalescingKey() {
+      return "sync";
+    }
+
+    @Override public boolean isPersistent() {
+      return true;
+    }
+  }
+}
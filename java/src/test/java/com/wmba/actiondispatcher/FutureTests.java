@@ -0,0 +1,144 @@
+package com.wmba.actiondispatcher;
+
+import com.wmba.actiondispatcher.component.ErrorAction;
+import com.wmba.actiondispatcher.component.SimpleAction;
+import com.wmba.actiondispatcher.component.TestException;
+
+import org.junit.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class FutureTests {
+  @Test public void getTest() throws Exception {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    ActionFuture<Boolean> future = dispatcher.toFuture(new SimpleAction());
+    assertEquals(Boolean.TRUE, future.get(5, TimeUnit.SECONDS));
+    assertTrue(future.isDone());
+    assertFalse(future.isCancelled());
+  }
+
+  @Test public void errorTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    ActionFuture<Boolean> future = dispatcher.toFutureAsync(new ErrorAction());
+    try {
+      future.get();
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof TestException);
+    }
+  }
+
+  @Test public void callbackTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    final CountDownLatch called = new CountDownLatch(2);
+    final AtomicReference<Boolean> value = new AtomicReference<Boolean>();
+    ActionCallback<Boolean> callback = new ActionCallback<Boolean>() {
+      @Override public void onSuccess(Boolean b) {
+        value.set(b);
+        called.countDown();
+      }
+
+      @Override public void onError(Throwable t) {}
+    };
+
+    ActionFuture<Boolean> future = dispatcher.toFuture(new SimpleAction(), "key");
+    future.addCallback(callback);
+    assertTrue(awaitDone(future));
+    // Called right away once done.
+    future.addCallback(callback);
+
+    assertTrue(called.await(5, TimeUnit.SECONDS));
+    assertEquals(Boolean.TRUE, value.get());
+  }
+
+  @Test public void getTimeoutTest() throws Exception {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    final CountDownLatch release = new CountDownLatch(1);
+    ActionFuture<Boolean> future = dispatcher.toFuture(new Action<Boolean>() {
+      @Override public Boolean execute() throws Throwable {
+        release.await();
+        return true;
+      }
+    }, "key");
+
+    try {
+      future.get(10, TimeUnit.MILLISECONDS);
+      fail();
+    } catch (TimeoutException expected) {
+    }
+    release.countDown();
+    assertEquals(Boolean.TRUE, future.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test public void cancelTest() throws Exception {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    dispatcher.toFuture(new Action<Boolean>() {
+      @Override public Boolean execute() throws Throwable {
+        started.countDown();
+        release.await();
+        return true;
+      }
+    }, "key");
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+
+    final AtomicBoolean executed = new AtomicBoolean();
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    ActionFuture<Boolean> future = dispatcher.toFuture(new Action<Boolean>() {
+      @Override public Boolean execute() throws Throwable {
+        executed.set(true);
+        return true;
+      }
+
+      @Override public boolean runIfUnsubscribed() {
+        return false;
+      }
+    }, "key");
+    future.addCallback(new ActionCallback<Boolean>() {
+      @Override public void onSuccess(Boolean value) {}
+
+      @Override public void onError(Throwable t) {
+        error.set(t);
+      }
+    });
+
+    assertTrue(future.cancel(false));
+    assertFalse(future.cancel(false));
+    assertTrue(future.isCancelled());
+    assertTrue(error.get() instanceof CancellationException);
+    try {
+      future.get();
+      fail();
+    } catch (CancellationException expected) {
+    }
+
+    release.countDown();
+    assertEquals(Boolean.TRUE, dispatcher.toFuture(new SimpleAction(), "key").get(5, TimeUnit.SECONDS));
+    assertFalse(executed.get());
+  }
+
+  private static boolean awaitDone(ActionFuture<?> future) throws InterruptedException {
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      return true;
+    } catch (ExecutionException e) {
+      return true;
+    } catch (TimeoutException e) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,281 @@
+package com.wmba.actiondispatcher;
+
+import com.wmba.actiondispatcher.component.ErrorAction;
+import com.wmba.actiondispatcher.component.SimpleAction;
+import com.wmba.actiondispatcher.component.TestException;
+import com.wmba.actiondispatcher.persist.JournalActionPersister;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class GraphTests {
+  private static final AtomicInteger sSourceRuns = new AtomicInteger();
+  private static volatile CountDownLatch sAdded = new CountDownLatch(1);
+
+  @Rule public TemporaryFolder mFolder = new TemporaryFolder();
+
+  @Test public void resultsArePassedAlongTest() throws Exception {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    ActionGraph graph = new ActionGraph.Builder()
+        .addOnKey("a", new ValueAction(1), "key1")
+        .addOnKey("b", new ValueAction(2), "key2")
+        .addOnKey("sum", new SumAction(), "key3", "a", "b")
+        .addOnKey("total", new SumAction(), "key1", "sum", "a")
+        .build();
+
+    Map<String, Object> results = dispatcher.toFuture(graph).get(5, TimeUnit.SECONDS);
+    assertEquals(graph.getNodeNames(), new ArrayList<String>(results.keySet()));
+    assertEquals(1, results.get("a"));
+    assertEquals(2, results.get("b"));
+    assertEquals(3, results.get("sum"));
+    assertEquals(4, results.get("total"));
+  }
+
+  @Test public void independentBranchesRunInParallelTest() throws Exception {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    // Each branch waits for the other to start, which only finishes if they run at the same time.
+    CountDownLatch started = new CountDownLatch(2);
+    ActionGraph graph = new ActionGraph.Builder()
+        .add("root", new SimpleAction())
+        .addOnKey("left", new RendezvousAction(started), "left", "root")
+        .addOnKey("right", new RendezvousAction(started), "right", "root")
+        .addOnKey("join", new SimpleAction(), "left", "left", "right")
+        .build();
+
+    Map<String, Object> results = dispatcher.toFuture(graph).get(5, TimeUnit.SECONDS);
+    assertEquals(Boolean.TRUE, results.get("left"));
+    assertEquals(Boolean.TRUE, results.get("right"));
+    assertEquals(Boolean.TRUE, results.get("join"));
+  }
+
+  @Test public void failedNodeFailsGraphTest() throws Exception {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    final AtomicBoolean dependentRan = new AtomicBoolean();
+    ActionGraph graph = new ActionGraph.Builder()
+        .addOnKey("fails", new ErrorAction(7), "key1")
+        .addOnKey("dependent", new Action<Boolean>() {
+          @Override public Boolean execute() throws Throwable {
+            dependentRan.set(true);
+            return true;
+          }
+        }, "key2", "fails")
+        .build();
+
+    try {
+      dispatcher.toFuture(graph).get(5, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      assertEquals(7, ((TestException) e.getCause()).getValue());
+    }
+    assertFalse(dependentRan.get());
+  }
+
+  @Test public void cancelTest() throws Exception {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch interrupted = new CountDownLatch(1);
+    final AtomicBoolean dependentRan = new AtomicBoolean();
+    ActionGraph graph = new ActionGraph.Builder()
+        .addOnKey("slow", new Action<Boolean>() {
+          @Override public Boolean execute() throws Throwable {
+            started.countDown();
+            try {
+              Thread.sleep(10000);
+            } catch (InterruptedException e) {
+              interrupted.countDown();
+              throw e;
+            }
+            return true;
+          }
+
+          @Override public boolean runIfUnsubscribed() {
+            return false;
+          }
+        }, "key1")
+        .addOnKey("dependent", new Action<Boolean>() {
+          @Override public Boolean execute() throws Throwable {
+            dependentRan.set(true);
+            return true;
+          }
+        }, "key2", "slow")
+        .build();
+
+    ActionFuture<Map<String, Object>> future = dispatcher.toFuture(graph);
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    assertTrue(future.cancel(true));
+    assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+
+    try {
+      future.get();
+      fail();
+    } catch (CancellationException expected) {
+    }
+    // The key of the cancelled node moves on, and the dependent never runs.
+    assertEquals(Boolean.TRUE, dispatcher.toFuture(new SimpleAction(), "key1").get(5, TimeUnit.SECONDS));
+    assertFalse(dependentRan.get());
+  }
+
+  @Test public void graphCanOnlyRunOnceTest() {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+    ActionGraph graph = new ActionGraph.Builder().add("a", new SimpleAction()).build();
+
+    dispatcher.toFuture(graph);
+    try {
+      dispatcher.toFuture(graph);
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  @Test public void inputsMustBeAddedFirstTest() {
+    try {
+      new ActionGraph.Builder().add("a", new SimpleAction(), "b");
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+
+    try {
+      new ActionGraph.Builder().add("a", new SimpleAction()).add("a", new SimpleAction());
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test public void persistedGraphResumesTest() throws Exception {
+    sSourceRuns.set(0);
+    sAdded = new CountDownLatch(1);
+    File directory = mFolder.newFolder();
+
+    JournalActionPersister persister = new JournalActionPersister.Builder(directory).build();
+    final CountDownLatch addEnqueued = new CountDownLatch(1);
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withActionPersister(persister)
+        .withShutdownPolicy(ShutdownPolicy.CANCEL_QUEUED)
+        .withDispatchListener(new DispatchListener() {
+          @Override public void onEnqueued(Action<?> action, String key) {
+            if (action instanceof AddAction) addEnqueued.countDown();
+          }
+        })
+        .build();
+    DispatcherUtil.waitForPersistentActionsToLoad(dispatcher);
+
+    // The second node waits behind a blocked key, and is still waiting at shutdown.
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    dispatcher.submit(new Action<Boolean>() {
+      @Override public Boolean execute() throws Throwable {
+        blocked.countDown();
+        release.await();
+        return true;
+      }
+    }, "key2", null);
+    assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+    ActionGraph graph = new ActionGraph.Builder()
+        .addOnKey("source", new SourceAction(), "key1")
+        .addOnKey("add", new AddAction(), "key2", "source")
+        .build();
+    ActionFuture<Map<String, Object>> future = dispatcher.toFuture(graph);
+    assertTrue(addEnqueued.await(5, TimeUnit.SECONDS));
+
+    assertFalse(dispatcher.shutdown(50, TimeUnit.MILLISECONDS));
+    // The node is turned away once the key gets to it.
+    release.countDown();
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+    assertTrue(dispatcher.awaitTermination(5, TimeUnit.SECONDS));
+    persister.close();
+
+    // Restarted, with only the node that didn't complete left to run.
+    JournalActionPersister reopened = new JournalActionPersister.Builder(directory).build();
+    assertEquals(1, reopened.getPersistedActions().size());
+    ActionDispatcher restarted = new ActionDispatcher.Builder()
+        .withActionPersister(reopened)
+        .build();
+
+    assertTrue(sAdded.await(5, TimeUnit.SECONDS));
+    assertEquals(1, sSourceRuns.get());
+    assertTrue(restarted.shutdown(5, TimeUnit.SECONDS));
+    assertEquals(0, reopened.getPersistedActions().size());
+    reopened.close();
+  }
+
+  private static class ValueAction extends Action<Integer> {
+    private final int mValue;
+
+    ValueAction(int value) {
+      mValue = value;
+    }
+
+    @Override public Integer execute() throws Throwable {
+      return mValue;
+    }
+  }
+
+  private static class SumAction extends DependentAction<Integer> {
+    @Override public Integer execute() throws Throwable {
+      int sum = 0;
+      for (Object input : getInputs().values()) {
+        sum += (Integer) input;
+      }
+      return sum;
+    }
+  }
+
+  private static class RendezvousAction extends Action<Boolean> {
+    private final CountDownLatch mStarted;
+
+    RendezvousAction(CountDownLatch started) {
+      mStarted = started;
+    }
+
+    @Override public Boolean execute() throws Throwable {
+      mStarted.countDown();
+      return mStarted.await(5, TimeUnit.SECONDS);
+    }
+  }
+
+  private static class SourceAction extends Action<Integer> implements Serializable {
+    @Override public Integer execute() throws Throwable {
+      sSourceRuns.incrementAndGet();
+      return 41;
+    }
+  }
+
+  private static class AddAction extends DependentAction<Integer> implements Serializable {
+    @Override public Integer execute() throws Throwable {
+      int value = this.<Integer>getInput("source") + 1;
+      assertEquals(42, value);
+      sAdded.countDown();
+      return value;
+    }
+
+    @Override public boolean isPersistent() {
+      return true;
+    }
+  }
+}
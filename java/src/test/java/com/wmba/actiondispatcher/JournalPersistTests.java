@@ -0,0 +1,352 @@
+package com.wmba.actiondispatcher;
+
+import com.wmba.actiondispatcher.persist.ActionSerializer;
+import com.wmba.actiondispatcher.persist.JavaActionSerializer;
+import com.wmba.actiondispatcher.persist.JournalActionPersister;
+import com.wmba.actiondispatcher.persist.PersistedActionHolder;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import rx.observers.TestSubscriber;
+
+import static org.junit.Assert.*;
+
+public class JournalPersistTests {
+  @Rule public TemporaryFolder mFolder = new TemporaryFolder();
+
+  @Test public void persistUpdateDeleteTest() throws IOException {
+    File directory = mFolder.newFolder();
+    JournalActionPersister persister = buildPersister(directory);
+
+    long id1 = persister.persist(new TestAction(1));
+    long id2 = persister.persist(new TestAction(2));
+    long id3 = persister.persist(new TestAction(3));
+    persister.update(id2, new TestAction(20));
+    persister.delete(id3);
+
+    assertValues(persister.getPersistedActions(), 1, 20);
+    persister.close();
+
+    // Recovered from disk
+    JournalActionPersister reopened = buildPersister(directory);
+    assertValues(reopened.getPersistedActions(), 1, 20);
+
+    long id4 = reopened.persist(new TestAction(4));
+    assertTrue(id4 > id3);
+    reopened.delete(id1);
+    assertValues(reopened.getPersistedActions(), 20, 4);
+    reopened.close();
+  }
+
+  @Test public void batchTest() throws IOException {
+    JournalActionPersister persister = buildPersister(mFolder.newFolder());
+
+    long[] ids = persister.persistAll(Arrays.asList(new TestAction(1), new TestAction(2), new TestAction(3)));
+    assertEquals(3, ids.length);
+    persister.updateAll(new long[] { ids[0] }, Arrays.asList(new TestAction(10)));
+    persister.deleteAll(new long[] { ids[1], ids[2] });
+
+    assertValues(persister.getPersistedActions(), 10);
+    persister.close();
+  }
+
+  @Test public void updateAfterDeleteTest() throws IOException {
+    File directory = mFolder.newFolder();
+    JournalActionPersister persister = buildPersister(directory);
+
+    long id1 = persister.persist(new TestAction(1));
+    long id2 = persister.persist(new TestAction(2));
+    long id3 = persister.persist(new TestAction(3));
+    persister.delete(id1);
+    persister.update(id1, new TestAction(10));
+    persister.deleteAll(new long[] { id2 });
+    persister.updateAll(new long[] { id2, id3 }, Arrays.asList(new TestAction(20), new TestAction(30)));
+
+    assertValues(persister.getPersistedActions(), 30);
+    persister.close();
+
+    JournalActionPersister reopened = buildPersister(directory);
+    assertValues(reopened.getPersistedActions(), 30);
+    reopened.close();
+  }
+
+  @Test public void pagingTest() throws IOException {
+    JournalActionPersister persister = buildPersister(mFolder.newFolder());
+
+    List<Long> ids = new ArrayList<Long>();
+    for (int i = 0; i < 8; i++) {
+      ids.add(persister.persist(new TestAction(i)));
+    }
+    persister.delete(ids.get(1));
+    persister.delete(ids.get(4));
+
+    List<PersistedActionHolder> page = persister.getPersistedActions(Long.MIN_VALUE, 3);
+    assertValues(page, 0, 2, 3);
+    page = persister.getPersistedActions(page.get(2).getActionId(), 3);
+    assertValues(page, 5, 6, 7);
+    page = persister.getPersistedActions(page.get(2).getActionId(), 3);
+    assertValues(page);
+    persister.close();
+  }
+
+  @Test public void tornRecordIsDroppedTest() throws IOException {
+    File directory = mFolder.newFolder();
+    JournalActionPersister persister = buildPersister(directory);
+    persister.persist(new TestAction(1));
+    persister.persist(new TestAction(2));
+    persister.close();
+
+    // Cut the last record in half, as a crash mid-write would.
+    File segment = directory.listFiles()[0];
+    RandomAccessFile file = new RandomAccessFile(segment, "rw");
+    file.setLength(file.length() - 10);
+    file.close();
+
+    JournalActionPersister reopened = buildPersister(directory);
+    assertValues(reopened.getPersistedActions(), 1);
+
+    reopened.persist(new TestAction(3));
+    reopened.close();
+
+    assertValues(buildPersister(directory).getPersistedActions(), 1, 3);
+  }
+
+  @Test public void compactionTest() throws IOException {
+    File directory = mFolder.newFolder();
+    JournalActionPersister persister = new JournalActionPersister.Builder(directory)
+        .withMaxSegmentBytes(512)
+        .withCompactionInterval(0)
+        .build();
+
+    List<Long> ids = new ArrayList<Long>();
+    for (int i = 0; i < 50; i++) {
+      ids.add(persister.persist(new TestAction(i)));
+    }
+    for (int i = 0; i < 49; i++) {
+      persister.delete(ids.get(i));
+    }
+
+    int segmentCount = directory.listFiles().length;
+    assertTrue(segmentCount > 2);
+
+    persister.compact();
+    // The segment that was active is left, and the copy is in a new one.
+    assertEquals(2, directory.listFiles().length);
+    assertValues(persister.getPersistedActions(), 49);
+    persister.close();
+
+    assertValues(buildPersister(directory).getPersistedActions(), 49);
+  }
+
+  @Test public void compactionStaysWithinMaxSegmentBytesTest() throws IOException {
+    File directory = mFolder.newFolder();
+    JournalActionPersister persister = new JournalActionPersister.Builder(directory)
+        .withMaxSegmentBytes(512)
+        .withCompactionInterval(0)
+        .build();
+
+    List<Long> ids = new ArrayList<Long>();
+    for (int i = 0; i < 40; i++) {
+      ids.add(persister.persist(new TestAction(i)));
+    }
+    int[] values = new int[20];
+    for (int i = 0; i < 40; i++) {
+      if (i % 2 == 0) {
+        persister.delete(ids.get(i));
+      } else {
+        persister.updateRetryState(ids.get(i), i);
+        values[i / 2] = i;
+      }
+    }
+
+    persister.checkpoint();
+    // The copies don't fit in one segment.
+    assertTrue(directory.listFiles().length > 1);
+    for (File file : directory.listFiles()) {
+      assertTrue(file.length() <= 512);
+    }
+    persister.close();
+
+    JournalActionPersister reopened = buildPersister(directory);
+    List<PersistedActionHolder> persistedActions = reopened.getPersistedActions();
+    assertValues(persistedActions, values);
+    for (PersistedActionHolder holder : persistedActions) {
+      assertEquals(((TestAction) holder.getAction()).mValue, holder.getRetryState());
+    }
+    reopened.close();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void maxSegmentBytesMustFitInIntTest() {
+    new JournalActionPersister.Builder(mFolder.getRoot()).withMaxSegmentBytes(Integer.MAX_VALUE + 1L);
+  }
+
+  @Test public void retryStateTest() throws IOException {
+    File directory = mFolder.newFolder();
+    JournalActionPersister persister = new JournalActionPersister.Builder(directory)
+        .withMaxSegmentBytes(512)
+        .withCompactionInterval(0)
+        .build();
+
+    long id1 = persister.persist(new TestAction(1));
+    long id2 = persister.persist(new TestAction(2));
+    persister.updateRetryState(id1, 3);
+    persister.updateRetryState(id1, 4);
+    persister.delete(id2);
+    // Ignored, since the id isn't persisted anymore.
+    persister.updateRetryState(id2, 1);
+
+    // Sealed segments full of garbage, so the retry state has to survive compaction.
+    List<Long> ids = new ArrayList<Long>();
+    for (int i = 0; i < 20; i++) {
+      ids.add(persister.persist(new TestAction(i)));
+    }
+    for (long id : ids) {
+      persister.delete(id);
+    }
+    persister.compact();
+    persister.close();
+
+    List<PersistedActionHolder> persistedActions = buildPersister(directory).getPersistedActions();
+    assertValues(persistedActions, 1);
+    assertTrue(persistedActions.get(0).hasRetryState());
+    assertEquals(4, persistedActions.get(0).getRetryState());
+  }
+
+  @Test public void retryStateInActiveSegmentSurvivesCompactionTest() throws IOException {
+    File directory = mFolder.newFolder();
+    JournalActionPersister persister = new JournalActionPersister.Builder(directory)
+        .withMaxSegmentBytes(512)
+        .withCompactionInterval(0)
+        .build();
+
+    // The Action is in a sealed segment, and its retry state in the active one.
+    long id = persister.persist(new TestAction(1));
+    List<Long> ids = new ArrayList<Long>();
+    for (int i = 0; i < 20; i++) {
+      ids.add(persister.persist(new TestAction(i)));
+    }
+    for (long garbageId : ids) {
+      persister.delete(garbageId);
+    }
+    persister.updateRetryState(id, 3);
+
+    persister.compact();
+    assertEquals(3, persister.getPersistedActions().get(0).getRetryState());
+    persister.close();
+
+    List<PersistedActionHolder> persistedActions = buildPersister(directory).getPersistedActions();
+    assertValues(persistedActions, 1);
+    assertTrue(persistedActions.get(0).hasRetryState());
+    assertEquals(3, persistedActions.get(0).getRetryState());
+  }
+
+  @Test public void updateReplacesRetryStateTest() throws IOException {
+    File directory = mFolder.newFolder();
+    JournalActionPersister persister = buildPersister(directory);
+
+    long id = persister.persist(new TestAction(1));
+    persister.updateRetryState(id, 3);
+    persister.update(id, new TestAction(2));
+    assertFalse(persister.getPersistedActions().get(0).hasRetryState());
+    persister.close();
+
+    List<PersistedActionHolder> persistedActions = buildPersister(directory).getPersistedActions();
+    assertValues(persistedActions, 2);
+    assertFalse(persistedActions.get(0).hasRetryState());
+  }
+
+  @Test public void unreadableActionIsQuarantinedTest() throws IOException {
+    File directory = mFolder.newFolder();
+    ActionSerializer serializer = new JavaActionSerializer() {
+      @Override public <T extends Action<?>> T deserialize(byte[] bytes) {
+        T action = super.deserialize(bytes);
+        if (((TestAction) action).mValue == 2) throw new IllegalStateException("Unreadable");
+        return action;
+      }
+    };
+    final List<String> errors = new ArrayList<String>();
+    JournalActionPersister persister = new JournalActionPersister.Builder(directory)
+        .withSerializer(serializer)
+        .withActionLogger(new ActionLogger() {
+          @Override public void logDebug(String message) {
+          }
+
+          @Override public void logError(Throwable t, String message) {
+            errors.add(message);
+          }
+        })
+        .build();
+
+    persister.persist(new TestAction(1));
+    long id = persister.persist(new TestAction(2));
+    persister.persist(new TestAction(3));
+
+    assertValues(persister.getPersistedActions(), 1, 3);
+    assertEquals(1, errors.size());
+    persister.close();
+
+    // Moved out of the journal, but kept.
+    assertValues(new JournalActionPersister.Builder(directory).withSerializer(serializer).build()
+        .getPersistedActions(), 1, 3);
+    File quarantined = new File(new File(directory, "quarantine"), id + ".action");
+    assertTrue(quarantined.isFile());
+    assertEquals(1, errors.size());
+  }
+
+  @Test public void dispatcherTest() throws IOException {
+    File directory = mFolder.newFolder();
+    JournalActionPersister persister = buildPersister(directory);
+    persister.persist(new TestAction(1));
+
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withActionPersister(persister)
+        .build();
+    DispatcherUtil.waitForPersistentActionsToLoad(dispatcher);
+
+    TestSubscriber<Integer> ts = new TestSubscriber<Integer>();
+    dispatcher.toSingle(new TestAction(2)).subscribe(ts);
+    ts.awaitTerminalEvent();
+    ts.assertValue(2);
+
+    // Both the recovered and the new Action ran and were deleted.
+    assertValues(persister.getPersistedActions());
+  }
+
+  private JournalActionPersister buildPersister(File directory) {
+    return new JournalActionPersister.Builder(directory).build();
+  }
+
+  private void assertValues(List<PersistedActionHolder> persistedActions, int... values) {
+    assertEquals(values.length, persistedActions.size());
+    for (int i = 0; i < values.length; i++) {
+      assertEquals(values[i], ((TestAction) persistedActions.get(i).getAction()).mValue);
+    }
+  }
+
+  private static class TestAction extends Action<Integer> implements Serializable {
+    private final int mValue;
+
+    TestAction(int value) {
+      mValue = value;
+    }
+
+    @Override public Integer execute() throws Throwable {
+      return mValue;
+    }
+
+    @Override public boolean isPersistent() {
+      return true;
+    }
+  }
+}
@@ -0,0 +1,250 @@
+package com.wmba.actiondispatcher;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rx.observers.TestSubscriber;
+
+import static org.junit.Assert.*;
+
+public class KeyPoolTests {
+  @Test public void orderIsKeptPerKeyTest() {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withKeyThreadPoolSize(2)
+        .build();
+
+    final int keyCount = 50;
+    final int actionsPerKey = 20;
+
+    final List<List<Integer>> runOrders = new ArrayList<List<Integer>>(keyCount);
+    final Set<String> threadNames = Collections.synchronizedSet(new HashSet<String>());
+    List<TestSubscriber<Boolean>> subscribers = new ArrayList<TestSubscriber<Boolean>>();
+
+    for (int k = 0; k < keyCount; k++) {
+      runOrders.add(Collections.synchronizedList(new ArrayList<Integer>()));
+    }
+
+    for (int i = 0; i < actionsPerKey; i++) {
+      for (int k = 0; k < keyCount; k++) {
+        final List<Integer> runOrder = runOrders.get(k);
+        final int index = i;
+
+        TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+        dispatcher.toSingle(new Action<Boolean>() {
+          @Override public Boolean execute() throws Throwable {
+            threadNames.add(Thread.currentThread().getName());
+            runOrder.add(index);
+            return true;
+          }
+        }, "key" + k).subscribe(ts);
+        subscribers.add(ts);
+      }
+    }
+
+    for (TestSubscriber<Boolean> ts : subscribers) {
+      ts.awaitTerminalEvent();
+      ts.assertValue(true);
+    }
+
+    for (List<Integer> runOrder : runOrders) {
+      assertEquals(actionsPerKey, runOrder.size());
+      for (int i = 0; i < actionsPerKey; i++) {
+        assertEquals(i, (int) runOrder.get(i));
+      }
+    }
+
+    assertTrue(threadNames.size() <= 2);
+    assertEquals(keyCount, dispatcher.getActiveKeys().size());
+  }
+
+  @Test public void keyExecutorRunsInOrderTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withKeyThreadPoolSize(4)
+        .build();
+
+    final List<Integer> runOrder = Collections.synchronizedList(new ArrayList<Integer>());
+    final int count = 1000;
+    final Object lock = new Object();
+    final boolean[] done = new boolean[1];
+
+    for (int i = 0; i < count; i++) {
+      final int index = i;
+      dispatcher.getExecutor("key").execute(new Runnable() {
+        @Override public void run() {
+          runOrder.add(index);
+          if (index == count - 1) {
+            synchronized (lock) {
+              done[0] = true;
+              lock.notifyAll();
+            }
+          }
+        }
+      });
+    }
+
+    synchronized (lock) {
+      while (!done[0]) lock.wait();
+    }
+
+    assertEquals(count, runOrder.size());
+    for (int i = 0; i < count; i++) {
+      assertEquals(i, (int) runOrder.get(i));
+    }
+  }
+
+  @Test public void idleKeysAreEvictedTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withIdleKeyTimeout(20, TimeUnit.MILLISECONDS)
+        .build();
+
+    runOnKey(dispatcher, "idleKey");
+    Set<String> activeKeys = dispatcher.getActiveKeys();
+    assertTrue(activeKeys.contains("idleKey"));
+
+    long timeout = System.currentTimeMillis() + 5000;
+    while (dispatcher.getActiveKeys().contains("idleKey") && System.currentTimeMillis() < timeout) {
+      Thread.sleep(10);
+    }
+
+    assertFalse(dispatcher.getActiveKeys().contains("idleKey"));
+    // The earlier result is a snapshot, and isn't changed by the eviction.
+    assertTrue(activeKeys.contains("idleKey"));
+
+    runOnKey(dispatcher, "idleKey");
+  }
+
+  @Test public void retiredExecutorForwardsTest() throws InterruptedException {
+    ExecutorCache cache = new ExecutorCache(2, 0);
+
+    Executor retired = cache.getExecutorForKey("key");
+    cache.evictIdleKeys(System.nanoTime() + TimeUnit.SECONDS.toNanos(1));
+    assertFalse(cache.getActiveKeys().contains("key"));
+
+    final CountDownLatch latch = new CountDownLatch(1);
+    retired.execute(new Runnable() {
+      @Override public void run() {
+        latch.countDown();
+      }
+    });
+
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+    assertTrue(cache.getActiveKeys().contains("key"));
+    assertNotSame(retired, cache.getExecutorForKey("key"));
+  }
+
+  @Test public void threadPerTaskKeysKeepOrderTest() throws InterruptedException {
+    final AtomicInteger threadCount = new AtomicInteger();
+    ExecutorCache cache = new ExecutorCache(1, 0, new ThreadFactory() {
+      @Override public Thread newThread(Runnable r) {
+        threadCount.incrementAndGet();
+        return new Thread(r);
+      }
+    });
+
+    final int keyCount = 20;
+    final int runnablesPerKey = 50;
+    final List<List<Integer>> runOrders = new ArrayList<List<Integer>>(keyCount);
+    final CountDownLatch blocked = new CountDownLatch(keyCount);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(keyCount * runnablesPerKey);
+
+    for (int k = 0; k < keyCount; k++) {
+      final List<Integer> runOrder = Collections.synchronizedList(new ArrayList<Integer>());
+      runOrders.add(runOrder);
+      Executor executor = cache.getExecutorForKey("key" + k);
+
+      for (int i = 0; i < runnablesPerKey; i++) {
+        final int index = i;
+        executor.execute(new Runnable() {
+          @Override public void run() {
+            if (index == 0) {
+              // Every key blocks at once, which a pool of one thread couldn't do.
+              blocked.countDown();
+              try {
+                release.await();
+              } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+              }
+            }
+            runOrder.add(index);
+            done.countDown();
+          }
+        });
+      }
+    }
+
+    assertTrue(blocked.await(5, TimeUnit.SECONDS));
+    release.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+
+    for (List<Integer> runOrder : runOrders) {
+      for (int i = 0; i < runnablesPerKey; i++) {
+        assertEquals(Integer.valueOf(i), runOrder.get(i));
+      }
+    }
+    assertTrue(threadCount.get() >= keyCount);
+  }
+
+  @Test public void virtualThreadsTest() throws InterruptedException {
+    Assume.assumeTrue(ActionDispatcher.areVirtualThreadsSupported());
+
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withVirtualThreads()
+        .build();
+
+    final int count = 10000;
+    final CountDownLatch blocked = new CountDownLatch(count);
+    final CountDownLatch release = new CountDownLatch(1);
+    List<TestSubscriber<Boolean>> subscribers = new ArrayList<TestSubscriber<Boolean>>(count);
+    for (int i = 0; i < count; i++) {
+      TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+      subscribers.add(ts);
+      dispatcher.toSingle(new Action<Boolean>() {
+        @Override public Boolean execute() throws Throwable {
+          blocked.countDown();
+          release.await();
+          return true;
+        }
+      }, (i % 2 == 0) ? KeySelector.ASYNC_KEY : "key" + i).subscribe(ts);
+    }
+
+    assertTrue(blocked.await(10, TimeUnit.SECONDS));
+    release.countDown();
+    for (TestSubscriber<Boolean> ts : subscribers) {
+      ts.awaitTerminalEvent();
+      ts.assertValue(true);
+    }
+  }
+
+  @Test public void virtualThreadsUnsupportedTest() {
+    Assume.assumeFalse(ActionDispatcher.areVirtualThreadsSupported());
+
+    try {
+      new ActionDispatcher.Builder().withVirtualThreads().build();
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  private void runOnKey(ActionDispatcher dispatcher, String key) {
+    TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new Action<Boolean>() {
+      @Override public Boolean execute() throws Throwable {
+        return true;
+      }
+    }, key).subscribe(ts);
+    ts.awaitTerminalEvent();
+    ts.assertValue(true);
+  }
+}
@@ -0,0 +1,198 @@
+package com.wmba.actiondispatcher;
+
+import com.wmba.actiondispatcher.component.ErrorAction;
+import com.wmba.actiondispatcher.component.InstantActionPersister;
+import com.wmba.actiondispatcher.component.SimpleAction;
+import com.wmba.actiondispatcher.component.SimplePersistentAction;
+import com.wmba.actiondispatcher.metrics.DispatchMetrics;
+import com.wmba.actiondispatcher.metrics.LatencyHistogram;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import rx.observers.TestSubscriber;
+
+import static org.junit.Assert.*;
+
+public class MetricsTests {
+  @Test public void histogramPercentileTest() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getPercentileNanos(99));
+
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+    }
+
+    assertEquals(1000, histogram.getCount());
+    assertEquals(TimeUnit.MICROSECONDS.toNanos(1000), histogram.getMaxNanos());
+    assertEquals(TimeUnit.MICROSECONDS.toNanos(1001) / 2, histogram.getMeanNanos());
+
+    assertWithinPrecision(TimeUnit.MICROSECONDS.toNanos(500), histogram.getPercentileNanos(50));
+    assertWithinPrecision(TimeUnit.MICROSECONDS.toNanos(990), histogram.getPercentileNanos(99));
+    assertEquals(histogram.getMaxNanos(), histogram.getPercentileNanos(100));
+  }
+
+  @Test public void histogramSmallValuesTest() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 0; i < 8; i++) {
+      histogram.record(i);
+    }
+
+    assertEquals(0, histogram.getPercentileNanos(0));
+    assertEquals(3, histogram.getPercentileNanos(50));
+    assertEquals(7, histogram.getPercentileNanos(100));
+  }
+
+  @Test public void countsTest() {
+    DispatchMetrics metrics = new DispatchMetrics();
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withDispatchListener(metrics)
+        .build();
+
+    final int count = 10;
+    for (int i = 0; i < count; i++) {
+      dispatcher.toSingle(new SimpleAction()).toBlocking().value();
+    }
+
+    TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new RetryingErrorAction()).subscribe(ts);
+    ts.awaitTerminalEvent();
+    assertEquals(1, ts.getOnErrorEvents().size());
+
+    DispatchMetrics.ActionClassStats stats = metrics.getActionClassStats().get(SimpleAction.class);
+    assertEquals(count, stats.getCompletedCount());
+    assertEquals(0, stats.getFailedCount());
+    assertEquals(0, stats.getRetryCount());
+    assertEquals(0, stats.getErrorRate(), 0);
+
+    DispatchMetrics.ActionClassStats errorStats = metrics.getActionClassStats().get(RetryingErrorAction.class);
+    assertEquals(0, errorStats.getCompletedCount());
+    assertEquals(1, errorStats.getFailedCount());
+    assertEquals(2, errorStats.getRetryCount());
+    assertEquals(1, errorStats.getErrorRate(), 0);
+
+    assertEquals(count + 1, metrics.getQueueWaitLatency().getCount());
+    assertEquals(count + 1, metrics.getExecuteLatency().getCount());
+    assertEquals(0, metrics.getPersistLatency().getCount());
+    assertEquals(0, metrics.getDeleteLatency().getCount());
+  }
+
+  @Test public void persistLatencyTest() {
+    DispatchMetrics metrics = new DispatchMetrics();
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withActionPersister(new InstantActionPersister())
+        .withDispatchListener(metrics)
+        .build();
+
+    dispatcher.toSingle(new SimplePersistentAction()).toBlocking().value();
+
+    assertEquals(1, metrics.getPersistLatency().getCount());
+    assertEquals(1, metrics.getDeleteLatency().getCount());
+  }
+
+  @Test public void executeLatencyTest() {
+    DispatchMetrics metrics = new DispatchMetrics();
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withDispatchListener(metrics)
+        .build();
+
+    dispatcher.toSingle(new Action<Boolean>() {
+      @Override public Boolean execute() throws Throwable {
+        Thread.sleep(20);
+        return true;
+      }
+    }).toBlocking().value();
+
+    assertTrue(metrics.getExecuteLatency().getMaxNanos() >= TimeUnit.MILLISECONDS.toNanos(20));
+  }
+
+  @Test public void queueDepthTest() throws InterruptedException {
+    DispatchMetrics metrics = new DispatchMetrics();
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withDispatchListener(metrics)
+        .build();
+
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    TestSubscriber<Boolean> blocking = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new Action<Boolean>() {
+      @Override public Boolean execute() throws Throwable {
+        started.countDown();
+        release.await();
+        return true;
+      }
+    }, "queue").subscribe(blocking);
+    started.await();
+
+    TestSubscriber<Boolean> waiting = null;
+    for (int i = 0; i < 3; i++) {
+      waiting = new TestSubscriber<Boolean>();
+      dispatcher.toSingle(new SimpleAction(), "queue").subscribe(waiting);
+    }
+
+    assertEquals(Integer.valueOf(3), metrics.getQueueDepths().get("queue"));
+
+    release.countDown();
+    blocking.awaitTerminalEvent();
+    waiting.awaitTerminalEvent();
+    dispatcher.toSingle(new SimpleAction(), "queue").toBlocking().value();
+
+    assertNull(metrics.getQueueDepths().get("queue"));
+    assertTrue(metrics.getQueueWaitLatency().getMaxNanos() > 0);
+  }
+
+  @Test public void queueDepthOfIdleKeyIsRemovedTest() throws InterruptedException {
+    final DispatchMetrics metrics = new DispatchMetrics();
+    final Action<Boolean> action = new SimpleAction();
+    final int threadCount = 4;
+    final int rounds = 10000;
+
+    // Every thread takes the key's depth down to what it was, so the entry is removed and added
+    // again many times while the other threads update it.
+    final CountDownLatch done = new CountDownLatch(threadCount);
+    for (int i = 0; i < threadCount; i++) {
+      new Thread() {
+        @Override public void run() {
+          for (int j = 0; j < rounds; j++) {
+            metrics.onEnqueued(action, "key");
+            metrics.onStarted(action, "key", 0);
+          }
+          done.countDown();
+        }
+      }.start();
+    }
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+
+    assertTrue(metrics.getQueueDepths().isEmpty());
+    metrics.onEnqueued(action, "key");
+    assertEquals(Integer.valueOf(1), metrics.getQueueDepths().get("key"));
+  }
+
+  @Test public void nestedActionsAreNotReportedTest() {
+    DispatchMetrics metrics = new DispatchMetrics();
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withDispatchListener(metrics)
+        .build();
+
+    dispatcher.toSingle(new Action<Boolean>() {
+      @Override public Boolean execute() throws Throwable {
+        return subscribeBlocking(new SimpleAction());
+      }
+    }).toBlocking().value();
+
+    assertNull(metrics.getActionClassStats().get(SimpleAction.class));
+    assertEquals(1, metrics.getExecuteLatency().getCount());
+  }
+
+  private static void assertWithinPrecision(long expected, long actual) {
+    assertTrue("expected " + expected + " but was " + actual, Math.abs(expected - actual) <= expected / 8);
+  }
+
+  private static class RetryingErrorAction extends ErrorAction {
+    @Override public int getRetryLimit() {
+      return 2;
+    }
+  }
+}
@@ -0,0 +1,210 @@
+package com.wmba.actiondispatcher;
+
+import com.wmba.actiondispatcher.component.SimpleAction;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.wmba.actiondispatcher.component.KeyBlocker.blockKey;
+import static org.junit.Assert.*;
+
+public class MultiKeyTests {
+  @Test public void waitsForAllKeysTest() throws Exception {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    CountDownLatch release = blockKey(dispatcher, "b");
+    final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    ActionFuture<Boolean> transfer = dispatcher.toFuture(new TransferAction(order, "transfer", "a", "b"));
+    ActionFuture<Boolean> onA = dispatcher.toFuture(new RecordAction(order, "onA"), "a");
+
+    // Key a is held for the transfer while it waits for key b, so nothing else runs on it.
+    Thread.sleep(50);
+    assertTrue(order.isEmpty());
+    assertFalse(transfer.isDone());
+
+    release.countDown();
+    assertEquals(Boolean.TRUE, transfer.get(5, TimeUnit.SECONDS));
+    assertEquals(Boolean.TRUE, onA.get(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("transfer", "onA"), order);
+  }
+
+  @Test public void waitingDoesNotHoldThreadsTest() throws Exception {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withKeyThreadPoolSize(2)
+        .build();
+
+    // One of the two threads is blocked, and the transfer waits without taking the other one.
+    CountDownLatch release = blockKey(dispatcher, "b");
+    List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    ActionFuture<Boolean> transfer = dispatcher.toFuture(new TransferAction(order, "transfer", "a", "b"));
+
+    assertEquals(Boolean.TRUE, dispatcher.toFuture(new SimpleAction(), "c").get(5, TimeUnit.SECONDS));
+    assertFalse(transfer.isDone());
+
+    release.countDown();
+    assertEquals(Boolean.TRUE, transfer.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test public void overlappingKeysDontDeadlockTest() throws Exception {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withKeyThreadPoolSize(4)
+        .build();
+
+    String[] keys = { "k0", "k1", "k2", "k3", "k4" };
+    final Map<String, AtomicBoolean> inUse = new HashMap<String, AtomicBoolean>();
+    for (String key : keys) {
+      inUse.put(key, new AtomicBoolean());
+    }
+    final AtomicInteger overlaps = new AtomicInteger();
+
+    Random random = new Random(7);
+    List<ActionFuture<Boolean>> futures = new ArrayList<ActionFuture<Boolean>>();
+    for (int i = 0; i < 500; i++) {
+      final Set<String> actionKeys = new HashSet<String>();
+      while (actionKeys.size() < 2 + random.nextInt(2)) {
+        actionKeys.add(keys[random.nextInt(keys.length)]);
+      }
+
+      futures.add(dispatcher.toFuture(new Action<Boolean>() {
+        @Override public Boolean execute() throws Throwable {
+          for (String key : actionKeys) {
+            if (!inUse.get(key).compareAndSet(false, true)) overlaps.incrementAndGet();
+          }
+          Thread.yield();
+          for (String key : actionKeys) {
+            inUse.get(key).set(false);
+          }
+          return true;
+        }
+
+        @Override public Set<String> getKeys() {
+          return actionKeys;
+        }
+      }));
+    }
+
+    for (ActionFuture<Boolean> future : futures) {
+      assertEquals(Boolean.TRUE, future.get(10, TimeUnit.SECONDS));
+    }
+    assertEquals(0, overlaps.get());
+  }
+
+  @Test public void cancelWhileWaitingReleasesKeysTest() throws Exception {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    CountDownLatch release = blockKey(dispatcher, "b");
+    final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    ActionFuture<Boolean> transfer = dispatcher.toFuture(new TransferAction(order, "transfer", "a", "b") {
+      @Override public boolean runIfUnsubscribed() {
+        return false;
+      }
+    });
+    ActionFuture<Boolean> onA = dispatcher.toFuture(new RecordAction(order, "onA"), "a");
+
+    assertTrue(transfer.cancel(false));
+    release.countDown();
+    assertEquals(Boolean.TRUE, onA.get(5, TimeUnit.SECONDS));
+    assertEquals(Boolean.TRUE, dispatcher.toFuture(new SimpleAction(), "b").get(5, TimeUnit.SECONDS));
+    assertEquals(Collections.singletonList("onA"), order);
+  }
+
+  @Test public void hungActionReleasesAllKeysTest() throws Exception {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    ActionFuture<Boolean> hung = dispatcher.toFuture(new TransferAction(order, "hung", "a", "b") {
+      @Override public Boolean execute() throws Throwable {
+        started.countDown();
+        // Ignores interrupts, as a hung call would.
+        while (release.getCount() > 0) {
+          try {
+            release.await();
+          } catch (InterruptedException ignored) {
+          }
+        }
+        return true;
+      }
+
+      @Override public long getTimeoutMillis() {
+        return 100;
+      }
+    });
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+
+    try {
+      hung.get(5, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof TimeoutException);
+    }
+    // Both keys move on while the Action is still stuck.
+    assertEquals(Boolean.TRUE, dispatcher.toFuture(new SimpleAction(), "a").get(5, TimeUnit.SECONDS));
+    assertEquals(Boolean.TRUE, dispatcher.toFuture(new SimpleAction(), "b").get(5, TimeUnit.SECONDS));
+    release.countDown();
+  }
+
+  @Test public void providedExecutorKeyFailsTest() throws Exception {
+    Executor executor = Executors.newSingleThreadExecutor();
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withExecutor("provided", executor)
+        .build();
+
+    List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    try {
+      dispatcher.toFuture(new TransferAction(order, "transfer", "a", "provided")).get(5, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+    assertTrue(order.isEmpty());
+    // The key that was held is given back.
+    assertEquals(Boolean.TRUE, dispatcher.toFuture(new SimpleAction(), "a").get(5, TimeUnit.SECONDS));
+  }
+
+  private static class RecordAction extends Action<Boolean> {
+    private final List<String> mOrder;
+    private final String mName;
+
+    RecordAction(List<String> order, String name) {
+      mOrder = order;
+      mName = name;
+    }
+
+    @Override public Boolean execute() throws Throwable {
+      mOrder.add(mName);
+      return true;
+    }
+  }
+
+  private static class TransferAction extends RecordAction {
+    private final Set<String> mKeys;
+
+    TransferAction(List<String> order, String name, String... keys) {
+      super(order, name);
+      mKeys = new HashSet<String>(Arrays.asList(keys));
+    }
+
+    @Override public Set<String> getKeys() {
+      return mKeys;
+    }
+  }
+}
@@ -1,12 +1,18 @@
 package com.wmba.actiondispatcher;
 
 import com.wmba.actiondispatcher.component.DelayedActionPersister;
+import com.wmba.actiondispatcher.component.InstantActionPersister;
 import com.wmba.actiondispatcher.component.SimpleAction;
 import com.wmba.actiondispatcher.component.SimplePersistentAction;
+import com.wmba.actiondispatcher.persist.PersistedActionHolder;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import rx.observers.TestSubscriber;
@@ -42,6 +48,11 @@ public class PersistTests {
     }, "separateThread").subscribe(ts);
     ts.awaitTerminalEvent();
 
+    // The keys run on a shared pool, so the persisted Action may still be being deleted.
+    long deadline = System.currentTimeMillis() + 5000;
+    while (persister.isPersisted(action) && System.currentTimeMillis() < deadline) {
+      Thread.yield();
+    }
     assertFalse(persister.isPersisted(action));
   }
 
@@ -86,9 +97,92 @@ public class PersistTests {
     }
   }
 
+  @Test public void nonPersistentActionsCanSkipLoadingTest() {
+    CountDownLatch loaded = new CountDownLatch(1);
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withActionPersister(new BlockedActionPersister(loaded))
+        .gateOnlyPersistentActions()
+        .build();
+
+    TestSubscriber<Boolean> nonPersistent = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new SimpleAction()).subscribe(nonPersistent);
+    TestSubscriber<Boolean> persistent = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new SimplePersistentAction()).subscribe(persistent);
+
+    nonPersistent.awaitTerminalEvent(5, TimeUnit.SECONDS);
+    nonPersistent.assertValue(true);
+    assertFalse(dispatcher.arePersistentActionsLoaded());
+    persistent.assertNoTerminalEvent();
+
+    loaded.countDown();
+    persistent.awaitTerminalEvent();
+    persistent.assertValue(true);
+  }
+
+  @Test public void queuedActionsKeepOrderTest() throws InterruptedException {
+    final CountDownLatch loaded = new CountDownLatch(1);
+    final ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withActionPersister(new BlockedActionPersister(loaded))
+        .build();
+
+    final int count = 20000;
+    final List<Integer> runOrder = Collections.synchronizedList(new ArrayList<Integer>(count));
+    final List<TestSubscriber<Boolean>> subscribers = new ArrayList<TestSubscriber<Boolean>>(count);
+
+    Thread submitter = new Thread(new Runnable() {
+      @Override public void run() {
+        for (int i = 0; i < count; i++) {
+          final int index = i;
+          TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+          dispatcher.toSingle(new SimpleAction() {
+            @Override public Boolean execute() throws Throwable {
+              runOrder.add(index);
+              return true;
+            }
+          }).subscribe(ts);
+          subscribers.add(ts);
+
+          // Let loading finish while Actions are still being submitted.
+          if (i == count / 10) loaded.countDown();
+        }
+      }
+    });
+    submitter.start();
+    submitter.join();
+
+    for (TestSubscriber<Boolean> ts : subscribers) {
+      ts.awaitTerminalEvent();
+    }
+
+    assertEquals(count, runOrder.size());
+    for (int i = 0; i < count; i++) {
+      assertEquals(i, (int) runOrder.get(i));
+    }
+  }
+
   private ActionDispatcher buildDispatcher(ActionPersister persister) {
     return new ActionDispatcher.Builder()
         .withActionPersister(persister)
         .build();
   }
+
+  /**
+   * Doesn't return the persisted Actions until the latch is released.
+   */
+  private static class BlockedActionPersister extends InstantActionPersister {
+    private final CountDownLatch mLatch;
+
+    BlockedActionPersister(CountDownLatch latch) {
+      mLatch = latch;
+    }
+
+    @Override public List<PersistedActionHolder> getPersistedActions() {
+      try {
+        mLatch.await();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      return super.getPersistedActions();
+    }
+  }
 }
@@ -0,0 +1,252 @@
+package com.wmba.actiondispatcher;
+
+import com.wmba.actiondispatcher.persist.JournalActionPersister;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import rx.observers.TestSubscriber;
+
+import static com.wmba.actiondispatcher.component.KeyBlocker.blockKey;
+import static org.junit.Assert.*;
+
+public class PriorityTests {
+  @Rule public TemporaryFolder mFolder = new TemporaryFolder();
+
+  @Test public void higherPriorityRunsFirstTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withKeySelector(new PrioritizedKeySelector())
+        .withPriorityAging(0, TimeUnit.MILLISECONDS)
+        .build();
+
+    List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch release = blockKey(dispatcher, "key");
+
+    List<TestSubscriber<Boolean>> subscribers = new ArrayList<TestSubscriber<Boolean>>();
+    subscribers.add(run(dispatcher, new PriorityAction("low1", -5, order), "key"));
+    subscribers.add(run(dispatcher, new PriorityAction("normal", 0, order), "key"));
+    subscribers.add(run(dispatcher, new PriorityAction("high", 10, order), "key"));
+    subscribers.add(run(dispatcher, new PriorityAction("low2", -5, order), "key"));
+
+    release.countDown();
+    awaitAll(subscribers);
+
+    assertEquals(4, order.size());
+    assertEquals("high", order.get(0));
+    assertEquals("normal", order.get(1));
+    assertEquals("low1", order.get(2));
+    assertEquals("low2", order.get(3));
+  }
+
+  @Test public void unprioritizedKeysAreFifoTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch release = blockKey(dispatcher, "key");
+
+    List<TestSubscriber<Boolean>> subscribers = new ArrayList<TestSubscriber<Boolean>>();
+    subscribers.add(run(dispatcher, new PriorityAction("low", -5, order), "key"));
+    subscribers.add(run(dispatcher, new PriorityAction("high", 10, order), "key"));
+
+    release.countDown();
+    awaitAll(subscribers);
+
+    assertEquals("low", order.get(0));
+    assertEquals("high", order.get(1));
+  }
+
+  @Test public void agingPreventsStarvationTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withKeySelector(new PrioritizedKeySelector())
+        .withPriorityAging(1, TimeUnit.MILLISECONDS)
+        .build();
+
+    List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch release = blockKey(dispatcher, "key");
+
+    List<TestSubscriber<Boolean>> subscribers = new ArrayList<TestSubscriber<Boolean>>();
+    subscribers.add(run(dispatcher, new PriorityAction("old", 0, order), "key"));
+    // Gains far more than the 5 levels the next Action has over it.
+    Thread.sleep(100);
+    subscribers.add(run(dispatcher, new PriorityAction("new", 5, order), "key"));
+    subscribers.add(run(dispatcher, new PriorityAction("newer", 500, order), "key"));
+
+    release.countDown();
+    awaitAll(subscribers);
+
+    assertEquals("newer", order.get(0));
+    assertEquals("old", order.get(1));
+    assertEquals("new", order.get(2));
+  }
+
+  @Test public void keySelectorPriorityTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withKeySelector(new PrioritizedKeySelector() {
+          @Override public int getPriority(Action<?> action) {
+            return -action.getPriority();
+          }
+        })
+        .withPriorityAging(0, TimeUnit.MILLISECONDS)
+        .build();
+
+    List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch release = blockKey(dispatcher, "key");
+
+    List<TestSubscriber<Boolean>> subscribers = new ArrayList<TestSubscriber<Boolean>>();
+    subscribers.add(run(dispatcher, new PriorityAction("high", 10, order), "key"));
+    subscribers.add(run(dispatcher, new PriorityAction("low", -10, order), "key"));
+
+    release.countDown();
+    awaitAll(subscribers);
+
+    assertEquals("low", order.get(0));
+    assertEquals("high", order.get(1));
+  }
+
+  @Test public void persistedPriorityTest() throws InterruptedException, IOException {
+    File directory = mFolder.newFolder();
+    JournalActionPersister persister = new JournalActionPersister.Builder(directory).build();
+    persister.persist(new PersistentPriorityAction("low", -10));
+    persister.persist(new PersistentPriorityAction("high", 10));
+    persister.close();
+
+    // The Actions are restored from disk, as after a restart.
+    List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withActionPersister(new JournalActionPersister.Builder(directory).build())
+        .withKeySelector(new PrioritizedKeySelector())
+        .withPriorityAging(0, TimeUnit.MILLISECONDS)
+        .delayPersistentActionLoading()
+        .build();
+
+    while (!dispatcher.arePersistentActionsLoaded()) {
+      Thread.sleep(1);
+    }
+
+    PersistentPriorityAction.sOrder = order;
+    CountDownLatch release = blockKey(dispatcher, KeySelector.DEFAULT_KEY);
+    dispatcher.startPersistentActions();
+    release.countDown();
+
+    long timeout = System.currentTimeMillis() + 5000;
+    while (order.size() < 2 && System.currentTimeMillis() < timeout) {
+      Thread.sleep(5);
+    }
+
+    assertEquals(2, order.size());
+    assertEquals("high", order.get(0));
+    assertEquals("low", order.get(1));
+  }
+
+  @Test public void queueOrderTest() {
+    PriorityRunnableQueue queue = new PriorityRunnableQueue(0);
+    Runnable low = new PriorityRunnable(-1);
+    Runnable plain = new Runnable() {
+      @Override public void run() {}
+    };
+    Runnable high1 = new PriorityRunnable(3);
+    Runnable high2 = new PriorityRunnable(3);
+
+    queue.offer(low);
+    queue.offer(plain);
+    queue.offer(high1);
+    queue.offer(high2);
+
+    assertEquals(4, queue.size());
+    assertSame(high1, queue.poll());
+    assertSame(high2, queue.poll());
+    assertSame(plain, queue.poll());
+    assertSame(low, queue.poll());
+    assertNull(queue.poll());
+    assertTrue(queue.isEmpty());
+  }
+
+  private static TestSubscriber<Boolean> run(ActionDispatcher dispatcher, Action<Boolean> action, String key) {
+    TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(action, key).subscribe(ts);
+    return ts;
+  }
+
+  private static void awaitAll(List<TestSubscriber<Boolean>> subscribers) {
+    for (TestSubscriber<Boolean> ts : subscribers) {
+      ts.awaitTerminalEvent();
+      ts.assertValue(true);
+    }
+  }
+
+  private static class PrioritizedKeySelector extends KeySelector {
+    @Override public boolean isPrioritized(String key) {
+      return true;
+    }
+  }
+
+  private static class PriorityAction extends Action<Boolean> {
+    private final String mName;
+    private final int mPriority;
+    private final List<String> mOrder;
+
+    PriorityAction(String name, int priority, List<String> order) {
+      mName = name;
+      mPriority = priority;
+      mOrder = order;
+    }
+
+    @Override public Boolean execute() throws Throwable {
+      mOrder.add(mName);
+      return true;
+    }
+
+    @Override public int getPriority() {
+      return mPriority;
+    }
+  }
+
+  private static class PersistentPriorityAction extends Action<Boolean> implements Serializable {
+    static volatile List<String> sOrder;
+
+    private final String mName;
+    private final int mPriority;
+
+    PersistentPriorityAction(String name, int priority) {
+      mName = name;
+      mPriority = priority;
+    }
+
+    @Override public Boolean execute() throws Throwable {
+      sOrder.add(mName);
+      return true;
+    }
+
+    @Override public int getPriority() {
+      return mPriority;
+    }
+
+    @Override public boolean isPersistent() {
+      return true;
+    }
+  }
+
+  private static class PriorityRunnable implements Runnable, Prioritized {
+    private final int mPriority;
+
+    PriorityRunnable(int priority) {
+      mPriority = priority;
+    }
+
+    @Override public void run() {}
+
+    @Override public int getPriority() {
+      return mPriority;
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package com.wmba.actiondispatcher;
+
+import com.wmba.actiondispatcher.component.InstantActionPersister;
+import com.wmba.actiondispatcher.component.SimplePersistentAction;
+import com.wmba.actiondispatcher.persist.PersistedActionHolder;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rx.observers.TestSubscriber;
+
+import static org.junit.Assert.*;
+
+public class RecoveryTests {
+  @Test public void pagesRunWhileLoadingTest() {
+    final CountDownLatch firstPageRan = new CountDownLatch(1);
+    final AtomicInteger runCount = new AtomicInteger();
+    final int actionCount = 600;
+
+    PagedInstantActionPersister persister = new PagedInstantActionPersister() {
+      @Override public List<PersistedActionHolder> getPersistedActions(long afterId, int limit) {
+        if (afterId != Long.MIN_VALUE) {
+          // Later pages are only loaded once an Action of the first page has run.
+          try {
+            assertTrue(firstPageRan.await(5, TimeUnit.SECONDS));
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        }
+        return super.getPersistedActions(afterId, limit);
+      }
+    };
+
+    for (int i = 0; i < actionCount; i++) {
+      persister.persist(new SimplePersistentAction() {
+        @Override public Boolean execute() throws Throwable {
+          runCount.incrementAndGet();
+          firstPageRan.countDown();
+          return super.execute();
+        }
+      });
+    }
+
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withActionPersister(persister)
+        .build();
+
+    // Queued behind the loading, so it runs after every recovered Action of its key.
+    TestSubscriber<Integer> ts = new TestSubscriber<Integer>();
+    dispatcher.toSingle(new Action<Integer>() {
+      @Override public Integer execute() throws Throwable {
+        return runCount.get();
+      }
+    }).subscribe(ts);
+
+    ts.awaitTerminalEvent();
+    ts.assertValue(actionCount);
+    assertTrue(persister.getPersistedActions().isEmpty());
+    assertEquals(3, persister.mPageCount.get());
+  }
+
+  @Test public void delayedPagesRunWhenStartedTest() {
+    final AtomicInteger runCount = new AtomicInteger();
+    final int actionCount = 300;
+
+    PagedInstantActionPersister persister = new PagedInstantActionPersister();
+    for (int i = 0; i < actionCount; i++) {
+      persister.persist(new SimplePersistentAction() {
+        @Override public Boolean execute() throws Throwable {
+          runCount.incrementAndGet();
+          return super.execute();
+        }
+      });
+    }
+
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withActionPersister(persister)
+        .delayPersistentActionLoading()
+        .build();
+    DispatcherUtil.waitForPersistentActionsToLoad(dispatcher);
+    assertEquals(0, runCount.get());
+
+    dispatcher.startPersistentActions();
+    DispatcherUtil.subscribeActionBlocking(dispatcher);
+    assertEquals(actionCount, runCount.get());
+  }
+
+  private static class PagedInstantActionPersister extends InstantActionPersister implements PagedActionPersister {
+    final AtomicInteger mPageCount = new AtomicInteger();
+
+    @Override public synchronized List<PersistedActionHolder> getPersistedActions(long afterId, int limit) {
+      mPageCount.incrementAndGet();
+
+      List<PersistedActionHolder> persistedActions = getPersistedActions();
+      Collections.sort(persistedActions, new Comparator<PersistedActionHolder>() {
+        @Override public int compare(PersistedActionHolder lhs, PersistedActionHolder rhs) {
+          return Long.valueOf(lhs.getActionId()).compareTo(rhs.getActionId());
+        }
+      });
+
+      List<PersistedActionHolder> page = new ArrayList<PersistedActionHolder>(limit);
+      for (PersistedActionHolder holder : persistedActions) {
+        if (holder.getActionId() > afterId && page.size() < limit) page.add(holder);
+      }
+      return page;
+    }
+  }
+}
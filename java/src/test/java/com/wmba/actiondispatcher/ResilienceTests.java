@@ -9,6 +9,7 @@ import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import rx.observers.TestSubscriber;
 
@@ -52,10 +53,21 @@ public class ResilienceTests {
   }
 
   @Test public void actionRunsWithPersistExceptionTest() {
+    // Loading runs on the shared pool, and could finish before the first assertion without the gate.
+    final CountDownLatch loadGate = new CountDownLatch(1);
     InstantActionPersister persister = new InstantActionPersister() {
       @Override public synchronized long persist(Action<?> action) {
         throw new RuntimeException();
       }
+
+      @Override public List<PersistedActionHolder> getPersistedActions() {
+        try {
+          loadGate.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        return super.getPersistedActions();
+      }
     };
 
     ActionDispatcher dispatcher = new ActionDispatcher.Builder()
@@ -63,6 +75,7 @@ public class ResilienceTests {
         .build();
 
     assertFalse(dispatcher.arePersistentActionsLoaded());
+    loadGate.countDown();
     dispatcher.startPersistentActions();
     DispatcherUtil.waitForPersistentActionsToLoad(dispatcher);
 
@@ -0,0 +1,234 @@
+package com.wmba.actiondispatcher;
+
+import com.wmba.actiondispatcher.component.InstantActionPersister;
+import com.wmba.actiondispatcher.component.InstantRetryStateActionPersister;
+import com.wmba.actiondispatcher.component.TestException;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rx.observers.TestSubscriber;
+
+import static org.junit.Assert.*;
+
+public class RetryStateTests {
+  @Test public void onlyRetryStateIsWrittenTest() {
+    InstantRetryStateActionPersister persister = new InstantRetryStateActionPersister();
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withActionPersister(persister)
+        .build();
+    DispatcherUtil.waitForPersistentActionsToLoad(dispatcher);
+
+    TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new FailingAction(3, 3)).subscribe(ts);
+    ts.awaitTerminalEvent();
+    ts.assertValue(true);
+
+    // The retry count goes from -1 to 0 on the first failure.
+    assertEquals(Arrays.asList(0, 1, 2), persister.getRetryStateWrites());
+    assertEquals(0, persister.getUpdateCount());
+  }
+
+  @Test public void unchangedRetryStateIsNotWrittenTest() {
+    InstantRetryStateActionPersister persister = new InstantRetryStateActionPersister();
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withActionPersister(persister)
+        .build();
+    DispatcherUtil.waitForPersistentActionsToLoad(dispatcher);
+
+    TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new FailingAction(3, 0) {
+      @Override public boolean shouldRetryForThrowable(Throwable t) {
+        // Retries without touching the retry count.
+        return true;
+      }
+    }).subscribe(ts);
+    ts.awaitTerminalEvent();
+    ts.assertValue(true);
+
+    assertTrue(persister.getRetryStateWrites().isEmpty());
+    assertEquals(0, persister.getUpdateCount());
+  }
+
+  @Test public void changedActionIsUpdatedTest() {
+    InstantRetryStateActionPersister persister = new InstantRetryStateActionPersister();
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withActionPersister(persister)
+        .build();
+    DispatcherUtil.waitForPersistentActionsToLoad(dispatcher);
+
+    TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new FailingAction(2, 2) {
+      @Override public void preRetry() {
+        markPersistentStateChanged();
+      }
+    }).subscribe(ts);
+    ts.awaitTerminalEvent();
+    ts.assertValue(true);
+
+    // Marked on the first retry, and persisted before the second.
+    assertEquals(1, persister.getUpdateCount());
+    assertEquals(Arrays.asList(0, 1), persister.getRetryStateWrites());
+  }
+
+  @Test public void plainPersisterIsUpdatedWhenRetryStateChangesTest() {
+    final AtomicInteger updateCount = new AtomicInteger();
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withActionPersister(new InstantActionPersister() {
+          @Override public synchronized void update(long id, Action<?> action) {
+            super.update(id, action);
+            updateCount.incrementAndGet();
+          }
+        })
+        .build();
+    DispatcherUtil.waitForPersistentActionsToLoad(dispatcher);
+
+    TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new FailingAction(3, 3)).subscribe(ts);
+    ts.awaitTerminalEvent();
+    ts.assertValue(true);
+
+    assertEquals(3, updateCount.get());
+  }
+
+  @Test public void noneDurabilityTest() {
+    InstantRetryStateActionPersister persister = new InstantRetryStateActionPersister();
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withActionPersister(persister)
+        .withRetryStateDurability(RetryStateDurability.NONE)
+        .build();
+    DispatcherUtil.waitForPersistentActionsToLoad(dispatcher);
+
+    TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new FailingAction(3, 3)).subscribe(ts);
+    ts.awaitTerminalEvent();
+    ts.assertValue(true);
+
+    assertTrue(persister.getRetryStateWrites().isEmpty());
+    assertEquals(0, persister.getUpdateCount());
+  }
+
+  @Test public void asyncRetryStatesAreCoalescedTest() throws InterruptedException {
+    InstantRetryStateActionPersister persister = new InstantRetryStateActionPersister();
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withActionPersister(persister)
+        .withRetryStateDurability(RetryStateDurability.ASYNC)
+        .build();
+    DispatcherUtil.waitForPersistentActionsToLoad(dispatcher);
+
+    final CountDownLatch failed = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+
+    TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new FailingAction(10, 10) {
+      @Override public Boolean execute() throws Throwable {
+        Boolean result = super.execute();
+        failed.countDown();
+        release.await();
+        return result;
+      }
+    }).subscribe(ts);
+
+    // The 10 failures happen back to back, and are coalesced while the Action is left running.
+    assertTrue(failed.await(5, TimeUnit.SECONDS));
+    long deadline = System.currentTimeMillis() + 5000;
+    while (persister.getRetryStateWrites().isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+
+    release.countDown();
+    ts.awaitTerminalEvent();
+    ts.assertValue(true);
+
+    List<Integer> writes = persister.getRetryStateWrites();
+    assertTrue(writes.size() < 10);
+    assertEquals(9, (int) writes.get(writes.size() - 1));
+  }
+
+  @Test public void retryStateIsRestoredTest() {
+    InstantRetryStateActionPersister persister = new InstantRetryStateActionPersister();
+    final FailingAction action = new FailingAction(1, 3);
+    long id = persister.persist(action);
+    persister.updateRetryState(id, 1);
+
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withActionPersister(persister)
+        .build();
+    DispatcherUtil.waitForPersistentActionsToLoad(dispatcher);
+
+    long deadline = System.currentTimeMillis() + 5000;
+    while (persister.isPersisted(action) && System.currentTimeMillis() < deadline) {
+      Thread.yield();
+    }
+
+    assertFalse(persister.isPersisted(action));
+    // Restored with one retry used, then failed once more before succeeding.
+    assertEquals(2, action.getRetryCount());
+  }
+
+  /**
+   * Fails {@code failCount} times before succeeding.
+   */
+  @Test public void asyncRetryStateErrorIsLoggedTest() throws InterruptedException {
+    InstantRetryStateActionPersister persister = new InstantRetryStateActionPersister() {
+      @Override public synchronized void updateRetryState(long id, int retryState) {
+        throw new TestException();
+      }
+    };
+    final CountDownLatch logged = new CountDownLatch(1);
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withActionPersister(persister)
+        .withRetryStateDurability(RetryStateDurability.ASYNC)
+        .withActionLogger(new ActionLogger() {
+          @Override public void logDebug(String message) {
+          }
+
+          @Override public void logError(Throwable t, String message) {
+            if (t instanceof TestException) logged.countDown();
+          }
+        })
+        .build();
+    DispatcherUtil.waitForPersistentActionsToLoad(dispatcher);
+
+    // The retry waits for the background write, so the Action isn't deleted before it.
+    TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new FailingAction(1, 1) {
+      @Override public Boolean execute() throws Throwable {
+        Boolean result = super.execute();
+        assertTrue(logged.await(5, TimeUnit.SECONDS));
+        return result;
+      }
+    }).subscribe(ts);
+    ts.awaitTerminalEvent();
+    ts.assertValue(true);
+  }
+
+  private static class FailingAction extends Action<Boolean> {
+    private final int mFailCount;
+    private final int mRetryLimit;
+    private int mExecuteCount = 0;
+
+    FailingAction(int failCount, int retryLimit) {
+      mFailCount = failCount;
+      mRetryLimit = retryLimit;
+    }
+
+    @Override public Boolean execute() throws Throwable {
+      if (mExecuteCount++ < mFailCount) throw new TestException();
+      return true;
+    }
+
+    @Override public int getRetryLimit() {
+      return mRetryLimit;
+    }
+
+    @Override public boolean isPersistent() {
+      return true;
+    }
+  }
+}
@@ -1,7 +1,15 @@
 package com.wmba.actiondispatcher;
 
+import com.wmba.actiondispatcher.component.SimpleAction;
+import com.wmba.actiondispatcher.component.TestException;
+
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import rx.observers.TestSubscriber;
@@ -77,4 +85,175 @@ public class RetryTests {
     assertEquals(totalRunCount + 1, executeCount.get());
     assertEquals(totalRunCount + 1, shouldRetryForThrowableCount.get());
   }
+
+  @Test public void backoffHoldsKeyTest() {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withKeyThreadPoolSize(1)
+        .build();
+
+    final List<String> completions = Collections.synchronizedList(new ArrayList<String>());
+
+    TestSubscriber<Boolean> retrying = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new BackoffAction(2, completions, "retrying"), "key").subscribe(retrying);
+
+    TestSubscriber<Boolean> sameKey = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new RecordingAction(completions, "sameKey"), "key").subscribe(sameKey);
+
+    TestSubscriber<Boolean> otherKey = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new RecordingAction(completions, "otherKey"), "other").subscribe(otherKey);
+
+    retrying.awaitTerminalEvent();
+    sameKey.awaitTerminalEvent();
+    otherKey.awaitTerminalEvent();
+    retrying.assertValue(true);
+
+    // The only pool thread was free for the other key while the retrying Action waited, but the
+    // Action after it on the same key still waited for it.
+    assertEquals("otherKey", completions.get(0));
+    assertEquals("retrying", completions.get(1));
+    assertEquals("sameKey", completions.get(2));
+  }
+
+  @Test public void backoffOvertakingTest() {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withKeyThreadPoolSize(1)
+        .withKeySelector(new KeySelector() {
+          @Override public boolean isRetryOvertakingAllowed(String key) {
+            return true;
+          }
+        })
+        .build();
+
+    final List<String> completions = Collections.synchronizedList(new ArrayList<String>());
+
+    TestSubscriber<Boolean> retrying = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new BackoffAction(2, completions, "retrying"), "key").subscribe(retrying);
+
+    TestSubscriber<Boolean> sameKey = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new RecordingAction(completions, "sameKey"), "key").subscribe(sameKey);
+
+    retrying.awaitTerminalEvent();
+    sameKey.awaitTerminalEvent();
+    retrying.assertValue(true);
+
+    assertEquals("sameKey", completions.get(0));
+    assertEquals("retrying", completions.get(1));
+  }
+
+  @Test public void backoffAsyncTest() {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    BackoffAction action = new BackoffAction(3, Collections.synchronizedList(new ArrayList<String>()), "async");
+    TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+    dispatcher.toSingleAsync(action).subscribe(ts);
+
+    ts.awaitTerminalEvent();
+    ts.assertValue(true);
+    assertEquals(4, action.mExecuteCount.get());
+  }
+
+  @Test public void backoffGivesUpTest() {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    BackoffAction action = new BackoffAction(Integer.MAX_VALUE, Collections.synchronizedList(new ArrayList<String>()), "failing");
+    TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(action).subscribe(ts);
+
+    ts.awaitTerminalEvent();
+    ts.assertError(TestException.class);
+    assertEquals(action.getRetryLimit() + 1, action.mExecuteCount.get());
+  }
+
+  @Test public void backoffOnDirectExecutorTest() {
+    final ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withExecutor("direct", new Executor() {
+          @Override public void execute(Runnable command) {
+            command.run();
+          }
+        })
+        .build();
+
+    // Run from inside an Action on another key, the retry must wait on the thread rather than hold
+    // the other key for itself.
+    final BackoffAction action = new BackoffAction(2, Collections.synchronizedList(new ArrayList<String>()), "direct");
+    TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new Action<Boolean>() {
+      @Override public Boolean execute() throws Throwable {
+        dispatcher.submit(action, "direct", null);
+        return action.mExecuteCount.get() == 3;
+      }
+    }, "outer").subscribe(ts);
+
+    ts.awaitTerminalEvent();
+    ts.assertValue(true);
+  }
+
+  @Test public void backoffDelayTest() {
+    RetryBackoff exponential = RetryBackoff.exponential(10, 100, TimeUnit.MILLISECONDS);
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(10), exponential.getDelayNanos(1));
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(20), exponential.getDelayNanos(2));
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(80), exponential.getDelayNanos(4));
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(100), exponential.getDelayNanos(5));
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(100), exponential.getDelayNanos(Integer.MAX_VALUE));
+
+    RetryBackoff tripling = exponential.withMultiplier(3);
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(90), tripling.getDelayNanos(3));
+
+    RetryBackoff fixed = RetryBackoff.fixed(5, TimeUnit.SECONDS);
+    assertEquals(TimeUnit.SECONDS.toNanos(5), fixed.getDelayNanos(1));
+    assertEquals(TimeUnit.SECONDS.toNanos(5), fixed.getDelayNanos(10));
+
+    RetryBackoff jittered = fixed.withJitter(0.5);
+    for (int i = 0; i < 100; i++) {
+      long delay = jittered.getDelayNanos(1);
+      assertTrue(delay >= TimeUnit.MILLISECONDS.toNanos(2500));
+      assertTrue(delay <= TimeUnit.SECONDS.toNanos(5));
+    }
+  }
+
+  /**
+   * Fails {@code failCount} times, waiting 20ms before each retry, then records its completion.
+   */
+  private static class BackoffAction extends Action<Boolean> {
+    final AtomicInteger mExecuteCount = new AtomicInteger();
+    private final int mFailCount;
+    private final List<String> mCompletions;
+    private final String mName;
+
+    BackoffAction(int failCount, List<String> completions, String name) {
+      mFailCount = failCount;
+      mCompletions = completions;
+      mName = name;
+    }
+
+    @Override public Boolean execute() throws Throwable {
+      if (mExecuteCount.getAndIncrement() < mFailCount) throw new TestException();
+
+      mCompletions.add(mName);
+      return true;
+    }
+
+    @Override public int getRetryLimit() {
+      return 5;
+    }
+
+    @Override public RetryBackoff getRetryBackoff() {
+      return RetryBackoff.fixed(20, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private static class RecordingAction extends SimpleAction {
+    private final List<String> mCompletions;
+    private final String mName;
+
+    RecordingAction(List<String> completions, String name) {
+      mCompletions = completions;
+      mName = name;
+    }
+
+    @Override public Boolean execute() throws Throwable {
+      mCompletions.add(mName);
+      return true;
+    }
+  }
 }
@@ -0,0 +1,246 @@
+package com.wmba.actiondispatcher;
+
+import com.wmba.actiondispatcher.component.InstantActionPersister;
+import com.wmba.actiondispatcher.component.InstantRetryStateActionPersister;
+import com.wmba.actiondispatcher.component.SimpleAction;
+import com.wmba.actiondispatcher.component.SimplePersistentAction;
+
+import com.wmba.actiondispatcher.persist.JournalActionPersister;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import rx.observers.TestSubscriber;
+
+import static com.wmba.actiondispatcher.component.KeyBlocker.blockKey;
+import static org.junit.Assert.*;
+
+public class ShutdownTests {
+  @Rule public TemporaryFolder mFolder = new TemporaryFolder();
+
+  @Test public void drainTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    CountDownLatch release = blockKey(dispatcher, "key");
+    List<TestSubscriber<Boolean>> subscribers = new ArrayList<TestSubscriber<Boolean>>();
+    for (int i = 0; i < 5; i++) {
+      TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+      dispatcher.toSingle(new SimpleAction(), "key").subscribe(ts);
+      subscribers.add(ts);
+    }
+
+    releaseLater(release, 50);
+    assertTrue(dispatcher.shutdown(5, TimeUnit.SECONDS));
+    assertTrue(dispatcher.isShutdown());
+    assertTrue(dispatcher.isTerminated());
+    for (TestSubscriber<Boolean> ts : subscribers) {
+      ts.assertValue(true);
+    }
+  }
+
+  @Test public void rejectsAfterShutdownTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+    assertTrue(dispatcher.shutdown(1, TimeUnit.SECONDS));
+
+    TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new SimpleAction(), "key").subscribe(ts);
+    ts.assertError(RejectedExecutionException.class);
+
+    assertFalse(dispatcher.trySubmit(new SimpleAction(), "key", null));
+  }
+
+  @Test public void cancelQueuedTest() throws InterruptedException {
+    InstantActionPersister persister = new InstantActionPersister();
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withActionPersister(persister)
+        .withShutdownPolicy(ShutdownPolicy.CANCEL_QUEUED)
+        .build();
+    DispatcherUtil.waitForPersistentActionsToLoad(dispatcher);
+
+    CountDownLatch release = blockKey(dispatcher, "key");
+    final AtomicBoolean executed = new AtomicBoolean();
+    TestSubscriber<Boolean> queued = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new Action<Boolean>() {
+      @Override public Boolean execute() throws Throwable {
+        executed.set(true);
+        return true;
+      }
+    }, "key").subscribe(queued);
+
+    SimplePersistentAction persistent = new SimplePersistentAction();
+    TestSubscriber<Boolean> queuedPersistent = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(persistent, "key").subscribe(queuedPersistent);
+
+    releaseLater(release, 50);
+    assertTrue(dispatcher.shutdown(5, TimeUnit.SECONDS));
+
+    queued.assertError(RejectedExecutionException.class);
+    queuedPersistent.assertError(RejectedExecutionException.class);
+    assertFalse(executed.get());
+    // Kept to run on the next start.
+    assertTrue(persister.isPersisted(persistent));
+  }
+
+  @Test public void drainTimeoutTest() throws InterruptedException {
+    InstantActionPersister persister = new InstantActionPersister();
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withActionPersister(persister)
+        .build();
+    DispatcherUtil.waitForPersistentActionsToLoad(dispatcher);
+
+    CountDownLatch release = blockKey(dispatcher, "key");
+    TestSubscriber<Boolean> queued = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new SimpleAction(), "key").subscribe(queued);
+    SimplePersistentAction persistent = new SimplePersistentAction();
+    dispatcher.toSingle(persistent, "key").subscribe(new TestSubscriber<Boolean>());
+
+    assertFalse(dispatcher.shutdown(50, TimeUnit.MILLISECONDS));
+    assertFalse(dispatcher.isTerminated());
+    assertTrue(persister.isPersisted(persistent));
+
+    // The blocked Action is still allowed to finish, but what was queued behind it doesn't run.
+    release.countDown();
+    assertTrue(dispatcher.awaitTermination(5, TimeUnit.SECONDS));
+    queued.assertError(RejectedExecutionException.class);
+    assertTrue(persister.isPersisted(persistent));
+  }
+
+  @Test public void hungKeyRejectsQueuedTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    CountDownLatch release = blockKey(dispatcher, "key");
+    final AtomicBoolean executed = new AtomicBoolean();
+    TestSubscriber<Boolean> queued = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new Action<Boolean>() {
+      @Override public Boolean execute() throws Throwable {
+        executed.set(true);
+        return true;
+      }
+    }, "key").subscribe(queued);
+
+    // Rejected at the timeout, while the key is still held by the blocked Action.
+    assertFalse(dispatcher.shutdown(50, TimeUnit.MILLISECONDS));
+    queued.assertError(RejectedExecutionException.class);
+
+    release.countDown();
+    assertTrue(dispatcher.awaitTermination(5, TimeUnit.SECONDS));
+    assertFalse(executed.get());
+  }
+
+  @Test public void hungKeyRejectsActionWaitingForKeysTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    // Holds key a while it waits for key b.
+    CountDownLatch release = blockKey(dispatcher, "b");
+    TestSubscriber<Boolean> queued = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new SimpleAction() {
+      @Override public Set<String> getKeys() {
+        return new HashSet<String>(Arrays.asList("a", "b"));
+      }
+    }).subscribe(queued);
+
+    assertFalse(dispatcher.shutdown(50, TimeUnit.MILLISECONDS));
+    queued.assertError(RejectedExecutionException.class);
+
+    release.countDown();
+    assertTrue(dispatcher.awaitTermination(5, TimeUnit.SECONDS));
+  }
+
+  @Test public void checkpointTest() throws IOException, InterruptedException {
+    File directory = mFolder.newFolder();
+    JournalActionPersister persister = new JournalActionPersister.Builder(directory)
+        .withMaxSegmentBytes(512)
+        .withCompactionInterval(0)
+        .build();
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withActionPersister(persister)
+        .withShutdownPolicy(ShutdownPolicy.CANCEL_QUEUED)
+        .build();
+    DispatcherUtil.waitForPersistentActionsToLoad(dispatcher);
+
+    // Completed Actions leave records behind in several segments.
+    for (int i = 0; i < 20; i++) {
+      assertEquals(Boolean.TRUE, dispatcher.toSingle(new SerializablePersistentAction(), "key").toBlocking().value());
+    }
+    assertTrue(directory.listFiles().length > 1);
+
+    CountDownLatch release = blockKey(dispatcher, "key");
+    dispatcher.toSingle(new SerializablePersistentAction(), "key").subscribe(new TestSubscriber<Boolean>());
+    releaseLater(release, 50);
+    assertTrue(dispatcher.shutdown(5, TimeUnit.SECONDS));
+    persister.close();
+
+    // Only the shelved Action is left, in a single segment.
+    assertEquals(1, directory.listFiles().length);
+    JournalActionPersister reopened = new JournalActionPersister.Builder(directory).build();
+    assertEquals(1, reopened.getPersistedActions().size());
+    reopened.close();
+  }
+
+  @Test public void persistThreadsStopTest() throws InterruptedException {
+    int threadsBefore = countPersistThreads();
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withActionPersister(new InstantRetryStateActionPersister())
+        .withPersistBatchWindow(1, TimeUnit.MILLISECONDS)
+        .withRetryStateDurability(RetryStateDurability.ASYNC)
+        .build();
+    DispatcherUtil.waitForPersistentActionsToLoad(dispatcher);
+
+    assertEquals(Boolean.TRUE, dispatcher.toSingle(new SimplePersistentAction(), "key").toBlocking().value());
+    assertEquals(threadsBefore + 2, countPersistThreads());
+
+    assertTrue(dispatcher.shutdown(1, TimeUnit.SECONDS));
+    assertEquals(threadsBefore, countPersistThreads());
+  }
+
+  private static int countPersistThreads() {
+    int count = 0;
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      String name = thread.getName();
+      if (thread.isAlive() && (name.equals("ActionDispatcherThread-persist")
+          || name.equals("ActionDispatcherThread-retry-state"))) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Test public void awaitTerminationTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    assertEquals(Boolean.TRUE, dispatcher.toSingle(new SimpleAction(), "key").toBlocking().value());
+    assertFalse(dispatcher.awaitTermination(10, TimeUnit.MILLISECONDS));
+
+    assertTrue(dispatcher.shutdown(1, TimeUnit.SECONDS));
+    assertTrue(dispatcher.awaitTermination(0, TimeUnit.MILLISECONDS));
+  }
+
+  private static class SerializablePersistentAction extends SimplePersistentAction implements Serializable {
+  }
+
+  private static void releaseLater(final CountDownLatch release, final long delayMillis) {
+    new Thread() {
+      @Override public void run() {
+        try {
+          Thread.sleep(delayMillis);
+        } catch (InterruptedException ignored) {
+        }
+        release.countDown();
+      }
+    }.start();
+  }
+}
@@ -0,0 +1,160 @@
+package com.wmba.actiondispatcher;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StripedKeyTests {
+  @Test public void keysMapToBoundedLanesTest() {
+    StripedKeySelector selector = new StripedKeySelector.Builder()
+        .withStripes("user:", 4)
+        .build();
+
+    Set<String> lanes = new HashSet<String>();
+    for (int i = 0; i < 1000; i++) {
+      String lane = selector.getLaneKey("user:" + i);
+      assertEquals(lane, selector.getLaneKey("user:" + i));
+      lanes.add(lane);
+    }
+    assertEquals(4, lanes.size());
+
+    // Keys without a striped prefix are left alone.
+    assertEquals("other:1", selector.getLaneKey("other:1"));
+    assertEquals(KeySelector.ASYNC_KEY, selector.getLaneKey(KeySelector.ASYNC_KEY));
+  }
+
+  @Test public void longestPrefixWinsTest() {
+    StripedKeySelector selector = new StripedKeySelector.Builder()
+        .withStripes("user:", 4)
+        .withStripes("user:vip:", 1)
+        .build();
+
+    assertEquals("user:vip:#0", selector.getLaneKey("user:vip:7"));
+    assertTrue(selector.getLaneKey("user:7").startsWith("user:#"));
+  }
+
+  @Test public void addingLanesMovesFewKeysTest() {
+    int moved = 0;
+    for (int i = 0; i < 10000; i++) {
+      if (StripedKeySelector.jumpConsistentHash(i * 0x9E3779B97F4A7C15L, 10)
+          != StripedKeySelector.jumpConsistentHash(i * 0x9E3779B97F4A7C15L, 11)) {
+        moved++;
+      }
+    }
+    // About 1 in 11 keys moves to the new lane, and no other key moves.
+    assertTrue(moved > 500 && moved < 1400);
+  }
+
+  @Test public void multipleKeysMapToLanesTest() {
+    StripedKeySelector selector = new StripedKeySelector.Builder()
+        .withStripes("user:", 1)
+        .build();
+
+    final Set<String> keys = new HashSet<String>(Arrays.asList("user:1", "user:2", "other:1"));
+    Action<Boolean> transfer = new Action<Boolean>() {
+      @Override public Boolean execute() throws Throwable {
+        return true;
+      }
+
+      @Override public Set<String> getKeys() {
+        return keys;
+      }
+    };
+
+    // Both users share the only lane, which is held once.
+    assertEquals(new HashSet<String>(Arrays.asList("user:#0", "other:1")), selector.getKeys(transfer));
+  }
+
+  @Test public void orderIsKeptPerKeyTest() throws InterruptedException {
+    final StripedKeySelector selector = new StripedKeySelector.Builder()
+        .withStripes("user:", 3)
+        .build();
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withKeySelector(selector)
+        .build();
+
+    int keyCount = 20;
+    int actionsPerKey = 50;
+    final List<List<Integer>> orders = new ArrayList<List<Integer>>();
+    for (int i = 0; i < keyCount; i++) {
+      orders.add(Collections.synchronizedList(new ArrayList<Integer>()));
+    }
+
+    final CountDownLatch done = new CountDownLatch(keyCount * actionsPerKey);
+    for (int n = 0; n < actionsPerKey; n++) {
+      for (int i = 0; i < keyCount; i++) {
+        dispatcher.submit(new UserAction(i, n, orders.get(i)), new ActionCallback<Boolean>() {
+          @Override public void onSuccess(Boolean value) {
+            done.countDown();
+          }
+
+          @Override public void onError(Throwable t) {}
+        });
+      }
+    }
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+
+    for (List<Integer> order : orders) {
+      for (int n = 0; n < actionsPerKey; n++) {
+        assertEquals(Integer.valueOf(n), order.get(n));
+      }
+    }
+
+    Map<String, Long> loads = selector.getLaneLoads("user:");
+    assertEquals(3, loads.size());
+    long total = 0;
+    for (long load : loads.values()) {
+      total += load;
+    }
+    assertEquals(keyCount * actionsPerKey, total);
+    assertNull(selector.getLaneLoads("other:"));
+  }
+
+  @Test public void lookingUpLanesIsNotCountedTest() {
+    StripedKeySelector selector = new StripedKeySelector.Builder()
+        .withStripes("user:", 4)
+        .build();
+
+    for (int i = 0; i < 100; i++) {
+      selector.getLaneKey("user:" + i);
+    }
+    for (long load : selector.getLaneLoads("user:").values()) {
+      assertEquals(0, load);
+    }
+
+    String lane = selector.getKey(new UserAction(1, 0, null));
+    assertEquals(selector.getLaneKey("user:1"), lane);
+    assertEquals(Long.valueOf(1), selector.getLaneLoads("user:").get(lane));
+  }
+
+  private static class UserAction extends Action<Boolean> {
+    private final int mUser;
+    private final int mIndex;
+    private final List<Integer> mOrder;
+
+    UserAction(int user, int index, List<Integer> order) {
+      mUser = user;
+      mIndex = index;
+      mOrder = order;
+    }
+
+    @Override public Boolean execute() throws Throwable {
+      mOrder.add(mIndex);
+      return true;
+    }
+
+    @Override public String getKey() {
+      return "user:" + mUser;
+    }
+  }
+}
@@ -0,0 +1,160 @@
+package com.wmba.actiondispatcher;
+
+import com.wmba.actiondispatcher.component.ErrorAction;
+import com.wmba.actiondispatcher.component.InstantActionPersister;
+import com.wmba.actiondispatcher.component.SimpleAction;
+import com.wmba.actiondispatcher.component.SimplePersistentAction;
+import com.wmba.actiondispatcher.component.TestException;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import rx.Single;
+import rx.observers.TestSubscriber;
+
+import static org.junit.Assert.*;
+
+public class SubmitTests {
+  @Test public void submitTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    RecordingCallback<Boolean> callback = new RecordingCallback<Boolean>();
+    dispatcher.submit(new SimpleAction(), callback);
+
+    callback.await();
+    assertEquals(Boolean.TRUE, callback.mValue);
+    assertNull(callback.mError);
+  }
+
+  @Test public void submitErrorTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    RecordingCallback<Boolean> callback = new RecordingCallback<Boolean>();
+    dispatcher.submit(new ErrorAction(), callback);
+
+    callback.await();
+    assertNull(callback.mValue);
+    assertTrue(callback.mError instanceof TestException);
+  }
+
+  @Test public void submitPersistentTest() throws InterruptedException {
+    InstantActionPersister persister = new InstantActionPersister();
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withActionPersister(persister)
+        .build();
+
+    SimplePersistentAction action = new SimplePersistentAction();
+    RecordingCallback<Boolean> callback = new RecordingCallback<Boolean>();
+    dispatcher.submit(action, callback);
+
+    callback.await();
+    assertEquals(Boolean.TRUE, callback.mValue);
+    assertFalse(persister.isPersisted(action));
+  }
+
+  @Test public void submitKeepsOrderTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    final int count = 100;
+    final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+    RecordingCallback<Boolean> callback = null;
+    for (int i = 0; i < count; i++) {
+      final int index = i;
+      callback = new RecordingCallback<Boolean>();
+      dispatcher.submit(new Action<Boolean>() {
+        @Override public Boolean execute() throws Throwable {
+          order.add(index);
+          return true;
+        }
+      }, "order", callback);
+    }
+
+    callback.await();
+    assertEquals(count, order.size());
+    for (int i = 0; i < count; i++) {
+      assertEquals(Integer.valueOf(i), order.get(i));
+    }
+  }
+
+  @Test public void submitWithoutCallbackTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    final CountDownLatch ran = new CountDownLatch(1);
+    dispatcher.submit(new Action<Boolean>() {
+      @Override public Boolean execute() throws Throwable {
+        ran.countDown();
+        return true;
+      }
+    }, null);
+
+    assertTrue(ran.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test public void resubscribeTest() {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    final AtomicInteger executeCount = new AtomicInteger();
+    Single<Integer> single = dispatcher.toSingle(new Action<Integer>() {
+      @Override public Integer execute() throws Throwable {
+        return executeCount.incrementAndGet();
+      }
+    });
+
+    assertEquals(Integer.valueOf(1), single.toBlocking().value());
+    assertEquals(Integer.valueOf(2), single.toBlocking().value());
+  }
+
+  @Test public void filteredLoggerTest() {
+    final AtomicInteger debugCount = new AtomicInteger();
+    final AtomicReference<Boolean> debugEnabled = new AtomicReference<Boolean>(false);
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withActionLogger(new FilteredActionLogger() {
+          @Override public boolean isDebugEnabled() {
+            return debugEnabled.get();
+          }
+
+          @Override public void logDebug(String message) {
+            debugCount.incrementAndGet();
+          }
+
+          @Override public void logError(Throwable t, String message) {}
+        })
+        .build();
+
+    TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new ErrorAction()).subscribe(ts);
+    ts.awaitTerminalEvent();
+    assertEquals(0, debugCount.get());
+
+    debugEnabled.set(true);
+    dispatcher.toSingle(new SimpleAction()).toBlocking().value();
+    assertTrue(debugCount.get() > 0);
+  }
+
+  private static class RecordingCallback<T> implements ActionCallback<T> {
+    private final CountDownLatch mLatch = new CountDownLatch(1);
+    volatile T mValue;
+    volatile Throwable mError;
+
+    @Override public void onSuccess(T value) {
+      mValue = value;
+      mLatch.countDown();
+    }
+
+    @Override public void onError(Throwable t) {
+      mError = t;
+      mLatch.countDown();
+    }
+
+    void await() throws InterruptedException {
+      assertTrue(mLatch.await(5, TimeUnit.SECONDS));
+    }
+  }
+}
@@ -0,0 +1,196 @@
+package com.wmba.actiondispatcher;
+
+import com.wmba.actiondispatcher.component.TestException;
+import com.wmba.actiondispatcher.metrics.DispatchMetrics;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rx.observers.TestSubscriber;
+
+import static com.wmba.actiondispatcher.component.KeyBlocker.blockKey;
+import static org.junit.Assert.*;
+
+public class TimeoutTests {
+  @Test public void runningActionTimesOutTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    final CountDownLatch interrupted = new CountDownLatch(1);
+    TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new TimedAction(100) {
+      @Override public Boolean execute() throws Throwable {
+        try {
+          Thread.sleep(10000);
+        } catch (InterruptedException e) {
+          interrupted.countDown();
+          throw e;
+        }
+        return true;
+      }
+    }, "key").subscribe(ts);
+
+    ts.awaitTerminalEvent(5, TimeUnit.SECONDS);
+    ts.assertError(TimeoutException.class);
+    assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test public void hungActionReleasesKeyTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withKeyThreadPoolSize(2)
+        .build();
+
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicBoolean sawTimeout = new AtomicBoolean();
+    final CountDownLatch returned = new CountDownLatch(1);
+    TestSubscriber<Boolean> hung = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new TimedAction(100) {
+      @Override public Boolean execute() throws Throwable {
+        // Ignores interrupts, as a hung call would.
+        while (release.getCount() > 0) {
+          try {
+            release.await();
+          } catch (InterruptedException ignored) {
+          }
+        }
+        sawTimeout.set(isTimedOut());
+        returned.countDown();
+        return true;
+      }
+    }, "key").subscribe(hung);
+
+    final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+    List<TestSubscriber<Boolean>> subscribers = new ArrayList<TestSubscriber<Boolean>>();
+    for (int i = 0; i < 10; i++) {
+      final int index = i;
+      TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+      dispatcher.toSingle(new Action<Boolean>() {
+        @Override public Boolean execute() throws Throwable {
+          order.add(index);
+          return true;
+        }
+      }, "key").subscribe(ts);
+      subscribers.add(ts);
+    }
+
+    // The key moves on while the first Action is still stuck.
+    for (TestSubscriber<Boolean> ts : subscribers) {
+      ts.awaitTerminalEvent(5, TimeUnit.SECONDS);
+      ts.assertValue(true);
+    }
+    hung.assertError(TimeoutException.class);
+    for (int i = 0; i < order.size(); i++) {
+      assertEquals(Integer.valueOf(i), order.get(i));
+    }
+
+    release.countDown();
+    assertEquals(Boolean.TRUE, dispatcher.toSingle(new TimedAction(1000), "key").toBlocking().value());
+    // The key no longer waits for the hung Action, so it may still be returning.
+    assertTrue(returned.await(5, TimeUnit.SECONDS));
+    assertTrue(sawTimeout.get());
+  }
+
+  @Test public void waitingActionTimesOutTest() throws InterruptedException {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    CountDownLatch release = blockKey(dispatcher, "key");
+    final AtomicBoolean executed = new AtomicBoolean();
+    TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new TimedAction(50) {
+      @Override public Boolean execute() throws Throwable {
+        executed.set(true);
+        return true;
+      }
+    }, "key").subscribe(ts);
+
+    ts.awaitTerminalEvent(5, TimeUnit.SECONDS);
+    ts.assertError(TimeoutException.class);
+    release.countDown();
+
+    assertEquals(Boolean.TRUE, dispatcher.toSingle(new TimedAction(1000), "key").toBlocking().value());
+    assertFalse(executed.get());
+  }
+
+  @Test public void retriesStopAtTimeoutTest() {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    final AtomicInteger executeCount = new AtomicInteger();
+    TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+    long start = System.nanoTime();
+    dispatcher.toSingle(new TimedAction(200) {
+      @Override public Boolean execute() throws Throwable {
+        executeCount.incrementAndGet();
+        throw new TestException();
+      }
+
+      @Override public int getRetryLimit() {
+        return 1000;
+      }
+
+      @Override public RetryBackoff getRetryBackoff() {
+        return RetryBackoff.fixed(50, TimeUnit.MILLISECONDS);
+      }
+    }, "key").subscribe(ts);
+
+    ts.awaitTerminalEvent(5, TimeUnit.SECONDS);
+    ts.assertError(TimeoutException.class);
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+    assertTrue(executeCount.get() <= 4);
+  }
+
+  @Test public void completesBeforeTimeoutTest() throws InterruptedException {
+    DispatchMetrics metrics = new DispatchMetrics();
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withDispatchListener(metrics)
+        .build();
+
+    TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new TimedAction(50), "key").subscribe(ts);
+    ts.awaitTerminalEvent();
+    Thread.sleep(100);
+
+    ts.assertValue(true);
+    ts.assertNoErrors();
+    assertEquals(0, metrics.getActionClassStats().get(TimedAction.class).getTimedOutCount());
+  }
+
+  @Test public void metricsTest() throws InterruptedException {
+    DispatchMetrics metrics = new DispatchMetrics();
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder()
+        .withDispatchListener(metrics)
+        .build();
+
+    CountDownLatch release = blockKey(dispatcher, "key");
+    TestSubscriber<Boolean> ts = new TestSubscriber<Boolean>();
+    dispatcher.toSingle(new TimedAction(50), "key").subscribe(ts);
+    ts.awaitTerminalEvent(5, TimeUnit.SECONDS);
+    ts.assertError(TimeoutException.class);
+
+    assertEquals(1, metrics.getActionClassStats().get(TimedAction.class).getTimedOutCount());
+    assertNull(metrics.getQueueDepths().get("key"));
+    release.countDown();
+  }
+
+  private static class TimedAction extends Action<Boolean> {
+    private final long mTimeoutMillis;
+
+    TimedAction(long timeoutMillis) {
+      mTimeoutMillis = timeoutMillis;
+    }
+
+    @Override public Boolean execute() throws Throwable {
+      return true;
+    }
+
+    @Override public long getTimeoutMillis() {
+      return mTimeoutMillis;
+    }
+  }
+}
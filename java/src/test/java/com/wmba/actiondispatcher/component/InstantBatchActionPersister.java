@@ -0,0 +1,42 @@
+package com.wmba.actiondispatcher.component;
+
+import com.wmba.actiondispatcher.Action;
+import com.wmba.actiondispatcher.BatchActionPersister;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class InstantBatchActionPersister extends InstantActionPersister implements BatchActionPersister {
+  private final List<Integer> mPersistBatchSizes = new ArrayList<Integer>();
+  private final List<Integer> mDeleteBatchSizes = new ArrayList<Integer>();
+
+  @Override public synchronized long[] persistAll(List<? extends Action<?>> actions) {
+    mPersistBatchSizes.add(actions.size());
+    long[] ids = new long[actions.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = persist(actions.get(i));
+    }
+    return ids;
+  }
+
+  @Override public synchronized void updateAll(long[] ids, List<? extends Action<?>> actions) {
+    for (int i = 0; i < ids.length; i++) {
+      update(ids[i], actions.get(i));
+    }
+  }
+
+  @Override public synchronized void deleteAll(long[] ids) {
+    mDeleteBatchSizes.add(ids.length);
+    for (long id : ids) {
+      delete(id);
+    }
+  }
+
+  public synchronized List<Integer> getPersistBatchSizes() {
+    return new ArrayList<Integer>(mPersistBatchSizes);
+  }
+
+  public synchronized List<Integer> getDeleteBatchSizes() {
+    return new ArrayList<Integer>(mDeleteBatchSizes);
+  }
+}
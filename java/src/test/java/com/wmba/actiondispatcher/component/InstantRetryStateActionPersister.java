@@ -0,0 +1,50 @@
+package com.wmba.actiondispatcher.component;
+
+import com.wmba.actiondispatcher.Action;
+import com.wmba.actiondispatcher.RetryStateActionPersister;
+import com.wmba.actiondispatcher.persist.PersistedActionHolder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class InstantRetryStateActionPersister extends InstantActionPersister implements RetryStateActionPersister {
+  private final Map<Long, Integer> mRetryStates = new HashMap<Long, Integer>();
+  private final List<Integer> mRetryStateWrites = new ArrayList<Integer>();
+  private int mUpdateCount = 0;
+
+  @Override public synchronized void update(long id, Action<?> action) {
+    super.update(id, action);
+    mUpdateCount++;
+  }
+
+  @Override public synchronized void updateRetryState(long id, int retryState) {
+    mRetryStates.put(id, retryState);
+    mRetryStateWrites.add(retryState);
+  }
+
+  @Override public synchronized void delete(long id) {
+    super.delete(id);
+    mRetryStates.remove(id);
+  }
+
+  @Override public synchronized List<PersistedActionHolder> getPersistedActions() {
+    List<PersistedActionHolder> persistedActions = new ArrayList<PersistedActionHolder>();
+    for (PersistedActionHolder holder : super.getPersistedActions()) {
+      Integer retryState = mRetryStates.get(holder.getActionId());
+      persistedActions.add((retryState != null)
+          ? new PersistedActionHolder(holder.getActionId(), holder.getAction(), retryState)
+          : holder);
+    }
+    return persistedActions;
+  }
+
+  public synchronized List<Integer> getRetryStateWrites() {
+    return new ArrayList<Integer>(mRetryStateWrites);
+  }
+
+  public synchronized int getUpdateCount() {
+    return mUpdateCount;
+  }
+}
@@ -0,0 +1,36 @@
+package com.wmba.actiondispatcher.component;
+
+import com.wmba.actiondispatcher.Action;
+import com.wmba.actiondispatcher.ActionDispatcher;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import rx.observers.TestSubscriber;
+
+import static org.junit.Assert.assertTrue;
+
+public class KeyBlocker {
+  private KeyBlocker() {
+  }
+
+  /**
+   * Runs an Action on the key that waits until the returned latch is counted down, so Actions
+   * submitted to the key in the meantime queue up behind it.
+   *
+   * @return once the Action is running.
+   */
+  public static CountDownLatch blockKey(ActionDispatcher dispatcher, String key) throws InterruptedException {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    dispatcher.toSingle(new Action<Boolean>() {
+      @Override public Boolean execute() throws Throwable {
+        started.countDown();
+        release.await();
+        return true;
+      }
+    }, key).subscribe(new TestSubscriber<Boolean>());
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    return release;
+  }
+}
@@ -0,0 +1,52 @@
+package com.wmba.actiondispatcher.java8;
+
+import com.wmba.actiondispatcher.Action;
+import com.wmba.actiondispatcher.ActionCallback;
+import com.wmba.actiondispatcher.ActionDispatcher;
+import com.wmba.actiondispatcher.ActionFuture;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Runs Actions as {@link CompletableFuture}s, on top of {@link ActionDispatcher#toFuture(Action,
+ * String)}. Cancelling the CompletableFuture unsubscribes from the Action, like cancelling its
+ * {@link ActionFuture} would.
+ */
+public final class CompletableActions {
+  private CompletableActions() {
+  }
+
+  public static <T> CompletableFuture<T> toCompletableFuture(ActionDispatcher dispatcher, Action<T> action) {
+    return adapt(dispatcher.toFuture(action));
+  }
+
+  public static <T> CompletableFuture<T> toCompletableFuture(ActionDispatcher dispatcher, Action<T> action,
+      String key) {
+    return adapt(dispatcher.toFuture(action, key));
+  }
+
+  public static <T> CompletableFuture<T> toCompletableFutureAsync(ActionDispatcher dispatcher, Action<T> action) {
+    return adapt(dispatcher.toFutureAsync(action));
+  }
+
+  private static <T> CompletableFuture<T> adapt(final ActionFuture<T> future) {
+    final CompletableFuture<T> completable = new CompletableFuture<T>() {
+      @Override public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled) future.cancel(mayInterruptIfRunning);
+        return cancelled;
+      }
+    };
+
+    future.addCallback(new ActionCallback<T>() {
+      @Override public void onSuccess(T value) {
+        completable.complete(value);
+      }
+
+      @Override public void onError(Throwable t) {
+        completable.completeExceptionally(t);
+      }
+    });
+    return completable;
+  }
+}
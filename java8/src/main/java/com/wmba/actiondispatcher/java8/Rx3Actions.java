@@ -0,0 +1,73 @@
+package com.wmba.actiondispatcher.java8;
+
+import com.wmba.actiondispatcher.Action;
+import com.wmba.actiondispatcher.ActionCallback;
+import com.wmba.actiondispatcher.ActionDispatcher;
+import com.wmba.actiondispatcher.ActionFuture;
+
+import org.reactivestreams.Publisher;
+
+import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.core.SingleEmitter;
+import io.reactivex.rxjava3.core.SingleOnSubscribe;
+import io.reactivex.rxjava3.functions.Cancellable;
+
+/**
+ * Runs Actions as RxJava 3 Singles, or as Reactive Streams Publishers, without going through
+ * RxJava 1. The Action is dispatched every time the Single is subscribed to, and disposing of the
+ * subscription unsubscribes from it. {@link Action#observeOn()} is not used, as its Scheduler is an
+ * RxJava 1 one.
+ */
+public final class Rx3Actions {
+  private Rx3Actions() {
+  }
+
+  public static <T> Single<T> toSingle(ActionDispatcher dispatcher, Action<T> action) {
+    return toSingle(dispatcher, action, null, false);
+  }
+
+  public static <T> Single<T> toSingle(ActionDispatcher dispatcher, Action<T> action, String key) {
+    return toSingle(dispatcher, action, key, false);
+  }
+
+  public static <T> Single<T> toSingleAsync(ActionDispatcher dispatcher, Action<T> action) {
+    return toSingle(dispatcher, action, null, true);
+  }
+
+  /**
+   * @return a Publisher of the result of the Action, which is dispatched once it is requested.
+   */
+  public static <T> Publisher<T> toPublisher(ActionDispatcher dispatcher, Action<T> action, String key) {
+    return toSingle(dispatcher, action, key, false).toFlowable();
+  }
+
+  private static <T> Single<T> toSingle(final ActionDispatcher dispatcher, final Action<T> action,
+      final String key, final boolean async) {
+    return Single.create(new SingleOnSubscribe<T>() {
+      @Override public void subscribe(final SingleEmitter<T> emitter) {
+        final ActionFuture<T> future;
+        if (async) {
+          future = dispatcher.toFutureAsync(action);
+        } else {
+          future = (key == null) ? dispatcher.toFuture(action) : dispatcher.toFuture(action, key);
+        }
+
+        emitter.setCancellable(new Cancellable() {
+          @Override public void cancel() {
+            future.cancel(false);
+          }
+        });
+        future.addCallback(new ActionCallback<T>() {
+          @Override public void onSuccess(T value) {
+            emitter.onSuccess(value);
+          }
+
+          @Override public void onError(Throwable t) {
+            // The subscriber is gone if the Action was cancelled by disposing of it.
+            emitter.tryOnError(t);
+          }
+        });
+      }
+    });
+  }
+}
@@ -0,0 +1,119 @@
+package com.wmba.actiondispatcher.java8;
+
+import com.wmba.actiondispatcher.Action;
+import com.wmba.actiondispatcher.ActionDispatcher;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.reactivex.rxjava3.core.Flowable;
+import io.reactivex.rxjava3.observers.TestObserver;
+
+import static org.junit.Assert.*;
+
+public class AdapterTests {
+  @Test public void completableFutureTest() throws Exception {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    CompletableFuture<Integer> future = CompletableActions.toCompletableFuture(dispatcher, new ValueAction(1), "key");
+    assertEquals(Integer.valueOf(2), future.thenApply(value -> value + 1).get(5, TimeUnit.SECONDS));
+  }
+
+  @Test public void completableFutureErrorTest() throws Exception {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    CompletableFuture<Integer> future = CompletableActions.toCompletableFutureAsync(dispatcher, new Action<Integer>() {
+      @Override public Integer execute() throws Throwable {
+        throw new IllegalStateException();
+      }
+    });
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  @Test public void completableFutureCancelTest() throws Exception {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+    CountDownLatch release = blockKey(dispatcher, "key");
+
+    AtomicBoolean executed = new AtomicBoolean();
+    CompletableFuture<Integer> future = CompletableActions.toCompletableFuture(dispatcher, new ValueAction(1) {
+      @Override public Integer execute() throws Throwable {
+        executed.set(true);
+        return super.execute();
+      }
+    }, "key");
+    assertTrue(future.cancel(false));
+    release.countDown();
+
+    assertEquals(Integer.valueOf(2), CompletableActions.toCompletableFuture(dispatcher, new ValueAction(2), "key")
+        .get(5, TimeUnit.SECONDS));
+    assertFalse(executed.get());
+  }
+
+  @Test public void singleTest() {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+
+    assertEquals(Integer.valueOf(1), Rx3Actions.toSingle(dispatcher, new ValueAction(1), "key").blockingGet());
+    assertEquals(Integer.valueOf(2), Rx3Actions.toSingleAsync(dispatcher, new ValueAction(2)).blockingGet());
+    assertEquals(Integer.valueOf(3), Flowable.fromPublisher(Rx3Actions.toPublisher(dispatcher, new ValueAction(3), "key"))
+        .blockingSingle());
+  }
+
+  @Test public void singleDisposeTest() throws Exception {
+    ActionDispatcher dispatcher = new ActionDispatcher.Builder().build();
+    CountDownLatch release = blockKey(dispatcher, "key");
+
+    AtomicBoolean executed = new AtomicBoolean();
+    TestObserver<Integer> observer = Rx3Actions.toSingle(dispatcher, new ValueAction(1) {
+      @Override public Integer execute() throws Throwable {
+        executed.set(true);
+        return super.execute();
+      }
+    }, "key").test();
+    observer.dispose();
+    release.countDown();
+
+    assertEquals(Integer.valueOf(2), Rx3Actions.toSingle(dispatcher, new ValueAction(2), "key").blockingGet());
+    assertFalse(executed.get());
+    observer.assertEmpty();
+  }
+
+  private static CountDownLatch blockKey(ActionDispatcher dispatcher, String key) throws InterruptedException {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    dispatcher.toFuture(new Action<Boolean>() {
+      @Override public Boolean execute() throws Throwable {
+        started.countDown();
+        release.await();
+        return true;
+      }
+    }, key);
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    return release;
+  }
+
+  private static class ValueAction extends Action<Integer> {
+    private final int mValue;
+
+    ValueAction(int value) {
+      mValue = value;
+    }
+
+    @Override public Integer execute() throws Throwable {
+      return mValue;
+    }
+
+    @Override public boolean runIfUnsubscribed() {
+      return false;
+    }
+  }
+}